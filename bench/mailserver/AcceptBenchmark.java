@@ -0,0 +1,102 @@
+package mailserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures new connections per second, as in a reconnect storm, on the
+ * loopback address of a server in the same process: each operation
+ * connects, reads the greeting and sends QUIT. The server closes the
+ * connection first, so that no TIME_WAIT sockets use up the local ports.
+ * Resetting it instead would have every session log an I/O error. Compares one accept thread with
+ * several, sharing a socket or each with its own through SO_REUSEPORT.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(32)
+@Fork(1)
+public class AcceptBenchmark {
+
+    private static final int PORT = 21120;
+
+    private static final byte[] QUIT =
+            "QUIT\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /** The number of threads accepting connections. */
+    @Param({"1", "4"})
+    public int acceptThreads;
+
+    /** Whether each accept thread has a socket of its own. */
+    @Param({"false", "true"})
+    public boolean reusePort;
+
+    private Pop3Server mServer;
+    private InetSocketAddress mAddress;
+
+    @Setup
+    public void setUp() {
+        Log.setDebug(false);
+        MemoryMailStore store = BenchmarkFixtures.maildrop(1, 100, 0.01);
+
+        mServer = new Pop3Server(PORT, 60000, Pop3Server.sharedStore(store));
+        // Every client comes from the same address
+        mServer.getConnectionLimiter().setLimits(100000, 100000);
+
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        Endpoint endpoint = new Endpoint(loopback, PORT, false);
+        endpoint.setAcceptThreads(acceptThreads);
+        endpoint.setReusePort(reusePort);
+        mServer.addEndpoint(endpoint);
+        mServer.start();
+        mAddress = new InetSocketAddress(loopback, PORT);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    @Benchmark
+    public int connect() throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(mAddress);
+
+            // Up to the end of the greeting
+            InputStream in = socket.getInputStream();
+            int octets = 0;
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                octets++;
+            }
+
+            // Until the server closes the connection
+            socket.getOutputStream().write(QUIT);
+            while (in.read() != -1) {
+                octets++;
+            }
+            return octets;
+        }
+    }
+}
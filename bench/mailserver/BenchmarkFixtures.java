@@ -0,0 +1,224 @@
+package mailserver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Random;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Builds in-memory maildrops for the benchmarks so that results do not depend
+ * on the state or latency of a MySQL server.
+ */
+public class BenchmarkFixtures {
+
+    /** Username of the maildrop created by {@link #maildrop}. */
+    public static final String USERNAME = "bench";
+    /** Password of the maildrop created by {@link #maildrop}. */
+    public static final String PASSWORD = "secret";
+
+    /** Words for the text of {@link #textMessage}. */
+    private static final String[] WORDS = {
+            "the", "of", "and", "to", "in", "a", "is", "that", "for", "it",
+            "as", "was", "with", "be", "by", "on", "not", "he", "this", "are",
+            "or", "his", "from", "at", "which", "but", "have", "an", "had",
+            "they", "you", "were", "their", "one", "all", "we", "can", "her",
+            "has", "there", "been", "if", "more", "when", "will", "would",
+            "who", "so", "no", "meeting", "report", "please", "attached",
+            "thanks", "regards", "tomorrow", "project", "schedule", "update"
+    };
+
+    private BenchmarkFixtures() {
+        // Prevent the class from being instantiated
+    }
+
+    /**
+     * Create a store holding a single maildrop of identical messages.
+     *
+     * @param messages    the number of messages in the maildrop
+     * @param bodyOctets  the approximate size of each message body
+     * @param dotFraction the fraction of body lines that begin with "."
+     * @return the populated store.
+     */
+    public static MemoryMailStore maildrop(int messages, int bodyOctets,
+                                           double dotFraction) {
+        MemoryMailStore store = new MemoryMailStore();
+        int maildropID = store.addMaildrop(USERNAME, PASSWORD);
+        String content = message(bodyOctets, dotFraction, new Random(42));
+
+        for (int i = 0; i < messages; i++) {
+            store.addMail(maildropID, content, "bench-" + i);
+        }
+
+        return store;
+    }
+
+    /**
+     * Create a session on the maildrop created by {@link #maildrop} which is
+     * in the TRANSACTION state.
+     *
+     * @param store the store returned by {@link #maildrop}
+     * @return the logged in session.
+     */
+    public static EmailDatabase login(MailStore store) {
+        EmailDatabase database = new EmailDatabase(store);
+        database.user(USERNAME);
+        database.pass(PASSWORD);
+        return database;
+    }
+
+    /**
+     * Create a TLS configuration with a new self-signed certificate, made by
+     * the JDK's keytool.
+     *
+     * @param direct whether to pool direct rather than heap buffers
+     * @return the configuration.
+     */
+    public static TlsContext selfSignedTls(boolean direct)
+            throws IOException, InterruptedException, GeneralSecurityException {
+        File file = File.createTempFile("bench", ".p12");
+        file.delete();
+        file.deleteOnExit();
+
+        Process keytool = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin/keytool")
+                        .getPath(), "-genkeypair", "-keyalg", "EC",
+                "-alias", "bench", "-dname", "CN=localhost", "-validity", "1",
+                "-storetype", "PKCS12", "-keystore", file.getPath(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .inheritIO().start();
+        if (keytool.waitFor() != 0) {
+            throw new IOException("keytool failed");
+        }
+
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(file)) {
+            keyStore.load(in, PASSWORD.toCharArray());
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, PASSWORD.toCharArray());
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        return new TlsContext(context, direct);
+    }
+
+    /**
+     * @return a client context that accepts any certificate.
+     */
+    public static SSLContext trustAll() throws GeneralSecurityException {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[] {new X509TrustManager() {
+
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain,
+                                           String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain,
+                                           String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+
+        }}, null);
+        return context;
+    }
+
+    /**
+     * Generate a message with a short header and a body of 72 character lines.
+     *
+     * @param bodyOctets  the approximate size of the body
+     * @param dotFraction the fraction of body lines that begin with "."
+     * @param random      source of randomness for the line contents
+     * @return the message, with lines separated by LF.
+     */
+    public static String message(int bodyOctets, double dotFraction,
+                                 Random random) {
+        StringBuilder message = new StringBuilder()
+                .append("Received: from bench.example.com\n")
+                .append("From: Bench <bench@example.com>\n")
+                .append("To: bench@example.com\n")
+                .append("Subject: Benchmark message\n")
+                .append("\n");
+
+        while (bodyOctets > 0) {
+            StringBuilder line = new StringBuilder(73);
+            if (random.nextDouble() < dotFraction) {
+                line.append('.');
+            }
+            while (line.length() < 72) {
+                line.append((char) ('a' + random.nextInt(26)));
+            }
+            message.append(line).append('\n');
+            bodyOctets -= line.length() + 1;
+        }
+
+        return message.toString();
+    }
+
+    /**
+     * Generate a message with a typical header and a body of English-like
+     * text, which compresses about as well as real mail.
+     *
+     * @param bodyOctets the approximate size of the body
+     * @param random     source of randomness for the message contents
+     * @return the message, with lines separated by LF.
+     */
+    public static String textMessage(int bodyOctets, Random random) {
+        int id = random.nextInt(1000000);
+        StringBuilder message = new StringBuilder(bodyOctets + 1024)
+                .append("Return-Path: <sender").append(id)
+                .append("@example.org>\n")
+                .append("Received: from mx").append(random.nextInt(10))
+                .append(".example.org (mx.example.org [192.0.2.")
+                .append(random.nextInt(256)).append("])\n")
+                .append("\tby mail.example.com with ESMTPS id ")
+                .append(Long.toHexString(random.nextLong()))
+                .append("\n\tfor <bench@example.com>;")
+                .append(" Tue, 21 Sep 2021 19:00:")
+                .append(10 + random.nextInt(50)).append(" +0000 (UTC)\n")
+                .append("DKIM-Signature: v=1; a=rsa-sha256;")
+                .append(" c=relaxed/relaxed; d=example.org; s=mail;\n")
+                .append("\tb=");
+        for (int i = 0; i < 344; i++) {
+            message.append((char) ('A' + random.nextInt(26)));
+        }
+        message.append("\nMessage-ID: <").append(id)
+                .append(".").append(random.nextInt(100000))
+                .append("@example.org>\n")
+                .append("Date: Tue, 21 Sep 2021 19:00:00 +0000\n")
+                .append("From: Sender ").append(id)
+                .append(" <sender").append(id).append("@example.org>\n")
+                .append("To: bench@example.com\n")
+                .append("Subject: Re: project update ").append(id)
+                .append("\nMIME-Version: 1.0\n")
+                .append("Content-Type: text/plain; charset=\"utf-8\"\n")
+                .append("Content-Transfer-Encoding: quoted-printable\n\n");
+
+        int end = message.length() + bodyOctets;
+        while (message.length() < end) {
+            int lineEnd = message.length() + 40 + random.nextInt(36);
+            while (message.length() < lineEnd) {
+                message.append(WORDS[random.nextInt(WORDS.length)])
+                        .append(' ');
+            }
+            message.append('\n');
+        }
+
+        return message.toString();
+    }
+}
@@ -0,0 +1,125 @@
+package mailserver;
+
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of parsing and dispatching a request in
+ * {@link CommandInterpreter#handleInput}, isolated from storage by a database
+ * that answers every command with a constant response.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandInterpreterBenchmark {
+
+    /** An IDatabase that does no work. */
+    private static class ConstantDatabase implements IDatabase {
+        @Override
+        public String user(String user) {
+            return CommandInterpreter.OK;
+        }
+
+        @Override
+        public String pass(String pass) {
+            return CommandInterpreter.OK;
+        }
+
+        @Override
+        public String apop(String user, String timestamp, String digest) {
+            return CommandInterpreter.OK;
+        }
+
+        @Override
+        public String dele(int messageNumber) {
+            return CommandInterpreter.OK;
+        }
+
+        @Override
+        public String list(int messageNumber) {
+            return CommandInterpreter.OK;
+        }
+
+        @Override
+        public String getMessage(int messageNumber, int lineCount) {
+            return CommandInterpreter.OK;
+        }
+
+        @Override
+        public String writeMessage(int messageNumber, int lineCount,
+                                   Writer out) {
+            return CommandInterpreter.OK;
+        }
+
+        @Override
+        public String rset() {
+            return CommandInterpreter.OK;
+        }
+
+        @Override
+        public String stat() {
+            return CommandInterpreter.OK;
+        }
+
+        @Override
+        public String uidl(int messageNumber) {
+            return CommandInterpreter.OK;
+        }
+
+        @Override
+        public String writeListing(boolean uidl, Writer out) {
+            return CommandInterpreter.OK;
+        }
+
+        @Override
+        public String quit() {
+            return CommandInterpreter.OK;
+        }
+
+        @Override
+        public void hibernate() {
+        }
+
+        @Override
+        public void timeout() {
+        }
+    }
+
+    /**
+     * A request in the TRANSACTION state, the last one answered with an
+     * error. Arguments that are not numbers are left out, as their error
+     * is logged with a stack trace, which would be measured instead.
+     */
+    @Param({"NOOP", "STAT", "LIST 1", "uidl 42", "RETR 7", "TOP 12 10",
+            "XTND abc"})
+    public String request;
+
+    private CommandInterpreter mInterpreter;
+
+    @Setup
+    public void setUp() {
+        mInterpreter = new CommandInterpreter(new ConstantDatabase());
+        mInterpreter.handleInput("USER bench");
+        mInterpreter.handleInput("PASS secret");
+    }
+
+    @Benchmark
+    public String handleInput() {
+        return mInterpreter.handleInput(request);
+    }
+}
@@ -0,0 +1,109 @@
+package mailserver;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures RETR of messages stored with and without {@link MailCompression},
+ * streamed to a writer that discards them, and the cost of compressing a
+ * message at delivery. Divide the message size by the reported time for
+ * bytes/s.
+ * <p>
+ * Run the main method to print the compression ratio of the same messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    /** The size of the message body in octets. */
+    @Param({"2048", "65536", "1048576"})
+    public int bodyOctets;
+
+    /** Whether the message is stored compressed. */
+    @Param({"false", "true"})
+    public boolean compressed;
+
+    /** Counts what is written to it and discards it. */
+    private static class NullWriter extends Writer {
+        long mChars;
+
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+            mChars += length;
+        }
+
+        @Override
+        public void write(String string) {
+            mChars += string.length();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private String mMessage;
+    private EmailDatabase mDatabase;
+    private final NullWriter mWriter = new NullWriter();
+
+    @Setup
+    public void setUp() {
+        mMessage = BenchmarkFixtures.textMessage(bodyOctets, new Random(42));
+        MemoryMailStore store = new MemoryMailStore(compressed);
+        int maildropID = store.addMaildrop(BenchmarkFixtures.USERNAME,
+                BenchmarkFixtures.PASSWORD);
+        store.addMail(maildropID, mMessage, "bench-1");
+        mDatabase = BenchmarkFixtures.login(store);
+    }
+
+    @Benchmark
+    public long retr() throws IOException {
+        mDatabase.writeMessage(1, -1, mWriter);
+        return mWriter.mChars;
+    }
+
+    @Benchmark
+    public long top() throws IOException {
+        mDatabase.writeMessage(1, 0, mWriter);
+        return mWriter.mChars;
+    }
+
+    @Benchmark
+    public byte[] compress() {
+        return MailCompression.compress(mMessage);
+    }
+
+    public static void main(String[] args) {
+        Random random = new Random(42);
+        for (int bodyOctets : new int[] {0, 2048, 65536, 1048576}) {
+            String message = BenchmarkFixtures.textMessage(bodyOctets,
+                    random);
+            int octets = message.length();
+            int compressed = MailCompression.compress(message).length;
+            System.out.printf("%8d octets -> %7d compressed (%.1fx)\n",
+                    octets, compressed, (double) octets / compressed);
+        }
+    }
+}
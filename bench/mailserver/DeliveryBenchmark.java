@@ -0,0 +1,97 @@
+package mailserver;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures deliveries per second through {@link MailDelivery} from many
+ * concurrent LMTP sessions. Each transaction on the {@link MemoryMailStore}
+ * sleeps for a simulated commit latency instead of storing the messages,
+ * so that the gain from sharing commits between deliveries shows without a
+ * MySQL server. A batchSize of 1 commits each message on its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(32)
+@Fork(1)
+public class DeliveryBenchmark {
+
+    /** The maximum number of messages per transaction. */
+    @Param({"1", "200"})
+    public int batchSize;
+
+    /** The simulated time in milliseconds to commit a transaction. */
+    @Param({"0", "2"})
+    public int commitMillis;
+
+    private MemoryMailStore mStore;
+    private final AtomicInteger mMailIDs = new AtomicInteger();
+    private MailDelivery mDelivery;
+    private String mMessage;
+    private final List<String> mRecipients =
+            Collections.singletonList(BenchmarkFixtures.USERNAME);
+
+    @Setup
+    public void setUp() {
+        final int commitMillis = this.commitMillis;
+        mStore = new MemoryMailStore() {
+
+            @Override
+            public void addMail(List<Delivery> deliveries)
+                    throws SQLException {
+                if (commitMillis > 0) {
+                    try {
+                        Thread.sleep(commitMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException(e);
+                    }
+                }
+                // Discarded, so that the heap does not fill up
+                for (Delivery delivery : deliveries) {
+                    delivery.setMailID(mMailIDs.incrementAndGet());
+                }
+            }
+
+        };
+        mStore.addMaildrop(BenchmarkFixtures.USERNAME,
+                BenchmarkFixtures.PASSWORD);
+        mDelivery = new MailDelivery(mStore, batchSize,
+                MailDelivery.DEFAULT_THREADS);
+        mMessage = BenchmarkFixtures.message(4096, 0.01, new Random(42));
+    }
+
+    @TearDown
+    public void tearDown() {
+        mDelivery.close();
+        BatchWriter<Delivery> writer = mDelivery.getWriter();
+        System.out.printf("%n%d messages in %d transactions%n",
+                writer.getWrites(), writer.getBatches());
+    }
+
+    @Benchmark
+    public List<IDelivery.Status> deliver() {
+        return mDelivery.deliver(mMessage, mRecipients);
+    }
+}
@@ -0,0 +1,51 @@
+package mailserver;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of building a RETR response, which splits the
+ * message into lines, byte-stuffs those beginning with "." and converts line
+ * endings to CRLF. Divide the body size by the reported time for bytes/s.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DotStuffingBenchmark {
+
+    /** The size of the message body in octets. */
+    @Param({"4096", "262144", "4194304"})
+    public int bodyOctets;
+
+    /** The fraction of body lines that need byte-stuffing. */
+    @Param({"0", "0.1", "1"})
+    public double dotFraction;
+
+    private EmailDatabase mDatabase;
+
+    @Setup
+    public void setUp() {
+        MemoryMailStore store = BenchmarkFixtures.maildrop(1, bodyOctets,
+                dotFraction);
+        mDatabase = BenchmarkFixtures.login(store);
+    }
+
+    @Benchmark
+    public String retr() {
+        return mDatabase.getMessage(1, -1);
+    }
+}
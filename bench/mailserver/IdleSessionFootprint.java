@@ -0,0 +1,94 @@
+package mailserver;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the heap held by each idle session that has logged in, before and
+ * after the session is hibernated. Thread stacks are not included, as
+ * hibernation does not change them.
+ * <p>
+ * Usage: <code>IdleSessionFootprint [sessions] [messages]</code>
+ */
+public class IdleSessionFootprint {
+
+    private static final int PORT = 21996;
+    private static final int HIBERNATE_AFTER = 3000;
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        Log.setDebug(false);
+        System.setProperty("mailserver.hibernateAfter",
+                String.valueOf(HIBERNATE_AFTER));
+        System.setProperty("mailserver.maxConnectionsPerAddress",
+                String.valueOf(sessions + 1));
+
+        MemoryMailStore store = new MemoryMailStore();
+        for (int i = 0; i < sessions; i++) {
+            int maildrop = store.addMaildrop("user" + i, "secret");
+            for (int j = 0; j < messages; j++) {
+                store.addMail(maildrop, "Subject: " + j + "\r\n\r\nbody",
+                        "uidl-" + i + "-" + j);
+            }
+        }
+
+        Pop3Server server = new Pop3Server(PORT, 600000,
+                Pop3Server.sharedStore(store));
+        server.start();
+        Thread.sleep(500);
+
+        long baseline = usedHeap();
+        List<Socket> sockets = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < sessions; i++) {
+            Socket socket = new Socket("localhost", PORT);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.US_ASCII));
+            OutputStream writer = socket.getOutputStream();
+            reader.readLine();
+            writer.write(("USER user" + i + "\r\nPASS secret\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            reader.readLine();
+            reader.readLine();
+            sockets.add(socket);
+        }
+        if (System.currentTimeMillis() - start > HIBERNATE_AFTER / 2) {
+            System.out.println("Warning: some sessions may have hibernated"
+                    + " before the first measurement");
+        }
+
+        long active = usedHeap();
+        Thread.sleep(HIBERNATE_AFTER * 2);
+        long hibernated = usedHeap();
+
+        System.out.printf("%d idle sessions, %d messages each\n", sessions,
+                messages);
+        System.out.printf("Before hibernation: %d bytes per session\n",
+                (active - baseline) / sessions);
+        System.out.printf("After hibernation:  %d bytes per session\n",
+                (hibernated - baseline) / sessions);
+
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        server.stop(1000);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
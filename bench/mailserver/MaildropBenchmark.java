@@ -0,0 +1,79 @@
+package mailserver;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures response building in {@link EmailDatabase} as the maildrop grows,
+ * using a {@link MemoryMailStore} so that only the session logic is timed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MaildropBenchmark {
+
+    /** The number of messages in the maildrop. */
+    @Param({"10", "1000", "100000"})
+    public int messages;
+
+    private MemoryMailStore mStore;
+    private EmailDatabase mDatabase;
+    /** The iMailID of the last message, the worst case for lookups. */
+    private int mLastMailID;
+
+    @Setup
+    public void setUp() throws Exception {
+        mStore = BenchmarkFixtures.maildrop(messages, 2048, 0.01);
+        mDatabase = BenchmarkFixtures.login(mStore);
+        mLastMailID = messages;
+    }
+
+    @Benchmark
+    public String listAll() {
+        return mDatabase.list(-1);
+    }
+
+    @Benchmark
+    public String listOne() {
+        return mDatabase.list(messages);
+    }
+
+    @Benchmark
+    public String uidlAll() {
+        return mDatabase.uidl(-1);
+    }
+
+    @Benchmark
+    public String stat() {
+        return mDatabase.stat();
+    }
+
+    @Benchmark
+    public String retr() {
+        return mDatabase.getMessage(messages, -1);
+    }
+
+    @Benchmark
+    public String top() {
+        return mDatabase.getMessage(messages, 10);
+    }
+
+    @Benchmark
+    public int getMessageNumber() {
+        return mDatabase.getMessageNumber(mLastMailID);
+    }
+}
@@ -0,0 +1,152 @@
+package mailserver;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures TLS on the implicit TLS port of a server in the same process:
+ * full and resumed handshakes per second, and RETR of a 1 MiB message over
+ * an established session. Multiply the RETR rate by the message size for
+ * bytes/s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsBenchmark {
+
+    private static final int PORT = 21995;
+    private static final int BODY_OCTETS = 1 << 20;
+
+    /** Whether the server pools direct rather than heap buffers. */
+    @Param({"false", "true"})
+    public boolean directBuffers;
+
+    private Pop3Server mServer;
+    private SSLContext mClient;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Log.setDebug(false);
+        MemoryMailStore store = BenchmarkFixtures.maildrop(1, BODY_OCTETS,
+                0.01);
+
+        mServer = new Pop3Server(PORT - 1, 60000,
+                Pop3Server.sharedStore(store));
+        mServer.enableTls(BenchmarkFixtures.selfSignedTls(directBuffers),
+                PORT);
+        mServer.start();
+        mClient = BenchmarkFixtures.trustAll();
+
+        for (int attempt = 0; attempt < 50; attempt++) {
+            try {
+                new Socket("localhost", PORT).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IOException("Server did not start");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    /** A logged in TLS session, one per benchmark thread. */
+    @State(Scope.Thread)
+    public static class Session {
+        private SSLSocket mSocket;
+        private BufferedReader mReader;
+        private OutputStream mWriter;
+
+        @Setup(Level.Trial)
+        public void setUp(TlsBenchmark benchmark) throws IOException {
+            mSocket = benchmark.connect();
+            mReader = new BufferedReader(new InputStreamReader(
+                    mSocket.getInputStream(), StandardCharsets.US_ASCII));
+            mWriter = mSocket.getOutputStream();
+
+            mReader.readLine();
+            command("USER " + BenchmarkFixtures.USERNAME);
+            command("PASS " + BenchmarkFixtures.PASSWORD);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            command("QUIT");
+            mSocket.close();
+        }
+
+        String command(String request) throws IOException {
+            mWriter.write((request + "\r\n").getBytes(
+                    StandardCharsets.US_ASCII));
+            mWriter.flush();
+            return mReader.readLine();
+        }
+    }
+
+    private SSLSocket connect() throws IOException {
+        SSLSocket socket = (SSLSocket) mClient.getSocketFactory()
+                .createSocket("localhost", PORT);
+        socket.startHandshake();
+        return socket;
+    }
+
+    @Benchmark
+    public String fullHandshake() throws IOException {
+        try (SSLSocket socket = connect()) {
+            // Stop the client from resuming the session next time
+            socket.getSession().invalidate();
+            return new BufferedReader(new InputStreamReader(
+                    socket.getInputStream())).readLine();
+        }
+    }
+
+    @Benchmark
+    public String resumedHandshake() throws IOException {
+        try (SSLSocket socket = connect()) {
+            return new BufferedReader(new InputStreamReader(
+                    socket.getInputStream())).readLine();
+        }
+    }
+
+    @Benchmark
+    public int retr(Session session) throws IOException {
+        session.command("RETR 1");
+
+        // The terminating line is "." followed by the echoed request
+        int lines = 0;
+        String line;
+        while ((line = session.mReader.readLine()) != null
+                && !(line.equals(".") || line.startsWith(". "))) {
+            lines++;
+        }
+        return lines;
+    }
+}
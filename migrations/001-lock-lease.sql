@@ -0,0 +1,10 @@
+--
+-- Adds the owner, fencing token and lease of maildrop locks, so that several
+-- servers can share one database. Locks taken before the upgrade have no
+-- lease and are held until they are released.
+--
+
+ALTER TABLE `m_Maildrop`
+  ADD COLUMN `vchLockOwner` varchar(64) COLLATE utf8_unicode_ci DEFAULT NULL COMMENT 'node holding the lock' AFTER `tiLocked`,
+  ADD COLUMN `iLockToken` bigint(20) NOT NULL DEFAULT '0' COMMENT 'fencing token, incremented by every lock' AFTER `vchLockOwner`,
+  ADD COLUMN `dtLockExpires` datetime(3) DEFAULT NULL COMMENT 'NULL = held until unlocked' AFTER `iLockToken`;
@@ -0,0 +1,11 @@
+--
+-- Adds the directory of maildrops that do not live on the shard their
+-- username hashes to. Only needed on the first shard of a sharded
+-- deployment.
+--
+
+CREATE TABLE IF NOT EXISTS `m_ShardDirectory` (
+  `vchUsername` varchar(255) COLLATE utf8_unicode_ci NOT NULL,
+  `iShard` int(11) NOT NULL COMMENT 'index in mailserver.shards',
+  PRIMARY KEY (`vchUsername`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
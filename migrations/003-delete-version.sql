@@ -0,0 +1,7 @@
+--
+-- Adds the delete version of each maildrop, which lets servers cache the
+-- list of messages in a maildrop and only read messages delivered since.
+--
+
+ALTER TABLE `m_Maildrop`
+  ADD COLUMN `iDeleteVersion` bigint(20) NOT NULL DEFAULT '0' COMMENT 'incremented whenever messages are removed' AFTER `dtLockExpires`;
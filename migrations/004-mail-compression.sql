@@ -0,0 +1,11 @@
+--
+-- Allows messages to be stored compressed in blMailContent, with their
+-- uncompressed size in iOctets. Existing messages are unchanged until
+-- MailCompressor is run.
+--
+
+ALTER TABLE `m_Mail`
+  MODIFY COLUMN `txMailContent` longtext COLLATE utf8_unicode_ci DEFAULT NULL COMMENT 'NULL if compressed',
+  ADD COLUMN `blMailContent` longblob DEFAULT NULL COMMENT 'txMailContent compressed as given by tiCompression' AFTER `txMailContent`,
+  ADD COLUMN `tiCompression` tinyint(4) NOT NULL DEFAULT '0' COMMENT '0 = uncompressed, 1 = raw deflate with dictionary 1' AFTER `blMailContent`,
+  ADD COLUMN `iOctets` int(11) DEFAULT NULL COMMENT 'LENGTH(txMailContent) before compression' AFTER `tiCompression`;
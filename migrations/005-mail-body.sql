@@ -0,0 +1,22 @@
+--
+-- Allows identical message bodies to be stored once in m_MailBody and
+-- shared between messages. Existing messages are unchanged until
+-- MailDeduplicator dedup is run.
+--
+
+CREATE TABLE IF NOT EXISTS `m_MailBody` (
+  `iBodyID` int(11) NOT NULL AUTO_INCREMENT,
+  `binHash` binary(32) NOT NULL COMMENT 'SHA-256 of the uncompressed body',
+  `txBody` longtext COLLATE utf8_unicode_ci DEFAULT NULL COMMENT 'NULL if compressed',
+  `blBody` longblob DEFAULT NULL COMMENT 'txBody compressed as given by tiCompression',
+  `tiCompression` tinyint(4) NOT NULL DEFAULT '0' COMMENT '0 = uncompressed, 1 = raw deflate with dictionary 1',
+  `iOctets` int(11) NOT NULL COMMENT 'LENGTH(txBody) before compression',
+  `iRefCount` int(11) NOT NULL COMMENT 'number of m_Mail rows referring to the body',
+  PRIMARY KEY (`iBodyID`),
+  UNIQUE KEY `binHash` (`binHash`),
+  KEY `iRefCount` (`iRefCount`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
+
+ALTER TABLE `m_Mail`
+  ADD COLUMN `iBodyID` int(11) DEFAULT NULL COMMENT 'shared body following txMailContent, NULL if none' AFTER `iOctets`,
+  ADD KEY `iBodyID` (`iBodyID`);
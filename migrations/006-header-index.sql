@@ -0,0 +1,7 @@
+--
+-- Allows TOP n 0 to read only the header of a message. Existing messages
+-- are read whole until HeaderIndexer is run.
+--
+
+ALTER TABLE `m_Mail`
+  ADD COLUMN `iHeaderLength` int(11) DEFAULT NULL COMMENT 'characters of txMailContent, or bytes of blMailContent, holding the header; NULL if not indexed' AFTER `iBodyID`;
@@ -0,0 +1,8 @@
+--
+-- Records when each maildrop lock was taken, so that the admin listener can
+-- show the age of the locks held. Locks taken before the upgrade have no
+-- age.
+--
+
+ALTER TABLE `m_Maildrop`
+  ADD COLUMN `dtLocked` datetime(3) DEFAULT NULL COMMENT 'when the lock was taken' AFTER `iLockToken`;
@@ -26,11 +26,17 @@ DROP TABLE IF EXISTS `m_Mail`;
 CREATE TABLE IF NOT EXISTS `m_Mail` (
   `iMailID` int(11) NOT NULL AUTO_INCREMENT,
   `iMaildropID` int(11) NOT NULL,
-  `txMailContent` longtext COLLATE utf8_unicode_ci NOT NULL,
+  `txMailContent` longtext COLLATE utf8_unicode_ci DEFAULT NULL COMMENT 'NULL if compressed',
+  `blMailContent` longblob DEFAULT NULL COMMENT 'txMailContent compressed as given by tiCompression',
+  `tiCompression` tinyint(4) NOT NULL DEFAULT '0' COMMENT '0 = uncompressed, 1 = raw deflate with dictionary 1',
+  `iOctets` int(11) DEFAULT NULL COMMENT 'LENGTH(txMailContent) before compression, or the size with CRLF line endings if delivered',
+  `iBodyID` int(11) DEFAULT NULL COMMENT 'shared body following txMailContent, NULL if none',
+  `iHeaderLength` int(11) DEFAULT NULL COMMENT 'characters of txMailContent, or bytes of blMailContent, holding the header; NULL if not indexed',
   `vchUIDL` varchar(70) COLLATE utf8_unicode_ci NOT NULL COMMENT 'These need to be auto-generated beforehand',
   PRIMARY KEY (`iMailID`),
   UNIQUE KEY `vchUIDL` (`vchUIDL`),
-  KEY `iMaildropID` (`iMaildropID`)
+  KEY `iMaildropID` (`iMaildropID`),
+  KEY `iBodyID` (`iBodyID`)
 ) ENGINE=InnoDB  DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci AUTO_INCREMENT=13 ;
 
 --
@@ -62,6 +68,11 @@ CREATE TABLE IF NOT EXISTS `m_Maildrop` (
   `vchUsername` varchar(255) COLLATE utf8_unicode_ci NOT NULL,
   `vchPassword` varchar(255) COLLATE utf8_unicode_ci NOT NULL,
   `tiLocked` tinyint(4) NOT NULL DEFAULT '0' COMMENT '0 = unlocked, anything else = locked',
+  `vchLockOwner` varchar(64) COLLATE utf8_unicode_ci DEFAULT NULL COMMENT 'node holding the lock',
+  `iLockToken` bigint(20) NOT NULL DEFAULT '0' COMMENT 'fencing token, incremented by every lock',
+  `dtLocked` datetime(3) DEFAULT NULL COMMENT 'when the lock was taken',
+  `dtLockExpires` datetime(3) DEFAULT NULL COMMENT 'NULL = held until unlocked',
+  `iDeleteVersion` bigint(20) NOT NULL DEFAULT '0' COMMENT 'incremented whenever messages are removed',
   PRIMARY KEY (`iMaildropID`),
   UNIQUE KEY `vchUsername` (`vchUsername`)
 ) ENGINE=InnoDB  DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci AUTO_INCREMENT=6 ;
@@ -75,6 +86,41 @@ INSERT INTO `m_Maildrop` (`iMaildropID`, `vchUsername`, `vchPassword`, `tiLocked
 (2, 'bob', 'qwerty', 0),
 (5, 'claire', 'qazwsx', 0);
 
+--
+-- Table structure for table `m_ShardDirectory`
+--
+-- Only used on the first shard when the maildrops are sharded. Lists the
+-- maildrops that do not live on the shard their username hashes to.
+--
+
+DROP TABLE IF EXISTS `m_ShardDirectory`;
+CREATE TABLE IF NOT EXISTS `m_ShardDirectory` (
+  `vchUsername` varchar(255) COLLATE utf8_unicode_ci NOT NULL,
+  `iShard` int(11) NOT NULL COMMENT 'index in mailserver.shards',
+  PRIMARY KEY (`vchUsername`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
+
+--
+-- Table structure for table `m_MailBody`
+--
+-- Message bodies shared between m_Mail rows. Bodies no longer referred to
+-- are deleted by MailDeduplicator collect.
+--
+
+DROP TABLE IF EXISTS `m_MailBody`;
+CREATE TABLE IF NOT EXISTS `m_MailBody` (
+  `iBodyID` int(11) NOT NULL AUTO_INCREMENT,
+  `binHash` binary(32) NOT NULL COMMENT 'SHA-256 of the uncompressed body',
+  `txBody` longtext COLLATE utf8_unicode_ci DEFAULT NULL COMMENT 'NULL if compressed',
+  `blBody` longblob DEFAULT NULL COMMENT 'txBody compressed as given by tiCompression',
+  `tiCompression` tinyint(4) NOT NULL DEFAULT '0' COMMENT '0 = uncompressed, 1 = raw deflate with dictionary 1',
+  `iOctets` int(11) NOT NULL COMMENT 'LENGTH(txBody) before compression',
+  `iRefCount` int(11) NOT NULL COMMENT 'number of m_Mail rows referring to the body',
+  PRIMARY KEY (`iBodyID`),
+  UNIQUE KEY `binHash` (`binHash`),
+  KEY `iRefCount` (`iRefCount`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
+
 --
 -- Constraints for dumped tables
 --
@@ -0,0 +1,482 @@
+package mailserver;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A line protocol for operators to inspect and intervene in a running
+ * {@link Pop3Server}, e.g. with <code>nc localhost 1110</code>. Each command
+ * is answered like a POP3 multi-line response: "+OK", a line per item and a
+ * line holding ".", or a single "-ERR" line.
+ * <ul>
+ * <li>SESSIONS [RESOURCE COUNT]: the active sessions, or the COUNT using
+ * the most of a resource (see {@link Pop3Server#getHeaviestSessions})</li>
+ * <li>LOCKS: the maildrop locks held on every server sharing the store</li>
+ * <li>UNLOCK USER: end the local session holding a maildrop, or release
+ * its lock if no session here holds it</li>
+ * <li>KILL ID: close a session</li>
+ * <li>CACHES: the statistics of the caches of the store</li>
+ * <li>STATS: connections, database pools and statements</li>
+ * <li>HELP, QUIT</li>
+ * </ul>
+ * Sessions are inspected through fields they publish for other threads, and
+ * the listener has its own threads, so serving it does not slow the POP3
+ * sessions down. Only LOCKS and UNLOCK use the store. The listener binds to
+ * the loopback address unless mailserver.adminAddress is set, as it has no
+ * authentication.
+ */
+public class AdminServer {
+
+    /** Tag used for logging. */
+    private static final String TAG = AdminServer.class.getSimpleName();
+
+    /** The number of admin connections served at the same time. */
+    private static final int THREADS = 2;
+
+    /** The time in milliseconds to wait for the next command. */
+    private static final int TIMEOUT = 300000;
+
+    private final InetAddress mAddress;
+    private final int mPort;
+    private final Pop3Server mServer;
+    private final MailStore mStore;
+
+    private volatile boolean mRunning;
+    private volatile ServerSocket mServerSocket;
+    private ExecutorService mExecutor;
+
+    /** The admin connections being served. */
+    private final Set<Socket> mSockets = Collections
+            .newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+    /**
+     * @param address the address to bind to
+     * @param port    the port to bind to, or 0 for any free port
+     * @param server  the server whose sessions are inspected
+     * @param store   the store shared by the server's sessions
+     */
+    public AdminServer(InetAddress address, int port, Pop3Server server,
+                       MailStore store) {
+        mAddress = address;
+        mPort = port;
+        mServer = server;
+        mStore = store;
+    }
+
+    /**
+     * @param server the server whose sessions are inspected
+     * @param store  the store shared by the server's sessions
+     * @return a listener on mailserver.adminPort, or <code>null</code> if
+     * the property is not set.
+     * @throws UnknownHostException if mailserver.adminAddress is not valid
+     */
+    public static AdminServer fromProperties(Pop3Server server,
+                                             MailStore store)
+            throws UnknownHostException {
+        int port = Integer.getInteger("mailserver.adminPort", -1);
+        if (port < 0) {
+            return null;
+        }
+
+        String address = System.getProperty("mailserver.adminAddress");
+        return new AdminServer(address == null
+                ? InetAddress.getLoopbackAddress()
+                : InetAddress.getByName(address), port, server, store);
+    }
+
+    /**
+     * Bind the listening socket and accept admin connections in a new
+     * thread until stop() is called.
+     *
+     * @throws IOException if the socket cannot be bound
+     */
+    public void start() throws IOException {
+        final ServerSocket serverSocket = new ServerSocket(mPort, 5,
+                mAddress);
+        mServerSocket = serverSocket;
+        // Daemon threads, so that the listener never keeps the JVM alive
+        mExecutor = Executors.newFixedThreadPool(THREADS,
+                new ThreadFactory() {
+
+                    private final AtomicInteger mNext = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r,
+                                "admin-" + mNext.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+
+                });
+        mRunning = true;
+
+        Thread accept = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    while (mRunning) {
+                        Socket socket = serverSocket.accept();
+                        try {
+                            mExecutor.execute(new Session(socket));
+                        } catch (RejectedExecutionException e) {
+                            // Stopped while accepting
+                            close(socket);
+                        }
+                    }
+                } catch (SocketException e) {
+                    // Thrown from accept() when stop() closes the socket
+                    if (mRunning) {
+                        Log.e(TAG, "run: Failed to accept new connection", e);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "run: Failed to accept new connection", e);
+                }
+            }
+
+        }, "admin-accept");
+        accept.setDaemon(true);
+        accept.start();
+    }
+
+    /**
+     * @return the port the listener is bound to.
+     */
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * Stop accepting connections and close those open.
+     */
+    public void stop() {
+        mRunning = false;
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "stop: Failed to close server socket", e);
+        }
+        mExecutor.shutdown();
+        for (Socket socket : mSockets) {
+            close(socket);
+        }
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing more to do
+        }
+    }
+
+    /**
+     * Execute one command.
+     *
+     * @param line  the command and its arguments
+     * @param lines receives the lines of a successful response
+     * @return the first line of the response.
+     */
+    String execute(String line, List<String> lines) {
+        String[] arguments = line.trim().split("\\s+");
+        String command = arguments[0].toUpperCase(Locale.ROOT);
+        try {
+            switch (command) {
+                case "SESSIONS":
+                    return sessions(arguments, lines);
+                case "LOCKS":
+                    return locks(lines);
+                case "UNLOCK":
+                    return arguments.length != 2 ? "-ERR Usage: UNLOCK USER"
+                            : unlock(arguments[1]);
+                case "KILL":
+                    return arguments.length != 2 ? "-ERR Usage: KILL ID"
+                            : mServer.killSession(Integer.parseInt(
+                            arguments[1])) ? "+OK Closed"
+                            : "-ERR No such session";
+                case "CACHES":
+                    caches(mStore, "", lines);
+                    bodies(lines);
+                    return "+OK";
+                case "STATS":
+                    return stats(lines);
+                case "HELP":
+                    lines.add("SESSIONS [cpu|database|read|written|buffer"
+                            + " COUNT]");
+                    lines.add("LOCKS");
+                    lines.add("UNLOCK USER");
+                    lines.add("KILL ID");
+                    lines.add("CACHES");
+                    lines.add("STATS");
+                    lines.add("QUIT");
+                    return "+OK";
+                default:
+                    return "-ERR Unknown command, try HELP";
+            }
+        } catch (NumberFormatException e) {
+            return "-ERR Not a number";
+        } catch (IllegalArgumentException e) {
+            return "-ERR " + e.getMessage();
+        } catch (SQLException e) {
+            Log.e(TAG, "execute: " + command + " failed", e);
+            return "-ERR " + e.getMessage();
+        }
+    }
+
+    private String sessions(String[] arguments, List<String> lines) {
+        List<ClientConnection> sessions;
+        if (arguments.length == 3) {
+            sessions = mServer.getHeaviestSessions(
+                    arguments[1].toLowerCase(Locale.ROOT),
+                    Integer.parseInt(arguments[2]));
+        } else if (arguments.length == 1) {
+            sessions = mServer.getSessions();
+        } else {
+            return "-ERR Usage: SESSIONS [RESOURCE COUNT]";
+        }
+
+        for (ClientConnection session : sessions) {
+            String username = session.getUsername();
+            String command = session.getCommand();
+            lines.add(String.format(Locale.ROOT, "%d %s %s%s %s %s idle=%d"
+                            + " age=%d cpu=%.1f database=%.1f read=%d"
+                            + " written=%d buffer=%d", session.getId(),
+                    session.getAddress().getHostAddress(),
+                    session.getState(),
+                    session.isHibernated() ? "(hibernated)" : "",
+                    username == null ? "-" : username,
+                    command == null ? "-" : command,
+                    session.getIdleMillis(), session.getAgeMillis(),
+                    session.getCpuNanos() / 1e6,
+                    session.getDatabaseNanos() / 1e6,
+                    session.getBytesRead(), session.getBytesWritten(),
+                    session.getPeakResponseBuffer()));
+        }
+        return "+OK " + sessions.size() + " sessions";
+    }
+
+    private String locks(List<String> lines) throws SQLException {
+        List<MaildropLock> locks = mStore.getLocks();
+        for (MaildropLock lock : locks) {
+            ClientConnection holder = findHolder(lock.getUsername());
+            lines.add(String.format(Locale.ROOT, "%s owner=%s token=%d"
+                            + " age=%d expires=%d session=%s",
+                    lock.getUsername(), lock.getOwner(), lock.getToken(),
+                    lock.getAgeMillis(), lock.getExpiresInMillis(),
+                    holder == null || !EmailDatabase.NODE_ID.equals(
+                            lock.getOwner()) ? "-" : holder.getId()));
+        }
+        return "+OK " + locks.size() + " locks";
+    }
+
+    /**
+     * @return the local session that has opened a maildrop, or
+     * <code>null</code> if there is none.
+     */
+    private ClientConnection findHolder(String username) {
+        for (ClientConnection session : mServer.getSessions()) {
+            if (username.equals(session.getUsername())
+                    && session.getState() != State.AUTHORIZATION) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * End the local session holding a maildrop, which releases the lock
+     * with its token, or if none holds it, release the lock whoever holds
+     * it. A session on another server holding the lock can then no longer
+     * delete messages.
+     */
+    private String unlock(String username) throws SQLException {
+        ClientConnection holder = findHolder(username);
+        if (holder != null && mServer.killSession(holder.getId())) {
+            return "+OK Closed session " + holder.getId();
+        }
+
+        Maildrop maildrop = mStore.findMaildrop(username);
+        if (maildrop == null) {
+            return "-ERR No such maildrop";
+        } else if (!mStore.forceUnlock(maildrop)) {
+            return "-ERR Not locked";
+        }
+        Log.i(TAG, "unlock: Released the lock of " + username);
+        return "+OK Unlocked";
+    }
+
+    /**
+     * Describe the caches of each layer of a store.
+     *
+     * @param store  the store
+     * @param prefix the path to the store from the top layer
+     * @param lines  receives a line per cache
+     */
+    private static void caches(MailStore store, String prefix,
+                               List<String> lines) {
+        if (store instanceof SnapshotCachingMailStore) {
+            SnapshotCachingMailStore snapshots =
+                    (SnapshotCachingMailStore) store;
+            lines.add(String.format("%ssnapshots hits=%d misses=%d"
+                            + " maildrops=%d", prefix, snapshots.getHits(),
+                    snapshots.getMisses(), snapshots.getCachedMaildrops()));
+            caches(snapshots.getStore(), prefix, lines);
+
+        } else if (store instanceof ReplicatedMailStore) {
+            ReplicatedMailStore replicated = (ReplicatedMailStore) store;
+            lines.add(String.format("%sreplicas healthy=%d replicaReads=%d"
+                            + " primaryReads=%d fallbacks=%d", prefix,
+                    replicated.getHealthyReplicas(),
+                    replicated.getReplicaReads(),
+                    replicated.getPrimaryReads(),
+                    replicated.getFallbacks()));
+            caches(replicated.getPrimary(), prefix, lines);
+
+        } else if (store instanceof ShardedMailStore) {
+            ShardedMailStore sharded = (ShardedMailStore) store;
+            lines.add(String.format("%sshardDirectory hits=%d misses=%d",
+                    prefix, sharded.getCacheHits(),
+                    sharded.getCacheMisses()));
+            for (int shard = 0; shard < sharded.getShardCount(); shard++) {
+                caches(sharded.getShard(shard),
+                        prefix + "shard" + shard + " ", lines);
+            }
+        }
+    }
+
+    /**
+     * Describe the body cache, shared by every SQL store of the server.
+     */
+    private void bodies(List<String> lines) {
+        List<SqlMailStore> stores = sqlStores(mStore);
+        if (!stores.isEmpty()) {
+            BodyCache bodies = stores.get(0).getBodies().getCache();
+            lines.add(String.format("bodies hits=%d misses=%d entries=%d"
+                            + " bytes=%d", bodies.getHits(),
+                    bodies.getMisses(), bodies.size(), bodies.getWeight()));
+        }
+    }
+
+    private String stats(List<String> lines) {
+        lines.add(String.format("connections open=%d sessions=%d",
+                mServer.getConnectionLimiter().getConnections(),
+                mServer.getActiveSessions()));
+        for (SqlMailStore store : sqlStores(mStore)) {
+            ConnectionPool pool = store.getPool();
+            lines.add(String.format("pool %s connects=%d borrows=%d idle=%d",
+                    pool.getUrl(), pool.getConnects(), pool.getBorrows(),
+                    pool.getIdle()));
+        }
+        for (SqlStatement statement : SqlStatement.getAll()) {
+            if (statement.getExecutions() > 0) {
+                lines.add("statement " + statement);
+            }
+        }
+        return "+OK";
+    }
+
+    /**
+     * @return the SQL stores written to beneath the layers of a store.
+     */
+    private static List<SqlMailStore> sqlStores(MailStore store) {
+        List<SqlMailStore> stores = new ArrayList<>();
+        if (store instanceof SnapshotCachingMailStore) {
+            stores.addAll(sqlStores(
+                    ((SnapshotCachingMailStore) store).getStore()));
+        } else if (store instanceof ReplicatedMailStore) {
+            stores.addAll(sqlStores(
+                    ((ReplicatedMailStore) store).getPrimary()));
+        } else if (store instanceof ShardedMailStore) {
+            ShardedMailStore sharded = (ShardedMailStore) store;
+            for (int shard = 0; shard < sharded.getShardCount(); shard++) {
+                stores.addAll(sqlStores(sharded.getShard(shard)));
+            }
+        } else if (store instanceof SqlMailStore) {
+            stores.add((SqlMailStore) store);
+        }
+        return stores;
+    }
+
+    /** Serves one admin connection. */
+    private class Session implements Runnable {
+
+        private final Socket mSocket;
+
+        Session(Socket socket) {
+            mSocket = socket;
+        }
+
+        @Override
+        public void run() {
+            mSockets.add(mSocket);
+            try {
+                mSocket.setSoTimeout(TIMEOUT);
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(mSocket.getInputStream(),
+                                StandardCharsets.UTF_8));
+                Writer writer = new BufferedWriter(new OutputStreamWriter(
+                        mSocket.getOutputStream(), StandardCharsets.UTF_8));
+
+                writer.write("+OK " + ClientConnection.getHostName()
+                        + " admin ready, try HELP\r\n");
+                writer.flush();
+
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.trim().isEmpty()) {
+                        continue;
+                    } else if ("QUIT".equalsIgnoreCase(line.trim())) {
+                        writer.write("+OK Bye\r\n");
+                        break;
+                    }
+
+                    List<String> lines = new ArrayList<>();
+                    String response = execute(line, lines);
+                    writer.write(response + "\r\n");
+                    if (response.startsWith("+OK")) {
+                        for (String item : lines) {
+                            writer.write(item + "\r\n");
+                        }
+                        writer.write(".\r\n");
+                    }
+                    writer.flush();
+                }
+                writer.flush();
+
+            } catch (SocketTimeoutException e) {
+                // Left open by an operator
+            } catch (IOException e) {
+                if (mRunning) {
+                    Log.d(TAG, "run: Connection failed: " + e);
+                }
+            } finally {
+                mSockets.remove(mSocket);
+                close(mSocket);
+            }
+        }
+    }
+}
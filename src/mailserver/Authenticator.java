@@ -0,0 +1,271 @@
+package mailserver;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Verifies passwords presented by clients against the vchPassword of their
+ * maildrop.
+ * <p>
+ * Hashed passwords are checked on a small executor with a bounded queue, so a
+ * burst of logins uses at most a fixed number of cores and is refused rather
+ * than queued without limit. Successful verifications are remembered for a
+ * short time so that clients polling every few minutes do not pay for the
+ * hash on each login. The cache holds a keyed digest of the password, never
+ * the password itself, and the digest is compared in constant time.
+ */
+public class Authenticator {
+
+    /** Tag used for logging. */
+    private static final String TAG = Authenticator.class.getSimpleName();
+
+    /** The default time in milliseconds a successful login is cached. */
+    public static final long DEFAULT_CACHE_TTL = 60000;
+    /** The default maximum number of users in the cache. */
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+    /** The default number of verifications that may wait for a thread. */
+    public static final int DEFAULT_QUEUE_SIZE = 256;
+    /** The longest a session waits for its password to be verified. */
+    private static final long VERIFY_TIMEOUT = 10000;
+
+    /** The outcome of a verification. */
+    public enum Result {
+        /** The password matches. */
+        OK,
+        /** The password does not match. */
+        INVALID,
+        /** Too many verifications are pending, the client should retry. */
+        BUSY
+    }
+
+    /** A remembered successful verification. */
+    private static class CachedLogin {
+        final byte[] mDigest;
+        final String mStored;
+        final long mExpires;
+
+        CachedLogin(byte[] digest, String stored, long expires) {
+            mDigest = digest;
+            mStored = stored;
+            mExpires = expires;
+        }
+    }
+
+    private static Authenticator sDefault;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final long mCacheTtl;
+    /** Secret for the password digests, generated per process. */
+    private final byte[] mKey = new byte[32];
+    /** Least recently used first. Guarded by itself. */
+    private final Map<String, CachedLogin> mCache;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+
+    /**
+     * @param threads   the number of threads that verify hashes
+     * @param queueSize the number of verifications that may wait for a thread
+     * @param cacheSize the maximum number of users in the cache, or 0 to
+     *                  disable it
+     * @param cacheTtl  the time in milliseconds a successful login is cached
+     */
+    public Authenticator(int threads, int queueSize, final int cacheSize,
+                         long cacheTtl) {
+        mCacheTtl = cacheTtl;
+        new SecureRandom().nextBytes(mKey);
+
+        mCache = new LinkedHashMap<String, CachedLogin>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, CachedLogin> eldest) {
+                return size() > cacheSize;
+            }
+        };
+
+        mExecutor = new ThreadPoolExecutor(threads, threads, 60,
+                TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r,
+                                "auth-" + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Get the authenticator shared by every session, configured by the
+     * mailserver.authThreads, mailserver.authQueue, mailserver.authCacheSize
+     * and mailserver.authCacheTtl system properties.
+     *
+     * @return the shared authenticator.
+     */
+    public static synchronized Authenticator getDefault() {
+        if (sDefault == null) {
+            sDefault = new Authenticator(
+                    Integer.getInteger("mailserver.authThreads",
+                            Runtime.getRuntime().availableProcessors()),
+                    Integer.getInteger("mailserver.authQueue",
+                            DEFAULT_QUEUE_SIZE),
+                    Integer.getInteger("mailserver.authCacheSize",
+                            DEFAULT_CACHE_SIZE),
+                    Long.getLong("mailserver.authCacheTtl",
+                            DEFAULT_CACHE_TTL));
+        }
+        return sDefault;
+    }
+
+    /**
+     * Check a password, using the cache where possible. Blocks until the
+     * password has been verified.
+     *
+     * @param username the user logging in
+     * @param password the password presented by the client
+     * @param stored   the vchPassword of the user's maildrop
+     * @return the outcome of the verification.
+     */
+    public Result verify(String username, final String password,
+                         final String stored) {
+        if (!PasswordHasher.isHashed(stored)) {
+            // Legacy plaintext, as cheap as a cache lookup
+            return PasswordHasher.verify(password, stored)
+                    ? Result.OK : Result.INVALID;
+        }
+
+        byte[] digest = digest(username, password);
+        if (isCached(username, digest, stored)) {
+            mHits.incrementAndGet();
+            return Result.OK;
+        }
+        mMisses.incrementAndGet();
+
+        Future<Boolean> future;
+        try {
+            future = mExecutor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return PasswordHasher.verify(password, stored);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            mRejected.incrementAndGet();
+            return Result.BUSY;
+        }
+
+        try {
+            if (!future.get(VERIFY_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                return Result.INVALID;
+            }
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            mRejected.incrementAndGet();
+            return Result.BUSY;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Result.BUSY;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "verify: Failed to verify password", e);
+            return Result.INVALID;
+        }
+
+        synchronized (mCache) {
+            mCache.put(username, new CachedLogin(digest, stored,
+                    System.currentTimeMillis() + mCacheTtl));
+        }
+        return Result.OK;
+    }
+
+    /**
+     * Forget the cached login of a user, for example after their password
+     * has changed.
+     *
+     * @param username the user to forget
+     */
+    public void invalidate(String username) {
+        synchronized (mCache) {
+            mCache.remove(username);
+        }
+    }
+
+    /**
+     * @return the number of logins answered from the cache.
+     */
+    public long getCacheHits() {
+        return mHits.get();
+    }
+
+    /**
+     * @return the number of hashed logins that were not in the cache.
+     */
+    public long getCacheMisses() {
+        return mMisses.get();
+    }
+
+    /**
+     * @return the number of logins refused because the executor was full.
+     */
+    public long getRejected() {
+        return mRejected.get();
+    }
+
+    private boolean isCached(String username, byte[] digest, String stored) {
+        CachedLogin entry;
+        synchronized (mCache) {
+            entry = mCache.get(username);
+        }
+        if (entry == null) {
+            return false;
+        }
+        if (entry.mExpires < System.currentTimeMillis()
+                || !entry.mStored.equals(stored)) {
+            // Expired, or the password was changed since it was cached
+            synchronized (mCache) {
+                mCache.remove(username, entry);
+            }
+            return false;
+        }
+        return MessageDigest.isEqual(entry.mDigest, digest);
+    }
+
+    /**
+     * @return an HMAC of the username and password under the process key.
+     */
+    private byte[] digest(String username, String password) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(mKey, "HmacSHA256"));
+            mac.update(username.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 unavailable", e);
+        }
+    }
+}
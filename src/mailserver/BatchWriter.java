@@ -0,0 +1,263 @@
+package mailserver;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Commits writes submitted by many threads in shared transactions. Each
+ * write costs the database little compared with committing it, so a writer
+ * thread takes every write queued while it was committing the previous
+ * batch and commits them together, waiting up to a maximum delay for more
+ * to arrive. Callers wait on a future for their own write.
+ * <p>
+ * If a batch fails, each of its writes is retried in a batch of its own, so
+ * that one bad write only fails its own caller. A {@link Writer} must
+ * therefore skip the items of a batch it has already committed.
+ *
+ * @param <T> the writes
+ */
+public class BatchWriter<T> {
+
+    /** Tag used for logging. */
+    private static final String TAG = BatchWriter.class.getSimpleName();
+
+    /** Commits a batch of writes. */
+    public interface Writer<T> {
+
+        /**
+         * Commit the writes in a single transaction.
+         *
+         * @param batch the writes, in the order they were submitted
+         * @throws SQLException if the transaction failed
+         */
+        void write(List<T> batch) throws SQLException;
+    }
+
+    /** A write and the future its caller waits on. */
+    private static class Pending<T> {
+        final T mItem;
+        final CompletableFuture<Void> mResult = new CompletableFuture<>();
+
+        Pending(T item) {
+            mItem = item;
+        }
+    }
+
+    private final Writer<T> mWriter;
+    private final int mMaxBatch;
+    private final long mMaxDelay;
+    private final BlockingQueue<Pending<T>> mQueue =
+            new LinkedBlockingQueue<>();
+    private final List<Thread> mThreads = new ArrayList<>();
+    private volatile boolean mRunning = true;
+
+    private final AtomicLong mBatches = new AtomicLong();
+    private final AtomicLong mWrites = new AtomicLong();
+    private final AtomicLong mRetries = new AtomicLong();
+
+    /**
+     * Construct a BatchWriter and start its threads.
+     *
+     * @param name     names the writer threads
+     * @param threads  the number of batches committed at the same time
+     * @param maxBatch the maximum number of writes per batch
+     * @param maxDelay the time in milliseconds a batch may wait for more
+     *                 writes, or 0 to only take those already queued
+     * @param writer   commits the batches
+     */
+    public BatchWriter(String name, int threads, int maxBatch, long maxDelay,
+                       Writer<T> writer) {
+        mWriter = writer;
+        mMaxBatch = Math.max(1, maxBatch);
+        mMaxDelay = TimeUnit.MILLISECONDS.toNanos(maxDelay);
+
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    drain();
+                }
+
+            }, name + "-" + i);
+            thread.setDaemon(true);
+            mThreads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Queue a write.
+     *
+     * @param item the write
+     * @return a future completed once the write is committed, or failed
+     * with the SQLException that prevented it.
+     */
+    public Future<Void> submit(T item) {
+        Pending<T> pending = new Pending<>(item);
+        if (!mRunning) {
+            pending.mResult.completeExceptionally(
+                    new SQLException("BatchWriter is closed"));
+            return pending.mResult;
+        }
+        mQueue.add(pending);
+        if (!mRunning && mQueue.remove(pending)) {
+            // close() may have stopped the threads and emptied the queue
+            // before it was added. Whoever takes it from the queue
+            // completes it.
+            pending.mResult.completeExceptionally(
+                    new SQLException("BatchWriter is closed"));
+        }
+        return pending.mResult;
+    }
+
+    /**
+     * Wait for a write submitted to a BatchWriter.
+     *
+     * @param result the future returned by {@link #submit}
+     * @throws SQLException if the write failed, or the wait was interrupted
+     */
+    public static void await(Future<Void> result) throws SQLException {
+        try {
+            result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a write", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException(e.getCause());
+        }
+    }
+
+    /**
+     * Commit the writes already queued, then stop the writer threads.
+     * Writes submitted afterwards fail.
+     */
+    public void close() {
+        mRunning = false;
+        for (Thread thread : mThreads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        // Submitted while the threads were stopping
+        Pending<T> pending;
+        while ((pending = mQueue.poll()) != null) {
+            pending.mResult.completeExceptionally(
+                    new SQLException("BatchWriter is closed"));
+        }
+    }
+
+    /**
+     * @return the number of batches committed, or failed.
+     */
+    public long getBatches() {
+        return mBatches.get();
+    }
+
+    /**
+     * @return the number of writes taken from the queue.
+     */
+    public long getWrites() {
+        return mWrites.get();
+    }
+
+    /**
+     * @return the number of writes retried alone after their batch failed.
+     */
+    public long getRetries() {
+        return mRetries.get();
+    }
+
+    /**
+     * @return the number of writes waiting for a writer thread.
+     */
+    public int getQueued() {
+        return mQueue.size();
+    }
+
+    private void drain() {
+        List<Pending<T>> batch = new ArrayList<>(mMaxBatch);
+        try {
+            while (mRunning || !mQueue.isEmpty()) {
+                Pending<T> first = mQueue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+                mQueue.drainTo(batch, mMaxBatch - 1);
+                long deadline = System.nanoTime() + mMaxDelay;
+                while (batch.size() < mMaxBatch) {
+                    long wait = deadline - System.nanoTime();
+                    Pending<T> next = wait > 0
+                            ? mQueue.poll(wait, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    mQueue.drainTo(batch, mMaxBatch - batch.size());
+                }
+
+                commit(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Log.e(TAG, "drain: Interrupted with " + batch.size()
+                    + " writes in progress", e);
+            for (Pending<T> pending : batch) {
+                pending.mResult.completeExceptionally(
+                        new SQLException("BatchWriter was interrupted", e));
+            }
+        }
+    }
+
+    private void commit(List<Pending<T>> batch) {
+        List<T> items = new ArrayList<>(batch.size());
+        for (Pending<T> pending : batch) {
+            items.add(pending.mItem);
+        }
+        mBatches.incrementAndGet();
+        mWrites.addAndGet(items.size());
+
+        try {
+            mWriter.write(items);
+            for (Pending<T> pending : batch) {
+                pending.mResult.complete(null);
+            }
+            return;
+        } catch (SQLException | RuntimeException e) {
+            if (batch.size() == 1) {
+                batch.get(0).mResult.completeExceptionally(e);
+                return;
+            }
+            Log.e(TAG, "commit: Batch of " + batch.size()
+                    + " failed, retrying each write", e);
+        }
+
+        for (Pending<T> pending : batch) {
+            mRetries.incrementAndGet();
+            try {
+                mWriter.write(Collections.singletonList(pending.mItem));
+                pending.mResult.complete(null);
+            } catch (SQLException | RuntimeException e) {
+                pending.mResult.completeExceptionally(e);
+            }
+        }
+    }
+}
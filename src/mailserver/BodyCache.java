@@ -0,0 +1,204 @@
+package mailserver;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the shared message bodies of the m_MailBody table by iBodyID, so
+ * that a newsletter sent to many maildrops is read from the database once
+ * rather than once per recipient. Bodies are never modified, so cached
+ * bodies never need to be invalidated. The cache is bounded by the memory
+ * the bodies hold, compressed bodies being held compressed, and the least
+ * recently used bodies are evicted first.
+ * <p>
+ * A server has one cache, see {@link #getShared()}, so that its size is
+ * the budget for every database read. Replicas share the iBodyIDs of their
+ * primary, and the bodies read from any of them are cached under the
+ * primary's number; shards each have their own.
+ */
+public class BodyCache {
+
+    /** The default maximum number of bytes of bodies cached. */
+    public static final long DEFAULT_SIZE = 64L * 1024 * 1024;
+
+    /** Bodies larger than this fraction of the cache are not cached. */
+    private static final int MAX_FRACTION = 8;
+
+    private volatile long mMaxWeight;
+    /** The cache of the server, created on first use. */
+    private static BodyCache sShared;
+
+    /**
+     * Keyed by the number of the database and the iBodyID, see key().
+     * Least recently used first. Guarded by itself.
+     */
+    private final LinkedHashMap<Long, MailBody> mBodies =
+            new LinkedHashMap<>(16, 0.75f, true);
+    /** The weight of the bodies in mBodies. Guarded by mBodies. */
+    private long mWeight;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * @param maxWeight the maximum number of bytes of bodies cached
+     */
+    public BodyCache(long maxWeight) {
+        mMaxWeight = maxWeight;
+    }
+
+    /**
+     * @return the cache shared by every store of the server, sized by
+     * mailserver.bodyCacheSize, which may be changed while it runs.
+     */
+    public static synchronized BodyCache getShared() {
+        if (sShared == null) {
+            final BodyCache cache = new BodyCache(Long.getLong(
+                    "mailserver.bodyCacheSize", DEFAULT_SIZE));
+            Config.addListener("mailserver.bodyCacheSize",
+                    new Config.Listener() {
+
+                        @Override
+                        public void changed(String name, String value) {
+                            cache.setMaxWeight(value == null ? DEFAULT_SIZE
+                                    : Long.parseLong(value));
+                        }
+
+                    });
+            sShared = cache;
+        }
+        return sShared;
+    }
+
+    private static long key(int database, int bodyID) {
+        return ((long) database << 32) | (bodyID & 0xffffffffL);
+    }
+
+    /**
+     * @param bodyID the iBodyID of a body in the first database
+     * @return the body, or <code>null</code> if it is not cached.
+     */
+    public MailBody get(int bodyID) {
+        return get(0, bodyID);
+    }
+
+    /**
+     * @param database the number of the database holding the body
+     * @param bodyID   the iBodyID of the body
+     * @return the body, or <code>null</code> if it is not cached.
+     */
+    public MailBody get(int database, int bodyID) {
+        MailBody body;
+        synchronized (mBodies) {
+            body = mBodies.get(key(database, bodyID));
+        }
+        if (body != null) {
+            mHits.incrementAndGet();
+        } else {
+            mMisses.incrementAndGet();
+        }
+        return body;
+    }
+
+    /**
+     * Cache a body read from the database, evicting the least recently used
+     * bodies to make room.
+     *
+     * @param bodyID the iBodyID of the body in the first database
+     * @param body   the body
+     */
+    public void put(int bodyID, MailBody body) {
+        put(0, bodyID, body);
+    }
+
+    /**
+     * Cache a body read from the database, evicting the least recently used
+     * bodies to make room.
+     *
+     * @param database the number of the database holding the body
+     * @param bodyID   the iBodyID of the body
+     * @param body     the body
+     */
+    public void put(int database, int bodyID, MailBody body) {
+        if (body.getWeight() > mMaxWeight / MAX_FRACTION) {
+            return;
+        }
+
+        synchronized (mBodies) {
+            MailBody previous = mBodies.put(key(database, bodyID), body);
+            if (previous != null) {
+                mWeight -= previous.getWeight();
+            }
+            mWeight += body.getWeight();
+            evict();
+        }
+    }
+
+    /**
+     * Change the maximum number of bytes of bodies cached, evicting the
+     * least recently used bodies if the cache shrinks.
+     *
+     * @param maxWeight the maximum number of bytes of bodies cached
+     */
+    public void setMaxWeight(long maxWeight) {
+        synchronized (mBodies) {
+            mMaxWeight = maxWeight;
+            evict();
+        }
+    }
+
+    /**
+     * Evict the least recently used bodies until the cache fits. Must hold
+     * mBodies.
+     */
+    private void evict() {
+        Iterator<MailBody> eldest = mBodies.values().iterator();
+        while (mWeight > mMaxWeight) {
+            mWeight -= eldest.next().getWeight();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * @return the number of bodies cached.
+     */
+    public int size() {
+        synchronized (mBodies) {
+            return mBodies.size();
+        }
+    }
+
+    /**
+     * @return the number of bytes of bodies cached.
+     */
+    public long getWeight() {
+        synchronized (mBodies) {
+            return mWeight;
+        }
+    }
+
+    /**
+     * @return the number of lookups that found the body.
+     */
+    public long getHits() {
+        return mHits.get();
+    }
+
+    /**
+     * @return the number of lookups that did not find the body.
+     */
+    public long getMisses() {
+        return mMisses.get();
+    }
+
+    /**
+     * Remove every body from the cache.
+     */
+    public void clear() {
+        synchronized (mBodies) {
+            mBodies.clear();
+            mWeight = 0;
+        }
+    }
+}
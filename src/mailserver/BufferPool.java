@@ -0,0 +1,102 @@
+package mailserver;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of equally sized byte buffers shared by all sessions, so that
+ * buffers only exist while a session is reading or writing and are not
+ * allocated and collected for every connection.
+ */
+public class BufferPool {
+
+    private final int mCapacity;
+    private final int mMaxPooled;
+    private final boolean mDirect;
+
+    /** Most recently released buffers are at the head. */
+    private final ConcurrentLinkedDeque<ByteBuffer> mPooled =
+            new ConcurrentLinkedDeque<>();
+    private final AtomicInteger mPooledCount = new AtomicInteger();
+
+    private final AtomicLong mAllocated = new AtomicLong();
+    private final AtomicInteger mInUse = new AtomicInteger();
+
+    /**
+     * @param capacity  the size of each buffer in bytes
+     * @param maxPooled the maximum number of free buffers kept for reuse
+     * @param direct    whether to allocate direct buffers
+     */
+    public BufferPool(int capacity, int maxPooled, boolean direct) {
+        mCapacity = capacity;
+        mMaxPooled = maxPooled;
+        mDirect = direct;
+    }
+
+    /**
+     * Take a cleared buffer from the pool, allocating one if none are free.
+     * Every buffer must be given back with {@link #release}.
+     *
+     * @return a buffer for the exclusive use of the caller.
+     */
+    public ByteBuffer acquire() {
+        mInUse.incrementAndGet();
+
+        ByteBuffer buffer = mPooled.pollFirst();
+        if (buffer != null) {
+            mPooledCount.decrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+
+        mAllocated.incrementAndGet();
+        return mDirect ? ByteBuffer.allocateDirect(mCapacity)
+                : ByteBuffer.allocate(mCapacity);
+    }
+
+    /**
+     * Give a buffer back to the pool. The caller must not use it again.
+     *
+     * @param buffer a buffer returned by {@link #acquire}
+     */
+    public void release(ByteBuffer buffer) {
+        mInUse.decrementAndGet();
+
+        if (mPooledCount.incrementAndGet() <= mMaxPooled) {
+            mPooled.offerFirst(buffer);
+        } else {
+            // Let the garbage collector have it
+            mPooledCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the size of each buffer in bytes.
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return the number of buffers allocated since the pool was created.
+     */
+    public long getAllocated() {
+        return mAllocated.get();
+    }
+
+    /**
+     * @return the number of buffers currently acquired.
+     */
+    public int getInUse() {
+        return mInUse.get();
+    }
+
+    /**
+     * @return the number of free buffers kept for reuse.
+     */
+    public int getPooled() {
+        return mPooledCount.get();
+    }
+}
@@ -2,11 +2,23 @@ package mailserver;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.PushbackInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Facilitates receiving POP3 commands and sending responses to them in a
@@ -15,18 +27,71 @@ import java.net.SocketTimeoutException;
 public class ClientConnection implements Runnable {
 
     /** The next available unique ID to label a ClientConnection when logging. */
-    private static int sNextId = 0;
+    private static final AtomicInteger sNextId = new AtomicInteger();
+    /** Measures the CPU time of the thread running each session. */
+    private static final ThreadMXBean sThreads =
+            ManagementFactory.getThreadMXBean();
+    /** The host name used in APOP timestamps, looked up once. */
+    private static String sHostName;
 
     /** The socket that facilitates communication with the client. */
     private Socket mClientSocket;
     /** Used to interpret POP3 commands received from the client. */
     private CommandInterpreter mCommandInterpreter;
-    /** Used to receive commands from the client. */
+    /**
+     * The stream commands are read from. The first byte of a command can be
+     * read from it and pushed back while the session is hibernated.
+     */
+    private PushbackInputStream mInput;
+    /** The stream responses are written to. */
+    private OutputStream mOutput;
+    /** Used to receive commands from the client, null while hibernated. */
     private BufferedReader mReader;
-    /** Used to send responses to the client. */
+    /** Used to send responses to the client, null while hibernated. */
     private BufferedWriter mWriter;
+    /** The time in milliseconds to wait for a command. */
+    private int mTimeout;
+    /** The idle time in milliseconds before hibernating, 0 for never. */
+    private int mHibernateAfter;
     /** A unique ID for this ClientConnection to distinguish it in the log. */
     private int mId;
+    /** Set by shutdown() to end the session after the current command. */
+    private volatile boolean mShutdown;
+    /** The TLS configuration, or null if TLS is not offered. */
+    private TlsContext mTlsContext;
+    /** The TLS session once it has been started, otherwise null. */
+    private TlsConnection mTls;
+    /** The most characters of a response held in memory before streaming. */
+    private int mMaxResponseBuffer = Pop3Server.DEFAULT_MAX_RESPONSE_BUFFER;
+
+    // Accounting, written by the session's thread and read by others
+    /** The bytes received from the client, after decryption. */
+    private volatile long mBytesRead;
+    /** The bytes sent to the client, before encryption. */
+    private volatile long mBytesWritten;
+    /** The time in nanoseconds spent in the database by commands. */
+    private volatile long mDatabaseNanos;
+    /** The most characters of a response held in memory at once. */
+    private volatile int mPeakResponseBuffer;
+    /** The ID of the thread running the session, or -1 if not running. */
+    private volatile long mThreadId = -1;
+    /** The CPU time of the thread when the session started running. */
+    private volatile long mCpuStart;
+    /** The CPU time used by the session once it has ended. */
+    private volatile long mCpuNanos = -1;
+
+    // Inspection, written by the session's thread and read by others
+    /** The time in milliseconds the client connected. */
+    private final long mConnectedAt = System.currentTimeMillis();
+    /** The time in milliseconds the last command started or ended. */
+    private volatile long mLastActive = mConnectedAt;
+    /**
+     * The name of the command being executed, without its arguments, which
+     * may hold credentials, or null while waiting for one.
+     */
+    private volatile String mCommand;
+    /** Whether the session is hibernated. */
+    private volatile boolean mHibernated;
 
     /**
      * Construct a ClientConnection.
@@ -34,25 +99,55 @@ public class ClientConnection implements Runnable {
      * @param clientSocket the socket to communicate with the client
      * @param timeout      the amount of time to wait for a response in milliseconds
      *                     before closing the connection
+     * @param database     the backend used to execute the client's commands
      * @throws IOException
      */
-    public ClientConnection(Socket clientSocket, int timeout)
-            throws IOException {
+    public ClientConnection(Socket clientSocket, int timeout,
+                            IDatabase database) throws IOException {
+        this(clientSocket, timeout, database, null, false);
+    }
+
+    /**
+     * Construct a ClientConnection that offers TLS.
+     *
+     * @param clientSocket the socket to communicate with the client
+     * @param timeout      the amount of time to wait for a response in milliseconds
+     *                     before closing the connection
+     * @param database     the backend used to execute the client's commands
+     * @param tlsContext   the TLS configuration, or null to offer plaintext only
+     * @param implicitTls  <code>true</code> to start TLS before the greeting,
+     *                     otherwise the client may start it with STLS
+     * @throws IOException
+     */
+    public ClientConnection(Socket clientSocket, int timeout,
+                            IDatabase database, TlsContext tlsContext,
+                            boolean implicitTls) throws IOException {
 
         mClientSocket = clientSocket;
+        mTlsContext = tlsContext;
+        mTimeout = timeout;
         clientSocket.setSoTimeout(timeout);
 
-        mCommandInterpreter = new CommandInterpreter(new EmailDatabase());
-        mReader = new BufferedReader(new InputStreamReader(
-                clientSocket.getInputStream()));
-        mWriter = new BufferedWriter(new OutputStreamWriter(
-                clientSocket.getOutputStream()));
-        mId = sNextId++;
+        mId = sNextId.getAndIncrement();
+        // Unique to this session, as required for the APOP digest
+        String timestamp = "<" + mId + "." + System.currentTimeMillis() + "@"
+                + getHostName() + ">";
 
-        System.out.printf("New connection (id: %d) from %s\n", mId, clientSocket
-                .getInetAddress().toString());
+        mCommandInterpreter = new CommandInterpreter(database, timestamp);
+        if (implicitTls) {
+            startTls();
+        } else {
+            openStreams(clientSocket.getInputStream(),
+                    clientSocket.getOutputStream());
+            mCommandInterpreter.setStlsAvailable(tlsContext != null);
+        }
+
+        if (Log.isDebug()) {
+            System.out.printf("New connection (id: %d) from %s\n", mId,
+                    clientSocket.getInetAddress().toString());
+        }
 
-        String ready = "+OK POP3 server ready\r\n";
+        String ready = "+OK POP3 server ready " + timestamp + "\r\n";
         printMessage(ready, "response");
 
         mWriter.write(ready);
@@ -65,42 +160,433 @@ public class ClientConnection implements Runnable {
         String response;
         boolean timedOut = false;
 
+        // Sessions run on pooled threads, so only count from here
+        if (sThreads.isCurrentThreadCpuTimeSupported()) {
+            mCpuStart = sThreads.getCurrentThreadCpuTime();
+            mThreadId = Thread.currentThread().getId();
+        }
+
         try {
-            while (!mCommandInterpreter.isQuit()) {
+            while (!mCommandInterpreter.isQuit() && !mShutdown) {
 
                 try {
+                    if (!awaitCommand()) {
+                        timedOut = true;
+                        break;
+                    }
                     request = mReader.readLine();
-                    printMessage(request, "request");
 
                 } catch (SocketTimeoutException e) {
                     // Close socket after timeout
-                    mCommandInterpreter.timeout();
                     timedOut = true;
                     break;
                 }
 
-                response = mCommandInterpreter.handleInput(request);
+                if (request == null) {
+                    // The client closed the connection, or shutdown() closed
+                    // the input while waiting for a command
+                    break;
+                }
+                printMessage(request, "request");
+                mCommand = getVerb(request);
+                mLastActive = System.currentTimeMillis();
+
+                // Messages and listings are written as they are read, and
+                // only the end of the response is returned
+                long databaseNanos = SqlStatement.getThreadNanos();
+                ResponseBuffer out = new ResponseBuffer(mWriter,
+                        mMaxResponseBuffer);
+                response = mCommandInterpreter.handleInput(request, out);
                 printMessage(response, "response");
-                mWriter.write(response);
-                mWriter.flush();
+                out.write(response);
+                mPeakResponseBuffer = Math.max(mPeakResponseBuffer,
+                        out.getPeak());
+                mDatabaseNanos += SqlStatement.getThreadNanos()
+                        - databaseNanos;
+                // Published before the client can see the end of the
+                // response and send its next command
+                mCommand = null;
+                mLastActive = System.currentTimeMillis();
+                out.flush();
+
+                if (mCommandInterpreter.isStlsRequested()) {
+                    if (mReader.ready()) {
+                        // Plaintext sent after STLS could be mistaken for
+                        // commands sent over TLS
+                        Log.e(ClientConnection.class.getSimpleName(),
+                                "run: Data received before TLS handshake");
+                        break;
+                    }
+                    startTls();
+                }
             }
 
-            mClientSocket.close();
+        } catch (SocketException | EOFException e) {
+            // The client reset the connection or closed it mid-response,
+            // which is how many clients end a session, unless close() was
+            // called during a command
+            if (!mShutdown) {
+                Log.d(ClientConnection.class.getSimpleName(),
+                        "run: Connection closed by client: " + e);
+            }
+
+        } catch (IOException e) {
+            // Expected if close() was called during a command
+            if (!mShutdown) {
+                Log.e(ClientConnection.class.getSimpleName(),
+                        "run: An I/O error occurred", e);
+            }
+
+        } finally {
+            // Unless QUIT was executed, the session ends without entering the
+            // UPDATE state: unlock the maildrop without deleting messages
+            if (!mCommandInterpreter.isQuit()) {
+                mCommandInterpreter.timeout();
+            }
+            if (mTls != null) {
+                mTls.close();
+            }
+            close();
+
+            mCpuNanos = getCpuNanos();
+            mThreadId = -1;
+        }
+
+        if (Log.isDebug()) {
+            System.out.printf("Connection (id: %d) from %s %s.\n", mId,
+                    mClientSocket.getInetAddress(),
+                    timedOut ? "timed out" : "was closed");
+        }
+    }
+
+    /**
+     * @return the name of the command on a line, or "AUTH" if the line holds
+     * its credentials.
+     */
+    private String getVerb(String request) {
+        if (mCommandInterpreter.isSaslPending()) {
+            return "AUTH";
+        }
+        int end = request.indexOf(' ');
+        String verb = end < 0 ? request : request.substring(0, end);
+        // Bounded, as the line may be anything the client sent
+        return verb.substring(0, Math.min(verb.length(), 8))
+                .toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * Perform the TLS handshake and send and receive everything after it
+     * over TLS.
+     *
+     * @throws IOException if the handshake fails
+     */
+    private void startTls() throws IOException {
+        mTls = mTlsContext.wrap(mClientSocket);
+        mTls.handshake();
+
+        openStreams(mTls.getInputStream(), mTls.getOutputStream());
+        mCommandInterpreter.setStlsAvailable(false);
+
+        if (Log.isDebug()) {
+            System.out.printf("Connection (id: %d) started %s\n", mId,
+                    mTls.getEngine().getSession().getProtocol());
+        }
+    }
+
+    /**
+     * Hibernate the session if it stays idle for longer than the given time.
+     * A hibernated session gives up its reader and writer and compacts its
+     * state until the client sends another command.
+     *
+     * @param hibernateAfter the idle time in milliseconds, or 0 to never
+     *                       hibernate
+     */
+    public void setHibernateAfter(int hibernateAfter) {
+        mHibernateAfter = hibernateAfter;
+    }
+
+    /**
+     * Hold at most the given number of characters of a response in memory,
+     * streaming the rest to the client as it is written.
+     *
+     * @param maxResponseBuffer the limit, or 0 to stream every write
+     */
+    public void setMaxResponseBuffer(int maxResponseBuffer) {
+        mMaxResponseBuffer = maxResponseBuffer;
+    }
+
+    /**
+     * @return the unique ID of the session, as shown in the log.
+     */
+    public int getId() {
+        return mId;
+    }
+
+    /**
+     * @return the address of the client.
+     */
+    public InetAddress getAddress() {
+        return mClientSocket.getInetAddress();
+    }
+
+    /**
+     * @return the bytes received from the client, after decryption.
+     */
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    /**
+     * @return the bytes sent to the client, before encryption.
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return the time in nanoseconds commands of the session spent
+     * executing statements or waiting for a group commit.
+     */
+    public long getDatabaseNanos() {
+        return mDatabaseNanos;
+    }
+
+    /**
+     * @return the CPU time in nanoseconds used by the thread running the
+     * session since it started, or -1 if it cannot be measured.
+     */
+    public long getCpuNanos() {
+        long threadId = mThreadId;
+        if (threadId < 0) {
+            return mCpuNanos;
+        }
+        long cpu = sThreads.getThreadCpuTime(threadId);
+        return cpu < 0 ? -1 : cpu - mCpuStart;
+    }
+
+    /**
+     * @return the most characters of a response held in memory at once.
+     */
+    public int getPeakResponseBuffer() {
+        return mPeakResponseBuffer;
+    }
+
+    /**
+     * @return <code>true</code> if the session is hibernated.
+     */
+    public boolean isHibernated() {
+        return mHibernated;
+    }
+
+    /**
+     * @return the POP3 state of the session.
+     */
+    public State getState() {
+        return mCommandInterpreter.getState();
+    }
+
+    /**
+     * @return the mailbox named by the client, or null if it has not named
+     * one yet.
+     */
+    public String getUsername() {
+        return mCommandInterpreter.getUsername();
+    }
+
+    /**
+     * @return the name of the command being executed, e.g. "RETR", or null
+     * if the session is waiting for one.
+     */
+    public String getCommand() {
+        return mCommand;
+    }
+
+    /**
+     * @return the time in milliseconds since the client connected.
+     */
+    public long getAgeMillis() {
+        return System.currentTimeMillis() - mConnectedAt;
+    }
+
+    /**
+     * @return the time in milliseconds the session has been waiting for a
+     * command, or 0 while it is executing one.
+     */
+    public long getIdleMillis() {
+        return mCommand != null ? 0
+                : System.currentTimeMillis() - mLastActive;
+    }
 
-            if (timedOut) {
-                System.out.printf("Connection (id: %d) from %s timed out.\n",
-                        mId, mClientSocket.getInetAddress());
-            } else {
-                System.out.printf("Connection (id: %d) from %s was closed.\n",
-                        mId, mClientSocket.getInetAddress());
+    /**
+     * Read commands from and write responses to the given streams.
+     */
+    private void openStreams(InputStream in, OutputStream out) {
+        mInput = new PushbackInputStream(new CountingInputStream(in), 1);
+        mOutput = new CountingOutputStream(out);
+        openBuffers();
+    }
+
+    /** Counts the bytes received from the client. */
+    private class CountingInputStream extends FilterInputStream {
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                mBytesRead++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                mBytesRead += read;
             }
+            return read;
+        }
+    }
 
+    /** Counts the bytes sent to the client. */
+    private class CountingOutputStream extends FilterOutputStream {
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mBytesWritten++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            // Not one byte at a time, as FilterOutputStream would
+            out.write(b, off, len);
+            mBytesWritten += len;
+        }
+    }
+
+    private void openBuffers() {
+        mReader = new BufferedReader(new InputStreamReader(mInput));
+        mWriter = new BufferedWriter(new OutputStreamWriter(mOutput));
+    }
+
+    /**
+     * Wait for the client to start sending a command, hibernating the
+     * session if none arrives soon.
+     *
+     * @return <code>false</code> if the session timed out.
+     * @throws IOException
+     */
+    private boolean awaitCommand() throws IOException {
+        if (mHibernateAfter <= 0 || mHibernateAfter >= mTimeout
+                || mReader.ready()) {
+            return true;
+        }
+
+        // Nothing is buffered, so the raw stream can be read directly
+        if (peek(mHibernateAfter)) {
+            return true;
+        }
+
+        mReader = null;
+        mWriter = null;
+        mHibernated = true;
+        mCommandInterpreter.hibernate();
+        if (Log.isDebug()) {
+            System.out.printf("Connection (id: %d) hibernated\n", mId);
+        }
+
+        boolean woken = peek(mTimeout - mHibernateAfter);
+        openBuffers();
+        mHibernated = false;
+        return woken;
+    }
+
+    /**
+     * Wait for the next byte from the client, leaving it to be read.
+     *
+     * @param timeout the time to wait in milliseconds
+     * @return <code>false</code> if nothing arrived in time.
+     * @throws IOException
+     */
+    private boolean peek(int timeout) throws IOException {
+        mClientSocket.setSoTimeout(timeout);
+        try {
+            int b = mInput.read();
+            if (b >= 0) {
+                mInput.unread(b);
+            }
+            return true;
+
+        } catch (SocketTimeoutException e) {
+            return false;
+
+        } finally {
+            mClientSocket.setSoTimeout(mTimeout);
+        }
+    }
+
+    /**
+     * Ask the session to end once it has finished the command it is
+     * executing. A session waiting for a command ends immediately.
+     */
+    public void shutdown() {
+        mShutdown = true;
+
+        try {
+            // Wakes a thread blocked in readLine() with end of stream
+            mClientSocket.shutdownInput();
+        } catch (IOException e) {
+            // The socket is already closed
+        }
+    }
+
+    /**
+     * Close the connection immediately, interrupting any command that is
+     * being sent to the client.
+     */
+    public void close() {
+        mShutdown = true;
+
+        try {
+            mClientSocket.close();
         } catch (IOException e) {
             Log.e(ClientConnection.class.getSimpleName(),
-                    "run: An I/O error occurred", e);
+                    "close: Failed to close socket", e);
         }
     }
 
+    @Override
+    public String toString() {
+        return String.format("%d %s: %d bytes read, %d written, database %.1f"
+                        + " ms, CPU %.1f ms, response buffer %d chars", mId,
+                getAddress().getHostAddress(), getBytesRead(),
+                getBytesWritten(), getDatabaseNanos() / 1e6,
+                getCpuNanos() / 1e6, getPeakResponseBuffer());
+    }
+
+    /**
+     * @return the name of the local host, or "localhost" if it is unknown.
+     */
+    static synchronized String getHostName() {
+        if (sHostName == null) {
+            try {
+                sHostName = InetAddress.getLocalHost().getHostName();
+            } catch (IOException e) {
+                sHostName = "localhost";
+            }
+        }
+        return sHostName;
+    }
+
     /**
      * Print the message to the console, without its newline character.
      *
@@ -108,6 +594,9 @@ public class ClientConnection implements Runnable {
      * @param type    the type of the message (request or response)
      */
     private void printMessage(String message, String type) {
+        if (!Log.isDebug()) {
+            return;
+        }
         System.out.printf("%d %s: %s\n", mId, type,
                 message.replace("\n", " ").replace("\r", " "));
     }
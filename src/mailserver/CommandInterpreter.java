@@ -1,5 +1,11 @@
 package mailserver;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
 /**
  * Interprets POP3 commands and executes the appropriate database action.
  */
@@ -28,9 +34,27 @@ public class CommandInterpreter {
     public static final String ERR_ARGS_NON_INT =
             "-ERR one or more arguments must be integer values";
     public static final String ERR_NEG_LINE_COUNT = "-ERR negative line count";
+    public static final String ERR_APOP_UNAVAILABLE =
+            "-ERR APOP not available on this connection";
+    public static final String ERR_AUTH_MECHANISM =
+            "-ERR [AUTH] unsupported authentication mechanism";
+    public static final String ERR_AUTH_INVALID =
+            "-ERR [AUTH] malformed authentication response";
+    public static final String ERR_AUTH_CANCELLED =
+            "-ERR authentication cancelled";
+    public static final String ERR_STLS_UNAVAILABLE =
+            "-ERR STLS not available on this connection";
+    /** The continuation sent when AUTH PLAIN has no initial response. */
+    public static final String SASL_CONTINUE = "+ ";
+
+    /**
+     * Maintains the current server {@link State}. Read by other threads to
+     * inspect the session.
+     */
+    private volatile State mState;
 
-    /** Maintains the current server {@link State}. */
-    private State mState;
+    /** The mailbox named by a successful USER, APOP or AUTH, or null. */
+    private volatile String mUsername;
 
     /**
      * Maintains whether or not the client has successfully issued a USER
@@ -44,12 +68,39 @@ public class CommandInterpreter {
      */
     private boolean mIsQuit;
 
+    /**
+     * The timestamp sent in the greeting for use by APOP, or null if none was
+     * sent.
+     */
+    private String mTimestamp;
+
+    /**
+     * Whether an AUTH PLAIN command is waiting for the client to send its
+     * credentials on the next line.
+     */
+    private boolean mIsSaslPending;
+
+    /** Whether the connection can be upgraded to TLS with STLS. */
+    private boolean mIsStlsAvailable;
+
+    /**
+     * Whether STLS has been accepted and the connection must start the TLS
+     * handshake before reading the next command.
+     */
+    private boolean mIsStlsRequested;
+
     /**
      * An implementation of the IDatabase interface which allows the commands to
      * be executed on the backend and return responses to the client.
      */
     private IDatabase mDatabase;
 
+    /**
+     * The writer to the client while a command given to
+     * {@link #handleInput(String, Writer)} is executed, otherwise null.
+     */
+    private Writer mOutput;
+
     /**
      * Construct a CommandInterpreter in the <code>AUTHORIZATION</code> state.
      * See {@link State}.
@@ -58,12 +109,48 @@ public class CommandInterpreter {
      *                 the backend
      */
     public CommandInterpreter(IDatabase database) {
+        this(database, null);
+    }
+
+    /**
+     * Construct a CommandInterpreter in the <code>AUTHORIZATION</code> state
+     * that accepts APOP. See {@link State}.
+     *
+     * @param database  the IDatabase implementation for executing commands on
+     *                  the backend
+     * @param timestamp the timestamp sent to the client in the greeting,
+     *                  including the angle brackets, or null to refuse APOP
+     */
+    public CommandInterpreter(IDatabase database, String timestamp) {
         mState = State.AUTHORIZATION;
         mDatabase = database;
+        mTimestamp = timestamp;
         mIsUserIssued = false;
         mIsQuit = false;
     }
 
+    /**
+     * Interpret a request from a client, writing the messages sent by RETR
+     * and TOP directly to the client as they are read rather than returning
+     * them.
+     *
+     * @param input POP3 command to be interpreted.
+     * @param out   the writer to the client
+     * @return the rest of the server's response, to be written after
+     * anything already written to <code>out</code>.
+     * @throws IOException if writing a message to the client fails
+     */
+    public String handleInput(String input, Writer out) throws IOException {
+        mOutput = out;
+        try {
+            return handleInput(input);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            mOutput = null;
+        }
+    }
+
     /**
      * Interpret a request from a client and return a response.
      *
@@ -74,6 +161,12 @@ public class CommandInterpreter {
         String command = "";
         String response = "";
 
+        if (mIsSaslPending) {
+            // The line holds credentials rather than a command, never echo it
+            mIsSaslPending = false;
+            return authPlain(input) + "\r\n";
+        }
+
         try {
             String[] arguments = input.split(" ", -1);
             // Command is case-insensitive
@@ -103,7 +196,8 @@ public class CommandInterpreter {
         // Include the request at the end of the response where the response
         // from the command interpreter is flexible
         if (!("LIST".equals(command) || "STAT".equals(command) ||
-                "UIDL".equals(command))) {
+                "UIDL".equals(command) || "CAPA".equals(command) ||
+                "AUTH".equals(command))) {
             response += (" " + input);
         }
 
@@ -119,6 +213,16 @@ public class CommandInterpreter {
         mDatabase.timeout();
     }
 
+    /**
+     * Indicate that the connection is idle. A session in the TRANSACTION
+     * state releases what it can rebuild when the next command arrives.
+     */
+    public void hibernate() {
+        if (State.TRANSACTION == mState) {
+            mDatabase.hibernate();
+        }
+    }
+
     /**
      * Handle a command when in the AUTHORIZATION state. Only commands that are
      * valid in the AUTHORIZATION state will be successfully executed.
@@ -137,6 +241,18 @@ public class CommandInterpreter {
             case "PASS":
                 response = pass(arguments);
                 break;
+            case "APOP":
+                response = apop(arguments);
+                break;
+            case "AUTH":
+                response = auth(arguments);
+                break;
+            case "CAPA":
+                response = capa(arguments);
+                break;
+            case "STLS":
+                response = stls(arguments);
+                break;
             case "QUIT":
                 response = quit(arguments);
                 break;
@@ -185,6 +301,9 @@ public class CommandInterpreter {
             case "UIDL":
                 response = uidl(arguments);
                 break;
+            case "CAPA":
+                response = capa(arguments);
+                break;
             case "QUIT":
                 response = quit(arguments);
                 break;
@@ -220,6 +339,7 @@ public class CommandInterpreter {
             // Allow a PASS command to be issued if verification is successful
             if (response.contains(OK)) {
                 mIsUserIssued = true;
+                mUsername = arguments[1];
             }
 
             return response;
@@ -263,6 +383,160 @@ public class CommandInterpreter {
         }
     }
 
+    /**
+     * Execute the APOP command, which names the mailbox and authenticates in
+     * a single command.
+     *
+     * @param arguments the command split into its individual arguments
+     * @return the response to the command from the server
+     */
+    private String apop(String[] arguments) {
+        // Required arguments mailbox name and digest
+        if (mTimestamp == null) {
+            return ERR_APOP_UNAVAILABLE;
+
+        } else if (arguments.length < 3) {
+            return ERR_MISSINGARGS;
+
+        } else if (arguments.length > 3) {
+            return ERR_EXCESSIVEARGS;
+
+        } else {
+            String response = mDatabase.apop(arguments[1], mTimestamp,
+                    arguments[2]);
+
+            if (response.contains(OK)) {
+                mUsername = arguments[1];
+                mState = State.TRANSACTION;
+            }
+
+            return response;
+        }
+    }
+
+    /**
+     * Execute the AUTH command (RFC 5034). Only the PLAIN mechanism is
+     * supported. The credentials are either given as an initial response or
+     * on the line after the continuation.
+     *
+     * @param arguments the command split into its individual arguments
+     * @return the response to the command from the server
+     */
+    private String auth(String[] arguments) {
+        if (arguments.length < 2) {
+            return ERR_MISSINGARGS;
+
+        } else if (arguments.length > 3) {
+            return ERR_EXCESSIVEARGS;
+
+        } else if (!"PLAIN".equalsIgnoreCase(arguments[1])) {
+            return ERR_AUTH_MECHANISM;
+
+        } else if (arguments.length == 2) {
+            mIsSaslPending = true;
+            return SASL_CONTINUE;
+
+        } else {
+            return authPlain(arguments[2]);
+        }
+    }
+
+    /**
+     * Authenticate with a PLAIN response of the form
+     * <code>[authzid] NUL authcid NUL passwd</code> in base64.
+     *
+     * @param encoded the client's response, "=" if empty or "*" to cancel
+     * @return the response to the AUTH command from the server
+     */
+    private String authPlain(String encoded) {
+        if ("*".equals(encoded)) {
+            return ERR_AUTH_CANCELLED;
+        }
+
+        String[] fields;
+        try {
+            byte[] decoded = "=".equals(encoded) ? new byte[0]
+                    : Base64.getDecoder().decode(encoded);
+            fields = new String(decoded, StandardCharsets.UTF_8)
+                    .split("\0", -1);
+        } catch (IllegalArgumentException e) {
+            return ERR_AUTH_INVALID;
+        }
+
+        // Acting on behalf of another user is not supported
+        if (fields.length != 3 || fields[1].isEmpty()
+                || !(fields[0].isEmpty() || fields[0].equals(fields[1]))) {
+            return ERR_AUTH_INVALID;
+        }
+
+        String response = mDatabase.user(fields[1]);
+        if (!response.contains(OK)) {
+            return response;
+        }
+
+        response = mDatabase.pass(fields[2]);
+        if (response.contains(OK)) {
+            mUsername = fields[1];
+            mState = State.TRANSACTION;
+        }
+
+        return response;
+    }
+
+    /**
+     * Execute the CAPA command (RFC 2449).
+     *
+     * @param arguments the command split into its individual arguments
+     * @return the response to the command from the server
+     */
+    private String capa(String[] arguments) {
+        if (arguments.length > 1) {
+            return ERR_EXCESSIVEARGS;
+        }
+
+        StringBuilder response = new StringBuilder(OK);
+        response.append(" Capability list follows\r\n");
+        response.append("TOP\r\n");
+        response.append("UIDL\r\n");
+        response.append("RESP-CODES\r\n");
+        if (State.AUTHORIZATION == mState) {
+            if (mIsStlsAvailable) {
+                response.append("STLS\r\n");
+            }
+            response.append("USER\r\n");
+            response.append("SASL PLAIN\r\n");
+            if (mTimestamp != null) {
+                response.append("APOP\r\n");
+            }
+        }
+        response.append(".");
+
+        return response.toString();
+    }
+
+    /**
+     * Execute the STLS command (RFC 2595). The connection starts the
+     * handshake once the response has been sent.
+     *
+     * @param arguments the command split into its individual arguments
+     * @return the response to the command from the server
+     */
+    private String stls(String[] arguments) {
+        if (arguments.length > 1) {
+            return ERR_EXCESSIVEARGS;
+
+        } else if (!mIsStlsAvailable) {
+            return ERR_STLS_UNAVAILABLE;
+
+        } else {
+            // Forget anything the client said before the handshake
+            mIsUserIssued = false;
+            mIsStlsAvailable = false;
+            mIsStlsRequested = true;
+            return OK + " Begin TLS negotiation";
+        }
+    }
+
     /**
      * Execute the DELE command.
      *
@@ -314,6 +588,9 @@ public class CommandInterpreter {
         }
 
         // Either a single message or all messages in maildrop
+        if (messageNumber < 1 && mOutput != null) {
+            return listing(false);
+        }
         return mDatabase.list(messageNumber);
     }
 
@@ -352,7 +629,7 @@ public class CommandInterpreter {
                 return ERR_NEGMSGNUM;
             }
 
-            return mDatabase.getMessage(messageNumber, -1);
+            return message(messageNumber, -1);
         }
     }
 
@@ -384,8 +661,25 @@ public class CommandInterpreter {
                 return ERR_NEG_LINE_COUNT;
             }
 
+            return message(messageNumber, lineCount);
+        }
+    }
+
+    /**
+     * Send a message for RETR or TOP, streaming it to the client if
+     * {@link #handleInput(String, Writer)} gave a writer.
+     */
+    private String message(int messageNumber, int lineCount) {
+        if (mOutput == null) {
             return mDatabase.getMessage(messageNumber, lineCount);
         }
+
+        try {
+            return mDatabase.writeMessage(messageNumber, lineCount, mOutput);
+        } catch (IOException e) {
+            // Unwrapped by handleInput(String, Writer)
+            throw new UncheckedIOException(e);
+        }
     }
 
     /**
@@ -443,9 +737,26 @@ public class CommandInterpreter {
             }
         }
 
+        if (messageNumber < 1 && mOutput != null) {
+            return listing(true);
+        }
         return mDatabase.uidl(messageNumber);
     }
 
+    /**
+     * Stream the listing of all messages for LIST or UIDL to the writer
+     * given to {@link #handleInput(String, Writer)}, so that the listing of
+     * a large maildrop is never held in memory.
+     */
+    private String listing(boolean uidl) {
+        try {
+            return mDatabase.writeListing(uidl, mOutput);
+        } catch (IOException e) {
+            // Unwrapped by handleInput(String, Writer)
+            throw new UncheckedIOException(e);
+        }
+    }
+
     /**
      * Execute the QUIT command.
      *
@@ -474,6 +785,48 @@ public class CommandInterpreter {
         }
     }
 
+    /**
+     * Set whether STLS is offered. Also clears a pending STLS request once
+     * the connection has started TLS.
+     *
+     * @param available <code>true</code> if the connection can be upgraded
+     */
+    public void setStlsAvailable(boolean available) {
+        mIsStlsAvailable = available;
+        mIsStlsRequested = false;
+    }
+
+    /**
+     * Whether the next line holds the credentials of AUTH PLAIN rather than
+     * a command.
+     */
+    public boolean isSaslPending() {
+        return mIsSaslPending;
+    }
+
+    /**
+     * Whether STLS has been accepted and the connection must start TLS before
+     * reading the next command.
+     */
+    public boolean isStlsRequested() {
+        return mIsStlsRequested;
+    }
+
+    /**
+     * @return the current state of the session.
+     */
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * @return the mailbox named by the client once USER, APOP or AUTH has
+     * succeeded, otherwise null.
+     */
+    public String getUsername() {
+        return mUsername;
+    }
+
     /**
      * Whether a QUIT command has been successfully executed in this session or
      * not.
@@ -0,0 +1,499 @@
+package mailserver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The settings of the server, all named mailserver.*. Each is read, from
+ * lowest to highest precedence, from a properties file, from an environment
+ * variable (mailserver.poolSize is MAILSERVER_POOL_SIZE) and from a system
+ * property given on the command line. The merged values are checked against
+ * the type of each setting, then stored as system properties, where the
+ * rest of the server reads them with its own defaults.
+ * <p>
+ * Settings marked reloadable can be changed while the server runs, by
+ * reloading the sources or setting a value through JMX (see
+ * {@link ConfigMBean}). The components using them register a
+ * {@link Listener}. Other settings only take effect on restart.
+ */
+public final class Config implements ConfigMBean {
+
+    /** Tag used for logging. */
+    private static final String TAG = Config.class.getSimpleName();
+
+    /** The prefix of every setting. */
+    public static final String PREFIX = "mailserver.";
+
+    /**
+     * The file read if mailserver.config does not name one. It is optional,
+     * unlike a file named explicitly.
+     */
+    public static final String DEFAULT_FILE = "mailserver.properties";
+
+    /** The name the settings are registered under with JMX. */
+    public static final String MBEAN_NAME = "mailserver:type=Config";
+
+    /** The type of the value of a setting. */
+    enum Type {
+        INT, LONG, BOOLEAN, STRING
+    }
+
+    /** Notified when a reloadable setting changes. */
+    public interface Listener {
+
+        /**
+         * Called after the system property has been changed.
+         *
+         * @param name  the full name of the setting
+         * @param value the new value, or <code>null</code> for the default
+         */
+        void changed(String name, String value);
+    }
+
+    /** A setting the server reads. */
+    private static class Setting {
+        final Type mType;
+        final boolean mReloadable;
+
+        Setting(Type type, boolean reloadable) {
+            mType = type;
+            mReloadable = reloadable;
+        }
+    }
+
+    /** Every setting, by full name. */
+    private static final Map<String, Setting> sSettings =
+            new LinkedHashMap<>();
+
+    static {
+        define("config", Type.STRING, false);
+        define("port", Type.INT, false);
+        define("timeout", Type.INT, false);
+        define("debug", Type.BOOLEAN, true);
+        define("dbUrl", Type.STRING, false);
+        define("dbUser", Type.STRING, false);
+        define("dbPassword", Type.STRING, false);
+        define("nodeId", Type.STRING, false);
+
+        define("maxConnections", Type.INT, true);
+        define("maxConnectionsPerAddress", Type.INT, true);
+        define("workerThreads", Type.INT, false);
+        define("backlog", Type.INT, false);
+        define("bindAddresses", Type.STRING, false);
+        define("acceptThreads", Type.INT, false);
+        define("acceptBacklog", Type.INT, false);
+        define("reusePort", Type.BOOLEAN, false);
+        define("tcpNoDelay", Type.BOOLEAN, false);
+        define("keepAlive", Type.BOOLEAN, false);
+        define("hibernateAfter", Type.INT, true);
+        define("maxResponseBuffer", Type.INT, false);
+        define("poolSize", Type.INT, false);
+        define("serverPrepStmts", Type.BOOLEAN, false);
+        define("groupCommitThreads", Type.INT, false);
+        define("groupCommitSize", Type.INT, false);
+        define("groupCommitDelay", Type.LONG, false);
+        define("lockLease", Type.LONG, false);
+
+        define("authThreads", Type.INT, false);
+        define("authQueue", Type.INT, false);
+        define("authCacheSize", Type.INT, false);
+        define("authCacheTtl", Type.LONG, false);
+        define("pbkdf2Iterations", Type.INT, false);
+
+        define("snapshotCacheSize", Type.INT, true);
+        define("bodyCacheSize", Type.LONG, true);
+        define("compressionLevel", Type.INT, false);
+        define("compressMail", Type.BOOLEAN, false);
+        define("dedupMail", Type.BOOLEAN, false);
+        define("dedupMinOctets", Type.INT, false);
+
+        define("deliveryBatchSize", Type.INT, false);
+        define("deliveryThreads", Type.INT, false);
+        define("lmtpPort", Type.INT, false);
+        define("lmtpAddress", Type.STRING, false);
+        define("lmtpThreads", Type.INT, false);
+        define("lmtpMaxMessageSize", Type.INT, false);
+        define("lmtpKeepDomain", Type.BOOLEAN, false);
+        define("adminPort", Type.INT, false);
+        define("adminAddress", Type.STRING, false);
+
+        define("keyStore", Type.STRING, false);
+        define("keyStorePassword", Type.STRING, false);
+        define("keyStoreType", Type.STRING, false);
+        define("tlsPort", Type.INT, false);
+        define("tlsSessionCacheSize", Type.INT, false);
+        define("tlsSessionTimeout", Type.INT, false);
+        define("tlsPooledBuffers", Type.INT, false);
+        define("tlsDirectBuffers", Type.BOOLEAN, false);
+
+        define("replicas", Type.STRING, false);
+        define("replicaMaxLag", Type.LONG, false);
+        define("replicaCheckInterval", Type.LONG, false);
+        define("shards", Type.STRING, false);
+        define("shardCacheSize", Type.INT, false);
+        define("shardCacheTtl", Type.LONG, false);
+    }
+
+    private static final ConcurrentHashMap<String, List<Listener>>
+            sListeners = new ConcurrentHashMap<>();
+
+    /** The file read by load(), or <code>null</code> if there is none. */
+    private static File sFile;
+    /** The environment read by load(). */
+    private static Map<String, String> sEnvironment = Collections.emptyMap();
+    /** The settings given as system properties, not set by load(). */
+    private static Map<String, String> sCommandLine;
+    /** The system properties set from the file and environment. */
+    private static Map<String, String> sApplied = new HashMap<>();
+
+    private Config() {
+        // Only instantiated to be registered with JMX
+    }
+
+    private static void define(String name, Type type, boolean reloadable) {
+        sSettings.put(PREFIX + name, new Setting(type, reloadable));
+    }
+
+    /**
+     * Read the settings from the file named by mailserver.config, or
+     * mailserver.properties in the working directory if there is one, from
+     * the environment and from the system properties.
+     *
+     * @throws IOException              if the file could not be read
+     * @throws IllegalArgumentException if a value is not valid for its
+     *                                  setting
+     */
+    public static void load() throws IOException {
+        String path = System.getProperty(PREFIX + "config");
+        if (path == null) {
+            path = System.getenv(toEnvironment(PREFIX + "config"));
+        }
+
+        File file = new File(path == null ? DEFAULT_FILE : path);
+        if (path == null && !file.exists()) {
+            file = null;
+        }
+        load(file, System.getenv());
+    }
+
+    /**
+     * Read the settings from a file, an environment and the system
+     * properties, replacing the settings read by any earlier call.
+     *
+     * @param file        the properties file, or <code>null</code> for none
+     * @param environment the environment variables
+     * @throws IOException              if the file could not be read
+     * @throws IllegalArgumentException if a value is not valid for its
+     *                                  setting
+     */
+    static synchronized void load(File file, Map<String, String> environment)
+            throws IOException {
+        Map<String, String> commandLine = new HashMap<>();
+        for (String name : System.getProperties().stringPropertyNames()) {
+            String value = System.getProperty(name);
+            if (name.startsWith(PREFIX) && !value.equals(sApplied.get(name))) {
+                commandLine.put(name, value);
+            }
+        }
+
+        Map<String, String> values = read(file, environment, commandLine);
+        for (String name : sApplied.keySet()) {
+            if (!commandLine.containsKey(name)) {
+                System.clearProperty(name);
+            }
+        }
+        sFile = file;
+        sEnvironment = environment;
+        sCommandLine = commandLine;
+
+        Map<String, String> applied = new HashMap<>();
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            System.setProperty(value.getKey(), value.getValue());
+            if (!commandLine.containsKey(value.getKey())) {
+                applied.put(value.getKey(), value.getValue());
+            }
+        }
+        sApplied = applied;
+    }
+
+    /**
+     * Read the sources given to the last load() again, and apply the
+     * reloadable settings that changed. Changes to other settings are
+     * logged, and take effect on restart.
+     *
+     * @return the names of the settings changed.
+     * @throws IOException              if the file could not be read
+     * @throws IllegalArgumentException if a value is not valid, in which
+     *                                  case nothing is changed
+     */
+    public static synchronized List<String> reloadSources()
+            throws IOException {
+        if (sCommandLine == null) {
+            throw new IllegalStateException("Not loaded");
+        }
+        Map<String, String> values = read(sFile, sEnvironment, sCommandLine);
+
+        List<String> changed = new ArrayList<>();
+        for (Map.Entry<String, Setting> setting : sSettings.entrySet()) {
+            String name = setting.getKey();
+            String value = values.get(name);
+            String current = System.getProperty(name);
+            if (value == null ? current == null : value.equals(current)) {
+                continue;
+            }
+
+            if (setting.getValue().mReloadable) {
+                apply(name, value);
+                changed.add(name);
+            } else {
+                Log.i(TAG, "reloadSources: " + name
+                        + " changed, restart to apply it");
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Change a reloadable setting until the sources are reloaded or the
+     * server restarts.
+     *
+     * @param name  the full name of the setting
+     * @param value the new value, or <code>null</code> for the default
+     * @throws IllegalArgumentException if the setting is not reloadable, or
+     *                                  the value is not valid for it
+     */
+    public static synchronized void set(String name, String value) {
+        Setting setting = sSettings.get(name);
+        if (setting == null || !setting.mReloadable) {
+            throw new IllegalArgumentException(name + " is not reloadable");
+        }
+        if (value != null) {
+            check(name, setting.mType, value);
+        }
+        apply(name, value);
+    }
+
+    /**
+     * Call a listener each time a reloadable setting is changed.
+     *
+     * @param name     the full name of the setting
+     * @param listener the listener
+     */
+    public static void addListener(String name, Listener listener) {
+        List<Listener> listeners = sListeners.get(name);
+        if (listeners == null) {
+            listeners = new CopyOnWriteArrayList<>();
+            List<Listener> raced = sListeners.putIfAbsent(name, listeners);
+            if (raced != null) {
+                listeners = raced;
+            }
+        }
+        listeners.add(listener);
+    }
+
+    /**
+     * Allow the settings to be read, changed and reloaded with JMX, e.g.
+     * from jconsole, under {@link #MBEAN_NAME}.
+     */
+    public static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new Config(), new ObjectName(MBEAN_NAME));
+        } catch (JMException e) {
+            Log.e(TAG, "registerMBean: Failed to register " + MBEAN_NAME, e);
+        }
+    }
+
+    /**
+     * @return the JDBC URL of the database holding the maildrops, from
+     * mailserver.dbUrl or else the HOST of a Login class.
+     */
+    public static String getDatabaseUrl() {
+        return getLogin("dbUrl", "HOST");
+    }
+
+    /**
+     * @return the MySQL username, from mailserver.dbUser or else the
+     * USERNAME of a Login class.
+     */
+    public static String getDatabaseUser() {
+        return getLogin("dbUser", "USERNAME");
+    }
+
+    /**
+     * @return the MySQL password, from mailserver.dbPassword or else the
+     * PASSWORD of a Login class.
+     */
+    public static String getDatabasePassword() {
+        return getLogin("dbPassword", "PASSWORD");
+    }
+
+    /**
+     * Read a database credential, falling back to the Login class that used
+     * to be compiled in, so that existing deployments keep working.
+     */
+    private static String getLogin(String name, String field) {
+        String value = System.getProperty(PREFIX + name);
+        if (value != null) {
+            return value;
+        }
+        try {
+            return (String) Class.forName("mailserver.Login").getField(field)
+                    .get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Set " + PREFIX + name
+                    + " or provide a Login class", e);
+        }
+    }
+
+    /**
+     * @return the name of the environment variable for a setting, e.g.
+     * MAILSERVER_POOL_SIZE for mailserver.poolSize.
+     */
+    static String toEnvironment(String name) {
+        StringBuilder variable = new StringBuilder(name.length() + 8);
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '.') {
+                variable.append('_');
+            } else if (Character.isUpperCase(c)) {
+                variable.append('_').append(c);
+            } else {
+                variable.append(Character.toUpperCase(c));
+            }
+        }
+        return variable.toString();
+    }
+
+    /**
+     * Merge the sources, checking every value.
+     *
+     * @return the value of each setting given by a source.
+     */
+    private static Map<String, String> read(File file,
+                                            Map<String, String> environment,
+                                            Map<String, String> commandLine)
+            throws IOException {
+        Map<String, String> values = new LinkedHashMap<>();
+        if (file != null) {
+            Properties properties = new Properties();
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+
+            for (String name : properties.stringPropertyNames()) {
+                // The prefix may be left out in the file
+                String full = name.startsWith(PREFIX) ? name : PREFIX + name;
+                values.put(full, properties.getProperty(name).trim());
+            }
+        }
+
+        for (String name : sSettings.keySet()) {
+            String value = environment.get(toEnvironment(name));
+            if (value != null) {
+                values.put(name, value.trim());
+            }
+        }
+        values.putAll(commandLine);
+
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            Setting setting = sSettings.get(value.getKey());
+            if (setting == null) {
+                Log.e(TAG, "read: Unknown setting " + value.getKey());
+            } else {
+                check(value.getKey(), setting.mType, value.getValue());
+            }
+        }
+        return values;
+    }
+
+    private static void check(String name, Type type, String value) {
+        try {
+            switch (type) {
+                case INT:
+                    Integer.parseInt(value);
+                    break;
+                case LONG:
+                    Long.parseLong(value);
+                    break;
+                case BOOLEAN:
+                    if (!value.equalsIgnoreCase("true")
+                            && !value.equalsIgnoreCase("false")) {
+                        throw new IllegalArgumentException();
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(name + " must be "
+                    + (type == Type.BOOLEAN ? "true or false" : "an integer")
+                    + ", not \"" + value + "\"");
+        }
+    }
+
+    private static void apply(String name, String value) {
+        if (value == null) {
+            System.clearProperty(name);
+            sApplied.remove(name);
+        } else {
+            System.setProperty(name, value);
+            sApplied.put(name, value);
+        }
+        Log.i(TAG, "apply: " + name + " = " + value);
+
+        List<Listener> listeners = sListeners.get(name);
+        if (listeners != null) {
+            for (Listener listener : listeners) {
+                listener.changed(name, value);
+            }
+        }
+    }
+
+    @Override
+    public String[] getSettings() {
+        List<String> settings = new ArrayList<>();
+        for (Map.Entry<String, Setting> setting : sSettings.entrySet()) {
+            String name = setting.getKey();
+            String value = System.getProperty(name);
+            if (value != null && name.toLowerCase(Locale.ROOT)
+                    .contains("password")) {
+                value = "****";
+            }
+            settings.add(name + " = " + (value == null ? "(default)" : value)
+                    + (setting.getValue().mReloadable ? " (reloadable)" : ""));
+        }
+        return settings.toArray(new String[settings.size()]);
+    }
+
+    @Override
+    public void setValue(String name, String value) {
+        set(name.startsWith(PREFIX) ? name : PREFIX + name,
+                value == null || value.isEmpty() ? null : value);
+    }
+
+    @Override
+    public String[] reload() throws IOException {
+        List<String> changed = reloadSources();
+        return changed.toArray(new String[changed.size()]);
+    }
+}
@@ -0,0 +1,34 @@
+package mailserver;
+
+import java.io.IOException;
+
+/**
+ * The settings of a running server as they are exposed with JMX under
+ * {@link Config#MBEAN_NAME}.
+ */
+public interface ConfigMBean {
+
+    /**
+     * @return each setting with its current value, or "(default)" if it is
+     * not set. Passwords are masked.
+     */
+    String[] getSettings();
+
+    /**
+     * Change a reloadable setting until the sources are reloaded or the
+     * server restarts.
+     *
+     * @param name  the name of the setting, with or without "mailserver."
+     * @param value the new value, or an empty string for the default
+     */
+    void setValue(String name, String value);
+
+    /**
+     * Read the configuration file, environment and command line again, and
+     * apply the reloadable settings that changed.
+     *
+     * @return the names of the settings changed.
+     * @throws IOException if the file could not be read
+     */
+    String[] reload() throws IOException;
+}
@@ -0,0 +1,114 @@
+package mailserver;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the connections accepted by the server, in total and per source
+ * address, and refuses new ones that would exceed the configured limits.
+ * <p>
+ * Only addresses with at least one open connection have an entry in the
+ * counter map, so its size is bounded by the number of open connections.
+ */
+public class ConnectionLimiter {
+
+    /** Open connections per source address. Entries are never zero. */
+    private final ConcurrentHashMap<InetAddress, AtomicInteger> mPerAddress =
+            new ConcurrentHashMap<>();
+    /** Open connections in total. */
+    private final AtomicInteger mTotal = new AtomicInteger();
+
+    private volatile int mMaxConnections;
+    private volatile int mMaxPerAddress;
+
+    /**
+     * @param maxConnections the maximum number of open connections
+     * @param maxPerAddress  the maximum number of open connections from a
+     *                       single source address
+     */
+    public ConnectionLimiter(int maxConnections, int maxPerAddress) {
+        setLimits(maxConnections, maxPerAddress);
+    }
+
+    /**
+     * Change the limits. Connections that are already open are not affected.
+     *
+     * @param maxConnections the maximum number of open connections
+     * @param maxPerAddress  the maximum number of open connections from a
+     *                       single source address
+     */
+    public void setLimits(int maxConnections, int maxPerAddress) {
+        mMaxConnections = maxConnections;
+        mMaxPerAddress = maxPerAddress;
+    }
+
+    /**
+     * Count a new connection if it is within the limits. Every successful
+     * call must be matched by a call to {@link #release}.
+     *
+     * @param address the source address of the connection
+     * @return <code>true</code> if the connection may be served.
+     */
+    public boolean tryAcquire(InetAddress address) {
+        if (mTotal.incrementAndGet() > mMaxConnections) {
+            mTotal.decrementAndGet();
+            return false;
+        }
+
+        int limit = mMaxPerAddress;
+        while (true) {
+            AtomicInteger count = mPerAddress.get(address);
+
+            if (count == null) {
+                if (mPerAddress.putIfAbsent(address, new AtomicInteger(1))
+                        == null) {
+                    return true;
+                }
+                continue;
+            }
+
+            int current = count.get();
+            if (current == 0) {
+                // Being removed by release(), retry with a new counter
+                continue;
+            }
+            if (current >= limit) {
+                mTotal.decrementAndGet();
+                return false;
+            }
+            if (count.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Count a connection accepted by {@link #tryAcquire} as closed.
+     *
+     * @param address the source address of the connection
+     */
+    public void release(InetAddress address) {
+        AtomicInteger count = mPerAddress.get(address);
+        if (count != null && count.decrementAndGet() == 0) {
+            mPerAddress.remove(address, count);
+        }
+        mTotal.decrementAndGet();
+    }
+
+    /**
+     * @return the number of open connections.
+     */
+    public int getConnections() {
+        return mTotal.get();
+    }
+
+    /**
+     * @param address a source address
+     * @return the number of open connections from the address.
+     */
+    public int getConnections(InetAddress address) {
+        AtomicInteger count = mPerAddress.get(address);
+        return count == null ? 0 : count.get();
+    }
+}
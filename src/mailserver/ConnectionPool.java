@@ -0,0 +1,230 @@
+package mailserver;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of connections to a MySQL database. Connections are only
+ * opened when a caller needs one and no idle connection is available, and are
+ * returned to the pool as soon as the caller is finished with them, so the
+ * number of connections depends on the number of concurrent queries rather
+ * than the number of connected clients.
+ */
+public class ConnectionPool {
+
+    /** Tag used for logging. */
+    private static final String TAG = ConnectionPool.class.getSimpleName();
+
+    /** Idle connections are checked before reuse after this long. */
+    private static final long VALIDATE_AFTER_MILLIS = 30000;
+
+    /**
+     * Whether statements are prepared by the database rather than by the
+     * driver, which substitutes their parameters as text and sends the
+     * whole query every time. Statements are kept prepared on each
+     * connection (see {@link SqlStatement}), so the database parses each
+     * about once per connection. Set mailserver.serverPrepStmts to false
+     * to have the driver prepare them.
+     */
+    private static final boolean SERVER_PREP_STMTS = Boolean.parseBoolean(
+            System.getProperty("mailserver.serverPrepStmts", "true"));
+
+    /** An idle connection and when it was returned to the pool. */
+    private static class Idle {
+        final Connection mConnection;
+        final long mSince;
+
+        Idle(Connection connection) {
+            mConnection = connection;
+            mSince = System.currentTimeMillis();
+        }
+    }
+
+    private final String mUrl;
+    private final String mUsername;
+    private final String mPassword;
+    private final long mBorrowTimeout;
+
+    /** One permit per connection that may be borrowed. */
+    private final Semaphore mPermits;
+    /** Most recently returned connections are at the head. */
+    private final LinkedBlockingDeque<Idle> mIdle = new LinkedBlockingDeque<>();
+
+    /** Set by close(), from when released connections are closed. */
+    private volatile boolean mClosed;
+
+    private final AtomicLong mConnects = new AtomicLong();
+    private final AtomicLong mBorrows = new AtomicLong();
+
+    /**
+     * @param url           the JDBC URL of the database
+     * @param username      the MySQL username
+     * @param password      the MySQL password
+     * @param size          the maximum number of open connections
+     * @param borrowTimeout the time in milliseconds to wait for a connection
+     *                      when all of them are in use
+     */
+    public ConnectionPool(String url, String username, String password,
+                          int size, long borrowTimeout) {
+        mUrl = url;
+        mUsername = username;
+        mPassword = password;
+        mBorrowTimeout = borrowTimeout;
+        mPermits = new Semaphore(size, true);
+
+        try {
+            Class.forName("com.mysql.jdbc.Driver").newInstance();
+        } catch (InstantiationException | IllegalAccessException
+                | ClassNotFoundException e) {
+            Log.e(TAG, "constructor: Failed to load JDBC driver", e);
+        }
+    }
+
+    /**
+     * Take a connection from the pool, opening a new one if none are idle.
+     * Every connection borrowed must be given back with {@link #release}.
+     *
+     * @return a connection for the exclusive use of the caller.
+     * @throws SQLException if no connection could be obtained in time
+     */
+    public Connection borrow() throws SQLException {
+        try {
+            if (!mPermits.tryAcquire(mBorrowTimeout, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out waiting for a connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a connection", e);
+        }
+
+        try {
+            mBorrows.incrementAndGet();
+
+            Idle idle;
+            while ((idle = mIdle.pollFirst()) != null) {
+                if (isUsable(idle)) {
+                    return idle.mConnection;
+                }
+                closeQuietly(idle.mConnection);
+            }
+
+            mConnects.incrementAndGet();
+            // Parameters of the URL take precedence over these
+            Properties properties = new Properties();
+            properties.setProperty("user", mUsername);
+            properties.setProperty("password", mPassword);
+            properties.setProperty("useServerPrepStmts",
+                    Boolean.toString(SERVER_PREP_STMTS));
+            return DriverManager.getConnection(mUrl, properties);
+
+        } catch (SQLException | RuntimeException e) {
+            mPermits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Give a borrowed connection back to the pool, or close it if the pool
+     * has been closed.
+     *
+     * @param connection a connection returned by {@link #borrow}
+     */
+    public void release(Connection connection) {
+        try {
+            if (connection.isClosed()) {
+                SqlStatement.forget(connection);
+                return;
+            } else if (mClosed) {
+                closeQuietly(connection);
+                return;
+            }
+            if (!connection.getAutoCommit()) {
+                // Never hand an open transaction to the next borrower
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            mIdle.offerFirst(new Idle(connection));
+            if (mClosed) {
+                // close() may have emptied the pool before it was offered
+                closeIdle();
+            }
+
+        } catch (SQLException e) {
+            Log.e(TAG, "release: Discarding broken connection", e);
+            closeQuietly(connection);
+
+        } finally {
+            mPermits.release();
+        }
+    }
+
+    /**
+     * Close every idle connection. Connections that are borrowed are closed
+     * when they are released.
+     */
+    public void close() {
+        mClosed = true;
+        closeIdle();
+    }
+
+    private void closeIdle() {
+        Idle idle;
+        while ((idle = mIdle.pollFirst()) != null) {
+            closeQuietly(idle.mConnection);
+        }
+    }
+
+    /**
+     * @return the JDBC URL of the database.
+     */
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * @return the number of connections opened to the database.
+     */
+    public long getConnects() {
+        return mConnects.get();
+    }
+
+    /**
+     * @return the number of times a connection has been borrowed.
+     */
+    public long getBorrows() {
+        return mBorrows.get();
+    }
+
+    /**
+     * @return the number of connections that are open but not borrowed.
+     */
+    public int getIdle() {
+        return mIdle.size();
+    }
+
+    private static boolean isUsable(Idle idle) {
+        try {
+            if (System.currentTimeMillis() - idle.mSince < VALIDATE_AFTER_MILLIS) {
+                return !idle.mConnection.isClosed();
+            }
+            return idle.mConnection.isValid(1);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        SqlStatement.forget(connection);
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            Log.e(TAG, "closeQuietly: Failed to close connection", e);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package mailserver;
+
+/**
+ * Creates the {@link IDatabase} used by each new client session.
+ */
+public interface DatabaseFactory {
+
+    /**
+     * @return a new IDatabase for a single POP3 session.
+     */
+    IDatabase newDatabase();
+}
@@ -0,0 +1,144 @@
+package mailserver;
+
+import java.util.Arrays;
+
+/**
+ * The messages of a session that are marked as deleted, one bit per message
+ * number.
+ * <p>
+ * Each word of bits carries the generation it was last written in, and
+ * words from an older generation read as zero, so {@link #clear} only has to
+ * start a new generation. The number of deleted messages is kept as they
+ * are marked, and the undeleted messages are found a word at a time, so runs
+ * of deleted messages are skipped 64 at once.
+ */
+public class DeletionSet {
+
+    /** Bit n is set if message n is deleted. Bit 0 is never used. */
+    private final long[] mWords;
+    /** The generation each word was last written in. */
+    private final int[] mGenerations;
+    /** The current generation, started by clear(). */
+    private int mGeneration;
+    /** The highest message number. */
+    private final int mSize;
+    /** The number of messages marked as deleted. */
+    private int mDeleted;
+
+    /**
+     * @param size the number of messages, numbered from 1
+     */
+    public DeletionSet(int size) {
+        mSize = size;
+        mWords = new long[(size >>> 6) + 1];
+        mGenerations = new int[mWords.length];
+    }
+
+    /**
+     * @return the number of messages, deleted or not.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the number of messages marked as deleted.
+     */
+    public int getDeletedCount() {
+        return mDeleted;
+    }
+
+    /**
+     * @return the number of messages not marked as deleted.
+     */
+    public int getUndeletedCount() {
+        return mSize - mDeleted;
+    }
+
+    /**
+     * @param messageNumber a message number from 1 to size()
+     * @return <code>true</code> if the message is marked as deleted.
+     */
+    public boolean isDeleted(int messageNumber) {
+        return (word(messageNumber >>> 6) & (1L << messageNumber)) != 0;
+    }
+
+    /**
+     * Mark a message as deleted.
+     *
+     * @param messageNumber a message number from 1 to size()
+     * @return <code>false</code> if it was already marked.
+     */
+    public boolean delete(int messageNumber) {
+        int index = messageNumber >>> 6;
+        long word = word(index);
+        long bit = 1L << messageNumber;
+        if ((word & bit) != 0) {
+            return false;
+        }
+
+        mWords[index] = word | bit;
+        mGenerations[index] = mGeneration;
+        mDeleted++;
+        return true;
+    }
+
+    /**
+     * Unmark every message, in constant time.
+     */
+    public void clear() {
+        mGeneration++;
+        mDeleted = 0;
+        if (mGeneration == 0) {
+            // Wrapped around, so old stamps could look current again
+            Arrays.fill(mWords, 0);
+            Arrays.fill(mGenerations, 0);
+        }
+    }
+
+    /**
+     * @param from the first message number to consider
+     * @return the lowest message number from <code>from</code> that is not
+     * deleted, or -1 if there is none.
+     */
+    public int nextUndeleted(int from) {
+        return next(from, true);
+    }
+
+    /**
+     * @param from the first message number to consider
+     * @return the lowest message number from <code>from</code> that is
+     * deleted, or -1 if there is none.
+     */
+    public int nextDeleted(int from) {
+        return next(from, false);
+    }
+
+    private int next(int from, boolean undeleted) {
+        from = Math.max(from, 1);
+        if (from > mSize) {
+            return -1;
+        }
+
+        int index = from >>> 6;
+        // Shifts use the low 6 bits, leaving the bits from "from" upwards
+        long word = (undeleted ? ~word(index) : word(index)) & (-1L << from);
+        while (word == 0) {
+            if (++index == mWords.length) {
+                return -1;
+            }
+            word = undeleted ? ~word(index) : word(index);
+        }
+
+        int messageNumber = (index << 6) + Long.numberOfTrailingZeros(word);
+        return messageNumber <= mSize ? messageNumber : -1;
+    }
+
+    /**
+     * @return the word at the index, or zero if it was written before the
+     * last clear().
+     */
+    private long word(int index) {
+        return mGenerations[index] == mGeneration ? mWords[index] : 0;
+    }
+}
@@ -0,0 +1,52 @@
+package mailserver;
+
+/**
+ * A message to be added to one maildrop by {@link MailStore#addMail}.
+ */
+public class Delivery {
+
+    private final Maildrop mMaildrop;
+    private final IncomingMessage mMessage;
+    private final String mUIDL;
+    /** The iMailID of the new message, or 0 until it is stored. */
+    private volatile int mMailID;
+
+    /**
+     * @param maildrop the maildrop to deliver to
+     * @param message  the message, which may be shared with other deliveries
+     * @param uidl     the vchUIDL of the new message
+     */
+    public Delivery(Maildrop maildrop, IncomingMessage message, String uidl) {
+        mMaildrop = maildrop;
+        mMessage = message;
+        mUIDL = uidl;
+    }
+
+    public Maildrop getMaildrop() {
+        return mMaildrop;
+    }
+
+    public IncomingMessage getMessage() {
+        return mMessage;
+    }
+
+    public String getUIDL() {
+        return mUIDL;
+    }
+
+    /**
+     * @return the iMailID of the new message, or 0 if it has not been stored.
+     */
+    public int getMailID() {
+        return mMailID;
+    }
+
+    /**
+     * Called by the store once the message has been committed.
+     *
+     * @param mailID the iMailID of the new message
+     */
+    void setMailID(int mailID) {
+        mMailID = mailID;
+    }
+}
@@ -1,20 +1,25 @@
 package mailserver;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 /**
- * Execute POP3 commands on a MySQL mail database.
- * <p>
- * Note: A Login class must contain the static information for logging onto the
- * MySQL server, including the HOST name, USERNAME and PASSWORD.
+ * Execute POP3 commands on a mail database. The data itself is read from and
+ * written to a {@link MailStore}, which is a MySQL database unless another
+ * store is given.
  */
 public class EmailDatabase implements IDatabase {
 
@@ -23,24 +28,46 @@ public class EmailDatabase implements IDatabase {
     /** Carriage Return + Line Feed */
     private static final String CRLF = "\r\n";
 
-    /** The connection to the SQL database. */
-    private Connection mConnection;
+    /**
+     * The default time in milliseconds a maildrop lock is held without being
+     * renewed. Longer than the session timeout, so that an idle session does
+     * not lose its lock. Overridden by the mailserver.lockLease system
+     * property.
+     */
+    public static final long DEFAULT_LOCK_LEASE = 900000;
+
+    /**
+     * Identifies this server as the owner of the maildrops it locks. Set by
+     * the mailserver.nodeId system property, otherwise "pid@host".
+     */
+    public static final String NODE_ID = System.getProperty(
+            "mailserver.nodeId",
+            ManagementFactory.getRuntimeMXBean().getName());
+
+    /** The storage the maildrops are read from. */
+    private MailStore mStore;
+    /** Checks the password given by PASS. */
+    private Authenticator mAuthenticator;
+    /** Whether the store was created for this session alone. */
+    private boolean mOwnsStore;
     /** Whether the user is logged in or not. */
     private boolean mLoggedIn;
     /** The username for the user logged in / attempting to log in. */
     private String mUsername;
-    /** The corresponding password for mUsername. */
-    private String mPassword;
-    /** The ID for the maildrop of mUsername. */
-    private int mMaildropID;
-    /** The number of messages that are not deleted in the session. */
-    private int mNumUndeleted;
+    /** The maildrop of mUsername. */
+    private Maildrop mMaildrop;
+    /** The fencing token of the maildrop lock held by the session. */
+    private long mLockToken;
+    /** The lease of the maildrop lock in milliseconds. */
+    private long mLockLease;
+    /** When the lease should next be renewed. */
+    private long mRenewLockAt;
 
     /**
-     * Index is set to true if the message has been marked as deleted. As with
-     * iMailIDs, the zeroth index is ignored by the program.
+     * The message numbers that have been marked as deleted, which also counts
+     * the messages that are not.
      */
-    private boolean[] mMarkedDeleted;
+    private DeletionSet mDeleted;
 
     /**
      * A List of the mailbox's iMailIDs, assigned when a PASS command is
@@ -49,50 +76,73 @@ public class EmailDatabase implements IDatabase {
      */
     private List<Integer> mMailIDs;
 
+    /** What is left of a hibernated session. */
+    private static class Hibernated {
+        /** The highest iMailID in the session's list of messages. */
+        final int mMaxMailID;
+        /** The number of messages in the list. */
+        final int mCount;
+
+        Hibernated(int maxMailID, int count) {
+            mMaxMailID = maxMailID;
+            mCount = count;
+        }
+    }
+
+    /** Replaces mMailIDs while the session is hibernated, otherwise null. */
+    private Hibernated mHibernated;
+
     /**
-     * Construct a new EmailDatabase
+     * Construct a new EmailDatabase with its own connections to the MySQL
+     * database, which are closed when the session ends.
      */
     public EmailDatabase() {
-        try {
-            Class.forName("com.mysql.jdbc.Driver").newInstance();
-            mConnection = DriverManager.getConnection(
-                    Login.HOST,
-                    Login.USERNAME,
-                    Login.PASSWORD
-            );
+        this(new SqlMailStore());
+        mOwnsStore = true;
+    }
 
-        } catch (SQLException | InstantiationException
-                | IllegalAccessException | ClassNotFoundException e) {
-            Log.e(TAG, "constructor: Failed to connect to database.", e);
-        }
+    /**
+     * Construct a new EmailDatabase on top of the given store, which may be
+     * shared with other sessions. The store is not closed when the session
+     * ends.
+     *
+     * @param store the storage the maildrops are read from
+     */
+    public EmailDatabase(MailStore store) {
+        this(store, Authenticator.getDefault());
+    }
 
+    /**
+     * Construct a new EmailDatabase on top of the given store, checking
+     * passwords with the given authenticator.
+     *
+     * @param store         the storage the maildrops are read from
+     * @param authenticator checks the password given by PASS
+     */
+    public EmailDatabase(MailStore store, Authenticator authenticator) {
+        mStore = store;
+        mAuthenticator = authenticator;
+        mLockLease = Long.getLong("mailserver.lockLease", DEFAULT_LOCK_LEASE);
         mLoggedIn = false;
     }
 
     @Override
     public String user(String uname) {
         try {
-            Statement statement = mConnection.createStatement();
-            ResultSet rs = statement.executeQuery("SELECT * FROM m_Maildrop");
-
-            while (rs.next()) {
-                if (rs.getString("vchUsername").equals(uname)) {
-                    if (rs.getInt("tiLocked") == 0) {
-                        // If the maildrop exists and it is unlocked
-                        mUsername = uname;
-                        mPassword = rs.getString("vchPassword");
-                        mMaildropID = rs.getInt("iMailDropID");
-                        return "+OK " + uname + " is a valid mailbox";
-
-                    } else {
-                        return "-ERR mailbox " + uname + " currently locked";
-                    }
+            Maildrop maildrop = mStore.findMaildrop(uname);
+
+            if (maildrop != null) {
+                if (!maildrop.isLocked()) {
+                    // If the maildrop exists and it is unlocked
+                    mUsername = uname;
+                    mMaildrop = maildrop;
+                    return "+OK " + uname + " is a valid mailbox";
+
+                } else {
+                    return "-ERR mailbox " + uname + " currently locked";
                 }
             }
 
-            rs.close();
-            statement.close();
-
         } catch (SQLException e) {
             Log.e(TAG, "user: Failed to execute USER command", e);
             return "-ERR USER command failed";
@@ -103,38 +153,90 @@ public class EmailDatabase implements IDatabase {
 
     @Override
     public String pass(String pword) {
-        if (mPassword.equals(pword)) {
-            try {
-                setMaildropLocked(true);
-
-                PreparedStatement statement = mConnection.prepareStatement(
-                        "SELECT iMailID FROM m_Mail WHERE iMaildropID = ? "
-                );
-                statement.setInt(1, mMaildropID);
-                ResultSet rs = statement.executeQuery();
-
-                // No message at position zero, assign each email a number from
-                // 1 to n
-                mMailIDs = new ArrayList<>();
-                mMailIDs.add(null);
-                while (rs.next()) {
-                    mMailIDs.add(rs.getInt("iMailID"));
-                }
+        Authenticator.Result result = mAuthenticator.verify(mUsername, pword,
+                mMaildrop.getPassword());
+
+        if (result == Authenticator.Result.BUSY) {
+            return "-ERR [SYS/TEMP] too many logins, try again later";
+        }
 
-                rs.close();
-                statement.close();
+        if (result == Authenticator.Result.OK) {
+            return open();
 
-            } catch (SQLException e) {
-                Log.e(TAG, "pass: Failed to execute PASS command", e);
+        } else {
+            return "-ERR invalid mPassword for user " + mUsername;
+        }
+    }
+
+    @Override
+    public String apop(String user, String timestamp, String digest) {
+        String response = user(user);
+        if (!response.startsWith("+OK")) {
+            return response;
+        }
+
+        String secret = mMaildrop.getPassword();
+        if (PasswordHasher.isHashed(secret)) {
+            // The digest can only be checked against the plaintext secret
+            return "-ERR [AUTH] APOP is not available for " + user;
+        }
+
+        try {
+            byte[] expected = MessageDigest.getInstance("MD5").digest(
+                    (timestamp + secret).getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : expected) {
+                hex.append(String.format("%02x", b));
             }
 
-            // Set all messages as unmarked for deletion
-            mMarkedDeleted = new boolean[mMailIDs.size()];
-            Arrays.fill(mMarkedDeleted, false);
-            // Subtract 1 to ignore zeroth index
-            mNumUndeleted = mMailIDs.size() - 1;
-            mLoggedIn = true;
+            byte[] received = digest.toLowerCase(Locale.ROOT)
+                    .getBytes(StandardCharsets.US_ASCII);
+            if (MessageDigest.isEqual(hex.toString().getBytes(
+                    StandardCharsets.US_ASCII), received)) {
+                return open();
+            }
 
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "apop: MD5 unavailable", e);
+        }
+
+        return "-ERR [AUTH] invalid APOP digest for user " + user;
+    }
+
+    /**
+     * Lock the maildrop of the authenticated user and read its messages.
+     *
+     * @return the response to a successful login.
+     */
+    private String open() {
+        try {
+            // Another session may have locked the maildrop since USER
+            mLockToken = mStore.lock(mMaildrop, NODE_ID, mLockLease);
+            if (mLockToken < 0) {
+                return "-ERR [IN-USE] mailbox " + mUsername
+                        + " currently locked";
+            }
+            mRenewLockAt = System.currentTimeMillis() + mLockLease / 2;
+
+            // No message at position zero, assign each email a number from
+            // 1 to n
+            mMailIDs = new ArrayList<>();
+            mMailIDs.add(null);
+            mMailIDs.addAll(mStore.getMailIDs(mMaildrop));
+
+        } catch (SQLException e) {
+            Log.e(TAG, "open: Failed to open maildrop", e);
+            if (mLockToken > 0) {
+                unlock();
+            }
+            return "-ERR [SYS/TEMP] failed to open mailbox " + mUsername;
+        }
+
+        // Set all messages as unmarked for deletion, ignoring the zeroth index
+        mDeleted = new DeletionSet(mMailIDs.size() - 1);
+        mLoggedIn = true;
+
+        if (Log.isDebug()) {
             System.out.println("iMailIDs of messages for user "
                     + mUsername + ": " + mMailIDs);
             System.out.println("Size of each message in octets:");
@@ -142,26 +244,23 @@ public class EmailDatabase implements IDatabase {
                 System.out.println(mMailIDs.get(i) + " "
                         + getOctets(i));
             }
-
-            return "+OK maildrop locked and ready";
-
-        } else {
-            return "-ERR invalid mPassword for user " + mUsername;
         }
+
+        return "+OK maildrop locked and ready";
     }
 
     @Override
     public String dele(int messageNumber) {
-        if (mMailIDs.size() > messageNumber) {
+        String error = resume();
+        if (error != null) {
+            return error;
+        }
+        if (exists(messageNumber)) {
 
-            // If the message is already marked for deletion
-            if (mMarkedDeleted[messageNumber]) {
+            // Mark the message for deletion, unless it already is
+            if (!mDeleted.delete(messageNumber)) {
                 return "-ERR message " + messageNumber + " already deleted";
             }
-
-            // Mark the message for deletion
-            mMarkedDeleted[messageNumber] = true;
-            mNumUndeleted--;
             return "+OK message " + messageNumber + " deleted";
 
         } else {
@@ -171,23 +270,16 @@ public class EmailDatabase implements IDatabase {
 
     @Override
     public String list(int messageNumber) {
+        String error = resume();
+        if (error != null) {
+            return error;
+        }
         if (messageNumber < 1) {
             // Return total number and size of all unmarked messages
-            StringBuilder response = new StringBuilder();
-            response.append("+OK ").append(mNumUndeleted).append(" messages (")
-                    .append(getOctets(-1)).append(" octets)").append(CRLF);
+            return listing(false);
 
-            for (int i = 1; i < mMailIDs.size(); i++) {
-                if (!mMarkedDeleted[i]) {
-                    response.append(i).append(" ").append(getOctets(i))
-                            .append(CRLF);
-                }
-            }
-            response.append(".");
-            return response.toString();
-
-        } else if (mMailIDs.size() > messageNumber &&
-                !mMarkedDeleted[messageNumber]) {
+        } else if (exists(messageNumber)
+                && !mDeleted.isDeleted(messageNumber)) {
             // Return size of message messageNumber if unmarked
             return "+OK " + messageNumber + " " + getOctets(messageNumber);
 
@@ -196,118 +288,192 @@ public class EmailDatabase implements IDatabase {
         }
     }
 
+    /**
+     * @param uidl <code>true</code> for UIDL, <code>false</code> for LIST
+     * @return the listing of all unmarked messages, built in memory.
+     */
+    private String listing(boolean uidl) {
+        StringWriter out = new StringWriter();
+        try {
+            String error = writeListing(uidl, out);
+            return error.isEmpty() ? out.toString() : error;
+
+        } catch (IOException e) {
+            // Never thrown by a StringWriter
+            throw new IllegalStateException(e);
+        }
+    }
+
     @Override
-    public String getMessage(int messageNumber, int lineCount) {
-        if (mMailIDs.size() > messageNumber && !mMarkedDeleted[messageNumber]) {
-            String fullMessageBody = "";
+    public String writeListing(boolean uidl, Writer out) throws IOException {
+        String error = resume();
+        if (error != null) {
+            return error;
+        }
 
+        if (!uidl) {
+            // Read in one query, for the total and for each line
+            Map<Integer, Integer> octets;
             try {
-                PreparedStatement statement = mConnection.prepareStatement(
-                        "SELECT txMailContent FROM m_Mail WHERE iMailID = ? "
-                );
-                statement.setInt(1, mMailIDs.get(messageNumber));
-                ResultSet rs = statement.executeQuery();
+                octets = mStore.getOctets(mMaildrop);
+            } catch (SQLException e) {
+                Log.e(TAG, "writeListing: Failed to execute LIST command", e);
+                return "-ERR [SYS/TEMP] failed to list messages";
+            }
 
-                rs.next();
-                fullMessageBody = rs.getString("txMailContent");
+            int totalOctets = 0;
+            for (int i = mDeleted.nextUndeleted(1); i > 0;
+                    i = mDeleted.nextUndeleted(i + 1)) {
+                totalOctets += getOctets(octets, i);
+            }
+            out.write("+OK " + mDeleted.getUndeletedCount() + " messages ("
+                    + totalOctets + " octets)");
+            out.write(CRLF);
+            for (int i = mDeleted.nextUndeleted(1); i > 0;
+                    i = mDeleted.nextUndeleted(i + 1)) {
+                out.write(i + " " + getOctets(octets, i));
+                out.write(CRLF);
+            }
+            out.write(".");
+            return "";
+        }
 
-                rs.close();
-                statement.close();
+        Map<Integer, String> uidls;
+        try {
+            uidls = mStore.getUIDLs(mMaildrop);
+        } catch (SQLException e) {
+            Log.e(TAG, "writeListing: Failed to execute UIDL command", e);
+            return "-ERR no such message";
+        }
 
-            } catch (SQLException e) {
-                Log.e(TAG, "getMessage: Failed to get message " + messageNumber,
-                        e);
+        out.write("+OK");
+        out.write(CRLF);
+        for (Map.Entry<Integer, String> row : uidls.entrySet()) {
+            // Messages delivered since login have no number
+            int i = getMessageNumber(row.getKey());
+            if (i > 0 && !mDeleted.isDeleted(i)) {
+                out.write(i + " " + row.getValue());
+                out.write(CRLF);
             }
+        }
+        out.write(".");
+        return "";
+    }
+
+    @Override
+    public String getMessage(int messageNumber, int lineCount) {
+        StringWriter out = new StringWriter();
+        try {
+            String error = writeMessage(messageNumber, lineCount, out);
+            return error.isEmpty() ? out.toString() : error;
 
-            // RETR (return whole message, CommandInterpreter calls with
-            // lineCount = -1)
-            // TOP (return lineCount lines)
-
-            // Split the header from the body into two array elements
-            String[] header_body = fullMessageBody.split("\n\n", 2);
-            // Last position in lines[] contains the remainder of the
-            // unsplit message that is not to be sent
-            String[] lines = header_body[1].split("\n", lineCount + 1);
-
-            StringBuilder response = new StringBuilder("+OK").append(CRLF);
-            // Concatenate the header and partial message body
-            response.append(header_body[0]).append("\n\n");
-            for (int i = 0; i < lines.length - 1; i++) {
-                if (lines[i].startsWith(".")) {
+        } catch (IOException e) {
+            Log.e(TAG, "getMessage: Failed to read message " + messageNumber,
+                    e);
+            return "-ERR [SYS/TEMP] failed to read message " + messageNumber;
+        }
+    }
+
+    @Override
+    public String writeMessage(int messageNumber, int lineCount, Writer out)
+            throws IOException {
+        String error = resume();
+        if (error != null) {
+            return error;
+        }
+        if (!exists(messageNumber) || mDeleted.isDeleted(messageNumber)) {
+            return "-ERR no such message";
+        }
+
+        Reader content;
+        try {
+            // Message lists only ask for the header, which the store can
+            // read without the body
+            content = lineCount == 0
+                    ? mStore.openHeader(mMaildrop, mMailIDs.get(messageNumber))
+                    : mStore.openContent(mMaildrop,
+                    mMailIDs.get(messageNumber));
+        } catch (SQLException e) {
+            Log.e(TAG, "writeMessage: Failed to get message " + messageNumber,
+                    e);
+            return "-ERR [SYS/TEMP] failed to read message " + messageNumber;
+        }
+        if (content == null) {
+            // Only possible if the lock was lost and the message deleted
+            return "-ERR no such message";
+        }
+
+        // RETR (send the whole message, CommandInterpreter calls with
+        // lineCount = -1)
+        // TOP (send the header and lineCount lines of the body)
+        BufferedReader lines = new BufferedReader(content);
+        try {
+            out.write("+OK");
+            out.write(CRLF);
+
+            boolean header = true;
+            int bodyLines = 0;
+            String line;
+            while ((line = lines.readLine()) != null) {
+                if (header) {
+                    // The header ends at the first empty line
+                    header = !line.isEmpty();
+                } else if (lineCount >= 0 && bodyLines++ == lineCount) {
+                    break;
+                }
+
+                if (line.startsWith(".")) {
                     // Byte-stuff line by prepending with termination octet
-                    response.append(".");
+                    out.write(".");
                 }
-                response.append(lines[i]).append(CRLF);
+                out.write(line);
+                out.write(CRLF);
             }
             // Append the termination octet
-            response.append(".");
-
-            return response.toString();
-
-        } else {
-            return "-ERR no such message";
+            out.write(".");
+        } finally {
+            lines.close();
         }
+        return "";
     }
 
     @Override
     public String rset() {
+        String error = resume();
+        if (error != null) {
+            return error;
+        }
         // Unmark all messages
-        Arrays.fill(mMarkedDeleted, false);
-        mNumUndeleted = mMailIDs.size() - 1;
+        mDeleted.clear();
         return "+OK";
     }
 
     @Override
     public String stat() {
+        String error = resume();
+        if (error != null) {
+            return error;
+        }
         // Return total number and size of unmarked messages
-        return "+OK " + mNumUndeleted + " " + getOctets(-1);
+        return "+OK " + mDeleted.getUndeletedCount() + " " + getOctets(-1);
     }
 
     @Override
     public String uidl(int messageNumber) {
+        String error = resume();
+        if (error != null) {
+            return error;
+        }
         if (messageNumber < 1) {
             // Return UIDL for all unmarked messages
-            try {
-                StringBuilder response = new StringBuilder("+OK").append(CRLF);
-                PreparedStatement statement = mConnection.prepareStatement(
-                        "SELECT iMailID, vchUIDL FROM m_Mail WHERE iMaildropID = ? "
-                );
-                statement.setInt(1, mMaildropID);
-                ResultSet rs = statement.executeQuery();
-
-                while (rs.next()) {
-                    int i = getMessageNumber(rs.getInt("iMailID"));
-                    if (!mMarkedDeleted[i]) {
-                        response.append(i).append(" ")
-                                .append(rs.getString("vchUIDL")).append(CRLF);
-                    }
-                }
-                response.append(".");
-
-                rs.close();
-                statement.close();
-
-                return response.toString();
-
-            } catch (SQLException e) {
-                Log.e(TAG, "uidl: Failed to execute UIDL command", e);
-            }
+            return listing(true);
 
-        } else if (mMailIDs.size() > messageNumber
-                && !mMarkedDeleted[messageNumber]) {
+        } else if (exists(messageNumber)
+                && !mDeleted.isDeleted(messageNumber)) {
             // Return UIDL for specific unmarked message
             try {
-                PreparedStatement statement = mConnection.prepareStatement(
-                        "SELECT vchUIDL FROM m_Mail WHERE iMailID = ? "
-                );
-                statement.setInt(1, mMailIDs.get(messageNumber));
-                ResultSet rs = statement.executeQuery();
-                rs.next();
-
-                String uidl = rs.getString("vchUIDL");
-
-                rs.close();
-                statement.close();
+                String uidl = mStore.getUIDL(mMaildrop,
+                        mMailIDs.get(messageNumber));
 
                 return "+OK " + messageNumber + " " + uidl;
 
@@ -322,25 +488,31 @@ public class EmailDatabase implements IDatabase {
 
     @Override
     public String quit() {
-        int numDeleted = 0;
+        if (mHibernated != null) {
+            String error = restore();
+            if (error != null) {
+                unlock();
+                return error;
+            }
+        }
+
+        List<Integer> deleted = new ArrayList<>(mDeleted.getDeletedCount());
+        for (int i = mDeleted.nextDeleted(1); i > 0;
+                i = mDeleted.nextDeleted(i + 1)) {
+            deleted.add(mMailIDs.get(i));
+        }
+        int numDeleted = deleted.size();
 
         try {
-            setMaildropLocked(false);
-
-            // Delete all marked messages and end session
-            for (int i = 1; i < mMarkedDeleted.length; i++) {
-                if (mMarkedDeleted[i]) {
-                    PreparedStatement statement = mConnection.prepareStatement(
-                            "DELETE FROM m_Mail WHERE iMailID = ? "
-                    );
-                    statement.setInt(1, mMailIDs.get(i));
-                    statement.executeUpdate();
-                    statement.close();
-                    numDeleted++;
-                }
+            // Delete all marked messages, unless another session has taken
+            // over the maildrop after the lease expired, then end the session
+            if (!mStore.deleteMail(mMaildrop, mLockToken, deleted)) {
+                closeStore();
+                return "-ERR [IN-USE] maildrop lock lost, no messages removed";
             }
+            mStore.unlock(mMaildrop, mLockToken);
 
-            mConnection.close();
+            closeStore();
 
         } catch (SQLException e) {
             Log.e(TAG, "quit: Failed to execute QUIT command", e);
@@ -348,17 +520,17 @@ public class EmailDatabase implements IDatabase {
         }
 
         return "+OK " + numDeleted
-                + " messages removed, POP3 server signing off (" + mNumUndeleted
-                + " messages left)";
+                + " messages removed, POP3 server signing off ("
+                + mDeleted.getUndeletedCount() + " messages left)";
     }
 
     @Override
     public void timeout() {
         try {
             if (mLoggedIn) {
-                setMaildropLocked(false);
+                mStore.unlock(mMaildrop, mLockToken);
             }
-            mConnection.close();
+            closeStore();
 
         } catch (SQLException e) {
             Log.e(TAG, "timeout: Failed unlock maildrop or close DB connection",
@@ -366,17 +538,146 @@ public class EmailDatabase implements IDatabase {
         }
     }
 
+    @Override
+    public void hibernate() {
+        if (!mLoggedIn || mHibernated != null) {
+            return;
+        }
+
+        // Messages are only ever added with a higher iMailID, and none can be
+        // removed while the lock is held, so the list can be read again. The
+        // deletions are already compact and are kept as they are.
+        int maxMailID = 0;
+        for (int i = 1; i < mMailIDs.size(); i++) {
+            maxMailID = Math.max(maxMailID, mMailIDs.get(i));
+        }
+
+        mHibernated = new Hibernated(maxMailID, mMailIDs.size() - 1);
+        mMailIDs = null;
+    }
+
     /**
-     * Maps the iMailID of a message in the database to its index in the
-     * ArrayList of iMailIDs.
+     * Restore the state of a hibernated session, if it is hibernated, and
+     * renew the lock.
+     *
+     * @return <code>null</code>, or a negative response if the state could
+     * not be restored.
      */
-    private int getMessageNumber(int mID) {
-        for (int i = 1; i < mMailIDs.size(); i++) {
-            if (mMailIDs.get(i).equals(mID)) {
-                return i;
+    private String resume() {
+        if (mHibernated != null) {
+            String error = restore();
+            if (error != null) {
+                return error;
+            }
+        }
+        renewLock();
+        return null;
+    }
+
+    /**
+     * Rebuild the list of messages of a hibernated session from the store.
+     *
+     * @return <code>null</code>, or a negative response if the list could not
+     * be rebuilt.
+     */
+    private String restore() {
+        List<Integer> mailIDs = new ArrayList<>(mHibernated.mCount + 1);
+        mailIDs.add(null);
+        try {
+            for (Integer mailID : mStore.getMailIDs(mMaildrop)) {
+                if (mailID <= mHibernated.mMaxMailID) {
+                    mailIDs.add(mailID);
+                }
+            }
+
+        } catch (SQLException e) {
+            Log.e(TAG, "restore: Failed to read maildrop of " + mUsername, e);
+            return "-ERR [SYS/TEMP] failed to read mailbox " + mUsername;
+        }
+
+        if (mailIDs.size() - 1 != mHibernated.mCount) {
+            // Only possible if the lock was lost and messages were deleted,
+            // after which the message numbers no longer match
+            Log.e(TAG, "restore: Maildrop of " + mUsername + " changed");
+            return "-ERR [IN-USE] maildrop lock lost";
+        }
+
+        mMailIDs = mailIDs;
+        mHibernated = null;
+        return null;
+    }
+
+    /**
+     * Extend the lease of the maildrop lock once half of it has passed, so
+     * that a long session keeps its lock.
+     */
+    private void renewLock() {
+        if (System.currentTimeMillis() < mRenewLockAt) {
+            return;
+        }
+
+        try {
+            if (mStore.renewLock(mMaildrop, mLockToken, mLockLease)) {
+                mRenewLockAt = System.currentTimeMillis() + mLockLease / 2;
+            } else {
+                // Deletions will be refused at QUIT
+                Log.e(TAG, "renewLock: Lock on " + mUsername + " was lost");
+                mRenewLockAt = Long.MAX_VALUE;
             }
+
+        } catch (SQLException e) {
+            Log.e(TAG, "renewLock: Failed to renew lock on " + mUsername, e);
         }
-        return -1;
+    }
+
+    /**
+     * Release the maildrop lock, logging any failure.
+     */
+    private void unlock() {
+        try {
+            mStore.unlock(mMaildrop, mLockToken);
+        } catch (SQLException e) {
+            Log.e(TAG, "unlock: Failed to unlock " + mUsername, e);
+        }
+    }
+
+    /**
+     * Close the store if it belongs to this session alone.
+     *
+     * @throws SQLException
+     */
+    private void closeStore() throws SQLException {
+        if (mOwnsStore) {
+            mStore.close();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the message number is in the session's
+     * list of messages.
+     */
+    private boolean exists(int messageNumber) {
+        return messageNumber > 0 && messageNumber < mMailIDs.size();
+    }
+
+    /**
+     * Maps the iMailID of a message in the database to its index in the
+     * ArrayList of iMailIDs, which is in ascending order.
+     */
+    int getMessageNumber(int mID) {
+        int i = Collections.binarySearch(
+                mMailIDs.subList(1, mMailIDs.size()), mID);
+        return i >= 0 ? i + 1 : -1;
+    }
+
+    /**
+     * @param octets        the sizes of the messages keyed by iMailID
+     * @param messageNumber the number of a message
+     * @return the size of the message, or zero if it has no row.
+     */
+    private int getOctets(Map<Integer, Integer> octets, int messageNumber) {
+        Integer size = octets.get(mMailIDs.get(messageNumber));
+        return size == null ? 0 : size;
     }
 
     /**
@@ -389,36 +690,25 @@ public class EmailDatabase implements IDatabase {
     private int getOctets(int messageNumber) {
         int totalOctets = 0;
 
-        String query = "SELECT iMailID, LENGTH(txMailContent) AS octets"
-                + " FROM m_Mail WHERE (iMaildropID = ?) ";
-
-        boolean specificMessage = messageNumber > 0;
-
-        if (specificMessage) {
-            // Find size of specific message instead of total size
-            query += " AND (iMailID = ?) ";
-        }
-
         try {
-            PreparedStatement statement = mConnection.prepareStatement(query);
-            statement.setInt(1, mMaildropID);
-
-            if (specificMessage) {
+            if (messageNumber > 0) {
                 // Find size of specific message instead of total size
-                statement.setInt(2, mMailIDs.get(messageNumber));
-            }
+                if (!mDeleted.isDeleted(messageNumber)) {
+                    totalOctets = mStore.getOctets(mMaildrop,
+                            mMailIDs.get(messageNumber));
+                }
 
-            ResultSet rs = statement.executeQuery();
-            while (rs.next()) {
-                int i = getMessageNumber(rs.getInt("iMailID"));
-                if (!mMarkedDeleted[i]) {
-                    totalOctets += rs.getInt("octets");
+            } else {
+                for (Map.Entry<Integer, Integer> row
+                        : mStore.getOctets(mMaildrop).entrySet()) {
+                    // Messages delivered since login have no number
+                    int i = getMessageNumber(row.getKey());
+                    if (i > 0 && !mDeleted.isDeleted(i)) {
+                        totalOctets += row.getValue();
+                    }
                 }
             }
 
-            rs.close();
-            statement.close();
-
         } catch (SQLException e) {
             Log.e(TAG, "getOctets: Failed to retrieve size of message "
                     + messageNumber, e);
@@ -427,21 +717,4 @@ public class EmailDatabase implements IDatabase {
         return totalOctets;
     }
 
-    /**
-     * Locks/unlocks the maildrop (identified by the user's iMaildropID) by
-     * setting the tiLocked field appropriately.
-     *
-     * @param locked <code>true</code> to lock, <code>false</code> to unlock.
-     * @throws SQLException
-     */
-    private void setMaildropLocked(boolean locked) throws SQLException {
-        PreparedStatement statement = mConnection.prepareStatement(
-                "UPDATE m_Maildrop SET tiLocked = ? WHERE vchUsername = ? "
-        );
-        statement.setInt(1, (locked ? 1 : 0));
-        statement.setString(2, mUsername);
-        statement.executeUpdate();
-        statement.close();
-    }
-
 }
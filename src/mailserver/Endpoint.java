@@ -0,0 +1,250 @@
+package mailserver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An address and port a {@link Pop3Server} accepts clients on, with the
+ * options of its sockets. Each endpoint has one or more accept threads.
+ * With SO_REUSEPORT, each thread listens on a socket of its own bound to
+ * the same port, so that the kernel spreads new connections over their
+ * queues; without it the threads share one socket.
+ */
+public class Endpoint {
+
+    /** Tag used for logging. */
+    private static final String TAG = Endpoint.class.getSimpleName();
+
+    /**
+     * The default number of threads accepting connections on each endpoint.
+     * Overridden by the mailserver.acceptThreads system property.
+     */
+    public static final int DEFAULT_ACCEPT_THREADS = 1;
+
+    /**
+     * The default length of the queue of connections the kernel has
+     * completed but the server has not yet accepted, for each listening
+     * socket. Overridden by the mailserver.acceptBacklog system property,
+     * and capped by the kernel (net.core.somaxconn on Linux).
+     */
+    public static final int DEFAULT_ACCEPT_BACKLOG = 1024;
+
+    /**
+     * SO_REUSEPORT, which is only named from Java 9, or <code>null</code> if
+     * the runtime does not know it.
+     */
+    private static final SocketOption<Boolean> SO_REUSEPORT = findReusePort();
+
+    private final InetAddress mAddress;
+    private final int mPort;
+    private final boolean mImplicitTls;
+    private int mAcceptThreads = DEFAULT_ACCEPT_THREADS;
+    private int mBacklog = DEFAULT_ACCEPT_BACKLOG;
+    private boolean mReusePort = true;
+    // Responses are flushed whole, so waiting to fill packets only adds a
+    // delayed ACK to each exchange, most visibly after a TLS handshake
+    private boolean mTcpNoDelay = true;
+    private boolean mKeepAlive;
+
+    /**
+     * @param address     the local address to bind to, or <code>null</code>
+     *                    for every address
+     * @param port        the port to bind to, or 0 for any free port
+     * @param implicitTls whether clients start with a TLS handshake
+     */
+    public Endpoint(InetAddress address, int port, boolean implicitTls) {
+        mAddress = address;
+        mPort = port;
+        mImplicitTls = implicitTls;
+    }
+
+    /**
+     * Describe a port on each of the addresses listed in
+     * mailserver.bindAddresses, separated by commas, or on every address if
+     * none are listed, with the options given by the mailserver.acceptThreads,
+     * acceptBacklog, reusePort, tcpNoDelay and keepAlive system properties.
+     *
+     * @param port        the port to bind to
+     * @param implicitTls whether clients start with a TLS handshake
+     * @return an endpoint for each address.
+     * @throws UnknownHostException if an address could not be resolved
+     */
+    public static List<Endpoint> fromProperties(int port, boolean implicitTls)
+            throws UnknownHostException {
+        List<InetAddress> addresses = new ArrayList<>();
+        String bind = System.getProperty("mailserver.bindAddresses", "");
+        for (String address : bind.split(",")) {
+            if (!address.trim().isEmpty()) {
+                addresses.add(InetAddress.getByName(address.trim()));
+            }
+        }
+        if (addresses.isEmpty()) {
+            addresses.add(null);
+        }
+
+        List<Endpoint> endpoints = new ArrayList<>();
+        for (InetAddress address : addresses) {
+            Endpoint endpoint = new Endpoint(address, port, implicitTls);
+            endpoint.setAcceptThreads(Integer.getInteger(
+                    "mailserver.acceptThreads", DEFAULT_ACCEPT_THREADS));
+            endpoint.setBacklog(Integer.getInteger("mailserver.acceptBacklog",
+                    DEFAULT_ACCEPT_BACKLOG));
+            endpoint.setReusePort(!"false".equalsIgnoreCase(
+                    System.getProperty("mailserver.reusePort")));
+            endpoint.setTcpNoDelay(!"false".equalsIgnoreCase(
+                    System.getProperty("mailserver.tcpNoDelay")));
+            endpoint.setKeepAlive(Boolean.getBoolean("mailserver.keepAlive"));
+            endpoints.add(endpoint);
+        }
+        return endpoints;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> findReusePort() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class
+                    .getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param acceptThreads the number of threads accepting connections, at
+     *                      least 1
+     */
+    public void setAcceptThreads(int acceptThreads) {
+        mAcceptThreads = Math.max(1, acceptThreads);
+    }
+
+    /**
+     * @param backlog the length of the queue of connections waiting to be
+     *                accepted by each listening socket
+     */
+    public void setBacklog(int backlog) {
+        mBacklog = backlog;
+    }
+
+    /**
+     * @param reusePort whether each accept thread listens on a socket of
+     *                  its own, where SO_REUSEPORT is supported
+     */
+    public void setReusePort(boolean reusePort) {
+        mReusePort = reusePort;
+    }
+
+    /**
+     * @param tcpNoDelay whether accepted connections disable Nagle's
+     *                   algorithm
+     */
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        mTcpNoDelay = tcpNoDelay;
+    }
+
+    /**
+     * @param keepAlive whether accepted connections send TCP keepalives, so
+     *                  that those of vanished clients are closed before the
+     *                  response timeout
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        mKeepAlive = keepAlive;
+    }
+
+    public InetAddress getAddress() {
+        return mAddress;
+    }
+
+    public int getPort() {
+        return mPort;
+    }
+
+    public boolean isImplicitTls() {
+        return mImplicitTls;
+    }
+
+    public int getAcceptThreads() {
+        return mAcceptThreads;
+    }
+
+    /**
+     * Bind the listening sockets, one per accept thread if SO_REUSEPORT is
+     * enabled and supported, otherwise a single one to be shared.
+     *
+     * @return the bound sockets.
+     * @throws IOException if a socket could not be bound, in which case
+     *                     those already bound are closed
+     */
+    List<ServerSocket> bind() throws IOException {
+        boolean reusePort = mReusePort && mAcceptThreads > 1;
+        List<ServerSocket> sockets = new ArrayList<>();
+        try {
+            int port = mPort;
+            do {
+                ServerSocket socket = reusePort ? openReusePort() : null;
+                if (socket == null) {
+                    reusePort = false;
+                    socket = new ServerSocket();
+                }
+                sockets.add(socket);
+                socket.bind(new InetSocketAddress(mAddress, port), mBacklog);
+                // The rest join the port picked for the first
+                port = socket.getLocalPort();
+            } while (reusePort && sockets.size() < mAcceptThreads);
+        } catch (IOException e) {
+            for (ServerSocket socket : sockets) {
+                socket.close();
+            }
+            throw e;
+        }
+        return sockets;
+    }
+
+    /**
+     * @return an unbound socket with SO_REUSEPORT set, or <code>null</code>
+     * if it is not supported.
+     */
+    private static ServerSocket openReusePort() throws IOException {
+        if (SO_REUSEPORT == null) {
+            return null;
+        }
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        if (!channel.supportedOptions().contains(SO_REUSEPORT)) {
+            channel.close();
+            Log.i(TAG, "openReusePort: SO_REUSEPORT is not supported, the"
+                    + " accept threads share one socket");
+            return null;
+        }
+        channel.setOption(SO_REUSEPORT, true);
+        // Accepted connections are used through blocking streams
+        return channel.socket();
+    }
+
+    /**
+     * Apply the options of the endpoint to an accepted connection.
+     *
+     * @param socket the socket returned by accept()
+     * @throws SocketException if an option could not be set
+     */
+    void configure(Socket socket) throws SocketException {
+        socket.setTcpNoDelay(mTcpNoDelay);
+        if (mKeepAlive) {
+            socket.setKeepAlive(true);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return (mAddress == null ? "*" : mAddress.getHostAddress()) + ":"
+                + mPort + (mImplicitTls ? " (TLS)" : "");
+    }
+}
@@ -0,0 +1,201 @@
+package mailserver;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Sets iHeaderLength on the messages already stored in m_Mail, so that TOP
+ * with no lines of the body reads only their header, while the servers keep
+ * running. The header of an uncompressed message is found by the database
+ * without sending the message; a compressed message is recompressed with a
+ * flush point after its header, see {@link MailCompression}, in a single
+ * UPDATE so that sessions read it either as it was or indexed.
+ * <p>
+ * The database given by mailserver.dbUrl is used, or every shard listed in
+ * mailserver.shards.
+ * <p>
+ * Usage: <code>HeaderIndexer [limit]</code>
+ */
+public class HeaderIndexer {
+
+    /** Tag used for logging. */
+    private static final String TAG = HeaderIndexer.class.getSimpleName();
+
+    /** The number of messages read and updated per transaction. */
+    private static final int BATCH_SIZE = 100;
+
+    /** The range of iMailIDs indexed by the database per statement. */
+    private static final int RANGE_SIZE = 10000;
+
+    private final ConnectionPool mPool;
+
+    /**
+     * @param pool the connections to the database to index
+     */
+    public HeaderIndexer(ConnectionPool pool) {
+        mPool = pool;
+    }
+
+    public static void main(String[] args) throws SQLException,
+            IOException {
+        Config.load();
+
+        int limit = args.length > 0 ? Integer.parseInt(args[0])
+                : Integer.MAX_VALUE;
+
+        for (SqlMailStore store : SqlMailStore.allFromProperties()) {
+            try {
+                HeaderIndexer indexer = new HeaderIndexer(store.getPool());
+                int indexed = indexer.indexUncompressed(limit);
+                indexed += indexer.indexCompressed(limit - indexed);
+                System.out.println(store + ": " + indexed
+                        + " messages indexed");
+            } finally {
+                store.close();
+            }
+        }
+    }
+
+    /**
+     * Index uncompressed messages in ranges of iMailID, leaving the search
+     * for the end of the header to the database.
+     *
+     * @param limit the maximum number of messages to index
+     * @return the number of messages indexed.
+     * @throws SQLException
+     */
+    public int indexUncompressed(int limit) throws SQLException {
+        int lastMailID = 0;
+        int maxMailID = getMaxMailID();
+        int indexed = 0;
+
+        // Ranges rather than LIMIT, which would scan the rows already
+        // indexed again for every batch
+        while (indexed < limit && lastMailID < maxMailID) {
+            Connection connection = mPool.borrow();
+            try {
+                // Same as MailBody.getHeaderLength
+                PreparedStatement update = connection.prepareStatement(
+                        "UPDATE m_Mail SET iHeaderLength ="
+                                + " IF(LOCATE(?, txMailContent) > 0,"
+                                + " LOCATE(?, txMailContent) + 1,"
+                                + " CHAR_LENGTH(txMailContent))"
+                                + " WHERE iMailID > ? AND iMailID <= ?"
+                                + " AND tiCompression = 0"
+                                + " AND iHeaderLength IS NULL"
+                                + " ORDER BY iMailID LIMIT ? ");
+                update.setString(1, "\n\n");
+                update.setString(2, "\n\n");
+                update.setInt(3, lastMailID);
+                update.setInt(4, lastMailID + RANGE_SIZE);
+                update.setInt(5, limit - indexed);
+                indexed += update.executeUpdate();
+                update.close();
+            } finally {
+                mPool.release(connection);
+            }
+
+            lastMailID += RANGE_SIZE;
+            Log.i(TAG, "indexUncompressed: Indexed up to iMailID "
+                    + Math.min(lastMailID, maxMailID));
+        }
+        return indexed;
+    }
+
+    /**
+     * Recompress compressed messages in order of iMailID, with a flush point
+     * after their header.
+     *
+     * @param limit the maximum number of messages to index
+     * @return the number of messages indexed.
+     * @throws SQLException
+     */
+    public int indexCompressed(int limit) throws SQLException {
+        int indexed = 0;
+        int lastMailID = 0;
+
+        while (indexed < limit) {
+            Connection connection = mPool.borrow();
+            try {
+                connection.setAutoCommit(false);
+
+                // Locked, so that MailCompressor or MailDeduplicator cannot
+                // rewrite a message in between
+                PreparedStatement select = connection.prepareStatement(
+                        "SELECT iMailID, tiCompression, blMailContent"
+                                + " FROM m_Mail WHERE tiCompression <> 0"
+                                + " AND iHeaderLength IS NULL AND iMailID > ?"
+                                + " ORDER BY iMailID LIMIT ? FOR UPDATE ");
+                select.setInt(1, lastMailID);
+                select.setInt(2, Math.min(BATCH_SIZE, limit - indexed));
+                ResultSet rs = select.executeQuery();
+
+                PreparedStatement update = connection.prepareStatement(
+                        "UPDATE m_Mail SET tiCompression = ?,"
+                                + " txMailContent = ?, blMailContent = ?,"
+                                + " iHeaderLength = ? WHERE iMailID = ? ");
+                int rows = 0;
+                while (rs.next()) {
+                    rows++;
+                    lastMailID = rs.getInt("iMailID");
+                    MailBody content = MailBody.encode(read(lastMailID,
+                            new MailBody(rs.getInt("tiCompression"), null,
+                                    rs.getBytes("blMailContent"))), true);
+
+                    update.setInt(1, content.getCompression());
+                    update.setString(2, content.getText());
+                    update.setBytes(3, content.getCompressed());
+                    update.setInt(4, content.getHeaderLength());
+                    update.setInt(5, lastMailID);
+                    update.addBatch();
+                }
+                update.executeBatch();
+                connection.commit();
+
+                update.close();
+                rs.close();
+                select.close();
+
+                if (rows == 0) {
+                    break;
+                }
+                indexed += rows;
+                Log.i(TAG, "indexCompressed: Indexed up to iMailID "
+                        + lastMailID);
+            } finally {
+                mPool.release(connection);
+            }
+        }
+        return indexed;
+    }
+
+    private int getMaxMailID() throws SQLException {
+        Connection connection = mPool.borrow();
+        try {
+            PreparedStatement statement = connection.prepareStatement(
+                    "SELECT COALESCE(MAX(iMailID), 0) FROM m_Mail ");
+            ResultSet rs = statement.executeQuery();
+            rs.next();
+            int maxMailID = rs.getInt(1);
+
+            rs.close();
+            statement.close();
+
+            return maxMailID;
+        } finally {
+            mPool.release(connection);
+        }
+    }
+
+    private static String read(int mailID, MailBody content)
+            throws SQLException {
+        try {
+            return MailCompression.readAll(content.open());
+        } catch (IOException e) {
+            throw new SQLException("Message " + mailID + " is corrupt", e);
+        }
+    }
+}
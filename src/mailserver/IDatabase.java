@@ -1,5 +1,8 @@
 package mailserver;
 
+import java.io.IOException;
+import java.io.Writer;
+
 /**
  * The interface for interacting with a POP3 mail database.
  */
@@ -26,6 +29,20 @@ public interface IDatabase {
      */
     String pass(String pass);
 
+    /**
+     * Authenticates an APOP command in a single step. The digest is the MD5
+     * of the timestamp from the greeting followed by the shared secret, in
+     * lower case hex. On success the mailbox is locked as for
+     * {@link #pass(String)}.
+     *
+     * @param user      the name of the mailbox to access.
+     * @param timestamp the timestamp sent in the greeting, including the angle
+     *                  brackets.
+     * @param digest    the digest given by the client.
+     * @return a positive response if the digest matches.
+     */
+    String apop(String user, String timestamp, String digest);
+
     /**
      * Used for responding to a DELE command. Marks a specified message in the
      * maildrop as deleted and decrements the number of undeleted messages.
@@ -65,6 +82,23 @@ public interface IDatabase {
      */
     String getMessage(int messageNumber, int lineCount);
 
+    /**
+     * Used for responding to a RETR or TOP command without holding the whole
+     * response in memory. Writes the same positive response as
+     * {@link #getMessage} to the client as the message is read.
+     *
+     * @param messageNumber number of message in mailbox.
+     * @param lineCount     number of lines of message to return, starting from the
+     *                      body. If negative, return all lines (RETR).
+     * @param out           the writer to the client
+     * @return an empty string if the message was written, otherwise a
+     * negative response, in which case nothing was written.
+     * @throws IOException if writing fails part way, after which the
+     *                     response cannot be completed
+     */
+    String writeMessage(int messageNumber, int lineCount, Writer out)
+            throws IOException;
+
     /**
      * Used for responding to an RSET command. Unsets all messages marked for
      * deletion.
@@ -95,6 +129,21 @@ public interface IDatabase {
      */
     String uidl(int messageNumber);
 
+    /**
+     * Used for responding to a LIST or UIDL command for all messages without
+     * holding the whole listing in memory. Writes the same positive response
+     * as {@link #list} or {@link #uidl} given a negative message number to
+     * the client as it is built.
+     *
+     * @param uidl <code>true</code> for UIDL, <code>false</code> for LIST
+     * @param out  the writer to the client
+     * @return an empty string if the listing was written, otherwise a
+     * negative response, in which case nothing was written.
+     * @throws IOException if writing fails part way, after which the
+     *                     response cannot be completed
+     */
+    String writeListing(boolean uidl, Writer out) throws IOException;
+
     /**
      * Used for responding to a QUIT command when the server is in the
      * TRANSACTION state. All messages marked for deletion are deleted and the
@@ -104,6 +153,12 @@ public interface IDatabase {
      */
     String quit();
 
+    /**
+     * Called when the session has been idle for a while. Releases the state
+     * that can be rebuilt when the next command arrives.
+     */
+    void hibernate();
+
     /**
      * Unlocks the open mailbox (if applicable) and closes the statement and
      * database connection. The changes to the database (i.e. messages marked as
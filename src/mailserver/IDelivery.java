@@ -0,0 +1,40 @@
+package mailserver;
+
+import java.util.List;
+
+/**
+ * The interface for adding mail to maildrops, used by the LMTP listener and
+ * by anything else that delivers mail locally.
+ */
+public interface IDelivery {
+
+    /** The outcome of delivering a message to one recipient. */
+    enum Status {
+        /** The message was stored. */
+        DELIVERED,
+        /** The recipient has no maildrop. */
+        NO_SUCH_USER,
+        /** The message could not be stored, and may be retried later. */
+        FAILED
+    }
+
+    /**
+     * Checks that a recipient can be delivered to, e.g. for an RCPT command.
+     *
+     * @param username the vchUsername of the recipient's maildrop
+     * @return {@link Status#DELIVERED} if the maildrop exists,
+     * {@link Status#NO_SUCH_USER} if it does not, or {@link Status#FAILED}
+     * if the store could not be reached.
+     */
+    Status verify(String username);
+
+    /**
+     * Delivers a message to each recipient, generating a unique-id for each
+     * copy. Returns once every copy is stored or has failed.
+     *
+     * @param message   the message, with lines separated by CRLF, LF or CR
+     * @param usernames the vchUsernames of the recipients' maildrops
+     * @return the outcome for each recipient, in the same order.
+     */
+    List<Status> deliver(String message, List<String> usernames);
+}
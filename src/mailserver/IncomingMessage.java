@@ -0,0 +1,72 @@
+package mailserver;
+
+/**
+ * A message accepted for delivery, prepared once however many maildrops it
+ * is delivered to. Line endings are normalised to LF, as messages are
+ * stored in txMailContent, and the sizes the POP3 server needs later are
+ * computed up front.
+ */
+public class IncomingMessage {
+
+    /** The message with lines separated by LF, ending with a LF. */
+    private final String mContent;
+    /** The size of the message as sent by RETR, with CRLF line endings. */
+    private final int mOctets;
+    /** The number of characters of the header, see MailBody. */
+    private final int mHeaderLength;
+
+    /**
+     * @param message the message, with lines separated by CRLF, LF or CR
+     */
+    public IncomingMessage(String message) {
+        StringBuilder content = new StringBuilder(message.length() + 1);
+        int lines = 0;
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c == '\r') {
+                if (i + 1 < message.length()
+                        && message.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                c = '\n';
+            }
+            if (c == '\n') {
+                lines++;
+            }
+            content.append(c);
+        }
+        if (content.length() > 0
+                && content.charAt(content.length() - 1) != '\n') {
+            // RETR ends the last line with CRLF whether it has one or not
+            content.append('\n');
+            lines++;
+        }
+
+        mContent = content.toString();
+        mOctets = MailBody.octets(mContent) + lines;
+        mHeaderLength = MailBody.getHeaderLength(mContent);
+    }
+
+    /**
+     * @return the message as it is stored in txMailContent.
+     */
+    public String getContent() {
+        return mContent;
+    }
+
+    /**
+     * @return the size of the message in octets as it is sent to clients,
+     * which LIST and STAT report.
+     */
+    public int getOctets() {
+        return mOctets;
+    }
+
+    /**
+     * @return the number of characters of the header, including the empty
+     * line ending it.
+     */
+    public int getHeaderLength() {
+        return mHeaderLength;
+    }
+}
@@ -0,0 +1,443 @@
+package mailserver;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Accepts mail from the local MTA over LMTP (RFC 2033) and delivers it with
+ * an {@link IDelivery}. LMTP is SMTP without queueing: after DATA the
+ * server replies once per recipient, so the MTA knows which copies were
+ * stored and retries only those that failed temporarily.
+ * <p>
+ * Messages are read as UTF-8, and 8BITMIME is not offered, so that the MTA
+ * sends 8-bit bodies in other charsets encoded as 7-bit.
+ * <p>
+ * The recipient's maildrop is the local part of the address, or the whole
+ * address if mailserver.lmtpKeepDomain is set. The listener binds to the
+ * loopback address unless mailserver.lmtpAddress is set, as LMTP has no
+ * authentication.
+ */
+public class LmtpServer {
+
+    /** Tag used for logging. */
+    private static final String TAG = LmtpServer.class.getSimpleName();
+
+    /** The default port, commonly used for LMTP. */
+    public static final int DEFAULT_PORT = 24;
+
+    /** The default time in milliseconds to wait for the MTA's next line. */
+    public static final int DEFAULT_TIMEOUT = 300000;
+
+    /**
+     * The default number of MTA connections served at the same time.
+     * Overridden by the mailserver.lmtpThreads system property.
+     */
+    public static final int DEFAULT_THREADS = 50;
+
+    /**
+     * The default maximum size of a message in characters. Overridden by the
+     * mailserver.lmtpMaxMessageSize system property.
+     */
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+
+    private final InetAddress mAddress;
+    private final int mPort;
+    private final IDelivery mDelivery;
+    private final int mThreads;
+    private final int mMaxMessageSize;
+    private final boolean mKeepDomain;
+
+    private volatile boolean mRunning;
+    private volatile ServerSocket mServerSocket;
+    private ExecutorService mExecutor;
+
+    /** The MTA connections being served. */
+    private final Set<Socket> mSockets = Collections
+            .newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+    /**
+     * @param address  the address to bind to
+     * @param port     the port to bind to, or 0 for any free port
+     * @param delivery delivers the messages received
+     */
+    public LmtpServer(InetAddress address, int port, IDelivery delivery) {
+        mAddress = address;
+        mPort = port;
+        mDelivery = delivery;
+        mThreads = Integer.getInteger("mailserver.lmtpThreads",
+                DEFAULT_THREADS);
+        mMaxMessageSize = Integer.getInteger("mailserver.lmtpMaxMessageSize",
+                DEFAULT_MAX_MESSAGE_SIZE);
+        mKeepDomain = Boolean.getBoolean("mailserver.lmtpKeepDomain");
+    }
+
+    /**
+     * @param delivery delivers the messages received
+     * @return a server listening on mailserver.lmtpPort, or
+     * <code>null</code> if the property is not set.
+     * @throws UnknownHostException if mailserver.lmtpAddress is not valid
+     */
+    public static LmtpServer fromProperties(IDelivery delivery)
+            throws UnknownHostException {
+        int port = Integer.getInteger("mailserver.lmtpPort", -1);
+        if (port < 0) {
+            return null;
+        }
+
+        String address = System.getProperty("mailserver.lmtpAddress");
+        return new LmtpServer(address == null
+                ? InetAddress.getLoopbackAddress()
+                : InetAddress.getByName(address), port, delivery);
+    }
+
+    /**
+     * Bind the listening socket and accept MTA connections in a new thread
+     * until stop() is called.
+     *
+     * @throws IOException if the socket cannot be bound
+     */
+    public void start() throws IOException {
+        final ServerSocket serverSocket = new ServerSocket(mPort, 50,
+                mAddress);
+        mServerSocket = serverSocket;
+        // Daemon threads, so that the listener never keeps the JVM alive.
+        // The MTA retries a delivery cut short by the JVM exiting.
+        mExecutor = Executors.newFixedThreadPool(mThreads,
+                new ThreadFactory() {
+
+                    private final AtomicInteger mNext = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r,
+                                "lmtp-" + mNext.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+
+                });
+        mRunning = true;
+
+        Thread accept = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    while (mRunning) {
+                        Socket socket = serverSocket.accept();
+                        try {
+                            mExecutor.execute(new Session(socket));
+                        } catch (RejectedExecutionException e) {
+                            // Stopped while accepting
+                            socket.close();
+                        }
+                    }
+                } catch (SocketException e) {
+                    // Thrown from accept() when stop() closes the socket
+                    if (mRunning) {
+                        Log.e(TAG, "run: Failed to accept new connection", e);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "run: Failed to accept new connection", e);
+                }
+            }
+
+        }, "lmtp-accept");
+        accept.setDaemon(true);
+        accept.start();
+    }
+
+    /**
+     * @return the port the server is bound to.
+     */
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * Stop accepting connections and close those open. Deliveries already
+     * being stored are completed, but the MTA is not told and will retry
+     * them, which at worst delivers a message twice.
+     */
+    public void stop() {
+        mRunning = false;
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "stop: Failed to close server socket", e);
+        }
+        mExecutor.shutdown();
+        for (Socket socket : mSockets) {
+            close(socket);
+        }
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing more to do
+        }
+    }
+
+    /** Serves one connection from the MTA. */
+    private class Session implements Runnable {
+
+        private final Socket mSocket;
+        private BufferedReader mReader;
+        private Writer mWriter;
+
+        private boolean mGreeted;
+        private boolean mInTransaction;
+        /** The addresses of the accepted recipients. */
+        private final List<String> mRecipients = new ArrayList<>();
+        /** The vchUsername of each accepted recipient. */
+        private final List<String> mUsernames = new ArrayList<>();
+
+        Session(Socket socket) {
+            mSocket = socket;
+        }
+
+        @Override
+        public void run() {
+            mSockets.add(mSocket);
+            try {
+                mSocket.setSoTimeout(DEFAULT_TIMEOUT);
+                mReader = new BufferedReader(new InputStreamReader(
+                        mSocket.getInputStream(), StandardCharsets.UTF_8));
+                mWriter = new BufferedWriter(new OutputStreamWriter(
+                        mSocket.getOutputStream(), StandardCharsets.UTF_8));
+
+                reply("220 " + ClientConnection.getHostName()
+                        + " LMTP server ready");
+                mWriter.flush();
+
+                String line;
+                while ((line = mReader.readLine()) != null) {
+                    if (!command(line)) {
+                        break;
+                    }
+                    // Pipelined commands are answered together
+                    if (!mReader.ready()) {
+                        mWriter.flush();
+                    }
+                }
+                mWriter.flush();
+
+            } catch (SocketTimeoutException e) {
+                try {
+                    reply("421 4.4.2 Timeout, closing connection");
+                    mWriter.flush();
+                } catch (IOException closed) {
+                    // The MTA has gone
+                }
+            } catch (IOException e) {
+                if (mRunning) {
+                    Log.d(TAG, "run: Connection failed: " + e);
+                }
+            } finally {
+                mSockets.remove(mSocket);
+                close(mSocket);
+            }
+        }
+
+        /**
+         * Execute one command.
+         *
+         * @return <code>false</code> once the connection should be closed.
+         */
+        private boolean command(String line) throws IOException {
+            String verb = line.length() < 4 ? line.toUpperCase(Locale.ROOT)
+                    : line.substring(0, 4).toUpperCase(Locale.ROOT);
+            switch (verb) {
+                case "LHLO":
+                    mGreeted = true;
+                    reset();
+                    reply("250-" + ClientConnection.getHostName());
+                    reply("250-PIPELINING");
+                    reply("250-ENHANCEDSTATUSCODES");
+                    // No 8BITMIME, as explained above
+                    reply("250 SIZE " + mMaxMessageSize);
+                    return true;
+
+                case "MAIL":
+                    if (!mGreeted) {
+                        reply("503 5.5.1 Send LHLO first");
+                    } else if (mInTransaction) {
+                        reply("503 5.5.1 Nested MAIL command");
+                    } else if (parseAddress(line, "MAIL FROM:") == null) {
+                        reply("501 5.5.4 Syntax: MAIL FROM:<address>");
+                    } else {
+                        mInTransaction = true;
+                        reply("250 2.1.0 OK");
+                    }
+                    return true;
+
+                case "RCPT":
+                    rcpt(line);
+                    return true;
+
+                case "DATA":
+                    if (mRecipients.isEmpty()) {
+                        reply("503 5.5.1 No valid recipients");
+                        return true;
+                    }
+                    reply("354 Start mail input; end with <CRLF>.<CRLF>");
+                    mWriter.flush();
+                    return data();
+
+                case "RSET":
+                    reset();
+                    reply("250 2.0.0 OK");
+                    return true;
+
+                case "NOOP":
+                    reply("250 2.0.0 OK");
+                    return true;
+
+                case "QUIT":
+                    reply("221 2.0.0 Bye");
+                    return false;
+
+                default:
+                    reply("500 5.5.2 Command not recognized");
+                    return true;
+            }
+        }
+
+        private void rcpt(String line) throws IOException {
+            String address = parseAddress(line, "RCPT TO:");
+            if (!mInTransaction) {
+                reply("503 5.5.1 Need MAIL command");
+                return;
+            } else if (address == null || address.isEmpty()) {
+                reply("501 5.5.4 Syntax: RCPT TO:<address>");
+                return;
+            }
+
+            String username = address;
+            int at = address.lastIndexOf('@');
+            if (!mKeepDomain && at >= 0) {
+                username = address.substring(0, at);
+            }
+
+            switch (mDelivery.verify(username)) {
+                case DELIVERED:
+                    mRecipients.add(address);
+                    mUsernames.add(username);
+                    reply("250 2.1.5 OK");
+                    break;
+                case NO_SUCH_USER:
+                    reply("550 5.1.1 <" + address + "> User unknown");
+                    break;
+                default:
+                    reply("451 4.3.0 <" + address + "> Temporary failure");
+                    break;
+            }
+        }
+
+        /**
+         * Read the message after DATA, undoing the dot-stuffing, then
+         * deliver it and reply for each recipient.
+         *
+         * @return <code>false</code> if the connection was closed first.
+         */
+        private boolean data() throws IOException {
+            StringBuilder message = new StringBuilder();
+            boolean tooLarge = false;
+            String line;
+            while ((line = mReader.readLine()) != null && !line.equals(".")) {
+                if (line.startsWith(".")) {
+                    line = line.substring(1);
+                }
+                // Read to the end anyway, to stay in step with the MTA
+                if (message.length() + line.length() >= mMaxMessageSize) {
+                    tooLarge = true;
+                }
+                if (!tooLarge) {
+                    message.append(line).append('\n');
+                }
+            }
+            if (line == null) {
+                return false;
+            }
+
+            if (tooLarge) {
+                for (String address : mRecipients) {
+                    reply("552 5.3.4 <" + address + "> Message too big");
+                }
+            } else {
+                List<IDelivery.Status> statuses = mDelivery.deliver(
+                        message.toString(), mUsernames);
+                for (int i = 0; i < statuses.size(); i++) {
+                    String address = mRecipients.get(i);
+                    switch (statuses.get(i)) {
+                        case DELIVERED:
+                            reply("250 2.0.0 <" + address + "> Delivered");
+                            break;
+                        case NO_SUCH_USER:
+                            reply("550 5.1.1 <" + address + "> User unknown");
+                            break;
+                        default:
+                            reply("451 4.3.0 <" + address
+                                    + "> Temporary failure");
+                            break;
+                    }
+                }
+            }
+            reset();
+            return true;
+        }
+
+        private void reset() {
+            mInTransaction = false;
+            mRecipients.clear();
+            mUsernames.clear();
+        }
+
+        private void reply(String reply) throws IOException {
+            mWriter.write(reply);
+            mWriter.write("\r\n");
+        }
+    }
+
+    /**
+     * @param line   a MAIL or RCPT command
+     * @param prefix the command up to the address, e.g. "MAIL FROM:"
+     * @return the address between the angle brackets, which may be empty,
+     * or <code>null</code> if the command is malformed.
+     */
+    static String parseAddress(String line, String prefix) {
+        if (!line.regionMatches(true, 0, prefix, 0, prefix.length())) {
+            return null;
+        }
+        String rest = line.substring(prefix.length()).trim();
+        int end = rest.indexOf('>');
+        if (!rest.startsWith("<") || end < 0) {
+            return null;
+        }
+        return rest.substring(1, end);
+    }
+}
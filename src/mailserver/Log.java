@@ -5,6 +5,9 @@ package mailserver;
  */
 public class Log {
 
+    /** Whether debug messages are printed. */
+    private static volatile boolean sDebug = true;
+
     private Log() {
         // Prevent the class from being instantiated
     }
@@ -16,6 +19,36 @@ public class Log {
      * @param message the debug message
      */
     public static void d(String tag, String message) {
+        if (sDebug) {
+            System.out.println(tag + ": " + message);
+        }
+    }
+
+    /**
+     * Enable or disable debug output, including the transcript of each client
+     * session. Disable it when measuring performance.
+     *
+     * @param debug <code>true</code> to print debug messages
+     */
+    public static void setDebug(boolean debug) {
+        sDebug = debug;
+    }
+
+    /**
+     * @return <code>true</code> if debug messages are printed.
+     */
+    public static boolean isDebug() {
+        return sDebug;
+    }
+
+    /**
+     * Log an informational message, which is printed even when debug output
+     * is disabled.
+     *
+     * @param tag     the class name
+     * @param message the message
+     */
+    public static void i(String tag, String message) {
         System.out.println(tag + ": " + message);
     }
 
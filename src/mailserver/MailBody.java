@@ -0,0 +1,198 @@
+package mailserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Part of a message as it is stored: the header block kept in an m_Mail row,
+ * or a body shared between messages in the m_MailBody table. Each part is
+ * either plain text or compressed as given by its tiCompression column.
+ * Never modified, so a part can be cached and read by any number of
+ * sessions.
+ */
+public class MailBody {
+
+    /** The tiCompression of the part. */
+    private final int mCompression;
+    /** The part, or null if it is compressed. */
+    private final String mText;
+    /** The compressed part, or null if it is not compressed. */
+    private final byte[] mCompressed;
+    /** The iHeaderLength of the part, or -1 if it is not known. */
+    private final int mHeaderLength;
+
+    /**
+     * @param compression the tiCompression of the part
+     * @param text        the part if it is not compressed
+     * @param compressed  the part if it is compressed
+     */
+    public MailBody(int compression, String text, byte[] compressed) {
+        this(compression, text, compressed, -1);
+    }
+
+    private MailBody(int compression, String text, byte[] compressed,
+                     int headerLength) {
+        mCompression = compression;
+        mText = compression == MailCompression.NONE ? text : null;
+        mCompressed = compression == MailCompression.NONE ? null : compressed;
+        mHeaderLength = headerLength;
+    }
+
+    /**
+     * Store a part compressed if compression makes it smaller.
+     *
+     * @param text     the part
+     * @param compress <code>false</code> to store it as it is
+     * @return the part as it should be stored.
+     */
+    public static MailBody encode(String text, boolean compress) {
+        int headerLength = getHeaderLength(text);
+        if (compress) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            int headerBytes = MailCompression.compress(text, headerLength,
+                    compressed);
+            if (compressed.size() < octets(text)) {
+                return new MailBody(MailCompression.DEFLATE_1, null,
+                        compressed.toByteArray(), headerBytes);
+            }
+        }
+        return new MailBody(MailCompression.NONE, text, null, headerLength);
+    }
+
+    public int getCompression() {
+        return mCompression;
+    }
+
+    /**
+     * @return the part if it is not compressed, otherwise null.
+     */
+    public String getText() {
+        return mText;
+    }
+
+    /**
+     * @return the part if it is compressed, otherwise null.
+     */
+    public byte[] getCompressed() {
+        return mCompressed;
+    }
+
+    /**
+     * @return the value of the iHeaderLength column for the part: the
+     * number of characters of the text, or bytes of the compressed part,
+     * holding its header, or -1 if the part was read without it.
+     */
+    public int getHeaderLength() {
+        return mHeaderLength;
+    }
+
+    /**
+     * @return the approximate number of bytes of memory the part holds.
+     */
+    public int getWeight() {
+        return mText != null ? 2 * mText.length() : mCompressed.length;
+    }
+
+    /**
+     * @return a reader of the part, decompressing it as it is read.
+     */
+    public Reader open() {
+        return mText != null ? new StringReader(mText)
+                : MailCompression.decompress(mCompression, mCompressed);
+    }
+
+    /**
+     * @return a reader of the header of the part, or of the whole part if
+     * the length of its header is not known.
+     */
+    public Reader openHeader() {
+        if (mHeaderLength < 0) {
+            return open();
+        } else if (mText != null) {
+            return new StringReader(mText.substring(0, mHeaderLength));
+        }
+        return MailCompression.decompressHeader(mCompression,
+                Arrays.copyOf(mCompressed, mHeaderLength));
+    }
+
+    /**
+     * Split a message after the empty line ending its header, so that
+     * copies of the same body with different headers (e.g. the Received and
+     * To fields of each recipient) can be stored once.
+     *
+     * @param content the message, as stored in txMailContent
+     * @return the index of the first character of the body, or -1 if the
+     * message has no body.
+     */
+    public static int getBodyStart(String content) {
+        int end = content.indexOf("\n\n");
+        return end < 0 ? -1 : end + 2;
+    }
+
+    /**
+     * @param content the message, as stored in txMailContent
+     * @return the number of characters of its header, including the empty
+     * line ending it, or of the whole message if it has no body.
+     */
+    public static int getHeaderLength(String content) {
+        int start = getBodyStart(content);
+        return start < 0 ? content.length() : start;
+    }
+
+    /**
+     * @param text a message or part of one
+     * @return the SHA-256 digest of the text, which identifies a shared body.
+     */
+    public static byte[] hash(String text) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(
+                    text.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the size of the text in octets, the same as LENGTH() of a
+     * utf8 column.
+     */
+    public static int octets(String text) {
+        return text.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * @return a reader of the header followed by the body, closing both.
+     */
+    public static Reader join(final Reader header, final Reader body) {
+        return new Reader() {
+            private Reader mCurrent = header;
+
+            @Override
+            public int read(char[] buffer, int offset, int length)
+                    throws IOException {
+                int read = mCurrent.read(buffer, offset, length);
+                if (read < 0 && mCurrent == header) {
+                    mCurrent = body;
+                    read = body.read(buffer, offset, length);
+                }
+                return read;
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    header.close();
+                } finally {
+                    body.close();
+                }
+            }
+        };
+    }
+}
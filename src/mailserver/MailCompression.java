@@ -0,0 +1,235 @@
+package mailserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compresses messages for storage in m_Mail.blMailContent. The format of a
+ * row is given by its tiCompression column, so rows written before
+ * compression was enabled, or with an older dictionary, stay readable.
+ * <p>
+ * Messages are raw Deflate streams primed with a dictionary of the header
+ * fields and values most mail carries. Short messages are mostly header,
+ * which Deflate alone compresses poorly as it has seen none of it before;
+ * with the dictionary even the first occurrence of a field is a back
+ * reference. Deflate is used rather than a newer codec as the JDK includes
+ * it.
+ */
+public final class MailCompression {
+
+    /** tiCompression of a message stored uncompressed in txMailContent. */
+    public static final int NONE = 0;
+    /** tiCompression of a message deflated with {@link #DICTIONARY_1}. */
+    public static final int DEFLATE_1 = 1;
+
+    /** The default Deflate level, from 1 (fastest) to 9 (smallest). */
+    public static final int DEFAULT_LEVEL = 6;
+
+    /**
+     * An empty final Deflate block with fixed codes, which ends a stream cut
+     * after a flush point.
+     */
+    private static final byte[] FINAL_BLOCK = {0x03, 0x00};
+
+    /**
+     * The dictionary of {@link #DEFLATE_1}. Never change it, as stored
+     * messages depend on it: add a new dictionary and tiCompression value
+     * instead. Deflate finds matches most cheaply near the end of the
+     * dictionary, so the most common strings are last.
+     */
+    private static final byte[] DICTIONARY_1 = (
+            "X-Mailer: X-Priority: 3 (Normal)\n"
+                    + "Content-Disposition: attachment; filename=\"\n"
+                    + "Content-Disposition: inline\n"
+                    + "X-Spam-Status: No, score=\n"
+                    + "X-Originating-IP: [\n"
+                    + "Reply-To: \nIn-Reply-To: <\nReferences: <\n"
+                    + "List-Unsubscribe: <mailto:\n"
+                    + "Return-Path: <\nDelivered-To: \n"
+                    + "Authentication-Results: \n"
+                    + "DKIM-Signature: v=1; a=rsa-sha256;"
+                    + " c=relaxed/relaxed; d=\n"
+                    + "Content-Type: multipart/mixed; boundary=\"\n"
+                    + "Content-Type: multipart/alternative; boundary=\"\n"
+                    + "Content-Type: text/html; charset=\"utf-8\"\n"
+                    + "Content-Type: text/plain; charset=\"utf-8\"\n"
+                    + "Content-Type: text/plain; charset=us-ascii\n"
+                    + "Content-Type: text/plain; charset=ISO-8859-1\n"
+                    + "Content-Transfer-Encoding: quoted-printable\n"
+                    + "Content-Transfer-Encoding: base64\n"
+                    + "Content-Transfer-Encoding: 7bit\n"
+                    + "MIME-Version: 1.0\n"
+                    + "Mon, Tue, Wed, Thu, Fri, Sat, Sun, "
+                    + "Jan Feb Mar Apr May Jun Jul Aug Sep Oct Nov Dec "
+                    + " +0000 (UTC)\n"
+                    + "Message-ID: <\n"
+                    + "Subject: Re: \nSubject: \n"
+                    + "From: \nTo: \nCc: \nDate: \n"
+                    + "Received: from localhost by \n"
+                    + "\tby \twith ESMTPS id \twith SMTP id \tfor <\n"
+                    + "Received: from ").getBytes(StandardCharsets.US_ASCII);
+
+    private MailCompression() {
+        // Prevent the class from being instantiated
+    }
+
+    /**
+     * @return <code>true</code> if messages are compressed as they are
+     * stored, as set by the mailserver.compressMail system property.
+     */
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("mailserver.compressMail");
+    }
+
+    /**
+     * Compress a message at the level given by the
+     * mailserver.compressionLevel system property.
+     *
+     * @param content the message, as it would be stored in txMailContent
+     * @return the message compressed as {@link #DEFLATE_1}.
+     */
+    public static byte[] compress(String content) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        compress(content, content.length(), compressed);
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Compress a message so that its header can be read without
+     * decompressing, or even reading, the rest: the stream is flushed to a
+     * byte boundary after the header, and the bytes before that point are
+     * read with {@link #decompressHeader}.
+     *
+     * @param content      the message, as it would be stored in
+     *                     txMailContent
+     * @param headerLength the number of characters of its header, see
+     *                     {@link MailBody#getHeaderLength}
+     * @param out          receives the message compressed as
+     *                     {@link #DEFLATE_1}
+     * @return the number of bytes written to <code>out</code> that hold the
+     * header.
+     */
+    public static int compress(String content, int headerLength,
+                               ByteArrayOutputStream out) {
+        Deflater deflater = new Deflater(Integer.getInteger(
+                "mailserver.compressionLevel", DEFAULT_LEVEL), true);
+        deflater.setDictionary(DICTIONARY_1);
+
+        int start = out.size();
+        int headerBytes = -1;
+        byte[] buffer = new byte[8192];
+        try {
+            if (headerLength < content.length()) {
+                deflater.setInput(content.substring(0, headerLength)
+                        .getBytes(StandardCharsets.UTF_8));
+                int length;
+                do {
+                    length = deflater.deflate(buffer, 0, buffer.length,
+                            Deflater.SYNC_FLUSH);
+                    out.write(buffer, 0, length);
+                } while (length == buffer.length);
+                headerBytes = out.size() - start;
+
+                deflater.setInput(content.substring(headerLength)
+                        .getBytes(StandardCharsets.UTF_8));
+            } else {
+                deflater.setInput(content.getBytes(StandardCharsets.UTF_8));
+            }
+
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } finally {
+            deflater.end();
+        }
+        // A message that is all header is read whole
+        return headerBytes < 0 ? out.size() - start : headerBytes;
+    }
+
+    /**
+     * Decompress a message as it is read, so that it never has to be held
+     * in memory whole.
+     *
+     * @param compression the tiCompression of the message
+     * @param in          the compressed message
+     * @return a reader of the original message.
+     * @throws IllegalArgumentException if the format is not known
+     */
+    public static Reader decompress(int compression, InputStream in) {
+        if (compression != DEFLATE_1) {
+            throw new IllegalArgumentException(
+                    "Unknown compression " + compression);
+        }
+
+        final Inflater inflater = new Inflater(true);
+        // Raw streams take the dictionary before any input
+        inflater.setDictionary(DICTIONARY_1);
+        return new InputStreamReader(new InflaterInputStream(in, inflater,
+                8192) {
+
+            @Override
+            public void close() throws IOException {
+                super.close();
+                // Not ended by the stream, as it was given the inflater
+                inflater.end();
+            }
+
+        }, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @see #decompress(int, InputStream)
+     */
+    public static Reader decompress(int compression, byte[] compressed) {
+        return decompress(compression, new ByteArrayInputStream(compressed));
+    }
+
+    /**
+     * Decompress the header of a message from the start of the compressed
+     * message, as far as the flush point written by
+     * {@link #compress(String, int, ByteArrayOutputStream)}.
+     *
+     * @param compression the tiCompression of the message
+     * @param prefix      the bytes of the compressed message holding the
+     *                    header
+     * @return a reader of the header.
+     * @throws IllegalArgumentException if the format is not known
+     */
+    public static Reader decompressHeader(int compression, byte[] prefix) {
+        // Ignored if the prefix is the whole message, which ends itself
+        return decompress(compression, new SequenceInputStream(
+                new ByteArrayInputStream(prefix),
+                new ByteArrayInputStream(FINAL_BLOCK)));
+    }
+
+    /**
+     * Read a message whole, for callers that need it as a String.
+     *
+     * @param content a reader of the message, which is closed
+     * @return the message.
+     * @throws IOException if the message cannot be decompressed
+     */
+    public static String readAll(Reader content) throws IOException {
+        try {
+            StringBuilder message = new StringBuilder();
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = content.read(buffer)) > 0) {
+                message.append(buffer, 0, read);
+            }
+            return message.toString();
+        } finally {
+            content.close();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package mailserver;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Compresses the messages already stored in m_Mail with
+ * {@link MailCompression}, while the servers keep running. Each message is
+ * rewritten in a single UPDATE, so sessions read it either as it was or
+ * compressed. Messages that would not get smaller are left as they are.
+ * <p>
+ * The database given by mailserver.dbUrl is used, or every shard listed in
+ * mailserver.shards.
+ * <p>
+ * Usage: <code>MailCompressor [limit]</code>
+ */
+public class MailCompressor {
+
+    /** Tag used for logging. */
+    private static final String TAG = MailCompressor.class.getSimpleName();
+
+    /** The number of messages read and updated per transaction. */
+    private static final int BATCH_SIZE = 100;
+
+    private final ConnectionPool mPool;
+
+    /**
+     * @param pool the connections to the database to compress
+     */
+    public MailCompressor(ConnectionPool pool) {
+        mPool = pool;
+    }
+
+    public static void main(String[] args) throws SQLException,
+            IOException {
+        Config.load();
+
+        int limit = args.length > 0 ? Integer.parseInt(args[0])
+                : Integer.MAX_VALUE;
+
+        for (SqlMailStore store : SqlMailStore.allFromProperties()) {
+            try {
+                long saved = new MailCompressor(store.getPool())
+                        .compressAll(limit);
+                System.out.println(store + ": " + saved + " octets saved");
+            } finally {
+                store.close();
+            }
+        }
+    }
+
+    /**
+     * Compress uncompressed messages in order of iMailID.
+     *
+     * @param limit the maximum number of messages to compress
+     * @return the number of octets saved.
+     * @throws SQLException
+     */
+    public long compressAll(int limit) throws SQLException {
+        long saved = 0;
+        int compressed = 0;
+        int lastMailID = 0;
+
+        while (compressed < limit) {
+            Connection connection = mPool.borrow();
+            try {
+                connection.setAutoCommit(false);
+
+                PreparedStatement select = connection.prepareStatement(
+                        "SELECT iMailID, txMailContent FROM m_Mail"
+                                + " WHERE tiCompression = 0 AND iMailID > ?"
+                                + " ORDER BY iMailID LIMIT ? ");
+                select.setInt(1, lastMailID);
+                select.setInt(2, Math.min(BATCH_SIZE, limit - compressed));
+                ResultSet rs = select.executeQuery();
+
+                PreparedStatement update = connection.prepareStatement(
+                        "UPDATE m_Mail SET txMailContent = NULL,"
+                                + " blMailContent = ?, tiCompression = ?,"
+                                + " iOctets = COALESCE(iOctets, ?),"
+                                + " iHeaderLength = ?"
+                                + " WHERE iMailID = ? AND tiCompression = 0 ");
+                int rows = 0;
+                while (rs.next()) {
+                    rows++;
+                    lastMailID = rs.getInt("iMailID");
+                    String content = rs.getString("txMailContent");
+                    MailBody deflated = MailBody.encode(content, true);
+                    if (deflated.getCompression() == MailCompression.NONE) {
+                        continue;
+                    }
+
+                    int octets = MailBody.octets(content);
+                    update.setBytes(1, deflated.getCompressed());
+                    update.setInt(2, deflated.getCompression());
+                    // Rows sharing a body already hold the size of the
+                    // whole message
+                    update.setInt(3, octets);
+                    update.setInt(4, deflated.getHeaderLength());
+                    update.setInt(5, lastMailID);
+                    update.addBatch();
+                    saved += octets - deflated.getCompressed().length;
+                    compressed++;
+                }
+                update.executeBatch();
+                connection.commit();
+
+                update.close();
+                rs.close();
+                select.close();
+
+                if (rows == 0) {
+                    break;
+                }
+                Log.i(TAG, "compressAll: Compressed up to iMailID "
+                        + lastMailID);
+            } finally {
+                mPool.release(connection);
+            }
+        }
+        return saved;
+    }
+}
@@ -0,0 +1,212 @@
+package mailserver;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves the bodies of messages already stored in m_Mail to the shared
+ * m_MailBody table, so that identical bodies delivered to several maildrops
+ * are stored once, and deletes the shared bodies no message refers to any
+ * more. Runs while the servers keep running: the messages of each batch are
+ * locked until they are rewritten, and sessions read them either whole or
+ * split.
+ * <p>
+ * Bodies smaller than mailserver.dedupMinOctets stay in their m_Mail row,
+ * as sharing them would save little. Bodies and headers are compressed if
+ * mailserver.compressMail is set.
+ * <p>
+ * The database given by mailserver.dbUrl is used, or every shard listed in
+ * mailserver.shards.
+ * <p>
+ * Usage: <code>MailDeduplicator dedup [limit] | collect</code>
+ */
+public class MailDeduplicator {
+
+    /** Tag used for logging. */
+    private static final String TAG = MailDeduplicator.class.getSimpleName();
+
+    /** The default size in octets below which bodies are not shared. */
+    public static final int DEFAULT_MIN_OCTETS = 1024;
+
+    /** The number of messages read and rewritten per transaction. */
+    private static final int BATCH_SIZE = 100;
+
+    /** A message read from m_Mail. */
+    private static class Row {
+        final int mMailID;
+        final MailBody mContent;
+
+        Row(int mailID, MailBody content) {
+            mMailID = mailID;
+            mContent = content;
+        }
+    }
+
+    private final SqlMailStore mStore;
+    private final int mMinOctets;
+    private final boolean mCompress;
+
+    /**
+     * @param store     the database to deduplicate
+     * @param minOctets the size in octets below which bodies are not shared
+     * @param compress  <code>true</code> to compress bodies and headers
+     */
+    public MailDeduplicator(SqlMailStore store, int minOctets,
+                            boolean compress) {
+        mStore = store;
+        mMinOctets = minOctets;
+        mCompress = compress;
+    }
+
+    public static void main(String[] args) throws SQLException,
+            IOException {
+        Config.load();
+
+        if (args.length == 0 || !(args[0].equals("dedup")
+                || args[0].equals("collect"))) {
+            System.err.println("Usage: MailDeduplicator dedup [limit]"
+                    + " | collect");
+            return;
+        }
+
+        int limit = args.length > 1 ? Integer.parseInt(args[1])
+                : Integer.MAX_VALUE;
+        for (SqlMailStore store : SqlMailStore.allFromProperties()) {
+            try {
+                if (args[0].equals("dedup")) {
+                    int shared = new MailDeduplicator(store,
+                            Integer.getInteger("mailserver.dedupMinOctets",
+                                    DEFAULT_MIN_OCTETS),
+                            MailCompression.isEnabled()).dedupAll(limit);
+                    System.out.println(store + ": " + shared
+                            + " messages now share their body");
+                } else {
+                    int collected = 0;
+                    int deleted;
+                    while ((deleted = store.getBodies().collect(BATCH_SIZE))
+                            > 0) {
+                        collected += deleted;
+                    }
+                    System.out.println(store + ": " + collected
+                            + " unused bodies deleted");
+                }
+            } finally {
+                store.close();
+            }
+        }
+    }
+
+    /**
+     * Move the bodies of messages that do not share one yet to m_MailBody,
+     * in order of iMailID.
+     *
+     * @param limit the maximum number of messages to rewrite
+     * @return the number of messages rewritten.
+     * @throws SQLException
+     */
+    public int dedupAll(int limit) throws SQLException {
+        ConnectionPool pool = mStore.getPool();
+        int shared = 0;
+        int lastMailID = 0;
+
+        while (shared < limit) {
+            Connection connection = pool.borrow();
+            try {
+                connection.setAutoCommit(false);
+
+                List<Row> rows = select(connection, lastMailID,
+                        Math.min(BATCH_SIZE, limit - shared));
+                if (rows.isEmpty()) {
+                    connection.rollback();
+                    break;
+                }
+
+                PreparedStatement update = connection.prepareStatement(
+                        "UPDATE m_Mail SET iBodyID = ?, tiCompression = ?,"
+                                + " txMailContent = ?, blMailContent = ?,"
+                                + " iOctets = ?, iHeaderLength = ?"
+                                + " WHERE iMailID = ? ");
+                for (Row row : rows) {
+                    lastMailID = row.mMailID;
+                    String content = read(row);
+                    int start = MailBody.getBodyStart(content);
+                    if (start < 0) {
+                        continue;
+                    }
+                    String text = content.substring(start);
+                    int octets = MailBody.octets(text);
+                    if (octets < mMinOctets) {
+                        continue;
+                    }
+
+                    int bodyID = mStore.getBodies().store(connection,
+                            MailBody.hash(text),
+                            MailBody.encode(text, mCompress), octets);
+                    MailBody header = MailBody.encode(
+                            content.substring(0, start), mCompress);
+
+                    update.setInt(1, bodyID);
+                    update.setInt(2, header.getCompression());
+                    update.setString(3, header.getText());
+                    update.setBytes(4, header.getCompressed());
+                    update.setInt(5, MailBody.octets(content));
+                    update.setInt(6, header.getHeaderLength());
+                    update.setInt(7, row.mMailID);
+                    update.addBatch();
+                    shared++;
+                }
+                update.executeBatch();
+                update.close();
+                connection.commit();
+
+                Log.i(TAG, "dedupAll: Deduplicated up to iMailID "
+                        + lastMailID);
+            } finally {
+                pool.release(connection);
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Read and lock the next batch of messages without a shared body, so
+     * that they cannot be deleted before they are rewritten.
+     */
+    private static List<Row> select(Connection connection, int afterMailID,
+                                    int limit) throws SQLException {
+        PreparedStatement select = connection.prepareStatement(
+                "SELECT iMailID, tiCompression, txMailContent, blMailContent"
+                        + " FROM m_Mail WHERE iBodyID IS NULL AND iMailID > ?"
+                        + " ORDER BY iMailID LIMIT ? FOR UPDATE ");
+        select.setInt(1, afterMailID);
+        select.setInt(2, limit);
+        ResultSet rs = select.executeQuery();
+
+        List<Row> rows = new ArrayList<>();
+        while (rs.next()) {
+            rows.add(new Row(rs.getInt("iMailID"), new MailBody(
+                    rs.getInt("tiCompression"),
+                    rs.getString("txMailContent"),
+                    rs.getBytes("blMailContent"))));
+        }
+
+        rs.close();
+        select.close();
+
+        return rows;
+    }
+
+    private static String read(Row row) throws SQLException {
+        try {
+            return MailCompression.readAll(row.mContent.open());
+        } catch (IOException e) {
+            throw new SQLException("Message " + row.mMailID + " is corrupt",
+                    e);
+        }
+    }
+}
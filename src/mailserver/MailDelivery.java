@@ -0,0 +1,140 @@
+package mailserver;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Future;
+
+/**
+ * Delivers mail to a {@link MailStore}. Concurrent deliveries are inserted
+ * together by a {@link BatchWriter}, so that the cost of each commit is
+ * shared by every message queued while the previous one ran.
+ * <p>
+ * Messages are stored as they are by {@link MailStore#addMail}, with a
+ * random UUID as their unique-id.
+ */
+public class MailDelivery implements IDelivery {
+
+    /** Tag used for logging. */
+    private static final String TAG = MailDelivery.class.getSimpleName();
+
+    /**
+     * The default maximum number of messages inserted per transaction.
+     * Overridden by the mailserver.deliveryBatchSize system property.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 200;
+
+    /**
+     * The default number of transactions inserting messages at the same
+     * time. Overridden by the mailserver.deliveryThreads system property.
+     */
+    public static final int DEFAULT_THREADS = 4;
+
+    private final MailStore mStore;
+    private final BatchWriter<Delivery> mWriter;
+
+    /**
+     * @param store     the store to deliver to
+     * @param batchSize the maximum number of messages per transaction
+     * @param threads   the number of transactions at the same time
+     */
+    public MailDelivery(final MailStore store, int batchSize, int threads) {
+        mStore = store;
+        mWriter = new BatchWriter<>("delivery", threads, batchSize, 0,
+                new BatchWriter.Writer<Delivery>() {
+
+                    @Override
+                    public void write(List<Delivery> batch)
+                            throws SQLException {
+                        // Skip those stored before a batch failed on
+                        // another shard
+                        List<Delivery> pending = new ArrayList<>(batch.size());
+                        for (Delivery delivery : batch) {
+                            if (delivery.getMailID() == 0) {
+                                pending.add(delivery);
+                            }
+                        }
+                        store.addMail(pending);
+                    }
+
+                });
+    }
+
+    /**
+     * @param store the store to deliver to
+     * @return a MailDelivery tuned by the mailserver.deliveryBatchSize and
+     * mailserver.deliveryThreads system properties.
+     */
+    public static MailDelivery fromProperties(MailStore store) {
+        return new MailDelivery(store,
+                Integer.getInteger("mailserver.deliveryBatchSize",
+                        DEFAULT_BATCH_SIZE),
+                Integer.getInteger("mailserver.deliveryThreads",
+                        DEFAULT_THREADS));
+    }
+
+    /**
+     * @return the writer inserting the messages, for its statistics.
+     */
+    public BatchWriter<Delivery> getWriter() {
+        return mWriter;
+    }
+
+    @Override
+    public Status verify(String username) {
+        try {
+            return mStore.findMaildrop(username) != null ? Status.DELIVERED
+                    : Status.NO_SUCH_USER;
+        } catch (SQLException e) {
+            Log.e(TAG, "verify: Failed to find maildrop " + username, e);
+            return Status.FAILED;
+        }
+    }
+
+    @Override
+    public List<Status> deliver(String message, List<String> usernames) {
+        IncomingMessage incoming = new IncomingMessage(message);
+
+        List<Status> statuses = new ArrayList<>(usernames.size());
+        List<Future<Void>> results = new ArrayList<>(usernames.size());
+        for (String username : usernames) {
+            Future<Void> result = null;
+            try {
+                Maildrop maildrop = mStore.findMaildrop(username);
+                if (maildrop == null) {
+                    statuses.add(Status.NO_SUCH_USER);
+                } else {
+                    result = mWriter.submit(new Delivery(maildrop, incoming,
+                            UUID.randomUUID().toString()));
+                    statuses.add(Status.DELIVERED);
+                }
+            } catch (SQLException e) {
+                Log.e(TAG, "deliver: Failed to find maildrop " + username, e);
+                statuses.add(Status.FAILED);
+            }
+            results.add(result);
+        }
+
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i) == null) {
+                continue;
+            }
+            try {
+                BatchWriter.await(results.get(i));
+            } catch (SQLException e) {
+                Log.e(TAG, "deliver: Failed to deliver to "
+                        + usernames.get(i), e);
+                statuses.set(i, Status.FAILED);
+            }
+        }
+        return statuses;
+    }
+
+    /**
+     * Store the deliveries already queued, then stop accepting more.
+     */
+    public void close() {
+        mWriter.close();
+    }
+}
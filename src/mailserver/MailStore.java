@@ -0,0 +1,212 @@
+package mailserver;
+
+import java.io.Reader;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The storage operations {@link EmailDatabase} needs to execute POP3 commands.
+ * Separating them from the session logic allows the same POP3 implementation
+ * to run on MySQL ({@link SqlMailStore}) or in memory
+ * ({@link MemoryMailStore}) for testing and benchmarking.
+ */
+public interface MailStore {
+
+    /**
+     * Look up the maildrop owned by a user.
+     *
+     * @param username the vchUsername of the maildrop
+     * @return the maildrop, or <code>null</code> if it does not exist.
+     * @throws SQLException
+     */
+    Maildrop findMaildrop(String username) throws SQLException;
+
+    /**
+     * @param maildrop the maildrop to read
+     * @return the iMailIDs of every message in the maildrop, in ascending
+     * order.
+     * @throws SQLException
+     */
+    List<Integer> getMailIDs(Maildrop maildrop) throws SQLException;
+
+    /**
+     * @param maildrop    the maildrop to read
+     * @param afterMailID the highest iMailID already known
+     * @return the iMailIDs of the messages in the maildrop with a greater
+     * iMailID, in ascending order.
+     * @throws SQLException
+     */
+    List<Integer> getMailIDs(Maildrop maildrop, int afterMailID)
+            throws SQLException;
+
+    /**
+     * The delete version of a maildrop is incremented whenever messages are
+     * removed from it, so a list of iMailIDs read at the same version is
+     * only missing messages delivered since.
+     *
+     * @param maildrop the maildrop to read
+     * @return the delete version of the maildrop.
+     * @throws SQLException
+     */
+    long getDeleteVersion(Maildrop maildrop) throws SQLException;
+
+    /**
+     * @param maildrop the maildrop to read
+     * @return the size in octets of every message in the maildrop, keyed by
+     * iMailID.
+     * @throws SQLException
+     */
+    Map<Integer, Integer> getOctets(Maildrop maildrop) throws SQLException;
+
+    /**
+     * @param maildrop the maildrop containing the message
+     * @param mailID   the iMailID of the message
+     * @return the size of the message in octets, or zero if it does not exist.
+     * @throws SQLException
+     */
+    int getOctets(Maildrop maildrop, int mailID) throws SQLException;
+
+    /**
+     * @param maildrop the maildrop containing the message
+     * @param mailID   the iMailID of the message
+     * @return the txMailContent of the message, or <code>null</code> if it
+     * does not exist.
+     * @throws SQLException
+     */
+    String getContent(Maildrop maildrop, int mailID) throws SQLException;
+
+    /**
+     * Open a message to be read as it is sent, decompressing it if it is
+     * stored compressed.
+     *
+     * @param maildrop the maildrop containing the message
+     * @param mailID   the iMailID of the message
+     * @return a reader of the txMailContent of the message, which the caller
+     * must close, or <code>null</code> if it does not exist.
+     * @throws SQLException
+     */
+    Reader openContent(Maildrop maildrop, int mailID) throws SQLException;
+
+    /**
+     * Open the header of a message, for TOP with no lines of the body. Only
+     * the header is read where the store has indexed it, otherwise the
+     * whole message is.
+     *
+     * @param maildrop the maildrop containing the message
+     * @param mailID   the iMailID of the message
+     * @return a reader of the header of the message, possibly followed by
+     * its body, which the caller must close, or <code>null</code> if it
+     * does not exist.
+     * @throws SQLException
+     */
+    Reader openHeader(Maildrop maildrop, int mailID) throws SQLException;
+
+    /**
+     * @param maildrop the maildrop to read
+     * @return the vchUIDL of every message in the maildrop, keyed by iMailID.
+     * @throws SQLException
+     */
+    Map<Integer, String> getUIDLs(Maildrop maildrop) throws SQLException;
+
+    /**
+     * @param maildrop the maildrop containing the message
+     * @param mailID   the iMailID of the message
+     * @return the vchUIDL of the message, or <code>null</code> if it does not
+     * exist.
+     * @throws SQLException
+     */
+    String getUIDL(Maildrop maildrop, int mailID) throws SQLException;
+
+    /**
+     * Lock the maildrop, atomically with respect to every other session on
+     * every server sharing the store. A lock whose lease has expired may be
+     * taken over, in which case the previous holder's token stops being
+     * valid.
+     *
+     * @param maildrop the maildrop to lock
+     * @param owner    identifies the server taking the lock
+     * @param lease    the time in milliseconds the lock is held unless
+     *                 renewed
+     * @return the fencing token of the new lock, or -1 if the maildrop is
+     * already locked.
+     * @throws SQLException
+     */
+    long lock(Maildrop maildrop, String owner, long lease) throws SQLException;
+
+    /**
+     * Extend the lease of a lock.
+     *
+     * @param maildrop the locked maildrop
+     * @param token    the token returned by {@link #lock}
+     * @param lease    the time in milliseconds from now the lock is held
+     * @return <code>false</code> if the lock is no longer held with the token.
+     * @throws SQLException
+     */
+    boolean renewLock(Maildrop maildrop, long token, long lease)
+            throws SQLException;
+
+    /**
+     * Release a lock, unless it has since been taken over.
+     *
+     * @param maildrop the locked maildrop
+     * @param token    the token returned by {@link #lock}
+     * @throws SQLException
+     */
+    void unlock(Maildrop maildrop, long token) throws SQLException;
+
+    /**
+     * List the locks currently held, for inspection by an administrator.
+     * Reads every maildrop, so it is not meant for the sessions' path.
+     *
+     * @return the held locks, oldest first where their age is known.
+     * @throws SQLException
+     */
+    List<MaildropLock> getLocks() throws SQLException;
+
+    /**
+     * Release a lock whatever its token, e.g. one left by a server that
+     * died without its lease expiring. The previous holder can no longer
+     * renew it or delete messages with its token.
+     *
+     * @param maildrop the locked maildrop
+     * @return <code>false</code> if the maildrop was not locked.
+     * @throws SQLException
+     */
+    boolean forceUnlock(Maildrop maildrop) throws SQLException;
+
+    /**
+     * Permanently remove messages, only if the lock is still held with the
+     * given token. Either every message is removed or none are.
+     *
+     * @param maildrop the maildrop containing the messages
+     * @param token    the token returned by {@link #lock}
+     * @param mailIDs  the iMailIDs of the messages
+     * @return <code>false</code> if the lock is no longer held with the token,
+     * in which case nothing is removed.
+     * @throws SQLException
+     */
+    boolean deleteMail(Maildrop maildrop, long token, List<Integer> mailIDs)
+            throws SQLException;
+
+    /**
+     * Add messages to maildrops in a single transaction, setting the iMailID
+     * of each delivery once it is committed. Messages delivered to the same
+     * maildrop are committed in order of iMailID, so that a list of
+     * iMailIDs refreshed from the highest one already read (see
+     * {@link SnapshotCachingMailStore}) never misses one.
+     *
+     * @param deliveries the messages and the maildrops to add them to
+     * @throws SQLException if a maildrop no longer exists, in which case
+     *                      none of the messages were added, except those to
+     *                      other shards of a sharded store
+     */
+    void addMail(List<Delivery> deliveries) throws SQLException;
+
+    /**
+     * Release any resources (e.g. database connections) held by the store.
+     *
+     * @throws SQLException
+     */
+    void close() throws SQLException;
+}
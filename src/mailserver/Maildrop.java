@@ -0,0 +1,47 @@
+package mailserver;
+
+/**
+ * A row of the m_Maildrop table, as returned by a {@link MailStore}.
+ */
+public class Maildrop {
+
+    /** The iMaildropID of the maildrop. */
+    private final int mId;
+    /** The vchUsername of the maildrop's owner. */
+    private final String mUsername;
+    /** The vchPassword of the maildrop's owner. */
+    private final String mPassword;
+    /** Whether tiLocked was set when the row was read. */
+    private final boolean mLocked;
+
+    /**
+     * Construct a Maildrop.
+     *
+     * @param id       the iMaildropID
+     * @param username the vchUsername
+     * @param password the vchPassword
+     * @param locked   <code>true</code> if tiLocked is set
+     */
+    public Maildrop(int id, String username, String password, boolean locked) {
+        mId = id;
+        mUsername = username;
+        mPassword = password;
+        mLocked = locked;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public String getUsername() {
+        return mUsername;
+    }
+
+    public String getPassword() {
+        return mPassword;
+    }
+
+    public boolean isLocked() {
+        return mLocked;
+    }
+}
@@ -0,0 +1,60 @@
+package mailserver;
+
+/**
+ * A lock held on a maildrop, as listed by {@link MailStore#getLocks()}.
+ * Times are measured by the store, so that they do not depend on the clocks
+ * of the servers sharing it.
+ */
+public class MaildropLock {
+
+    /** The vchUsername of the locked maildrop. */
+    private final String mUsername;
+    /** The vchLockOwner, identifying the server holding the lock. */
+    private final String mOwner;
+    /** The iLockToken of the lock. */
+    private final long mToken;
+    /** The time in milliseconds since the lock was taken, or -1. */
+    private final long mAgeMillis;
+    /** The time in milliseconds until the lease expires, or -1. */
+    private final long mExpiresInMillis;
+
+    /**
+     * Construct a MaildropLock.
+     *
+     * @param username        the vchUsername
+     * @param owner           the vchLockOwner
+     * @param token           the iLockToken
+     * @param ageMillis       the time since the lock was taken, or -1 if it
+     *                        is not known
+     * @param expiresInMillis the time until the lease expires, or -1 if the
+     *                        lock has no lease
+     */
+    public MaildropLock(String username, String owner, long token,
+                        long ageMillis, long expiresInMillis) {
+        mUsername = username;
+        mOwner = owner;
+        mToken = token;
+        mAgeMillis = ageMillis;
+        mExpiresInMillis = expiresInMillis;
+    }
+
+    public String getUsername() {
+        return mUsername;
+    }
+
+    public String getOwner() {
+        return mOwner;
+    }
+
+    public long getToken() {
+        return mToken;
+    }
+
+    public long getAgeMillis() {
+        return mAgeMillis;
+    }
+
+    public long getExpiresInMillis() {
+        return mExpiresInMillis;
+    }
+}
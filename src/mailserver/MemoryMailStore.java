@@ -0,0 +1,386 @@
+package mailserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A {@link MailStore} that keeps maildrops in memory. A single instance may be
+ * shared by any number of sessions. Used to test and benchmark the server
+ * without a MySQL database.
+ */
+public class MemoryMailStore implements MailStore {
+
+    /** A row of the m_Mail table. */
+    private static class Mail {
+        /** The txMailContent, or null if the message is compressed. */
+        final String mContent;
+        /** The blMailContent, or null if the message is not compressed. */
+        final byte[] mCompressed;
+        final String mUIDL;
+        final int mOctets;
+        /** The iHeaderLength, in characters or compressed bytes. */
+        final int mHeaderLength;
+
+        Mail(String content, String uidl, boolean compress) {
+            // Same as LENGTH(txMailContent) for a utf8 column
+            this(content, uidl, compress, MailBody.octets(content));
+        }
+
+        Mail(String content, String uidl, boolean compress, int octets) {
+            int headerLength = MailBody.getHeaderLength(content);
+            if (compress) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                mContent = null;
+                mHeaderLength = MailCompression.compress(content,
+                        headerLength, compressed);
+                mCompressed = compressed.toByteArray();
+            } else {
+                mContent = content;
+                mHeaderLength = headerLength;
+                mCompressed = null;
+            }
+            mUIDL = uidl;
+            mOctets = octets;
+        }
+
+        Reader open() {
+            return mContent != null ? new StringReader(mContent)
+                    : MailCompression.decompress(MailCompression.DEFLATE_1,
+                    mCompressed);
+        }
+
+        Reader openHeader() {
+            return mContent != null
+                    ? new StringReader(mContent.substring(0, mHeaderLength))
+                    : MailCompression.decompressHeader(
+                    MailCompression.DEFLATE_1,
+                    Arrays.copyOf(mCompressed, mHeaderLength));
+        }
+    }
+
+    /**
+     * The lock and delete version columns of a row of the m_Maildrop table.
+     */
+    private static class Lock {
+        boolean mLocked;
+        String mOwner;
+        long mToken;
+        long mLockedAt;
+        long mExpires;
+        long mDeleteVersion;
+
+        boolean isHeld() {
+            return mLocked && mExpires >= System.currentTimeMillis();
+        }
+
+        boolean isHeld(long token) {
+            return mLocked && mToken == token;
+        }
+    }
+
+    /** Maildrops keyed by vchUsername. */
+    private final Map<String, Maildrop> mMaildrops = new HashMap<>();
+    /** Messages of each maildrop keyed by iMaildropID, then iMailID. */
+    private final Map<Integer, TreeMap<Integer, Mail>> mMail = new HashMap<>();
+    /** The lock of each maildrop keyed by iMaildropID. */
+    private final Map<Integer, Lock> mLocks = new HashMap<>();
+
+    /** The next iMaildropID to assign. */
+    private int mNextMaildropID = 1;
+    /** The next iMailID to assign. */
+    private int mNextMailID = 1;
+    /** Whether messages are stored compressed, as blMailContent. */
+    private final boolean mCompress;
+
+    public MemoryMailStore() {
+        this(false);
+    }
+
+    /**
+     * @param compress <code>true</code> to store messages compressed, as
+     *                 {@link MailCompression} would in m_Mail
+     */
+    public MemoryMailStore(boolean compress) {
+        mCompress = compress;
+    }
+
+    /**
+     * Create a maildrop.
+     *
+     * @param username the vchUsername of the maildrop
+     * @param password the vchPassword of the maildrop
+     * @return the iMaildropID of the new maildrop.
+     */
+    public synchronized int addMaildrop(String username, String password) {
+        int id = mNextMaildropID++;
+        mMaildrops.put(username, new Maildrop(id, username, password, false));
+        mMail.put(id, new TreeMap<Integer, Mail>());
+        mLocks.put(id, new Lock());
+        return id;
+    }
+
+    /**
+     * Delete a maildrop and its messages, as when it has been moved to
+     * another shard.
+     *
+     * @param maildrop the maildrop
+     * @param token    the token the maildrop must be locked with, or -1 to
+     *                 delete it regardless
+     * @return <code>false</code> if the maildrop does not exist or is not
+     * locked with the token.
+     */
+    public synchronized boolean deleteMaildrop(Maildrop maildrop,
+                                               long token) {
+        Lock lock = mLocks.get(maildrop.getId());
+        if (lock == null || (token >= 0 && !lock.isHeld(token))) {
+            return false;
+        }
+
+        mMaildrops.remove(maildrop.getUsername());
+        mMail.remove(maildrop.getId());
+        mLocks.remove(maildrop.getId());
+        return true;
+    }
+
+    /**
+     * @return the vchUsername of every maildrop.
+     */
+    public synchronized List<String> getUsernames() {
+        return new ArrayList<>(mMaildrops.keySet());
+    }
+
+    /**
+     * Deliver a message to a maildrop.
+     *
+     * @param maildropID the iMaildropID of the maildrop
+     * @param content    the message, with lines separated by LF
+     * @param uidl       the unique-id of the message
+     * @return the iMailID of the new message.
+     */
+    public synchronized int addMail(int maildropID, String content, String uidl) {
+        int id = mNextMailID++;
+        mMail.get(maildropID).put(id, new Mail(content, uidl, mCompress));
+        return id;
+    }
+
+    @Override
+    public synchronized void addMail(List<Delivery> deliveries)
+            throws SQLException {
+        for (Delivery delivery : deliveries) {
+            if (!mMail.containsKey(delivery.getMaildrop().getId())) {
+                throw new SQLException("Maildrop "
+                        + delivery.getMaildrop().getId() + " does not exist");
+            }
+        }
+
+        for (Delivery delivery : deliveries) {
+            IncomingMessage message = delivery.getMessage();
+            int id = mNextMailID++;
+            mMail.get(delivery.getMaildrop().getId()).put(id, new Mail(
+                    message.getContent(), delivery.getUIDL(), mCompress,
+                    message.getOctets()));
+            delivery.setMailID(id);
+        }
+    }
+
+    @Override
+    public synchronized Maildrop findMaildrop(String username) {
+        Maildrop maildrop = mMaildrops.get(username);
+        if (maildrop == null) {
+            return null;
+        }
+        return new Maildrop(maildrop.getId(), username, maildrop.getPassword(),
+                mLocks.get(maildrop.getId()).isHeld());
+    }
+
+    @Override
+    public synchronized List<Integer> getMailIDs(Maildrop maildrop) {
+        return new ArrayList<>(mMail.get(maildrop.getId()).keySet());
+    }
+
+    @Override
+    public synchronized List<Integer> getMailIDs(Maildrop maildrop,
+                                                 int afterMailID) {
+        return new ArrayList<>(mMail.get(maildrop.getId())
+                .tailMap(afterMailID, false).keySet());
+    }
+
+    @Override
+    public synchronized long getDeleteVersion(Maildrop maildrop) {
+        return mLocks.get(maildrop.getId()).mDeleteVersion;
+    }
+
+    @Override
+    public synchronized Map<Integer, Integer> getOctets(Maildrop maildrop) {
+        Map<Integer, Integer> octets = new LinkedHashMap<>();
+        for (Map.Entry<Integer, Mail> e : mMail.get(maildrop.getId()).entrySet()) {
+            octets.put(e.getKey(), e.getValue().mOctets);
+        }
+        return octets;
+    }
+
+    @Override
+    public synchronized int getOctets(Maildrop maildrop, int mailID) {
+        Mail mail = mMail.get(maildrop.getId()).get(mailID);
+        return mail == null ? 0 : mail.mOctets;
+    }
+
+    @Override
+    public synchronized String getContent(Maildrop maildrop, int mailID) {
+        Mail mail = mMail.get(maildrop.getId()).get(mailID);
+        if (mail == null) {
+            return null;
+        } else if (mail.mContent != null) {
+            return mail.mContent;
+        }
+
+        try {
+            return MailCompression.readAll(mail.open());
+        } catch (IOException e) {
+            // Only compressed by this store
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public synchronized Reader openContent(Maildrop maildrop, int mailID) {
+        Mail mail = mMail.get(maildrop.getId()).get(mailID);
+        return mail == null ? null : mail.open();
+    }
+
+    @Override
+    public synchronized Reader openHeader(Maildrop maildrop, int mailID) {
+        Mail mail = mMail.get(maildrop.getId()).get(mailID);
+        return mail == null ? null : mail.openHeader();
+    }
+
+    @Override
+    public synchronized Map<Integer, String> getUIDLs(Maildrop maildrop) {
+        Map<Integer, String> uidls = new LinkedHashMap<>();
+        for (Map.Entry<Integer, Mail> e : mMail.get(maildrop.getId()).entrySet()) {
+            uidls.put(e.getKey(), e.getValue().mUIDL);
+        }
+        return uidls;
+    }
+
+    @Override
+    public synchronized String getUIDL(Maildrop maildrop, int mailID) {
+        Mail mail = mMail.get(maildrop.getId()).get(mailID);
+        return mail == null ? null : mail.mUIDL;
+    }
+
+    @Override
+    public synchronized long lock(Maildrop maildrop, String owner,
+                                  long lease) {
+        Lock lock = mLocks.get(maildrop.getId());
+        if (lock.isHeld()) {
+            return -1;
+        }
+
+        lock.mLocked = true;
+        lock.mOwner = owner;
+        lock.mToken++;
+        lock.mLockedAt = System.currentTimeMillis();
+        lock.mExpires = lock.mLockedAt + lease;
+        return lock.mToken;
+    }
+
+    @Override
+    public synchronized boolean renewLock(Maildrop maildrop, long token,
+                                          long lease) {
+        Lock lock = mLocks.get(maildrop.getId());
+        if (!lock.isHeld(token)) {
+            return false;
+        }
+        lock.mExpires = System.currentTimeMillis() + lease;
+        return true;
+    }
+
+    @Override
+    public synchronized void unlock(Maildrop maildrop, long token) {
+        Lock lock = mLocks.get(maildrop.getId());
+        if (lock.isHeld(token)) {
+            lock.mLocked = false;
+            lock.mOwner = null;
+        }
+    }
+
+    @Override
+    public synchronized List<MaildropLock> getLocks() {
+        long now = System.currentTimeMillis();
+        List<MaildropLock> locks = new ArrayList<>();
+        for (Maildrop maildrop : mMaildrops.values()) {
+            Lock lock = mLocks.get(maildrop.getId());
+            if (lock.isHeld()) {
+                locks.add(new MaildropLock(maildrop.getUsername(),
+                        lock.mOwner, lock.mToken, now - lock.mLockedAt,
+                        lock.mExpires - now));
+            }
+        }
+
+        Collections.sort(locks, new Comparator<MaildropLock>() {
+
+            @Override
+            public int compare(MaildropLock a, MaildropLock b) {
+                return Long.compare(b.getAgeMillis(), a.getAgeMillis());
+            }
+
+        });
+        return locks;
+    }
+
+    @Override
+    public synchronized boolean forceUnlock(Maildrop maildrop) {
+        Lock lock = mLocks.get(maildrop.getId());
+        if (!lock.mLocked) {
+            return false;
+        }
+        lock.mLocked = false;
+        lock.mOwner = null;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean deleteMail(Maildrop maildrop, long token,
+                                           List<Integer> mailIDs) {
+        if (!mLocks.get(maildrop.getId()).isHeld(token)) {
+            return false;
+        }
+
+        TreeMap<Integer, Mail> mail = mMail.get(maildrop.getId());
+        for (Integer mailID : mailIDs) {
+            mail.remove(mailID);
+        }
+        if (!mailIDs.isEmpty()) {
+            mLocks.get(maildrop.getId()).mDeleteVersion++;
+        }
+        return true;
+    }
+
+    /**
+     * @param username the vchUsername of a maildrop
+     * @return the server holding the maildrop's lock, or null if it is not
+     * locked.
+     */
+    public synchronized String getLockOwner(String username) {
+        Lock lock = mLocks.get(mMaildrops.get(username).getId());
+        return lock.isHeld() ? lock.mOwner : null;
+    }
+
+    @Override
+    public void close() {
+        // Shared between sessions, nothing to release
+    }
+}
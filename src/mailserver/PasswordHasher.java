@@ -0,0 +1,125 @@
+package mailserver;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Creates and verifies salted PBKDF2 password hashes for the vchPassword
+ * column, in the form <code>pbkdf2-sha256$iterations$salt$hash</code> with
+ * the salt and hash in base64.
+ * <p>
+ * Passwords that are not in this form are treated as legacy plaintext, so
+ * existing rows keep working until they are rehashed. Run this class with a
+ * password as its argument to print its hash.
+ */
+public class PasswordHasher {
+
+    /** The prefix of a hashed vchPassword. */
+    public static final String PREFIX = "pbkdf2-sha256$";
+
+    /**
+     * The default number of iterations for new hashes. Overridden by the
+     * mailserver.pbkdf2Iterations system property. Verification always uses
+     * the iterations stored with the hash.
+     */
+    public static final int DEFAULT_ITERATIONS = 100000;
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    private PasswordHasher() {
+        // Prevent the class from being instantiated
+    }
+
+    /**
+     * @param args the password to hash
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.err.println("Usage: PasswordHasher <password>");
+            return;
+        }
+        System.out.println(hash(args[0]));
+    }
+
+    /**
+     * Hash a password with a new random salt.
+     *
+     * @param password the plaintext password
+     * @return the value to store in vchPassword.
+     */
+    public static String hash(String password) {
+        int iterations = Integer.getInteger("mailserver.pbkdf2Iterations",
+                DEFAULT_ITERATIONS);
+        byte[] salt = new byte[SALT_BYTES];
+        sRandom.nextBytes(salt);
+
+        Base64.Encoder base64 = Base64.getEncoder();
+        return PREFIX + iterations + "$" + base64.encodeToString(salt) + "$"
+                + base64.encodeToString(pbkdf2(password, salt, iterations));
+    }
+
+    /**
+     * @param stored a vchPassword value
+     * @return <code>true</code> if the value is a hash, <code>false</code> if
+     * it is a legacy plaintext password.
+     */
+    public static boolean isHashed(String stored) {
+        return stored.startsWith(PREFIX);
+    }
+
+    /**
+     * Check a password against a stored value in constant time. This is slow
+     * by design for hashed values.
+     *
+     * @param password the password presented by the client
+     * @param stored   the vchPassword value
+     * @return <code>true</code> if the password matches.
+     */
+    public static boolean verify(String password, String stored) {
+        if (!isHashed(stored)) {
+            return MessageDigest.isEqual(
+                    password.getBytes(StandardCharsets.UTF_8),
+                    stored.getBytes(StandardCharsets.UTF_8));
+        }
+
+        String[] parts = stored.substring(PREFIX.length()).split("\\$");
+        if (parts.length != 3) {
+            return false;
+        }
+
+        try {
+            Base64.Decoder base64 = Base64.getDecoder();
+            byte[] expected = base64.decode(parts[2]);
+            byte[] actual = pbkdf2(password, base64.decode(parts[1]),
+                    Integer.parseInt(parts[0]));
+            return MessageDigest.isEqual(expected, actual);
+
+        } catch (IllegalArgumentException e) {
+            // Malformed iteration count or base64
+            return false;
+        }
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt,
+                iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec)
+                    .getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " unavailable", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
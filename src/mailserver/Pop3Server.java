@@ -1,12 +1,34 @@
 package mailserver;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * <h1>G52APR Mail Server</h1>
@@ -79,7 +101,7 @@ import java.sql.Statement;
  * @author Steven Hood
  * @version 14-06-2015
  */
-public class Pop3Server {
+public class Pop3Server implements Pop3ServerMBean {
 
     /**
      * Tag used for logging.
@@ -92,26 +114,131 @@ public class Pop3Server {
     /** The default response timeout before closing the connection. */
     public static final int DEFAULT_TIMEOUT = 600000;
 
+    /**
+     * The default time in milliseconds that stop() waits for active sessions
+     * to finish their current command before closing them.
+     */
+    public static final long DEFAULT_DRAIN_TIMEOUT = 30000;
+
+    /**
+     * The default maximum number of open client connections, including those
+     * waiting in the backlog. Overridden by the mailserver.maxConnections
+     * system property.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 2000;
+
+    /**
+     * The default maximum number of open connections from one source
+     * address. Overridden by the mailserver.maxConnectionsPerAddress system
+     * property.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ADDRESS = 50;
+
+    /**
+     * The default number of threads serving sessions. Overridden by the
+     * mailserver.workerThreads system property.
+     */
+    public static final int DEFAULT_WORKER_THREADS = 1000;
+
+    /**
+     * The default number of accepted connections that may wait for a worker
+     * thread. Overridden by the mailserver.backlog system property.
+     */
+    public static final int DEFAULT_BACKLOG = 1000;
+
+    /**
+     * The default idle time in milliseconds before a session is hibernated.
+     * Overridden by the mailserver.hibernateAfter system property, where 0
+     * disables hibernation.
+     */
+    public static final int DEFAULT_HIBERNATE_AFTER = 30000;
+
+    /**
+     * The default number of characters of a response a session holds in
+     * memory before streaming the rest. Overridden by the
+     * mailserver.maxResponseBuffer system property.
+     */
+    public static final int DEFAULT_MAX_RESPONSE_BUFFER = 64 * 1024;
+
+    /** Sent to clients that are refused because the server is overloaded. */
+    private static final byte[] BUSY_RESPONSE =
+            "-ERR [SYS/TEMP] server busy\r\n".getBytes(StandardCharsets.US_ASCII);
+
     /** The port the server will be bound to. */
     private final int mPort;
 
     /** The response timeout before closing the connection. */
     private final int mTimeout;
 
+    /** Creates the backend for each client session. */
+    private final DatabaseFactory mDatabaseFactory;
+
     /** Whether the server is running or not. */
-    private boolean mRunning;
+    private volatile boolean mRunning;
+
+    /** The sockets listening for new clients while the server is running. */
+    private final Set<ServerSocket> mServerSockets = Collections
+            .newSetFromMap(new ConcurrentHashMap<ServerSocket, Boolean>());
+
+    /** The TLS configuration, or null if TLS is not offered. */
+    private TlsContext mTlsContext;
+
+    /** The port for implicit TLS, or -1 to only offer STLS. */
+    private int mTlsPort = -1;
+
+    /** The endpoints added before start(), or empty to use the ports. */
+    private final List<Endpoint> mEndpoints = new ArrayList<>();
+
+    /** The threads accepting clients while the server is running. */
+    private final List<Thread> mAcceptThreads = new CopyOnWriteArrayList<>();
+
+    /** The sessions that have been accepted and have not yet ended. */
+    private final Set<ClientConnection> mConnections = Collections
+            .newSetFromMap(new ConcurrentHashMap<ClientConnection, Boolean>());
+
+    /** Limits the number of open connections in total and per address. */
+    private final ConnectionLimiter mLimiter;
+
+    /** The number of threads serving sessions. */
+    private final int mWorkerThreads;
+
+    /** The number of connections that may wait for a worker thread. */
+    private final int mBacklog;
 
     /**
-     * @param args optional command line arguments (port, timeout)
+     * The idle time in milliseconds before a session is hibernated, which
+     * may be changed while the server is running.
+     */
+    private volatile int mHibernateAfter;
+
+    /** The most characters of a response a session holds in memory. */
+    private final int mMaxResponseBuffer;
+
+    /** Runs each session, created by start(). */
+    private volatile ThreadPoolExecutor mExecutor;
+
+    /**
+     * @param args optional command line arguments (port, timeout), which
+     *             override the mailserver.port and mailserver.timeout
+     *             settings
      */
     public static void main(String[] args) {
+        try {
+            Config.load();
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "main: Failed to load configuration", e);
+            System.err.println("Error: " + e.getMessage());
+            return;
+        }
+
         int port;
         int timeout;
 
         if (args.length < 2) {
             // Default values if unspecified, 10 minute inactivity timeout
-            port = DEFAULT_PORT;
-            timeout = DEFAULT_TIMEOUT;
+            port = Integer.getInteger("mailserver.port", DEFAULT_PORT);
+            timeout = Integer.getInteger("mailserver.timeout",
+                    DEFAULT_TIMEOUT / 1000) * 1000;
 
         } else {
             try {
@@ -134,16 +261,228 @@ public class Pop3Server {
             return;
         }
 
-        Pop3Server server = new Pop3Server(port, timeout);
+        TlsContext tlsContext;
+        try {
+            tlsContext = TlsContext.fromProperties();
+        } catch (GeneralSecurityException | IOException e) {
+            Log.e(TAG, "main: Failed to load keystore", e);
+            System.err.println("Error: Cannot load TLS keystore");
+            return;
+        }
+
+        // Shared with the LMTP listener, so that deliveries reach the cache
+        MailStore store = defaultStore();
+        final Pop3Server server = new Pop3Server(port, timeout,
+                sharedStore(store));
+        if (tlsContext != null) {
+            server.enableTls(tlsContext, Integer.getInteger(
+                    "mailserver.tlsPort", TlsContext.DEFAULT_PORT));
+        }
+
+        final MailDelivery delivery = MailDelivery.fromProperties(store);
+        final LmtpServer lmtpServer;
+        try {
+            lmtpServer = LmtpServer.fromProperties(delivery);
+            if (lmtpServer != null) {
+                lmtpServer.start();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "main: Failed to start LMTP listener", e);
+            System.err.println("Error: Cannot start LMTP listener");
+            delivery.close();
+            return;
+        }
         server.start();
+        watchConfig(server);
+        server.registerMBean();
+
+        AdminServer admin = null;
+        try {
+            admin = AdminServer.fromProperties(server, store);
+            if (admin != null) {
+                admin.start();
+            }
+        } catch (IOException e) {
+            // Serving POP3 matters more than inspecting it
+            Log.e(TAG, "main: Failed to start admin listener", e);
+            System.err.println("Error: Cannot start admin listener");
+            admin = null;
+        }
+        final AdminServer adminServer = admin;
+
+        // Drain sessions and release their maildrop locks on SIGTERM/SIGINT
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                if (adminServer != null) {
+                    adminServer.stop();
+                }
+                if (lmtpServer != null) {
+                    lmtpServer.stop();
+                }
+                delivery.close();
+                server.stop();
+
+                for (SqlStatement statement : SqlStatement.getAll()) {
+                    if (statement.getExecutions() > 0) {
+                        Log.i(TAG, statement.toString());
+                    }
+                }
+            }
+
+        }));
 
         System.out.printf("Running on port %d\n", port);
+        if (tlsContext != null) {
+            System.out.printf("TLS on port %d\n", server.mTlsPort);
+        }
+        if (lmtpServer != null) {
+            System.out.printf("LMTP on port %d\n", lmtpServer.getPort());
+        }
+        if (adminServer != null) {
+            System.out.printf("Admin on port %d\n", adminServer.getPort());
+        }
         System.out.printf("Timeout in %dms\n\n", timeout);
     }
 
+    /**
+     * Apply changes to the reloadable settings of the server while it runs,
+     * and allow them to be made with JMX.
+     *
+     * @param server the running server
+     */
+    private static void watchConfig(final Pop3Server server) {
+        Config.Listener limits = new Config.Listener() {
+
+            @Override
+            public void changed(String name, String value) {
+                server.mLimiter.setLimits(Integer.getInteger(
+                        "mailserver.maxConnections", DEFAULT_MAX_CONNECTIONS),
+                        Integer.getInteger(
+                                "mailserver.maxConnectionsPerAddress",
+                                DEFAULT_MAX_CONNECTIONS_PER_ADDRESS));
+            }
+
+        };
+        Config.addListener("mailserver.maxConnections", limits);
+        Config.addListener("mailserver.maxConnectionsPerAddress", limits);
+
+        Config.addListener("mailserver.hibernateAfter", new Config.Listener() {
+
+            @Override
+            public void changed(String name, String value) {
+                // Applies to the sessions accepted from now on
+                server.mHibernateAfter = Integer.getInteger(name,
+                        DEFAULT_HIBERNATE_AFTER);
+            }
+
+        });
+
+        Config.Listener debug = new Config.Listener() {
+
+            @Override
+            public void changed(String name, String value) {
+                // Debug output is on unless disabled
+                Log.setDebug(value == null || Boolean.parseBoolean(value));
+            }
+
+        };
+        debug.changed("mailserver.debug",
+                System.getProperty("mailserver.debug"));
+        Config.addListener("mailserver.debug", debug);
+        Config.registerMBean();
+    }
+
+    /**
+     * Construct a Pop3Server whose sessions share a pool of connections to
+     * the MySQL database, and to its read replicas if any are configured,
+     * or to each of its shards if it is sharded.
+     *
+     * @param port    the port to bind the server to
+     * @param timeout the response timeout in milliseconds
+     */
     public Pop3Server(int port, int timeout) {
+        this(port, timeout, sharedStore(defaultStore()));
+    }
+
+    /**
+     * @return the store described by the configuration.
+     */
+    private static MailStore defaultStore() {
+        MailStore store = ShardedMailStore.fromProperties();
+        if (store == null) {
+            // Cached beneath the replicas, which must see every list of
+            // messages to know what each session may read
+            return ReplicatedMailStore.fromProperties(
+                    SnapshotCachingMailStore.fromProperties(
+                            new SqlMailStore()));
+        }
+        return SnapshotCachingMailStore.fromProperties(store);
+    }
+
+    /**
+     * @param store the store to share between sessions
+     * @return a DatabaseFactory for sessions on the store.
+     */
+    public static DatabaseFactory sharedStore(final MailStore store) {
+        return new DatabaseFactory() {
+
+            @Override
+            public IDatabase newDatabase() {
+                return new EmailDatabase(store);
+            }
+
+        };
+    }
+
+    /**
+     * Construct a Pop3Server whose sessions use the given backend.
+     *
+     * @param port            the port to bind the server to
+     * @param timeout         the response timeout in milliseconds
+     * @param databaseFactory creates the backend for each client session
+     */
+    public Pop3Server(int port, int timeout, DatabaseFactory databaseFactory) {
         mPort = port;
         mTimeout = timeout;
+        mDatabaseFactory = databaseFactory;
+        mLimiter = new ConnectionLimiter(
+                Integer.getInteger("mailserver.maxConnections",
+                        DEFAULT_MAX_CONNECTIONS),
+                Integer.getInteger("mailserver.maxConnectionsPerAddress",
+                        DEFAULT_MAX_CONNECTIONS_PER_ADDRESS));
+        mWorkerThreads = Integer.getInteger("mailserver.workerThreads",
+                DEFAULT_WORKER_THREADS);
+        mBacklog = Integer.getInteger("mailserver.backlog", DEFAULT_BACKLOG);
+        mHibernateAfter = Integer.getInteger("mailserver.hibernateAfter",
+                DEFAULT_HIBERNATE_AFTER);
+        mMaxResponseBuffer = Integer.getInteger(
+                "mailserver.maxResponseBuffer", DEFAULT_MAX_RESPONSE_BUFFER);
+    }
+
+    /**
+     * Offer TLS to clients, both with STLS on the plaintext port and on a
+     * separate port where the handshake starts as soon as the client
+     * connects. Must be called before start().
+     *
+     * @param tlsContext   the TLS configuration
+     * @param implicitPort the port for implicit TLS, or -1 to only offer STLS
+     */
+    public void enableTls(TlsContext tlsContext, int implicitPort) {
+        mTlsContext = tlsContext;
+        mTlsPort = implicitPort;
+    }
+
+    /**
+     * Accept clients on an endpoint rather than on the ports given to the
+     * constructor and enableTls(), which are only used if no endpoint is
+     * added. Must be called before start().
+     *
+     * @param endpoint the address, port and socket options
+     */
+    public void addEndpoint(Endpoint endpoint) {
+        mEndpoints.add(endpoint);
     }
 
     /**
@@ -154,40 +493,400 @@ public class Pop3Server {
         if (mRunning) {
             return;
         }
+        mRunning = true;
+
+        mExecutor = new ThreadPoolExecutor(mWorkerThreads, mWorkerThreads,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, mBacklog)));
+        mExecutor.allowCoreThreadTimeOut(true);
+
+        List<Endpoint> endpoints = new ArrayList<>(mEndpoints);
+        try {
+            if (endpoints.isEmpty()) {
+                endpoints.addAll(Endpoint.fromProperties(mPort, false));
+                if (mTlsContext != null && mTlsPort >= 0) {
+                    endpoints.addAll(Endpoint.fromProperties(mTlsPort, true));
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "start: Failed to resolve bind address", e);
+        }
 
-        new Thread(new Runnable() {
+        for (Endpoint endpoint : endpoints) {
+            listen(endpoint);
+        }
+    }
+
+    /**
+     * Bind an endpoint and accept clients on it in new threads until stop()
+     * is called.
+     *
+     * @param endpoint the endpoint to bind
+     */
+    private void listen(Endpoint endpoint) {
+        List<ServerSocket> serverSockets;
+        try {
+            serverSockets = endpoint.bind();
+        } catch (IOException e) {
+            Log.e(TAG, "listen: Failed to bind " + endpoint, e);
+            return;
+        }
+        mServerSockets.addAll(serverSockets);
+
+        for (int i = 0; i < endpoint.getAcceptThreads(); i++) {
+            // Without SO_REUSEPORT the threads share a socket
+            listen(serverSockets.get(i % serverSockets.size()), endpoint);
+        }
+    }
+
+    /**
+     * Accept clients on a socket in a new thread until stop() is called.
+     *
+     * @param serverSocket the bound socket
+     * @param endpoint     the endpoint it was bound for
+     */
+    private void listen(final ServerSocket serverSocket,
+                        final Endpoint endpoint) {
+        Thread thread = new Thread(new Runnable() {
 
             @Override
             public void run() {
-                ServerSocket serverSocket;
-                mRunning = true;
-
                 try {
-                    serverSocket = new ServerSocket(mPort);
-
                     while (mRunning) {
                         Socket clientSocket = serverSocket.accept();
-                        new Thread(
-                                new ClientConnection(clientSocket, mTimeout)
-                        ).start();
+                        try {
+                            endpoint.configure(clientSocket);
+                        } catch (SocketException e) {
+                            // Reset by the client before it was accepted
+                            clientSocket.close();
+                            continue;
+                        }
+                        accept(clientSocket, endpoint.isImplicitTls());
                     }
 
-                    serverSocket.close();
-
                 } catch (IOException e) {
-                    Log.e(TAG, "run: Failed to accept new connection", e);
+                    // Thrown from accept() when stop() closes the socket, as
+                    // an AsynchronousCloseException with SO_REUSEPORT
+                    if (mRunning) {
+                        Log.e(TAG, "run: Failed to accept new connection", e);
+                    }
                 }
             }
 
-        }).start();
+        }, "accept " + endpoint);
+        mAcceptThreads.add(thread);
+        thread.start();
+    }
+
+    /**
+     * Queue a session for a newly accepted client, or refuse the client if the
+     * connection limits are reached or the backlog is full. Refusing a client
+     * does not touch the database.
+     *
+     * @param clientSocket the socket returned by accept()
+     * @param implicitTls  whether the client starts with a TLS handshake
+     */
+    private void accept(Socket clientSocket, boolean implicitTls) {
+        if (!mLimiter.tryAcquire(clientSocket.getInetAddress())) {
+            refuse(clientSocket);
+            return;
+        }
+
+        Session session = new Session(clientSocket, implicitTls);
+        try {
+            mExecutor.execute(session);
+        } catch (RejectedExecutionException e) {
+            session.refuse();
+        }
+    }
+
+    /**
+     * Send the busy response and close the connection.
+     *
+     * @param clientSocket a connection that will not be served
+     */
+    private static void refuse(Socket clientSocket) {
+        try {
+            clientSocket.getOutputStream().write(BUSY_RESPONSE);
+        } catch (IOException e) {
+            // The client has gone already
+        }
+
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            // Nothing more to do
+        }
+    }
+
+    /**
+     * Serves an accepted client on a worker thread. The database is only
+     * attached once a worker is available.
+     */
+    private class Session implements Runnable {
+
+        private final Socket mSocket;
+        private final InetAddress mAddress;
+        private final boolean mImplicitTls;
+
+        Session(Socket socket, boolean implicitTls) {
+            mSocket = socket;
+            mAddress = socket.getInetAddress();
+            mImplicitTls = implicitTls;
+        }
+
+        @Override
+        public void run() {
+            ClientConnection connection = null;
+
+            try {
+                if (!mRunning) {
+                    // Stopped while waiting in the backlog
+                    Pop3Server.refuse(mSocket);
+                    return;
+                }
+
+                IDatabase database = mDatabaseFactory.newDatabase();
+                try {
+                    connection = new ClientConnection(mSocket, mTimeout,
+                            database, mTlsContext, mImplicitTls);
+                    connection.setHibernateAfter(mHibernateAfter);
+                    connection.setMaxResponseBuffer(mMaxResponseBuffer);
+                } catch (IOException e) {
+                    // Includes failed TLS handshakes on the implicit port, and
+                    // health checks that connect and close without one
+                    if (e instanceof EOFException) {
+                        Log.d(TAG, "run: Closed before session opened");
+                    } else {
+                        Log.e(TAG, "run: Failed to open session", e);
+                    }
+                    database.timeout();
+                    try {
+                        mSocket.close();
+                    } catch (IOException closeFailed) {
+                        // Nothing more to do
+                    }
+                    return;
+                }
+
+                mConnections.add(connection);
+                if (!mRunning) {
+                    // stop() may have missed this session
+                    connection.shutdown();
+                }
+                connection.run();
+
+            } finally {
+                if (connection != null) {
+                    mConnections.remove(connection);
+                }
+                mLimiter.release(mAddress);
+            }
+        }
 
+        /**
+         * Refuse the client without running the session.
+         */
+        void refuse() {
+            Pop3Server.refuse(mSocket);
+            mLimiter.release(mAddress);
+        }
     }
 
     /**
-     * Stop the server.
+     * Stop the server, waiting up to {@link #DEFAULT_DRAIN_TIMEOUT} for
+     * active sessions to end. See {@link #stop(long)}.
      */
     public void stop() {
+        stop(DEFAULT_DRAIN_TIMEOUT);
+    }
+
+    /**
+     * Stop the server. The listening socket is closed immediately so no new
+     * clients are accepted. Each active session is allowed to finish the
+     * command it is executing, then ends without entering the UPDATE state,
+     * which releases its maildrop lock. Sessions still active after the
+     * deadline are closed, which also releases their locks.
+     *
+     * @param drainTimeout the time in milliseconds to wait for active
+     *                     sessions to end
+     * @return <code>true</code> if every session ended before the deadline.
+     */
+    public boolean stop(long drainTimeout) {
         mRunning = false;
+
+        for (ServerSocket serverSocket : mServerSockets) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "stop: Failed to close server socket", e);
+            }
+        }
+        mServerSockets.clear();
+
+        // A socket is only released once the thread blocked accepting on it
+        // has returned, so wait for the port to be free to bind again
+        for (Thread thread : mAcceptThreads) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        mAcceptThreads.clear();
+
+        ThreadPoolExecutor executor = mExecutor;
+        if (executor != null) {
+            // Clients waiting in the backlog have not been greeted yet
+            List<Runnable> queued = new ArrayList<>();
+            executor.getQueue().drainTo(queued);
+            for (Runnable session : queued) {
+                ((Session) session).refuse();
+            }
+            executor.shutdown();
+        }
+
+        int total = mConnections.size();
+        Log.i(TAG, "Stopping, draining " + total + " sessions");
+        for (ClientConnection connection : mConnections) {
+            connection.shutdown();
+        }
+
+        long deadline = System.currentTimeMillis() + drainTimeout;
+        long nextReport = 0;
+        while (!mConnections.isEmpty()
+                && System.currentTimeMillis() < deadline) {
+            if (System.currentTimeMillis() >= nextReport) {
+                Log.i(TAG, "Draining: " + mConnections.size() + " of "
+                        + total + " sessions active");
+                nextReport = System.currentTimeMillis() + 1000;
+            }
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        int remaining = mConnections.size();
+        for (ClientConnection connection : mConnections) {
+            connection.close();
+        }
+
+        Log.i(TAG, "Stopped, " + (total - remaining) + " sessions drained, "
+                + remaining + " closed at the deadline");
+        return remaining == 0;
+    }
+
+    /**
+     * @return the limits on open connections, which may be changed while the
+     * server is running.
+     */
+    public ConnectionLimiter getConnectionLimiter() {
+        return mLimiter;
+    }
+
+    /**
+     * @return the number of sessions that have been accepted and have not
+     * yet ended.
+     */
+    public int getActiveSessions() {
+        return mConnections.size();
+    }
+
+    /**
+     * @return the sessions that have been accepted and have not yet ended.
+     */
+    public List<ClientConnection> getSessions() {
+        return new ArrayList<>(mConnections);
+    }
+
+    /**
+     * Find the sessions using the most of a resource.
+     *
+     * @param resource "cpu", "database", "read", "written" or "buffer"
+     * @param count    the number of sessions to return
+     * @return the sessions, heaviest first.
+     * @throws IllegalArgumentException if the resource is not known
+     */
+    public List<ClientConnection> getHeaviestSessions(String resource,
+                                                      int count) {
+        List<ClientConnection> sessions = getSessions();
+        // Read once, as the sessions keep running while they are sorted
+        final Map<ClientConnection, Long> usage = new HashMap<>();
+        for (ClientConnection session : sessions) {
+            usage.put(session, getUsage(session, resource));
+        }
+
+        Collections.sort(sessions, new Comparator<ClientConnection>() {
+
+            @Override
+            public int compare(ClientConnection a, ClientConnection b) {
+                return Long.compare(usage.get(b), usage.get(a));
+            }
+
+        });
+        return sessions.subList(0, Math.min(count, sessions.size()));
+    }
+
+    private static long getUsage(ClientConnection session, String resource) {
+        switch (resource) {
+            case "cpu":
+                return session.getCpuNanos();
+            case "database":
+                return session.getDatabaseNanos();
+            case "read":
+                return session.getBytesRead();
+            case "written":
+                return session.getBytesWritten();
+            case "buffer":
+                return session.getPeakResponseBuffer();
+            default:
+                throw new IllegalArgumentException("Unknown resource "
+                        + resource);
+        }
+    }
+
+    /**
+     * Close a session immediately, interrupting the command it is
+     * executing. Its maildrop is unlocked without deleting messages.
+     *
+     * @param id the ID of the session
+     * @return <code>false</code> if there is no such session.
+     */
+    public boolean killSession(int id) {
+        for (ClientConnection session : mConnections) {
+            if (session.getId() == id) {
+                Log.i(TAG, "killSession: Closing " + session);
+                session.close();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String[] listHeaviestSessions(String resource, int count) {
+        List<String> sessions = new ArrayList<>();
+        for (ClientConnection session : getHeaviestSessions(resource, count)) {
+            sessions.add(session.toString());
+        }
+        return sessions.toArray(new String[sessions.size()]);
+    }
+
+    /**
+     * Allow the sessions to be inspected and killed with JMX, e.g. from
+     * jconsole, under mailserver:type=Pop3Server,port=PORT.
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("mailserver:type=Pop3Server,port=" + mPort));
+        } catch (JMException e) {
+            Log.e(TAG, "registerMBean: Failed to register server", e);
+        }
     }
 
     /**
@@ -201,15 +900,17 @@ public class Pop3Server {
 
         try {
             Class.forName("com.mysql.jdbc.Driver").newInstance();
-            Connection connection = DriverManager.getConnection(Login.HOST,
-                    Login.USERNAME, Login.PASSWORD);
+            Connection connection = DriverManager.getConnection(
+                    Config.getDatabaseUrl(), Config.getDatabaseUser(),
+                    Config.getDatabasePassword());
             Statement statement = connection.createStatement();
 
             statement.close();
             connection.close();
 
         } catch (SQLException | InstantiationException
-                | IllegalAccessException | ClassNotFoundException e) {
+                | IllegalAccessException | ClassNotFoundException
+                | IllegalStateException e) {
             Log.e(TAG, "testConnection: Failed to connect to database", e);
             success = false;
         }
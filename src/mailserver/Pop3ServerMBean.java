@@ -0,0 +1,34 @@
+package mailserver;
+
+/**
+ * The sessions of a running {@link Pop3Server} as they are exposed with
+ * JMX, so that a session using too much of the server can be found and
+ * closed.
+ */
+public interface Pop3ServerMBean {
+
+    /**
+     * @return the number of sessions that have been accepted and have not
+     * yet ended.
+     */
+    int getActiveSessions();
+
+    /**
+     * List the sessions using the most of a resource, with their usage of
+     * each.
+     *
+     * @param resource "cpu", "database", "read", "written" or "buffer"
+     * @param count    the number of sessions to list
+     * @return a line per session, heaviest first, starting with its ID.
+     */
+    String[] listHeaviestSessions(String resource, int count);
+
+    /**
+     * Close a session immediately. Its maildrop is unlocked without
+     * deleting messages.
+     *
+     * @param id the ID of the session
+     * @return <code>false</code> if there is no such session.
+     */
+    boolean killSession(int id);
+}
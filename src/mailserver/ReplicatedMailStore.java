@@ -0,0 +1,530 @@
+package mailserver;
+
+import java.io.Reader;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link MailStore} that sends the reads of RETR, TOP, LIST and UIDL to
+ * read replicas of the database, and everything else to the primary.
+ * <p>
+ * Finding a maildrop, locking it and taking the list of its messages are
+ * done on the primary, so a session only ever sees the messages that
+ * existed when its lock was taken. Replicas are only asked about those
+ * messages: rows a lagging replica still has for messages deleted by an
+ * earlier session are ignored, and messages it has not received yet are
+ * read from the primary instead. Replicas that cannot be reached or that
+ * fall too far behind are checked periodically and skipped until they
+ * recover.
+ */
+public class ReplicatedMailStore implements MailStore {
+
+    /** Tag used for logging. */
+    private static final String TAG =
+            ReplicatedMailStore.class.getSimpleName();
+
+    /**
+     * The default replication lag in seconds above which a replica is not
+     * used. Overridden by the mailserver.replicaMaxLag system property.
+     */
+    public static final long DEFAULT_MAX_LAG = 5;
+
+    /**
+     * The default time in milliseconds between health checks. Overridden by
+     * the mailserver.replicaCheckInterval system property.
+     */
+    public static final long DEFAULT_CHECK_INTERVAL = 5000;
+
+    /** A replica and the result of its last health check. */
+    private static class Replica {
+        final MailStore mStore;
+        volatile boolean mHealthy;
+        volatile long mLag;
+
+        Replica(MailStore store) {
+            mStore = store;
+        }
+    }
+
+    /** A read that may be answered by a replica. */
+    private interface Read<T> {
+
+        /**
+         * @param store the primary or a replica
+         * @return the result of the read on the store.
+         * @throws SQLException
+         */
+        T run(MailStore store) throws SQLException;
+
+        /**
+         * @param result   the result of the read on a replica
+         * @param snapshot the iMailIDs the session knows about
+         * @return <code>true</code> if the replica had every row the
+         * session needs.
+         */
+        boolean isComplete(T result, int[] snapshot);
+    }
+
+    private final MailStore mPrimary;
+    private final List<Replica> mReplicas = new ArrayList<>();
+    private final long mMaxLag;
+
+    /**
+     * The iMailIDs read from the primary in ascending order, keyed by
+     * locked iMaildropID. Held for the whole session, so kept unboxed.
+     */
+    private final Map<Integer, int[]> mSnapshots =
+            new ConcurrentHashMap<>();
+
+    /** Spreads reads across the healthy replicas. */
+    private final AtomicInteger mNext = new AtomicInteger();
+    private final ScheduledExecutorService mMonitor;
+
+    private final AtomicLong mReplicaReads = new AtomicLong();
+    private final AtomicLong mPrimaryReads = new AtomicLong();
+    private final AtomicLong mFallbacks = new AtomicLong();
+
+    /**
+     * Construct a ReplicatedMailStore. Replicas are not used until their
+     * first health check, which starts immediately.
+     *
+     * @param primary       the store that is written to
+     * @param replicas      stores replicating the primary
+     * @param maxLag        the replication lag in seconds above which a
+     *                      replica is not used
+     * @param checkInterval the time in milliseconds between health checks
+     */
+    public ReplicatedMailStore(MailStore primary, List<MailStore> replicas,
+                               long maxLag, long checkInterval) {
+        mPrimary = primary;
+        mMaxLag = maxLag;
+        for (MailStore replica : replicas) {
+            mReplicas.add(new Replica(replica));
+        }
+
+        mMonitor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "replica-monitor");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+
+                });
+        mMonitor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                checkReplicas();
+            }
+
+        }, 0, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wrap the primary with the replicas listed in the mailserver.replicas
+     * system property, a comma separated list of JDBC URLs.
+     *
+     * @param primary the store that is written to
+     * @return the primary itself if no replicas are configured.
+     */
+    public static MailStore fromProperties(MailStore primary) {
+        String urls = System.getProperty("mailserver.replicas", "").trim();
+        if (urls.isEmpty()) {
+            return primary;
+        }
+
+        List<MailStore> replicas = new ArrayList<>();
+        for (String url : urls.split(",")) {
+            replicas.add(new SqlMailStore(url.trim()));
+        }
+        return new ReplicatedMailStore(primary, replicas,
+                Long.getLong("mailserver.replicaMaxLag", DEFAULT_MAX_LAG),
+                Long.getLong("mailserver.replicaCheckInterval",
+                        DEFAULT_CHECK_INTERVAL));
+    }
+
+    /**
+     * Check the health and lag of every replica now rather than waiting for
+     * the next scheduled check.
+     */
+    public void checkReplicas() {
+        for (Replica replica : mReplicas) {
+            try {
+                replica.mLag = getLag(replica.mStore);
+                boolean healthy = replica.mLag >= 0
+                        && replica.mLag <= mMaxLag;
+                if (healthy != replica.mHealthy) {
+                    Log.i(TAG, "checkReplicas: Replica " + replica.mStore
+                            + (healthy ? " is healthy"
+                            : replica.mLag < 0 ? " is not replicating"
+                            : " is lagging by " + replica.mLag + "s"));
+                }
+                replica.mHealthy = healthy;
+
+            } catch (SQLException e) {
+                if (replica.mHealthy) {
+                    Log.e(TAG, "checkReplicas: Replica " + replica.mStore
+                            + " is unreachable", e);
+                }
+                replica.mHealthy = false;
+            }
+        }
+    }
+
+    /**
+     * @param replica a replica of the primary
+     * @return the replication lag of the replica in seconds, or -1 if it is
+     * not replicating. Stores that are not databases have no lag.
+     * @throws SQLException if the replica cannot be reached
+     */
+    protected long getLag(MailStore replica) throws SQLException {
+        if (replica instanceof SqlMailStore) {
+            return ((SqlMailStore) replica).getReplicationLag();
+        }
+        return 0;
+    }
+
+    /**
+     * @return the store that is written to.
+     */
+    public MailStore getPrimary() {
+        return mPrimary;
+    }
+
+    /**
+     * @return the number of healthy replicas.
+     */
+    public int getHealthyReplicas() {
+        int healthy = 0;
+        for (Replica replica : mReplicas) {
+            if (replica.mHealthy) {
+                healthy++;
+            }
+        }
+        return healthy;
+    }
+
+    /**
+     * @return the number of reads answered by a replica.
+     */
+    public long getReplicaReads() {
+        return mReplicaReads.get();
+    }
+
+    /**
+     * @return the number of reads answered by the primary, including
+     * fallbacks.
+     */
+    public long getPrimaryReads() {
+        return mPrimaryReads.get();
+    }
+
+    /**
+     * @return the number of reads retried on the primary because a replica
+     * had not received every row yet, or failed.
+     */
+    public long getFallbacks() {
+        return mFallbacks.get();
+    }
+
+    @Override
+    public Maildrop findMaildrop(String username) throws SQLException {
+        // The lock state must be current
+        return mPrimary.findMaildrop(username);
+    }
+
+    @Override
+    public List<Integer> getMailIDs(Maildrop maildrop) throws SQLException {
+        List<Integer> mailIDs = mPrimary.getMailIDs(maildrop);
+        mSnapshots.put(maildrop.getId(), toArray(mailIDs));
+        return mailIDs;
+    }
+
+    @Override
+    public List<Integer> getMailIDs(Maildrop maildrop, int afterMailID)
+            throws SQLException {
+        return mPrimary.getMailIDs(maildrop, afterMailID);
+    }
+
+    @Override
+    public long getDeleteVersion(Maildrop maildrop) throws SQLException {
+        return mPrimary.getDeleteVersion(maildrop);
+    }
+
+    @Override
+    public Map<Integer, Integer> getOctets(final Maildrop maildrop)
+            throws SQLException {
+        return read(maildrop, new Read<Map<Integer, Integer>>() {
+
+            @Override
+            public Map<Integer, Integer> run(MailStore store)
+                    throws SQLException {
+                return store.getOctets(maildrop);
+            }
+
+            @Override
+            public boolean isComplete(Map<Integer, Integer> result,
+                                      int[] snapshot) {
+                return retain(result, snapshot);
+            }
+
+        });
+    }
+
+    @Override
+    public int getOctets(final Maildrop maildrop, final int mailID)
+            throws SQLException {
+        return read(maildrop, new Read<Integer>() {
+
+            @Override
+            public Integer run(MailStore store) throws SQLException {
+                return store.getOctets(maildrop, mailID);
+            }
+
+            @Override
+            public boolean isComplete(Integer result, int[] snapshot) {
+                // An empty message is rare enough to ask the primary again
+                return result > 0;
+            }
+
+        });
+    }
+
+    @Override
+    public String getContent(final Maildrop maildrop, final int mailID)
+            throws SQLException {
+        return read(maildrop, new Read<String>() {
+
+            @Override
+            public String run(MailStore store) throws SQLException {
+                return store.getContent(maildrop, mailID);
+            }
+
+            @Override
+            public boolean isComplete(String result, int[] snapshot) {
+                return result != null;
+            }
+
+        });
+    }
+
+    @Override
+    public Reader openContent(final Maildrop maildrop, final int mailID)
+            throws SQLException {
+        return read(maildrop, new Read<Reader>() {
+
+            @Override
+            public Reader run(MailStore store) throws SQLException {
+                return store.openContent(maildrop, mailID);
+            }
+
+            @Override
+            public boolean isComplete(Reader result, int[] snapshot) {
+                return result != null;
+            }
+
+        });
+    }
+
+    @Override
+    public Reader openHeader(final Maildrop maildrop, final int mailID)
+            throws SQLException {
+        return read(maildrop, new Read<Reader>() {
+
+            @Override
+            public Reader run(MailStore store) throws SQLException {
+                return store.openHeader(maildrop, mailID);
+            }
+
+            @Override
+            public boolean isComplete(Reader result, int[] snapshot) {
+                return result != null;
+            }
+
+        });
+    }
+
+    @Override
+    public Map<Integer, String> getUIDLs(final Maildrop maildrop)
+            throws SQLException {
+        return read(maildrop, new Read<Map<Integer, String>>() {
+
+            @Override
+            public Map<Integer, String> run(MailStore store)
+                    throws SQLException {
+                return store.getUIDLs(maildrop);
+            }
+
+            @Override
+            public boolean isComplete(Map<Integer, String> result,
+                                      int[] snapshot) {
+                return retain(result, snapshot);
+            }
+
+        });
+    }
+
+    @Override
+    public String getUIDL(final Maildrop maildrop, final int mailID)
+            throws SQLException {
+        return read(maildrop, new Read<String>() {
+
+            @Override
+            public String run(MailStore store) throws SQLException {
+                return store.getUIDL(maildrop, mailID);
+            }
+
+            @Override
+            public boolean isComplete(String result, int[] snapshot) {
+                return result != null;
+            }
+
+        });
+    }
+
+    @Override
+    public long lock(Maildrop maildrop, String owner, long lease)
+            throws SQLException {
+        // Left behind by a session that lost its lock
+        mSnapshots.remove(maildrop.getId());
+        return mPrimary.lock(maildrop, owner, lease);
+    }
+
+    @Override
+    public boolean renewLock(Maildrop maildrop, long token, long lease)
+            throws SQLException {
+        return mPrimary.renewLock(maildrop, token, lease);
+    }
+
+    @Override
+    public void unlock(Maildrop maildrop, long token) throws SQLException {
+        mSnapshots.remove(maildrop.getId());
+        mPrimary.unlock(maildrop, token);
+    }
+
+    @Override
+    public List<MaildropLock> getLocks() throws SQLException {
+        return mPrimary.getLocks();
+    }
+
+    @Override
+    public boolean forceUnlock(Maildrop maildrop) throws SQLException {
+        mSnapshots.remove(maildrop.getId());
+        return mPrimary.forceUnlock(maildrop);
+    }
+
+    @Override
+    public boolean deleteMail(Maildrop maildrop, long token,
+                              List<Integer> mailIDs) throws SQLException {
+        return mPrimary.deleteMail(maildrop, token, mailIDs);
+    }
+
+    @Override
+    public void addMail(List<Delivery> deliveries) throws SQLException {
+        mPrimary.addMail(deliveries);
+    }
+
+    @Override
+    public void close() throws SQLException {
+        mMonitor.shutdownNow();
+        for (Replica replica : mReplicas) {
+            replica.mStore.close();
+        }
+        mPrimary.close();
+    }
+
+    /**
+     * Run a read on a healthy replica, or on the primary if there is none,
+     * the maildrop has no snapshot, or the replica is missing rows.
+     */
+    private <T> T read(Maildrop maildrop, Read<T> read) throws SQLException {
+        int[] snapshot = mSnapshots.get(maildrop.getId());
+        Replica replica = snapshot == null ? null : nextReplica();
+
+        if (replica != null) {
+            try {
+                T result = read.run(replica.mStore);
+                if (read.isComplete(result, snapshot)) {
+                    mReplicaReads.incrementAndGet();
+                    return result;
+                }
+
+            } catch (SQLException e) {
+                Log.e(TAG, "read: Replica " + replica.mStore + " failed", e);
+                replica.mHealthy = false;
+            }
+            mFallbacks.incrementAndGet();
+        }
+
+        mPrimaryReads.incrementAndGet();
+        T result = read.run(mPrimary);
+        if (snapshot != null) {
+            // Messages delivered since the snapshot have no message number
+            read.isComplete(result, snapshot);
+        }
+        return result;
+    }
+
+    /**
+     * @return the next healthy replica in turn, or <code>null</code> if
+     * none are healthy.
+     */
+    private Replica nextReplica() {
+        int size = mReplicas.size();
+        int start = mNext.getAndIncrement();
+        for (int i = 0; i < size; i++) {
+            Replica replica = mReplicas.get(
+                    Math.floorMod(start + i, size));
+            if (replica.mHealthy) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the iMailIDs as an array, shared with the list if it is the
+     * cached array of a {@link SnapshotCachingMailStore}.
+     */
+    private static int[] toArray(List<Integer> mailIDs) {
+        if (mailIDs instanceof SnapshotCachingMailStore.MailIDList) {
+            return ((SnapshotCachingMailStore.MailIDList) mailIDs).getArray();
+        }
+        int[] array = new int[mailIDs.size()];
+        int i = 0;
+        for (int mailID : mailIDs) {
+            array[i++] = mailID;
+        }
+        return array;
+    }
+
+    /**
+     * Remove the rows of messages that are not in the snapshot.
+     *
+     * @return <code>true</code> if every message in the snapshot has a row.
+     */
+    private static boolean retain(Map<Integer, ?> rows,
+                                  int[] snapshot) {
+        Iterator<Integer> keys = rows.keySet().iterator();
+        while (keys.hasNext()) {
+            if (Arrays.binarySearch(snapshot, keys.next()) < 0) {
+                keys.remove();
+            }
+        }
+        return rows.size() == snapshot.length;
+    }
+}
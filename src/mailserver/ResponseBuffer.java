@@ -0,0 +1,102 @@
+package mailserver;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * The writer a session gives to each command. A response is held in memory
+ * until it grows past a limit, from when it is streamed to the client as it
+ * is written, so that a session never holds more than the limit however
+ * large its responses are. The most held at once is recorded for
+ * accounting.
+ */
+class ResponseBuffer extends Writer {
+
+    /** The writer to the client. */
+    private final Writer mOut;
+    /** The most characters held in memory. */
+    private final int mLimit;
+    /** The start of the response, created when it is first written to. */
+    private StringBuilder mBuffer;
+    /** The most characters held at once. */
+    private int mPeak;
+
+    /**
+     * @param out   the writer to the client
+     * @param limit the most characters to hold in memory, 0 to stream every
+     *              write
+     */
+    ResponseBuffer(Writer out, int limit) {
+        mOut = out;
+        mLimit = limit;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        if (hold(len)) {
+            mBuffer.append(cbuf, off, len);
+        } else {
+            mOut.write(cbuf, off, len);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        if (hold(len)) {
+            mBuffer.append(str, off, off + len);
+        } else {
+            mOut.write(str, off, len);
+        }
+    }
+
+    /**
+     * Make room for a write if it fits under the limit, otherwise send what
+     * is held so that the write can follow it.
+     *
+     * @return <code>true</code> if the write is to be held.
+     */
+    private boolean hold(int len) throws IOException {
+        int held = mBuffer == null ? 0 : mBuffer.length();
+        if (held + len <= mLimit) {
+            if (mBuffer == null) {
+                mBuffer = new StringBuilder();
+            }
+            mPeak = Math.max(mPeak, held + len);
+            return true;
+        }
+
+        spill();
+        return false;
+    }
+
+    private void spill() throws IOException {
+        if (mBuffer != null && mBuffer.length() > 0) {
+            mOut.append(mBuffer);
+            mBuffer.setLength(0);
+        }
+    }
+
+    /**
+     * Send what is held and flush the writer to the client.
+     */
+    @Override
+    public void flush() throws IOException {
+        spill();
+        mOut.flush();
+    }
+
+    /**
+     * Flush, leaving the writer to the client open.
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    /**
+     * @return the most characters held in memory at once.
+     */
+    int getPeak() {
+        return mPeak;
+    }
+}
@@ -0,0 +1,72 @@
+package mailserver;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Copies maildrops between the shards of a {@link ShardedMailStore} for
+ * {@link ShardRebalancer}, which locks them and switches the directory
+ * between the steps.
+ */
+public interface ShardCopier {
+
+    /** A copy of a maildrop on the shard it is being moved to. */
+    final class Copy {
+        /** The iMaildropID of the copy. */
+        final int mMaildropID;
+        /** The iMailID, on the old shard, of the last message copied. */
+        final int mLastMailID;
+
+        public Copy(int maildropID, int lastMailID) {
+            mMaildropID = maildropID;
+            mLastMailID = lastMailID;
+        }
+    }
+
+    /**
+     * @param shard a shard of the store
+     * @return the vchUsername of every maildrop on the shard.
+     * @throws SQLException
+     */
+    List<String> getUsernames(MailStore shard) throws SQLException;
+
+    /**
+     * Copy a maildrop and its messages to another shard, keeping their
+     * UIDLs. Nothing is left on the other shard if the copy fails.
+     *
+     * @param from     the shard the maildrop is on
+     * @param to       the shard to copy it to
+     * @param maildrop the maildrop, locked by the caller
+     * @param version  the delete version of the copy
+     * @return the copy.
+     * @throws SQLException
+     */
+    Copy copy(MailStore from, MailStore to, Maildrop maildrop, long version)
+            throws SQLException;
+
+    /**
+     * Copy the messages delivered to a maildrop since it was copied, then
+     * delete it, holding its row so that no more messages are delivered to
+     * it in the meantime.
+     *
+     * @param from     the shard the maildrop is on
+     * @param to       the shard it was copied to
+     * @param maildrop the maildrop
+     * @param token    the token the maildrop is locked with
+     * @param copy     the copy made by {@link #copy}
+     * @return <code>false</code> if the maildrop is no longer locked with
+     * the token, and was left in place.
+     * @throws SQLException
+     */
+    boolean finish(MailStore from, MailStore to, Maildrop maildrop,
+                   long token, Copy copy) throws SQLException;
+
+    /**
+     * Delete a copy that will not be used.
+     *
+     * @param to   the shard the maildrop was copied to
+     * @param copy the copy made by {@link #copy}
+     * @throws SQLException
+     */
+    void discard(MailStore to, Copy copy) throws SQLException;
+}
@@ -0,0 +1,46 @@
+package mailserver;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Records the maildrops that do not live on the shard chosen for them by
+ * consistent hashing, because they were pinned there before the set of
+ * shards changed or have been moved by hand. {@link ShardedMailStore} checks
+ * it before hashing.
+ */
+public interface ShardDirectory {
+
+    /**
+     * @param username the vchUsername of a maildrop
+     * @return the index of the shard the maildrop lives on, or
+     * <code>null</code> if it lives where consistent hashing puts it.
+     * @throws SQLException
+     */
+    Integer lookup(String username) throws SQLException;
+
+    /**
+     * Record that a maildrop lives on a shard.
+     *
+     * @param username the vchUsername of the maildrop
+     * @param shard    the index of the shard
+     * @throws SQLException
+     */
+    void assign(String username, int shard) throws SQLException;
+
+    /**
+     * Forget where a maildrop lives, so that it is found by consistent
+     * hashing.
+     *
+     * @param username the vchUsername of the maildrop
+     * @throws SQLException
+     */
+    void remove(String username) throws SQLException;
+
+    /**
+     * @return every recorded maildrop and the index of its shard, keyed by
+     * vchUsername.
+     * @throws SQLException
+     */
+    Map<String, Integer> getAssignments() throws SQLException;
+}
@@ -0,0 +1,228 @@
+package mailserver;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Moves maildrops between the shards of a {@link ShardedMailStore} while the
+ * servers keep running.
+ * <p>
+ * To add a shard, append its URL to mailserver.shards and run
+ * <code>pin</code> before restarting the servers with the new list: every
+ * maildrop that would hash to another shard is recorded in the directory
+ * where it is, so servers using either list find it. Then run
+ * <code>move</code> to copy the pinned maildrops to the shard they hash to
+ * and remove their directory entries.
+ * <p>
+ * A maildrop is moved under its lock, so sessions are refused with
+ * "currently locked" for the duration of the copy. The directory is only
+ * switched to the new shard once the copy is complete, and the old copy is
+ * deleted afterwards.
+ * <p>
+ * Usage: <code>ShardRebalancer status | pin | move [limit] |
+ * move &lt;username&gt; &lt;shard&gt;</code>
+ */
+public class ShardRebalancer {
+
+    /** Tag used for logging. */
+    private static final String TAG = ShardRebalancer.class.getSimpleName();
+
+    /** Identifies the rebalancer as the owner of the locks it takes. */
+    private static final String OWNER = "rebalancer@" + EmailDatabase.NODE_ID;
+    /** How long a lock taken to move a maildrop is held. */
+    private static final long LEASE = 3600000;
+
+    private final ShardedMailStore mStore;
+    /** Copies and deletes the maildrops on the shards. */
+    private final ShardCopier mCopier;
+
+    /**
+     * @param store the shards, each of which must be a {@link SqlMailStore}
+     */
+    public ShardRebalancer(ShardedMailStore store) {
+        this(store, new SqlShardCopier());
+    }
+
+    /**
+     * @param store  the shards
+     * @param copier copies maildrops between the shards
+     */
+    public ShardRebalancer(ShardedMailStore store, ShardCopier copier) {
+        mStore = store;
+        mCopier = copier;
+    }
+
+    public static void main(String[] args) throws SQLException,
+            IOException {
+        Config.load();
+
+        ShardedMailStore store = ShardedMailStore.fromProperties();
+        if (store == null || args.length == 0) {
+            System.err.println("Usage: ShardRebalancer status | pin"
+                    + " | move [limit] | move <username> <shard>");
+            System.err.println("The shards are listed in mailserver.shards");
+            return;
+        }
+
+        ShardRebalancer rebalancer = new ShardRebalancer(store);
+        try {
+            if (args[0].equals("status")) {
+                rebalancer.printStatus();
+            } else if (args[0].equals("pin")) {
+                System.out.println(rebalancer.pin() + " maildrops pinned");
+            } else if (args[0].equals("move") && args.length == 3) {
+                System.out.println(rebalancer.move(args[1],
+                        Integer.parseInt(args[2])) ? "Moved" : "Not moved");
+            } else if (args[0].equals("move")) {
+                int moved = rebalancer.moveAll(args.length > 1
+                        ? Integer.parseInt(args[1]) : Integer.MAX_VALUE);
+                System.out.println(moved + " maildrops moved");
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Print the number of maildrops on each shard and in the directory.
+     *
+     * @throws SQLException
+     */
+    public void printStatus() throws SQLException {
+        for (int shard = 0; shard < mStore.getShardCount(); shard++) {
+            System.out.printf("Shard %d: %d maildrops\n", shard,
+                    getUsernames(shard).size());
+        }
+
+        int pinned = 0;
+        for (Map.Entry<String, Integer> entry
+                : mStore.getDirectory().getAssignments().entrySet()) {
+            if (entry.getValue() != mStore.getHashedShard(entry.getKey())) {
+                pinned++;
+            }
+        }
+        System.out.printf("%d maildrops waiting to be moved\n", pinned);
+    }
+
+    /**
+     * Record every maildrop that does not live on the shard it hashes to in
+     * the directory.
+     *
+     * @return the number of maildrops recorded.
+     * @throws SQLException
+     */
+    public int pin() throws SQLException {
+        Map<String, Integer> assignments =
+                mStore.getDirectory().getAssignments();
+
+        int pinned = 0;
+        for (int shard = 0; shard < mStore.getShardCount(); shard++) {
+            for (String username : getUsernames(shard)) {
+                if (mStore.getHashedShard(username) != shard
+                        && !assignments.containsKey(username)) {
+                    mStore.getDirectory().assign(username, shard);
+                    pinned++;
+                }
+            }
+        }
+        return pinned;
+    }
+
+    /**
+     * Move pinned maildrops to the shard they hash to. Maildrops that are in
+     * use are skipped, and moved by a later run.
+     *
+     * @param limit the maximum number of maildrops to move
+     * @return the number of maildrops moved.
+     * @throws SQLException
+     */
+    public int moveAll(int limit) throws SQLException {
+        int moved = 0;
+        for (Map.Entry<String, Integer> entry
+                : mStore.getDirectory().getAssignments().entrySet()) {
+            if (moved >= limit) {
+                break;
+            }
+
+            int target = mStore.getHashedShard(entry.getKey());
+            if (entry.getValue() != target
+                    && move(entry.getKey(), target)) {
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Move a maildrop to another shard.
+     *
+     * @param username the vchUsername of the maildrop
+     * @param target   the index of the shard to move it to
+     * @return <code>false</code> if the maildrop does not exist or is in use.
+     * @throws SQLException
+     */
+    public boolean move(String username, int target) throws SQLException {
+        int source = mStore.locate(username);
+        if (source == target) {
+            return true;
+        }
+
+        MailStore from = mStore.getShard(source);
+        MailStore to = mStore.getShard(target);
+        Maildrop maildrop = from.findMaildrop(username);
+        if (maildrop == null) {
+            return false;
+        }
+
+        long token = from.lock(maildrop, OWNER, LEASE);
+        if (token < 0) {
+            Log.i(TAG, "move: " + username + " is in use, skipped");
+            return false;
+        }
+
+        ShardCopier.Copy copy;
+        try {
+            // Moving on from the old version keeps lists cached for the old
+            // copy from being used for the new one, even if their
+            // iMaildropIDs are the same
+            copy = mCopier.copy(from, to, maildrop,
+                    from.getDeleteVersion(maildrop) + 1);
+        } catch (SQLException e) {
+            from.unlock(maildrop, token);
+            throw e;
+        }
+
+        if (!from.renewLock(maildrop, token, LEASE)) {
+            // Lost to a session after the lease expired, which may have
+            // deleted messages that were copied
+            mCopier.discard(to, copy);
+            Log.e(TAG, "move: Lost the lock on " + username + ", skipped");
+            return false;
+        }
+
+        // From here on sessions find the maildrop on the new shard
+        if (target == mStore.getHashedShard(username)) {
+            mStore.getDirectory().remove(username);
+        } else {
+            mStore.getDirectory().assign(username, target);
+        }
+        mStore.invalidate(username);
+
+        if (!mCopier.finish(from, to, maildrop, token, copy)) {
+            Log.e(TAG, "move: Old copy of " + username + " on shard "
+                    + source + " was not deleted");
+        }
+        Log.i(TAG, "move: Moved " + username + " from shard " + source
+                + " to " + target);
+        return true;
+    }
+
+    /**
+     * @return the vchUsername of every maildrop on the shard.
+     */
+    private List<String> getUsernames(int shard) throws SQLException {
+        return mCopier.getUsernames(mStore.getShard(shard));
+    }
+}
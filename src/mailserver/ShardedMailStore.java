@@ -0,0 +1,395 @@
+package mailserver;
+
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link MailStore} that partitions maildrops across several databases.
+ * <p>
+ * A maildrop lives on the shard chosen by consistent hashing of its
+ * vchUsername, unless the {@link ShardDirectory} records another shard for
+ * it. Where each user lives is cached, and a maildrop that is missing from
+ * its cached shard is looked up again, so that maildrops moved by
+ * {@link ShardRebalancer} are found on their new shard. Every other
+ * operation goes to the shard the maildrop was found on, so sessions do not
+ * notice which shard they are using.
+ * <p>
+ * Shards are identified by their position in the list, so new shards must
+ * be added at the end. Each point of the hash ring only depends on the
+ * index of its shard, so adding a shard moves roughly 1/N of the maildrops,
+ * all of them to the new shard.
+ */
+public class ShardedMailStore implements MailStore {
+
+    /** The default maximum number of users whose shard is cached. */
+    public static final int DEFAULT_CACHE_SIZE = 100000;
+    /** The default time in milliseconds a user's shard is cached. */
+    public static final long DEFAULT_CACHE_TTL = 60000;
+
+    /** Points on the hash ring for each shard, to even out the shards. */
+    private static final int VIRTUAL_NODES = 128;
+
+    /** A maildrop and the shard it was found on. */
+    private static class ShardMaildrop extends Maildrop {
+        final int mShard;
+
+        ShardMaildrop(int shard, Maildrop maildrop) {
+            super(maildrop.getId(), maildrop.getUsername(),
+                    maildrop.getPassword(), maildrop.isLocked());
+            mShard = shard;
+        }
+    }
+
+    /** A cached shard of a user. */
+    private static class CachedShard {
+        final int mShard;
+        final long mExpires;
+
+        CachedShard(int shard, long expires) {
+            mShard = shard;
+            mExpires = expires;
+        }
+    }
+
+    private final List<MailStore> mShards;
+    private final ShardDirectory mDirectory;
+    /** Hash ring positions and the index of the shard at each one. */
+    private final TreeMap<Long, Integer> mRing = new TreeMap<>();
+    private final long mCacheTtl;
+    /** Least recently used first. Guarded by itself. */
+    private final Map<String, CachedShard> mCache;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * @param shards    the store of each shard, in a fixed order
+     * @param directory records maildrops living on other shards than the one
+     *                  they hash to
+     * @param cacheSize the maximum number of users whose shard is cached
+     * @param cacheTtl  the time in milliseconds a user's shard is cached
+     */
+    public ShardedMailStore(List<MailStore> shards, ShardDirectory directory,
+                            final int cacheSize, long cacheTtl) {
+        mShards = new ArrayList<>(shards);
+        mDirectory = directory;
+        mCacheTtl = cacheTtl;
+
+        for (int shard = 0; shard < mShards.size(); shard++) {
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                mRing.put(hash("shard-" + shard + "#" + node), shard);
+            }
+        }
+
+        mCache = new LinkedHashMap<String, CachedShard>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, CachedShard> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Create a store for the shards listed in the mailserver.shards system
+     * property, a comma separated list of JDBC URLs. The directory is kept
+     * on the first shard. The cache is configured by the
+     * mailserver.shardCacheSize and mailserver.shardCacheTtl properties.
+     *
+     * @return the store, or <code>null</code> if no shards are configured.
+     */
+    public static ShardedMailStore fromProperties() {
+        String urls = System.getProperty("mailserver.shards", "").trim();
+        if (urls.isEmpty()) {
+            return null;
+        }
+
+        List<MailStore> shards = new ArrayList<>();
+        for (String url : urls.split(",")) {
+            // Each shard numbers its own bodies
+            shards.add(new SqlMailStore(url.trim(), shards.size()));
+        }
+        return new ShardedMailStore(shards, new SqlShardDirectory(
+                ((SqlMailStore) shards.get(0)).getPool()),
+                Integer.getInteger("mailserver.shardCacheSize",
+                        DEFAULT_CACHE_SIZE),
+                Long.getLong("mailserver.shardCacheTtl", DEFAULT_CACHE_TTL));
+    }
+
+    /**
+     * @return the number of shards.
+     */
+    public int getShardCount() {
+        return mShards.size();
+    }
+
+    /**
+     * @param shard the index of a shard
+     * @return the store of the shard.
+     */
+    public MailStore getShard(int shard) {
+        return mShards.get(shard);
+    }
+
+    /**
+     * @return the directory of maildrops living off their hashed shard.
+     */
+    public ShardDirectory getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * @param username the vchUsername of a maildrop
+     * @return the index of the shard consistent hashing puts the maildrop
+     * on, ignoring the directory.
+     */
+    public int getHashedShard(String username) {
+        SortedMap<Long, Integer> tail = mRing.tailMap(hash(username));
+        return tail.isEmpty() ? mRing.firstEntry().getValue()
+                : tail.get(tail.firstKey());
+    }
+
+    /**
+     * Find the shard of a maildrop without using the cache.
+     *
+     * @param username the vchUsername of a maildrop
+     * @return the index of the shard the maildrop lives on.
+     * @throws SQLException
+     */
+    public int locate(String username) throws SQLException {
+        Integer shard = mDirectory.lookup(username);
+        int located = shard != null ? shard : getHashedShard(username);
+
+        synchronized (mCache) {
+            mCache.put(username, new CachedShard(located,
+                    System.currentTimeMillis() + mCacheTtl));
+        }
+        return located;
+    }
+
+    /**
+     * Forget the cached shard of a user, for example after their maildrop
+     * was moved.
+     *
+     * @param username the vchUsername of a maildrop
+     */
+    public void invalidate(String username) {
+        synchronized (mCache) {
+            mCache.remove(username);
+        }
+    }
+
+    /**
+     * @return the number of lookups answered from the cache.
+     */
+    public long getCacheHits() {
+        return mHits.get();
+    }
+
+    /**
+     * @return the number of lookups that read the directory.
+     */
+    public long getCacheMisses() {
+        return mMisses.get();
+    }
+
+    @Override
+    public Maildrop findMaildrop(String username) throws SQLException {
+        CachedShard cached;
+        synchronized (mCache) {
+            cached = mCache.get(username);
+        }
+
+        int shard;
+        if (cached != null && cached.mExpires > System.currentTimeMillis()) {
+            mHits.incrementAndGet();
+            shard = cached.mShard;
+        } else {
+            mMisses.incrementAndGet();
+            shard = locate(username);
+            cached = null;
+        }
+
+        Maildrop maildrop = mShards.get(shard).findMaildrop(username);
+        if (maildrop == null && cached != null) {
+            // Moved to another shard since it was cached
+            int located = locate(username);
+            if (located != shard) {
+                shard = located;
+                maildrop = mShards.get(shard).findMaildrop(username);
+            }
+        }
+
+        return maildrop == null ? null : new ShardMaildrop(shard, maildrop);
+    }
+
+    @Override
+    public List<Integer> getMailIDs(Maildrop maildrop) throws SQLException {
+        return shardOf(maildrop).getMailIDs(maildrop);
+    }
+
+    @Override
+    public List<Integer> getMailIDs(Maildrop maildrop, int afterMailID)
+            throws SQLException {
+        return shardOf(maildrop).getMailIDs(maildrop, afterMailID);
+    }
+
+    @Override
+    public long getDeleteVersion(Maildrop maildrop) throws SQLException {
+        return shardOf(maildrop).getDeleteVersion(maildrop);
+    }
+
+    @Override
+    public Map<Integer, Integer> getOctets(Maildrop maildrop)
+            throws SQLException {
+        return shardOf(maildrop).getOctets(maildrop);
+    }
+
+    @Override
+    public int getOctets(Maildrop maildrop, int mailID) throws SQLException {
+        return shardOf(maildrop).getOctets(maildrop, mailID);
+    }
+
+    @Override
+    public String getContent(Maildrop maildrop, int mailID)
+            throws SQLException {
+        return shardOf(maildrop).getContent(maildrop, mailID);
+    }
+
+    @Override
+    public Reader openContent(Maildrop maildrop, int mailID)
+            throws SQLException {
+        return shardOf(maildrop).openContent(maildrop, mailID);
+    }
+
+    @Override
+    public Reader openHeader(Maildrop maildrop, int mailID)
+            throws SQLException {
+        return shardOf(maildrop).openHeader(maildrop, mailID);
+    }
+
+    @Override
+    public Map<Integer, String> getUIDLs(Maildrop maildrop)
+            throws SQLException {
+        return shardOf(maildrop).getUIDLs(maildrop);
+    }
+
+    @Override
+    public String getUIDL(Maildrop maildrop, int mailID) throws SQLException {
+        return shardOf(maildrop).getUIDL(maildrop, mailID);
+    }
+
+    @Override
+    public long lock(Maildrop maildrop, String owner, long lease)
+            throws SQLException {
+        return shardOf(maildrop).lock(maildrop, owner, lease);
+    }
+
+    @Override
+    public boolean renewLock(Maildrop maildrop, long token, long lease)
+            throws SQLException {
+        return shardOf(maildrop).renewLock(maildrop, token, lease);
+    }
+
+    @Override
+    public void unlock(Maildrop maildrop, long token) throws SQLException {
+        shardOf(maildrop).unlock(maildrop, token);
+    }
+
+    @Override
+    public List<MaildropLock> getLocks() throws SQLException {
+        List<MaildropLock> locks = new ArrayList<>();
+        for (MailStore shard : mShards) {
+            locks.addAll(shard.getLocks());
+        }
+        return locks;
+    }
+
+    @Override
+    public boolean forceUnlock(Maildrop maildrop) throws SQLException {
+        return shardOf(maildrop).forceUnlock(maildrop);
+    }
+
+    @Override
+    public boolean deleteMail(Maildrop maildrop, long token,
+                              List<Integer> mailIDs) throws SQLException {
+        return shardOf(maildrop).deleteMail(maildrop, token, mailIDs);
+    }
+
+    @Override
+    public void addMail(List<Delivery> deliveries) throws SQLException {
+        Map<MailStore, List<Delivery>> byShard = new LinkedHashMap<>();
+        for (Delivery delivery : deliveries) {
+            MailStore shard = shardOf(delivery.getMaildrop());
+            List<Delivery> batch = byShard.get(shard);
+            if (batch == null) {
+                batch = new ArrayList<>();
+                byShard.put(shard, batch);
+            }
+            batch.add(delivery);
+        }
+
+        // Shards are separate transactions, so one failing does not stop
+        // the others
+        SQLException failure = null;
+        for (Map.Entry<MailStore, List<Delivery>> e : byShard.entrySet()) {
+            try {
+                e.getKey().addMail(e.getValue());
+            } catch (SQLException shardFailure) {
+                failure = shardFailure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        for (MailStore shard : mShards) {
+            shard.close();
+        }
+    }
+
+    /**
+     * @return the store of the shard the maildrop was found on.
+     */
+    private MailStore shardOf(Maildrop maildrop) throws SQLException {
+        if (maildrop instanceof ShardMaildrop) {
+            return mShards.get(((ShardMaildrop) maildrop).mShard);
+        }
+        return mShards.get(locate(maildrop.getUsername()));
+    }
+
+    /**
+     * @return the first 8 bytes of the MD5 digest of the key, which are
+     * spread evenly enough for placing keys on the ring.
+     */
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(
+                    key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support MD5
+            throw new IllegalStateException(e);
+        }
+    }
+}
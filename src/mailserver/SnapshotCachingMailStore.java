@@ -0,0 +1,402 @@
+package mailserver;
+
+import java.io.Reader;
+import java.sql.SQLException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link MailStore} that caches the list of messages in each maildrop, so
+ * that a session logging in to a maildrop that has not changed much does not
+ * read the whole list again.
+ * <p>
+ * A cached list is kept with the delete version of the maildrop and the
+ * highest iMailID it contains. If the delete version is unchanged, no message
+ * has been removed since, so only messages with a greater iMailID are read
+ * and appended: polling a large maildrop costs two indexed lookups however
+ * many messages it holds. Messages removed through this store are removed
+ * from the cached list as well, so a session deleting what it downloaded does
+ * not cause the next one to read the whole list. Removals made by other
+ * servers change the delete version, and the list is read again.
+ * <p>
+ * The list must be read while the maildrop is locked, as
+ * {@link EmailDatabase} does, for the delete version to describe it. Every
+ * other operation is passed through.
+ */
+public class SnapshotCachingMailStore implements MailStore {
+
+    /** The default maximum number of iMailIDs cached over all maildrops. */
+    public static final int DEFAULT_CACHE_SIZE = 1000000;
+
+    /** The cached list of messages of a maildrop. Never modified. */
+    private static class Snapshot {
+        final int mMaildropID;
+        final long mDeleteVersion;
+        final int[] mMailIDs;
+
+        Snapshot(int maildropID, long deleteVersion, int[] mailIDs) {
+            mMaildropID = maildropID;
+            mDeleteVersion = deleteVersion;
+            mMailIDs = mailIDs;
+        }
+
+        int getHighWater() {
+            return mMailIDs.length == 0 ? 0 : mMailIDs[mMailIDs.length - 1];
+        }
+    }
+
+    /**
+     * A read-only list backed by an array of iMailIDs, which layers above
+     * may keep instead of copying it.
+     */
+    static class MailIDList extends AbstractList<Integer>
+            implements RandomAccess {
+        private final int[] mMailIDs;
+
+        MailIDList(int[] mailIDs) {
+            mMailIDs = mailIDs;
+        }
+
+        /**
+         * @return the iMailIDs in ascending order, which must not be
+         * modified.
+         */
+        int[] getArray() {
+            return mMailIDs;
+        }
+
+        @Override
+        public Integer get(int index) {
+            return mMailIDs[index];
+        }
+
+        @Override
+        public int size() {
+            return mMailIDs.length;
+        }
+    }
+
+    private final MailStore mStore;
+    /** Guarded by mSnapshots. */
+    private int mCacheSize;
+    /** Keyed by vchUsername, least recently used first. Guarded by itself. */
+    private final LinkedHashMap<String, Snapshot> mSnapshots =
+            new LinkedHashMap<>(16, 0.75f, true);
+    /** The number of iMailIDs in mSnapshots. Guarded by mSnapshots. */
+    private long mCachedIDs;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * @param store     the store to cache
+     * @param cacheSize the maximum number of iMailIDs cached over all
+     *                  maildrops
+     */
+    public SnapshotCachingMailStore(MailStore store, int cacheSize) {
+        mStore = store;
+        mCacheSize = cacheSize;
+    }
+
+    /**
+     * Cache a store with the size given by the mailserver.snapshotCacheSize
+     * system property.
+     *
+     * @param store the store to cache
+     * @return the caching store, or the store itself if the size is zero.
+     */
+    public static MailStore fromProperties(MailStore store) {
+        int size = Integer.getInteger("mailserver.snapshotCacheSize",
+                DEFAULT_CACHE_SIZE);
+        if (size <= 0) {
+            return store;
+        }
+
+        final SnapshotCachingMailStore cache =
+                new SnapshotCachingMailStore(store, size);
+        Config.addListener("mailserver.snapshotCacheSize",
+                new Config.Listener() {
+
+                    @Override
+                    public void changed(String name, String value) {
+                        cache.setCacheSize(value == null ? DEFAULT_CACHE_SIZE
+                                : Integer.parseInt(value));
+                    }
+
+                });
+        return cache;
+    }
+
+    /**
+     * Change the maximum number of iMailIDs cached, evicting the least
+     * recently used lists if the cache shrinks.
+     *
+     * @param cacheSize the maximum number of iMailIDs cached over all
+     *                  maildrops
+     */
+    public void setCacheSize(int cacheSize) {
+        synchronized (mSnapshots) {
+            mCacheSize = cacheSize;
+            evict();
+        }
+    }
+
+    /**
+     * @return the store being cached.
+     */
+    public MailStore getStore() {
+        return mStore;
+    }
+
+    /**
+     * @return the number of lists read from the cache, with only the new
+     * messages read from the store.
+     */
+    public long getHits() {
+        return mHits.get();
+    }
+
+    /**
+     * @return the number of lists read from the store in full.
+     */
+    public long getMisses() {
+        return mMisses.get();
+    }
+
+    /**
+     * @return the number of maildrops whose list is cached.
+     */
+    public int getCachedMaildrops() {
+        synchronized (mSnapshots) {
+            return mSnapshots.size();
+        }
+    }
+
+    /**
+     * Forget the cached list of a maildrop.
+     *
+     * @param username the vchUsername of the maildrop
+     */
+    public void invalidate(String username) {
+        synchronized (mSnapshots) {
+            put(username, null);
+        }
+    }
+
+    @Override
+    public Maildrop findMaildrop(String username) throws SQLException {
+        return mStore.findMaildrop(username);
+    }
+
+    @Override
+    public List<Integer> getMailIDs(Maildrop maildrop) throws SQLException {
+        Snapshot cached;
+        synchronized (mSnapshots) {
+            cached = mSnapshots.get(maildrop.getUsername());
+        }
+
+        // Read before the list, so a removal in between makes the cached
+        // version look out of date rather than the list look current
+        long version = mStore.getDeleteVersion(maildrop);
+
+        int[] mailIDs;
+        if (cached != null && cached.mMaildropID == maildrop.getId()
+                && cached.mDeleteVersion == version) {
+            mHits.incrementAndGet();
+            List<Integer> added =
+                    mStore.getMailIDs(maildrop, cached.getHighWater());
+            if (added.isEmpty()) {
+                return new MailIDList(cached.mMailIDs);
+            }
+
+            mailIDs = Arrays.copyOf(cached.mMailIDs,
+                    cached.mMailIDs.length + added.size());
+            int i = cached.mMailIDs.length;
+            for (Integer mailID : added) {
+                mailIDs[i++] = mailID;
+            }
+        } else {
+            mMisses.incrementAndGet();
+            List<Integer> all = mStore.getMailIDs(maildrop);
+            mailIDs = new int[all.size()];
+            int i = 0;
+            for (Integer mailID : all) {
+                mailIDs[i++] = mailID;
+            }
+        }
+
+        synchronized (mSnapshots) {
+            put(maildrop.getUsername(),
+                    new Snapshot(maildrop.getId(), version, mailIDs));
+        }
+        return new MailIDList(mailIDs);
+    }
+
+    @Override
+    public List<Integer> getMailIDs(Maildrop maildrop, int afterMailID)
+            throws SQLException {
+        return mStore.getMailIDs(maildrop, afterMailID);
+    }
+
+    @Override
+    public long getDeleteVersion(Maildrop maildrop) throws SQLException {
+        return mStore.getDeleteVersion(maildrop);
+    }
+
+    @Override
+    public Map<Integer, Integer> getOctets(Maildrop maildrop)
+            throws SQLException {
+        return mStore.getOctets(maildrop);
+    }
+
+    @Override
+    public int getOctets(Maildrop maildrop, int mailID) throws SQLException {
+        return mStore.getOctets(maildrop, mailID);
+    }
+
+    @Override
+    public String getContent(Maildrop maildrop, int mailID)
+            throws SQLException {
+        return mStore.getContent(maildrop, mailID);
+    }
+
+    @Override
+    public Reader openContent(Maildrop maildrop, int mailID)
+            throws SQLException {
+        return mStore.openContent(maildrop, mailID);
+    }
+
+    @Override
+    public Reader openHeader(Maildrop maildrop, int mailID)
+            throws SQLException {
+        return mStore.openHeader(maildrop, mailID);
+    }
+
+    @Override
+    public Map<Integer, String> getUIDLs(Maildrop maildrop)
+            throws SQLException {
+        return mStore.getUIDLs(maildrop);
+    }
+
+    @Override
+    public String getUIDL(Maildrop maildrop, int mailID) throws SQLException {
+        return mStore.getUIDL(maildrop, mailID);
+    }
+
+    @Override
+    public long lock(Maildrop maildrop, String owner, long lease)
+            throws SQLException {
+        return mStore.lock(maildrop, owner, lease);
+    }
+
+    @Override
+    public boolean renewLock(Maildrop maildrop, long token, long lease)
+            throws SQLException {
+        return mStore.renewLock(maildrop, token, lease);
+    }
+
+    @Override
+    public void unlock(Maildrop maildrop, long token) throws SQLException {
+        mStore.unlock(maildrop, token);
+    }
+
+    @Override
+    public List<MaildropLock> getLocks() throws SQLException {
+        return mStore.getLocks();
+    }
+
+    @Override
+    public boolean forceUnlock(Maildrop maildrop) throws SQLException {
+        return mStore.forceUnlock(maildrop);
+    }
+
+    @Override
+    public boolean deleteMail(Maildrop maildrop, long token,
+                              List<Integer> mailIDs) throws SQLException {
+        boolean deleted;
+        try {
+            deleted = mStore.deleteMail(maildrop, token, mailIDs);
+        } catch (SQLException e) {
+            // The removal may have been committed
+            invalidate(maildrop.getUsername());
+            throw e;
+        }
+        if (!deleted || mailIDs.isEmpty()) {
+            return deleted;
+        }
+
+        synchronized (mSnapshots) {
+            Snapshot cached = mSnapshots.get(maildrop.getUsername());
+            if (cached == null || cached.mMaildropID != maildrop.getId()) {
+                return true;
+            }
+
+            // The lock was held, so nothing else was removed since the list
+            // was read and the version moved on by exactly one
+            Set<Integer> removed = new HashSet<>(mailIDs);
+            int[] remaining = new int[cached.mMailIDs.length];
+            int count = 0;
+            for (int mailID : cached.mMailIDs) {
+                if (!removed.contains(mailID)) {
+                    remaining[count++] = mailID;
+                }
+            }
+            put(maildrop.getUsername(), new Snapshot(maildrop.getId(),
+                    cached.mDeleteVersion + 1,
+                    Arrays.copyOf(remaining, count)));
+        }
+        return true;
+    }
+
+    @Override
+    public void addMail(List<Delivery> deliveries) throws SQLException {
+        // Nothing to invalidate: new messages have greater iMailIDs than any
+        // cached, and are read by the next refresh of the list
+        mStore.addMail(deliveries);
+    }
+
+    @Override
+    public void close() throws SQLException {
+        mStore.close();
+    }
+
+    /**
+     * Replace the cached list of a maildrop and evict the least recently
+     * used lists until the cache fits. Must hold mSnapshots.
+     *
+     * @param snapshot the new list, or <code>null</code> to remove it
+     */
+    private void put(String username, Snapshot snapshot) {
+        Snapshot previous = snapshot == null ? mSnapshots.remove(username)
+                : mSnapshots.put(username, snapshot);
+        if (previous != null) {
+            mCachedIDs -= previous.mMailIDs.length;
+        }
+        if (snapshot == null) {
+            return;
+        }
+
+        mCachedIDs += snapshot.mMailIDs.length;
+        evict();
+    }
+
+    /**
+     * Evict the least recently used lists until the cache fits. Must hold
+     * mSnapshots.
+     */
+    private void evict() {
+        Iterator<Snapshot> eldest = mSnapshots.values().iterator();
+        while (mCachedIDs > mCacheSize && eldest.hasNext()) {
+            mCachedIDs -= eldest.next().mMailIDs.length;
+            eldest.remove();
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package mailserver;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * The message bodies shared between m_Mail rows, stored once in the
+ * m_MailBody table keyed by their SHA-256 digest.
+ * <p>
+ * Each body counts the m_Mail rows referring to it. Storing a body that
+ * already exists increments its count instead of inserting it again, and
+ * deleting a message decrements the count in the same transaction. Bodies
+ * whose count reaches zero are left in place and removed later by
+ * {@link #collect}, so deleting mail never waits for large rows to be
+ * removed, and a body deleted by one maildrop and delivered to another in
+ * the meantime is simply reused.
+ * <p>
+ * The methods taking a connection run in the caller's transaction.
+ */
+public class SqlBodyStore {
+
+    private static final SqlStatement SELECT_BODY =
+            new SqlStatement("SqlBodyStore.load",
+                    "SELECT tiCompression, txBody, blBody FROM m_MailBody"
+                            + " WHERE iBodyID = ? ");
+
+    private static final SqlStatement STORE =
+            new SqlStatement("SqlBodyStore.store",
+                    "INSERT INTO m_MailBody (binHash, tiCompression, txBody,"
+                            + " blBody, iOctets, iRefCount)"
+                            + " VALUES (?, ?, ?, ?, ?, ?)"
+                            + " ON DUPLICATE KEY UPDATE"
+                            + " iRefCount = iRefCount + VALUES(iRefCount),"
+                            + " iBodyID = LAST_INSERT_ID(iBodyID) ",
+                    Statement.RETURN_GENERATED_KEYS);
+
+    private static final SqlStatement REFERENCE =
+            new SqlStatement("SqlBodyStore.reference",
+                    "UPDATE m_MailBody SET iRefCount = iRefCount + 1"
+                            + " WHERE iBodyID = ? ");
+
+    private static final SqlStatement SELECT_COPY =
+            new SqlStatement("SqlBodyStore.copy",
+                    "SELECT binHash, tiCompression, txBody, blBody, iOctets"
+                            + " FROM m_MailBody WHERE iBodyID = ? ");
+
+    private static final SqlStatement RELEASE =
+            new SqlStatement("SqlBodyStore.release",
+                    "UPDATE m_MailBody SET iRefCount = iRefCount - ?"
+                            + " WHERE iBodyID = ? ");
+
+    private static final SqlStatement RELEASE_ALL =
+            new SqlStatement("SqlBodyStore.releaseAll",
+                    "UPDATE m_MailBody b JOIN (SELECT iBodyID, COUNT(*) AS n"
+                            + " FROM m_Mail WHERE iMaildropID = ?"
+                            + " AND iBodyID IS NOT NULL GROUP BY iBodyID) r"
+                            + " ON r.iBodyID = b.iBodyID"
+                            + " SET b.iRefCount = b.iRefCount - r.n ");
+
+    private static final SqlStatement COLLECT =
+            new SqlStatement("SqlBodyStore.collect",
+                    "DELETE FROM m_MailBody WHERE iRefCount <= 0 LIMIT ? ");
+
+    /** The most messages whose references are read in one statement. */
+    private static final int REFERENCE_ROWS = 100;
+
+    private final ConnectionPool mPool;
+    private final BodyCache mCache;
+    /** The number of the database in the cache, see BodyCache. */
+    private final int mDatabase;
+
+    /**
+     * @param pool     the connections to the database holding m_MailBody
+     * @param cache    the cache of bodies read from it
+     * @param database the number of the database in the cache: the index
+     *                 of a shard, or that of the primary for a replica
+     */
+    public SqlBodyStore(ConnectionPool pool, BodyCache cache, int database) {
+        mPool = pool;
+        mCache = cache;
+        mDatabase = database;
+    }
+
+    /**
+     * @return the cache of bodies read from the database.
+     */
+    public BodyCache getCache() {
+        return mCache;
+    }
+
+    /**
+     * Read a body, from the cache if possible.
+     *
+     * @param connection the connection to read it with
+     * @param bodyID     the iBodyID of the body
+     * @return the body, or <code>null</code> if it does not exist.
+     * @throws SQLException
+     */
+    public MailBody load(Connection connection, int bodyID)
+            throws SQLException {
+        MailBody body = mCache.get(mDatabase, bodyID);
+        if (body != null) {
+            return body;
+        }
+
+        PreparedStatement statement = SELECT_BODY.prepare(connection);
+        statement.setInt(1, bodyID);
+        ResultSet rs = SELECT_BODY.executeQuery(statement);
+
+        if (rs.next()) {
+            body = new MailBody(rs.getInt("tiCompression"),
+                    rs.getString("txBody"), rs.getBytes("blBody"));
+            mCache.put(mDatabase, bodyID, body);
+        }
+
+        rs.close();
+
+        return body;
+    }
+
+    /**
+     * Store a body, or add a reference to it if it is already stored.
+     *
+     * @param connection the connection to store it with
+     * @param hash       the {@link MailBody#hash} of the body
+     * @param body       the body as it should be stored if it is new
+     * @param octets     the size of the body in octets
+     * @return the iBodyID of the body.
+     * @throws SQLException
+     */
+    public int store(Connection connection, byte[] hash, MailBody body,
+                     int octets) throws SQLException {
+        return store(connection, hash, body, octets, 1);
+    }
+
+    /**
+     * Store a body for several messages at once, or add their references
+     * to it if it is already stored.
+     *
+     * @param connection the connection to store it with
+     * @param hash       the {@link MailBody#hash} of the body
+     * @param body       the body as it should be stored if it is new
+     * @param octets     the size of the body in octets
+     * @param references the number of messages that will refer to it
+     * @return the iBodyID of the body.
+     * @throws SQLException
+     */
+    public int store(Connection connection, byte[] hash, MailBody body,
+                     int octets, int references) throws SQLException {
+        // LAST_INSERT_ID(expr) makes the existing row's ID the generated key
+        PreparedStatement statement = STORE.prepare(connection);
+        statement.setBytes(1, hash);
+        statement.setInt(2, body.getCompression());
+        statement.setString(3, body.getText());
+        statement.setBytes(4, body.getCompressed());
+        statement.setInt(5, octets);
+        statement.setInt(6, references);
+        STORE.executeUpdate(statement);
+
+        ResultSet keys = statement.getGeneratedKeys();
+        keys.next();
+        int bodyID = keys.getInt(1);
+
+        keys.close();
+
+        return bodyID;
+    }
+
+    /**
+     * Add a reference to a body already stored.
+     *
+     * @param connection the connection to store the reference with
+     * @param bodyID     the iBodyID of the body
+     * @throws SQLException
+     */
+    public void reference(Connection connection, int bodyID)
+            throws SQLException {
+        PreparedStatement statement = REFERENCE.prepare(connection);
+        statement.setInt(1, bodyID);
+        REFERENCE.executeUpdate(statement);
+    }
+
+    /**
+     * Add a reference to a body of another database, storing it there if it
+     * is not already, without decompressing it.
+     *
+     * @param input  a connection to this store's database
+     * @param output a connection to the database to copy the body to
+     * @param bodyID the iBodyID of the body in this store
+     * @return the iBodyID of the body in the other database.
+     * @throws SQLException if the body does not exist
+     */
+    public int copy(Connection input, Connection output, int bodyID)
+            throws SQLException {
+        PreparedStatement statement = SELECT_COPY.prepare(input);
+        statement.setInt(1, bodyID);
+        ResultSet rs = SELECT_COPY.executeQuery(statement);
+        if (!rs.next()) {
+            rs.close();
+            throw new SQLException("Body " + bodyID + " is missing");
+        }
+
+        byte[] hash = rs.getBytes("binHash");
+        MailBody body = new MailBody(rs.getInt("tiCompression"),
+                rs.getString("txBody"), rs.getBytes("blBody"));
+        int octets = rs.getInt("iOctets");
+
+        rs.close();
+
+        return store(output, hash, body, octets);
+    }
+
+    /**
+     * Count the references of messages to their bodies, before the
+     * messages are deleted. Their rows are locked, in order of iMailID as
+     * MailDeduplicator locks them, so that a body it sets meanwhile is
+     * either counted or waits for the deletion.
+     *
+     * @param connection the connection deleting the messages
+     * @param maildropID the iMaildropID of the messages
+     * @param mailIDs    the iMailIDs of the messages
+     * @param references receives the number of references to each iBodyID
+     * @throws SQLException
+     */
+    public void countReferences(Connection connection, int maildropID,
+                                List<Integer> mailIDs,
+                                Map<Integer, Integer> references)
+            throws SQLException {
+        List<Integer> sorted = new ArrayList<>(mailIDs);
+        Collections.sort(sorted);
+        for (int start = 0; start < sorted.size(); start += REFERENCE_ROWS) {
+            List<Integer> rows = sorted.subList(start,
+                    Math.min(sorted.size(), start + REFERENCE_ROWS));
+
+            StringBuilder sql = new StringBuilder(
+                    "SELECT iBodyID FROM m_Mail WHERE iMaildropID = ?"
+                            + " AND iMailID IN (");
+            for (int i = 0; i < rows.size(); i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+            sql.append(") ORDER BY iMailID FOR UPDATE ");
+
+            PreparedStatement statement =
+                    connection.prepareStatement(sql.toString());
+            try {
+                int parameter = 1;
+                statement.setInt(parameter++, maildropID);
+                for (Integer mailID : rows) {
+                    statement.setInt(parameter++, mailID);
+                }
+                ResultSet rs = statement.executeQuery();
+                while (rs.next()) {
+                    int bodyID = rs.getInt("iBodyID");
+                    if (!rs.wasNull()) {
+                        Integer count = references.get(bodyID);
+                        references.put(bodyID,
+                                count == null ? 1 : count + 1);
+                    }
+                }
+                rs.close();
+            } finally {
+                statement.close();
+            }
+        }
+    }
+
+    /**
+     * Remove references to bodies, counted by {@link #countReferences}.
+     * The bodies are updated in order of iBodyID, so that transactions
+     * releasing several of them cannot deadlock with each other.
+     *
+     * @param connection the connection deleting the messages
+     * @param references the number of references to each iBodyID
+     * @throws SQLException
+     */
+    public void release(Connection connection,
+                        SortedMap<Integer, Integer> references)
+            throws SQLException {
+        if (references.isEmpty()) {
+            return;
+        }
+
+        PreparedStatement statement = RELEASE.prepare(connection);
+        for (Map.Entry<Integer, Integer> e : references.entrySet()) {
+            statement.setInt(1, e.getValue());
+            statement.setInt(2, e.getKey());
+            statement.addBatch();
+        }
+        RELEASE.executeBatch(statement);
+    }
+
+    /**
+     * Remove the references of every message in a maildrop to their bodies,
+     * before the maildrop is deleted.
+     *
+     * @param connection the connection deleting the maildrop
+     * @param maildropID the iMaildropID of the maildrop
+     * @throws SQLException
+     */
+    public void releaseAll(Connection connection, int maildropID)
+            throws SQLException {
+        PreparedStatement statement = RELEASE_ALL.prepare(connection);
+        statement.setInt(1, maildropID);
+        RELEASE_ALL.executeUpdate(statement);
+    }
+
+    /**
+     * Delete bodies no message refers to any more. A body that is stored
+     * again while this runs is either kept, having been referred to first,
+     * or inserted again afterwards.
+     *
+     * @param limit the maximum number of bodies to delete
+     * @return the number of bodies deleted.
+     * @throws SQLException
+     */
+    public int collect(int limit) throws SQLException {
+        Connection connection = mPool.borrow();
+        try {
+            PreparedStatement statement = COLLECT.prepare(connection);
+            statement.setInt(1, limit);
+            int deleted = COLLECT.executeUpdate(statement);
+
+            return deleted;
+        } finally {
+            mPool.release(connection);
+        }
+    }
+}
@@ -0,0 +1,1112 @@
+package mailserver;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A {@link MailStore} backed by the m_Maildrop and m_Mail tables of a MySQL
+ * database. A single instance can be shared by every session: each operation
+ * borrows a connection from a {@link ConnectionPool} and returns it as soon as
+ * the operation completes.
+ * <p>
+ * Note: The database and the credentials for logging onto the MySQL server
+ * are given by the mailserver.dbUrl, mailserver.dbUser and
+ * mailserver.dbPassword settings (see {@link Config}).
+ */
+public class SqlMailStore implements MailStore {
+
+    /**
+     * The default maximum number of connections to the database. Overridden
+     * by the mailserver.poolSize system property.
+     */
+    public static final int DEFAULT_POOL_SIZE = 20;
+
+    /** The time in milliseconds to wait for a free connection. */
+    private static final long BORROW_TIMEOUT = 5000;
+
+    /**
+     * The default number of transactions committing the locks, unlocks and
+     * deletions of sessions at the same time, or 0 to commit each in a
+     * transaction of its own. Overridden by the
+     * mailserver.groupCommitThreads system property.
+     */
+    public static final int DEFAULT_GROUP_COMMIT_THREADS = 2;
+
+    /**
+     * The default maximum number of writes per group commit. Overridden by
+     * the mailserver.groupCommitSize system property.
+     */
+    public static final int DEFAULT_GROUP_COMMIT_SIZE = 100;
+
+    /**
+     * The default time in milliseconds a group commit waits for more
+     * writes. At 0 it takes those queued while the previous group was
+     * committing, which adds no latency when sessions are few. Overridden
+     * by the mailserver.groupCommitDelay system property.
+     */
+    public static final long DEFAULT_GROUP_COMMIT_DELAY = 0;
+
+    /**
+     * The size of a message before compression. iOctets is set on
+     * compressed rows and on delivered ones, where it is the size sent by
+     * RETR with CRLF line endings.
+     */
+    private static final String OCTETS =
+            "COALESCE(iOctets, LENGTH(txMailContent))";
+
+    /**
+     * Whether txMailContent or blMailContent is read whole by
+     * {@link #openHeader}: the row only holds the header, or the header has
+     * not been indexed yet (see HeaderIndexer).
+     */
+    private static final String WHOLE_ROW =
+            "iBodyID IS NOT NULL OR iHeaderLength IS NULL";
+
+    /** The maximum number of rows per INSERT of {@link #addMail}. */
+    private static final int INSERT_ROWS = 100;
+
+    /**
+     * The number of characters of messages above which {@link #addMail}
+     * starts a new INSERT, to stay well below max_allowed_packet.
+     */
+    private static final int INSERT_CHARS = 1024 * 1024;
+
+    // The statements are prepared once per connection, see SqlStatement.
+    // Those whose SQL depends on the number of rows are prepared each time.
+
+    private static final SqlStatement FIND_MAILDROP =
+            new SqlStatement("SqlMailStore.findMaildrop",
+                    "SELECT iMaildropID, vchPassword, (tiLocked <> 0 AND"
+                            + " (dtLockExpires IS NULL"
+                            + " OR dtLockExpires >= NOW(3))) AS bLocked"
+                            + " FROM m_Maildrop WHERE vchUsername = ? ");
+
+    private static final SqlStatement SELECT_MAIL_IDS =
+            new SqlStatement("SqlMailStore.getMailIDs",
+                    "SELECT iMailID FROM m_Mail WHERE iMaildropID = ?"
+                            + " ORDER BY iMailID ");
+
+    private static final SqlStatement SELECT_MAIL_IDS_AFTER =
+            new SqlStatement("SqlMailStore.getMailIDsAfter",
+                    "SELECT iMailID FROM m_Mail WHERE iMaildropID = ?"
+                            + " AND iMailID > ? ORDER BY iMailID ");
+
+    private static final SqlStatement SELECT_DELETE_VERSION =
+            new SqlStatement("SqlMailStore.getDeleteVersion",
+                    "SELECT iDeleteVersion FROM m_Maildrop"
+                            + " WHERE iMaildropID = ? ");
+
+    private static final SqlStatement SELECT_OCTETS =
+            new SqlStatement("SqlMailStore.getOctets",
+                    "SELECT iMailID, " + OCTETS + " AS octets"
+                            + " FROM m_Mail WHERE (iMaildropID = ?) ");
+
+    private static final SqlStatement SELECT_MESSAGE_OCTETS =
+            new SqlStatement("SqlMailStore.getMessageOctets",
+                    "SELECT " + OCTETS + " AS octets"
+                            + " FROM m_Mail WHERE (iMaildropID = ?)"
+                            + " AND (iMailID = ?) ");
+
+    private static final SqlStatement SELECT_CONTENT =
+            new SqlStatement("SqlMailStore.openContent",
+                    "SELECT tiCompression, txMailContent, blMailContent,"
+                            + " iBodyID FROM m_Mail WHERE iMailID = ? ");
+
+    private static final SqlStatement SELECT_HEADER =
+            new SqlStatement("SqlMailStore.openHeader",
+                    "SELECT tiCompression, iBodyID, iHeaderLength,"
+                            + " IF(" + WHOLE_ROW + ", txMailContent,"
+                            + " SUBSTRING(txMailContent, 1, iHeaderLength))"
+                            + " AS txHeader,"
+                            + " IF(" + WHOLE_ROW + ", blMailContent,"
+                            + " SUBSTRING(blMailContent, 1, iHeaderLength))"
+                            + " AS blHeader"
+                            + " FROM m_Mail WHERE iMailID = ? ");
+
+    private static final SqlStatement SELECT_UIDLS =
+            new SqlStatement("SqlMailStore.getUIDLs",
+                    "SELECT iMailID, vchUIDL FROM m_Mail"
+                            + " WHERE iMaildropID = ? ");
+
+    private static final SqlStatement SELECT_UIDL =
+            new SqlStatement("SqlMailStore.getUIDL",
+                    "SELECT vchUIDL FROM m_Mail WHERE iMailID = ? ");
+
+    private static final SqlStatement LOCK =
+            new SqlStatement("SqlMailStore.lock",
+                    "UPDATE m_Maildrop SET tiLocked = 1, vchLockOwner = ?,"
+                            + " iLockToken = LAST_INSERT_ID(iLockToken + 1),"
+                            + " dtLocked = NOW(3),"
+                            + " dtLockExpires = NOW(3) + INTERVAL ? MICROSECOND"
+                            + " WHERE iMaildropID = ? AND (tiLocked = 0"
+                            + " OR dtLockExpires < NOW(3)) ");
+
+    private static final SqlStatement SELECT_LOCK_TOKEN =
+            new SqlStatement("SqlMailStore.lockToken",
+                    "SELECT LAST_INSERT_ID()");
+
+    private static final SqlStatement RENEW_LOCK =
+            new SqlStatement("SqlMailStore.renewLock",
+                    "UPDATE m_Maildrop SET dtLockExpires = NOW(3)"
+                            + " + INTERVAL ? MICROSECOND"
+                            + " WHERE iMaildropID = ? AND tiLocked = 1"
+                            + " AND iLockToken = ? ");
+
+    private static final SqlStatement UNLOCK =
+            new SqlStatement("SqlMailStore.unlock",
+                    "UPDATE m_Maildrop SET tiLocked = 0,"
+                            + " vchLockOwner = NULL, dtLockExpires = NULL"
+                            + " WHERE iMaildropID = ? AND iLockToken = ? ");
+
+    private static final SqlStatement SELECT_LOCKS =
+            new SqlStatement("SqlMailStore.getLocks",
+                    "SELECT vchUsername, vchLockOwner, iLockToken,"
+                            + " TIMESTAMPDIFF(MICROSECOND, dtLocked, NOW(3))"
+                            + " DIV 1000 AS iAge,"
+                            + " TIMESTAMPDIFF(MICROSECOND, NOW(3),"
+                            + " dtLockExpires) DIV 1000 AS iExpiresIn"
+                            + " FROM m_Maildrop WHERE tiLocked <> 0"
+                            + " AND (dtLockExpires IS NULL"
+                            + " OR dtLockExpires >= NOW(3))"
+                            + " ORDER BY dtLocked ");
+
+    private static final SqlStatement FORCE_UNLOCK =
+            new SqlStatement("SqlMailStore.forceUnlock",
+                    "UPDATE m_Maildrop SET tiLocked = 0,"
+                            + " vchLockOwner = NULL, dtLockExpires = NULL"
+                            + " WHERE iMaildropID = ? AND tiLocked <> 0 ");
+
+    private static final SqlStatement FENCE =
+            new SqlStatement("SqlMailStore.fence",
+                    "SELECT tiLocked, iLockToken FROM m_Maildrop"
+                            + " WHERE iMaildropID = ? FOR UPDATE ");
+
+    private static final SqlStatement DELETE_MAIL =
+            new SqlStatement("SqlMailStore.deleteMail",
+                    "DELETE FROM m_Mail WHERE iMailID = ?"
+                            + " AND iMaildropID = ? ");
+
+    private static final SqlStatement INCREMENT_DELETE_VERSION =
+            new SqlStatement("SqlMailStore.incrementDeleteVersion",
+                    "UPDATE m_Maildrop SET iDeleteVersion = iDeleteVersion + 1"
+                            + " WHERE iMaildropID = ? ");
+
+    /** The connections to the SQL database. */
+    private final ConnectionPool mPool;
+    /** The message bodies shared between messages. */
+    private final SqlBodyStore mBodies;
+    /** Whether delivered messages are compressed. */
+    private final boolean mCompress;
+    /** The size of bodies shared at delivery, or -1 to share none. */
+    private final int mDedupMinOctets;
+    /** The number of group commit threads, or 0 to disable group commit. */
+    private final int mGroupCommitThreads;
+    /** Commits the writes of sessions together, see getGroupCommit(). */
+    private BatchWriter<MaildropWrite> mGroupCommit;
+
+    /** A delivered message encoded for its m_Mail rows. */
+    private static class Encoded {
+        /** The txMailContent or blMailContent of the rows. */
+        MailBody mContent;
+        /** The iBodyID of the rows, or 0 if they hold the whole message. */
+        int mBodyID;
+        /** The number of rows, which each refer to the body. */
+        int mRows;
+    }
+
+    /** A write to one maildrop, committed together with others. */
+    abstract static class MaildropWrite {
+        /** The iMaildropID of the maildrop written. */
+        final int mMaildropID;
+        /** The result of {@link #apply}, set once it is committed. */
+        long mResult;
+        /**
+         * The references to bodies dropped by {@link #apply}, by iBodyID,
+         * or <code>null</code>. They are released by commit() after every
+         * write of the group.
+         */
+        Map<Integer, Integer> mReleased;
+
+        MaildropWrite(int maildropID) {
+            mMaildropID = maildropID;
+        }
+
+        /**
+         * Apply the write within the transaction of its group, without
+         * committing it.
+         *
+         * @param connection the connection of the transaction
+         * @return the result for the caller.
+         * @throws SQLException if the write failed, which rolls back the
+         *                      whole group
+         */
+        abstract long apply(Connection connection) throws SQLException;
+    }
+
+    /**
+     * Construct a SqlMailStore for the database given by mailserver.dbUrl.
+     * No connection is opened until one is needed.
+     */
+    public SqlMailStore() {
+        this(Config.getDatabaseUrl());
+    }
+
+    /**
+     * Construct a SqlMailStore for a replica of the database given by
+     * mailserver.dbUrl, using the credentials of mailserver.dbUser and
+     * mailserver.dbPassword.
+     *
+     * @param url the JDBC URL of the database
+     */
+    public SqlMailStore(String url) {
+        this(url, 0);
+    }
+
+    /**
+     * Construct a SqlMailStore for another database, such as a shard, using
+     * the credentials of mailserver.dbUser and mailserver.dbPassword.
+     *
+     * @param url      the JDBC URL of the database
+     * @param database the number of the database in the server's
+     *                 {@link BodyCache}: the index of a shard, or 0 for the
+     *                 database given by mailserver.dbUrl and its replicas
+     */
+    public SqlMailStore(String url, int database) {
+        this(new ConnectionPool(url, Config.getDatabaseUser(),
+                Config.getDatabasePassword(),
+                Integer.getInteger("mailserver.poolSize", DEFAULT_POOL_SIZE),
+                BORROW_TIMEOUT), BodyCache.getShared(), database);
+    }
+
+    /**
+     * @return a store for each database holding maildrops: every shard
+     * listed in mailserver.shards, or the database given by
+     * mailserver.dbUrl.
+     */
+    public static List<SqlMailStore> allFromProperties() {
+        List<SqlMailStore> stores = new ArrayList<>();
+        ShardedMailStore sharded = ShardedMailStore.fromProperties();
+        if (sharded == null) {
+            stores.add(new SqlMailStore());
+        } else {
+            for (int shard = 0; shard < sharded.getShardCount(); shard++) {
+                stores.add((SqlMailStore) sharded.getShard(shard));
+            }
+        }
+        return stores;
+    }
+
+    /**
+     * Construct a SqlMailStore using the given connections to the database
+     * given by mailserver.dbUrl, caching bodies in the server's cache.
+     *
+     * @param pool the connections to the SQL database
+     */
+    public SqlMailStore(ConnectionPool pool) {
+        this(pool, BodyCache.getShared(), 0);
+    }
+
+    /**
+     * Construct a SqlMailStore using the given connections and cache.
+     *
+     * @param pool      the connections to the SQL database
+     * @param bodyCache caches the bodies shared between messages
+     * @param database  the number of the database in the cache, see
+     *                  {@link #SqlMailStore(String, int)}
+     */
+    public SqlMailStore(ConnectionPool pool, BodyCache bodyCache,
+                        int database) {
+        mPool = pool;
+        mBodies = new SqlBodyStore(pool, bodyCache, database);
+        mCompress = MailCompression.isEnabled();
+        mDedupMinOctets = Boolean.getBoolean("mailserver.dedupMail")
+                ? Integer.getInteger("mailserver.dedupMinOctets",
+                MailDeduplicator.DEFAULT_MIN_OCTETS) : -1;
+        mGroupCommitThreads = Integer.getInteger(
+                "mailserver.groupCommitThreads", DEFAULT_GROUP_COMMIT_THREADS);
+    }
+
+    /**
+     * @return the connections used by the store.
+     */
+    public ConnectionPool getPool() {
+        return mPool;
+    }
+
+    /**
+     * @return the message bodies shared between messages.
+     */
+    public SqlBodyStore getBodies() {
+        return mBodies;
+    }
+
+    @Override
+    public Maildrop findMaildrop(String username) throws SQLException {
+        Connection connection = mPool.borrow();
+        try {
+            // A lock whose lease has expired can be taken over, so it does
+            // not count. Locks without a lease never expire.
+            PreparedStatement statement = FIND_MAILDROP.prepare(connection);
+            statement.setString(1, username);
+            ResultSet rs = FIND_MAILDROP.executeQuery(statement);
+
+            Maildrop maildrop = null;
+            if (rs.next()) {
+                maildrop = new Maildrop(rs.getInt("iMaildropID"), username,
+                        rs.getString("vchPassword"), rs.getBoolean("bLocked"));
+            }
+
+            rs.close();
+
+            return maildrop;
+        } finally {
+            mPool.release(connection);
+        }
+    }
+
+    @Override
+    public List<Integer> getMailIDs(Maildrop maildrop) throws SQLException {
+        Connection connection = mPool.borrow();
+        try {
+            PreparedStatement statement = SELECT_MAIL_IDS.prepare(connection);
+            statement.setInt(1, maildrop.getId());
+            ResultSet rs = SELECT_MAIL_IDS.executeQuery(statement);
+
+            List<Integer> mailIDs = new ArrayList<>();
+            while (rs.next()) {
+                mailIDs.add(rs.getInt("iMailID"));
+            }
+
+            rs.close();
+
+            return mailIDs;
+        } finally {
+            mPool.release(connection);
+        }
+    }
+
+    @Override
+    public List<Integer> getMailIDs(Maildrop maildrop, int afterMailID)
+            throws SQLException {
+        Connection connection = mPool.borrow();
+        try {
+            PreparedStatement statement =
+                    SELECT_MAIL_IDS_AFTER.prepare(connection);
+            statement.setInt(1, maildrop.getId());
+            statement.setInt(2, afterMailID);
+            ResultSet rs = SELECT_MAIL_IDS_AFTER.executeQuery(statement);
+
+            List<Integer> mailIDs = new ArrayList<>();
+            while (rs.next()) {
+                mailIDs.add(rs.getInt("iMailID"));
+            }
+
+            rs.close();
+
+            return mailIDs;
+        } finally {
+            mPool.release(connection);
+        }
+    }
+
+    @Override
+    public long getDeleteVersion(Maildrop maildrop) throws SQLException {
+        Connection connection = mPool.borrow();
+        try {
+            PreparedStatement statement =
+                    SELECT_DELETE_VERSION.prepare(connection);
+            statement.setInt(1, maildrop.getId());
+            ResultSet rs = SELECT_DELETE_VERSION.executeQuery(statement);
+
+            long version = rs.next() ? rs.getLong("iDeleteVersion") : -1;
+
+            rs.close();
+
+            return version;
+        } finally {
+            mPool.release(connection);
+        }
+    }
+
+    @Override
+    public Map<Integer, Integer> getOctets(Maildrop maildrop)
+            throws SQLException {
+        Connection connection = mPool.borrow();
+        try {
+            PreparedStatement statement = SELECT_OCTETS.prepare(connection);
+            statement.setInt(1, maildrop.getId());
+            ResultSet rs = SELECT_OCTETS.executeQuery(statement);
+
+            Map<Integer, Integer> octets = new LinkedHashMap<>();
+            while (rs.next()) {
+                octets.put(rs.getInt("iMailID"), rs.getInt("octets"));
+            }
+
+            rs.close();
+
+            return octets;
+        } finally {
+            mPool.release(connection);
+        }
+    }
+
+    @Override
+    public int getOctets(Maildrop maildrop, int mailID) throws SQLException {
+        Connection connection = mPool.borrow();
+        try {
+            PreparedStatement statement =
+                    SELECT_MESSAGE_OCTETS.prepare(connection);
+            statement.setInt(1, maildrop.getId());
+            statement.setInt(2, mailID);
+            ResultSet rs = SELECT_MESSAGE_OCTETS.executeQuery(statement);
+
+            int octets = rs.next() ? rs.getInt("octets") : 0;
+
+            rs.close();
+
+            return octets;
+        } finally {
+            mPool.release(connection);
+        }
+    }
+
+    @Override
+    public String getContent(Maildrop maildrop, int mailID)
+            throws SQLException {
+        Reader content = openContent(maildrop, mailID);
+        try {
+            return content == null ? null : MailCompression.readAll(content);
+        } catch (IOException e) {
+            throw new SQLException("Message " + mailID + " is corrupt", e);
+        }
+    }
+
+    @Override
+    public Reader openContent(Maildrop maildrop, int mailID)
+            throws SQLException {
+        Connection connection = mPool.borrow();
+        try {
+            PreparedStatement statement = SELECT_CONTENT.prepare(connection);
+            statement.setInt(1, mailID);
+            ResultSet rs = SELECT_CONTENT.executeQuery(statement);
+
+            // Only a compressed message is held in memory, and it is
+            // inflated as the reader is read
+            Reader content = null;
+            int bodyID = 0;
+            if (rs.next()) {
+                content = new MailBody(rs.getInt("tiCompression"),
+                        rs.getString("txMailContent"),
+                        rs.getBytes("blMailContent")).open();
+                bodyID = rs.getInt("iBodyID");
+            }
+
+            rs.close();
+
+            if (bodyID > 0) {
+                // The row only holds the header
+                MailBody body = mBodies.load(connection, bodyID);
+                if (body == null) {
+                    throw new SQLException("Body " + bodyID + " of message "
+                            + mailID + " is missing");
+                }
+                content = MailBody.join(content, body.open());
+            }
+
+            return content;
+        } finally {
+            mPool.release(connection);
+        }
+    }
+
+    @Override
+    public Reader openHeader(Maildrop maildrop, int mailID)
+            throws SQLException {
+        Connection connection = mPool.borrow();
+        try {
+            // A row sharing a body only holds the header, otherwise the
+            // database cuts the header off by iHeaderLength, in characters
+            // or compressed bytes
+            PreparedStatement statement = SELECT_HEADER.prepare(connection);
+            statement.setInt(1, mailID);
+            ResultSet rs = SELECT_HEADER.executeQuery(statement);
+
+            Reader header = null;
+            if (rs.next()) {
+                int compression = rs.getInt("tiCompression");
+                boolean cut = rs.getInt("iBodyID") == 0
+                        && rs.getObject("iHeaderLength") != null;
+                if (cut && compression != MailCompression.NONE) {
+                    // Ends at the flush point after the header
+                    header = MailCompression.decompressHeader(compression,
+                            rs.getBytes("blHeader"));
+                } else {
+                    header = new MailBody(compression,
+                            rs.getString("txHeader"),
+                            rs.getBytes("blHeader")).open();
+                }
+            }
+
+            rs.close();
+
+            return header;
+        } finally {
+            mPool.release(connection);
+        }
+    }
+
+    @Override
+    public Map<Integer, String> getUIDLs(Maildrop maildrop)
+            throws SQLException {
+        Connection connection = mPool.borrow();
+        try {
+            PreparedStatement statement = SELECT_UIDLS.prepare(connection);
+            statement.setInt(1, maildrop.getId());
+            ResultSet rs = SELECT_UIDLS.executeQuery(statement);
+
+            Map<Integer, String> uidls = new LinkedHashMap<>();
+            while (rs.next()) {
+                uidls.put(rs.getInt("iMailID"), rs.getString("vchUIDL"));
+            }
+
+            rs.close();
+
+            return uidls;
+        } finally {
+            mPool.release(connection);
+        }
+    }
+
+    @Override
+    public String getUIDL(Maildrop maildrop, int mailID) throws SQLException {
+        Connection connection = mPool.borrow();
+        try {
+            PreparedStatement statement = SELECT_UIDL.prepare(connection);
+            statement.setInt(1, mailID);
+            ResultSet rs = SELECT_UIDL.executeQuery(statement);
+
+            String uidl = rs.next() ? rs.getString("vchUIDL") : null;
+
+            rs.close();
+
+            return uidl;
+        } finally {
+            mPool.release(connection);
+        }
+    }
+
+    @Override
+    public long lock(final Maildrop maildrop, final String owner,
+                     final long lease) throws SQLException {
+        return write(new MaildropWrite(maildrop.getId()) {
+
+            @Override
+            long apply(Connection connection) throws SQLException {
+                return lock(connection, maildrop, owner, lease);
+            }
+
+        });
+    }
+
+    private static long lock(Connection connection, Maildrop maildrop,
+                             String owner, long lease) throws SQLException {
+        // Checking and setting tiLocked in one statement means only one
+        // server can succeed. LAST_INSERT_ID(expr) returns the new token
+        // to this connection without another round trip to the row.
+        PreparedStatement statement = LOCK.prepare(connection);
+        statement.setString(1, owner);
+        statement.setLong(2, lease * 1000);
+        statement.setInt(3, maildrop.getId());
+        int updated = LOCK.executeUpdate(statement);
+
+        if (updated != 1) {
+            return -1;
+        }
+
+        ResultSet rs = SELECT_LOCK_TOKEN.executeQuery(
+                SELECT_LOCK_TOKEN.prepare(connection));
+        rs.next();
+        long token = rs.getLong(1);
+
+        rs.close();
+
+        return token;
+    }
+
+    @Override
+    public boolean renewLock(final Maildrop maildrop, final long token,
+                             final long lease) throws SQLException {
+        return write(new MaildropWrite(maildrop.getId()) {
+
+            @Override
+            long apply(Connection connection) throws SQLException {
+                PreparedStatement statement = RENEW_LOCK.prepare(connection);
+                statement.setLong(1, lease * 1000);
+                statement.setInt(2, maildrop.getId());
+                statement.setLong(3, token);
+                int updated = RENEW_LOCK.executeUpdate(statement);
+
+                return updated;
+            }
+
+        }) == 1;
+    }
+
+    @Override
+    public void unlock(final Maildrop maildrop, final long token)
+            throws SQLException {
+        write(new MaildropWrite(maildrop.getId()) {
+
+            @Override
+            long apply(Connection connection) throws SQLException {
+                PreparedStatement statement = UNLOCK.prepare(connection);
+                statement.setInt(1, maildrop.getId());
+                statement.setLong(2, token);
+                UNLOCK.executeUpdate(statement);
+
+                return 0;
+            }
+
+        });
+    }
+
+    @Override
+    public List<MaildropLock> getLocks() throws SQLException {
+        Connection connection = mPool.borrow();
+        try {
+            // Ages are measured by the database, whose clock every server
+            // shares
+            ResultSet rs = SELECT_LOCKS.executeQuery(
+                    SELECT_LOCKS.prepare(connection));
+
+            List<MaildropLock> locks = new ArrayList<>();
+            while (rs.next()) {
+                long age = rs.getLong("iAge");
+                if (rs.wasNull()) {
+                    // Taken before dtLocked was added
+                    age = -1;
+                }
+                long expiresIn = rs.getLong("iExpiresIn");
+                if (rs.wasNull()) {
+                    expiresIn = -1;
+                }
+                locks.add(new MaildropLock(rs.getString("vchUsername"),
+                        rs.getString("vchLockOwner"),
+                        rs.getLong("iLockToken"), age, expiresIn));
+            }
+
+            rs.close();
+
+            return locks;
+        } finally {
+            mPool.release(connection);
+        }
+    }
+
+    @Override
+    public boolean forceUnlock(final Maildrop maildrop) throws SQLException {
+        // The token is left as it is, so that the next lock increments it
+        // past the one the previous holder knows
+        return write(new MaildropWrite(maildrop.getId()) {
+
+            @Override
+            long apply(Connection connection) throws SQLException {
+                PreparedStatement statement =
+                        FORCE_UNLOCK.prepare(connection);
+                statement.setInt(1, maildrop.getId());
+                int updated = FORCE_UNLOCK.executeUpdate(statement);
+
+                return updated;
+            }
+
+        }) == 1;
+    }
+
+    @Override
+    public boolean deleteMail(final Maildrop maildrop, final long token,
+                              final List<Integer> mailIDs)
+            throws SQLException {
+        if (mailIDs.isEmpty()) {
+            return true;
+        }
+
+        return write(new MaildropWrite(maildrop.getId()) {
+
+            @Override
+            long apply(Connection connection) throws SQLException {
+                mReleased = new HashMap<>();
+                return deleteMail(connection, maildrop, token, mailIDs,
+                        mReleased) ? 1 : 0;
+            }
+
+        }) == 1;
+    }
+
+    private boolean deleteMail(Connection connection, Maildrop maildrop,
+                               long token, List<Integer> mailIDs,
+                               Map<Integer, Integer> released)
+            throws SQLException {
+        // Holding the row lock keeps the maildrop from being taken over
+        // until the deletions are committed
+        PreparedStatement fence = FENCE.prepare(connection);
+        fence.setInt(1, maildrop.getId());
+        ResultSet rs = FENCE.executeQuery(fence);
+        boolean held = rs.next() && rs.getInt("tiLocked") != 0
+                && rs.getLong("iLockToken") == token;
+        rs.close();
+
+        if (!held) {
+            // Nothing has been changed, so the rest of the group can still
+            // be committed
+            return false;
+        }
+
+        mBodies.countReferences(connection, maildrop.getId(), mailIDs,
+                released);
+
+        PreparedStatement statement = DELETE_MAIL.prepare(connection);
+        for (Integer mailID : mailIDs) {
+            statement.setInt(1, mailID);
+            statement.setInt(2, maildrop.getId());
+            statement.addBatch();
+        }
+        DELETE_MAIL.executeBatch(statement);
+
+        PreparedStatement version =
+                INCREMENT_DELETE_VERSION.prepare(connection);
+        version.setInt(1, maildrop.getId());
+        INCREMENT_DELETE_VERSION.executeUpdate(version);
+
+        return true;
+    }
+
+    /**
+     * Apply a write in a transaction shared with the writes of other
+     * sessions, or in a transaction of its own if group commit is disabled.
+     *
+     * @param write the write
+     * @return the result of the write, once it is committed.
+     * @throws SQLException if the write failed
+     */
+    private long write(MaildropWrite write) throws SQLException {
+        BatchWriter<MaildropWrite> groupCommit = getGroupCommit();
+        if (groupCommit == null) {
+            commit(Collections.singletonList(write));
+        } else {
+            long start = System.nanoTime();
+            try {
+                BatchWriter.await(groupCommit.submit(write));
+            } finally {
+                // Executed by the group commit thread for this one
+                SqlStatement.addThreadNanos(System.nanoTime() - start);
+            }
+        }
+        return write.mResult;
+    }
+
+    /**
+     * @return the writer committing the locks, unlocks and deletions of
+     * every session, started on first use, or <code>null</code> if
+     * mailserver.groupCommitThreads is 0.
+     */
+    synchronized BatchWriter<MaildropWrite> getGroupCommit() {
+        if (mGroupCommit == null && mGroupCommitThreads > 0) {
+            mGroupCommit = new BatchWriter<>("group-commit",
+                    mGroupCommitThreads,
+                    Integer.getInteger("mailserver.groupCommitSize",
+                            DEFAULT_GROUP_COMMIT_SIZE),
+                    Long.getLong("mailserver.groupCommitDelay",
+                            DEFAULT_GROUP_COMMIT_DELAY),
+                    new BatchWriter.Writer<MaildropWrite>() {
+
+                        @Override
+                        public void write(List<MaildropWrite> batch)
+                                throws SQLException {
+                            commit(batch);
+                        }
+
+                    });
+        }
+        return mGroupCommit;
+    }
+
+    /**
+     * Apply writes in a single transaction, in order of iMaildropID so that
+     * they take their row locks in the same order as {@link #addMail}.
+     * The writes to one maildrop keep the order they were submitted in.
+     * <p>
+     * The bodies of deleted messages are released last, in order of
+     * iBodyID, so that like a delivery the group locks its maildrops before
+     * any body, and it cannot deadlock with a delivery of one message. A
+     * delivery of several messages sharing bodies locks them in no
+     * particular order, so a group may still deadlock with it. InnoDB then
+     * rolls one of them back, and its BatchWriter retries each write on
+     * its own.
+     */
+    private void commit(List<MaildropWrite> batch) throws SQLException {
+        List<MaildropWrite> writes = new ArrayList<>(batch);
+        Collections.sort(writes, new Comparator<MaildropWrite>() {
+
+            @Override
+            public int compare(MaildropWrite a, MaildropWrite b) {
+                return Integer.compare(a.mMaildropID, b.mMaildropID);
+            }
+
+        });
+
+        long[] results = new long[writes.size()];
+        SortedMap<Integer, Integer> released = new TreeMap<>();
+        Connection connection = mPool.borrow();
+        try {
+            connection.setAutoCommit(false);
+            for (int i = 0; i < writes.size(); i++) {
+                MaildropWrite write = writes.get(i);
+                results[i] = write.apply(connection);
+                if (write.mReleased != null) {
+                    for (Map.Entry<Integer, Integer> e
+                            : write.mReleased.entrySet()) {
+                        Integer count = released.get(e.getKey());
+                        released.put(e.getKey(), count == null
+                                ? e.getValue() : count + e.getValue());
+                    }
+                }
+            }
+            mBodies.release(connection, released);
+            connection.commit();
+        } finally {
+            mPool.release(connection);
+        }
+
+        // Only once committed, as a failed group is retried
+        for (int i = 0; i < writes.size(); i++) {
+            writes.get(i).mResult = results[i];
+        }
+    }
+
+    @Override
+    public void addMail(List<Delivery> deliveries) throws SQLException {
+        if (deliveries.isEmpty()) {
+            return;
+        }
+
+        Connection connection = mPool.borrow();
+        try {
+            connection.setAutoCommit(false);
+            lockMaildrops(connection, deliveries);
+
+            // A message delivered to several maildrops is encoded, and its
+            // body shared, once
+            Map<IncomingMessage, Encoded> encoded = new IdentityHashMap<>();
+            for (Delivery delivery : deliveries) {
+                Encoded message = encoded.get(delivery.getMessage());
+                if (message == null) {
+                    message = new Encoded();
+                    encoded.put(delivery.getMessage(), message);
+                }
+                message.mRows++;
+            }
+            for (Map.Entry<IncomingMessage, Encoded> e : encoded.entrySet()) {
+                encode(connection, e.getKey(), e.getValue());
+            }
+
+            int[] mailIDs = new int[deliveries.size()];
+            int start = 0;
+            while (start < deliveries.size()) {
+                int end = start;
+                int chars = 0;
+                while (end < deliveries.size() && end - start < INSERT_ROWS
+                        && (end == start || chars < INSERT_CHARS)) {
+                    chars += deliveries.get(end).getMessage().getContent()
+                            .length();
+                    end++;
+                }
+                insert(connection, deliveries.subList(start, end), encoded,
+                        mailIDs, start);
+                start = end;
+            }
+
+            connection.commit();
+
+            for (int i = 0; i < mailIDs.length; i++) {
+                deliveries.get(i).setMailID(mailIDs[i]);
+            }
+        } finally {
+            mPool.release(connection);
+        }
+    }
+
+    /**
+     * Lock the rows of the maildrops being delivered to until the messages
+     * are committed, in order of iMaildropID so that concurrent deliveries
+     * cannot deadlock. Later deliveries to the same maildrop wait, so its
+     * messages are committed in order of iMailID, and a maildrop deleted by
+     * ShardRebalancer is noticed.
+     */
+    private static void lockMaildrops(Connection connection,
+                                      List<Delivery> deliveries)
+            throws SQLException {
+        SortedSet<Integer> maildropIDs = new TreeSet<>();
+        for (Delivery delivery : deliveries) {
+            maildropIDs.add(delivery.getMaildrop().getId());
+        }
+
+        StringBuilder sql = new StringBuilder(
+                "SELECT iMaildropID FROM m_Maildrop WHERE iMaildropID IN (");
+        for (int i = 0; i < maildropIDs.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(") ORDER BY iMaildropID FOR UPDATE ");
+
+        PreparedStatement statement =
+                connection.prepareStatement(sql.toString());
+        int parameter = 1;
+        for (Integer maildropID : maildropIDs) {
+            statement.setInt(parameter++, maildropID);
+        }
+        ResultSet rs = statement.executeQuery();
+        while (rs.next()) {
+            maildropIDs.remove(rs.getInt("iMaildropID"));
+        }
+        rs.close();
+        statement.close();
+
+        if (!maildropIDs.isEmpty()) {
+            throw new SQLException("Maildrop " + maildropIDs.first()
+                    + " does not exist");
+        }
+    }
+
+    /**
+     * Compress a delivered message, and move its body to m_MailBody if it
+     * is large enough to be worth sharing.
+     */
+    private void encode(Connection connection, IncomingMessage message,
+                        Encoded encoded) throws SQLException {
+        String content = message.getContent();
+        int start = MailBody.getBodyStart(content);
+        if (mDedupMinOctets >= 0 && start >= 0) {
+            String body = content.substring(start);
+            int octets = MailBody.octets(body);
+            if (octets >= mDedupMinOctets) {
+                encoded.mBodyID = mBodies.store(connection,
+                        MailBody.hash(body), MailBody.encode(body, mCompress),
+                        octets, encoded.mRows);
+                encoded.mContent = MailBody.encode(
+                        content.substring(0, start), mCompress);
+                return;
+            }
+        }
+        encoded.mContent = MailBody.encode(content, mCompress);
+    }
+
+    /**
+     * Insert the rows of some of the deliveries in one statement.
+     *
+     * @param mailIDs receives the iMailID of each row
+     * @param offset  the index in mailIDs of the first delivery
+     */
+    private static void insert(Connection connection, List<Delivery> rows,
+                               Map<IncomingMessage, Encoded> encoded,
+                               int[] mailIDs, int offset)
+            throws SQLException {
+        StringBuilder sql = new StringBuilder(
+                "INSERT INTO m_Mail (iMaildropID, txMailContent,"
+                        + " blMailContent, tiCompression, iOctets, iBodyID,"
+                        + " iHeaderLength, vchUIDL) VALUES ");
+        for (int i = 0; i < rows.size(); i++) {
+            sql.append(i == 0 ? "" : ", ").append("(?, ?, ?, ?, ?, ?, ?, ?)");
+        }
+
+        PreparedStatement statement = connection.prepareStatement(
+                sql.toString(), Statement.RETURN_GENERATED_KEYS);
+        int parameter = 1;
+        for (Delivery delivery : rows) {
+            Encoded message = encoded.get(delivery.getMessage());
+            MailBody content = message.mContent;
+            statement.setInt(parameter++, delivery.getMaildrop().getId());
+            statement.setString(parameter++, content.getText());
+            statement.setBytes(parameter++, content.getCompressed());
+            statement.setInt(parameter++, content.getCompression());
+            statement.setInt(parameter++, delivery.getMessage().getOctets());
+            statement.setObject(parameter++,
+                    message.mBodyID > 0 ? message.mBodyID : null);
+            statement.setInt(parameter++, content.getHeaderLength());
+            statement.setString(parameter++, delivery.getUIDL());
+        }
+        statement.executeUpdate();
+
+        // One key per row, in the order of the rows
+        ResultSet keys = statement.getGeneratedKeys();
+        for (int i = 0; i < rows.size() && keys.next(); i++) {
+            mailIDs[offset + i] = keys.getInt(1);
+        }
+        keys.close();
+        statement.close();
+    }
+
+    /**
+     * Ask the database how far it is behind its replication source.
+     *
+     * @return the replication lag in seconds, zero if the database is not a
+     * replica, or -1 if replication is stopped.
+     * @throws SQLException if the database cannot be reached
+     */
+    public long getReplicationLag() throws SQLException {
+        Connection connection = mPool.borrow();
+        try {
+            Statement statement = connection.createStatement();
+            ResultSet rs = statement.executeQuery("SHOW SLAVE STATUS");
+
+            long lag = 0;
+            if (rs.next()) {
+                lag = rs.getLong("Seconds_Behind_Master");
+                if (rs.wasNull()) {
+                    lag = -1;
+                }
+            }
+
+            rs.close();
+            statement.close();
+
+            return lag;
+        } finally {
+            mPool.release(connection);
+        }
+    }
+
+    @Override
+    public void close() {
+        BatchWriter<MaildropWrite> groupCommit;
+        synchronized (this) {
+            groupCommit = mGroupCommit;
+        }
+        if (groupCommit != null) {
+            // Commits those queued first. Later writes fail, as would any
+            // made once the pool is closed.
+            groupCommit.close();
+        }
+        mPool.close();
+    }
+
+    @Override
+    public String toString() {
+        return mPool.getUrl();
+    }
+}
@@ -0,0 +1,278 @@
+package mailserver;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link ShardCopier} for shards that are each a {@link SqlMailStore}.
+ */
+public class SqlShardCopier implements ShardCopier {
+
+    /** The number of messages inserted per batch while copying. */
+    private static final int BATCH_SIZE = 100;
+
+    @Override
+    public List<String> getUsernames(MailStore shard) throws SQLException {
+        ConnectionPool pool = sql(shard).getPool();
+        Connection connection = pool.borrow();
+        try {
+            Statement statement = connection.createStatement();
+            ResultSet rs = statement.executeQuery(
+                    "SELECT vchUsername FROM m_Maildrop");
+
+            List<String> usernames = new ArrayList<>();
+            while (rs.next()) {
+                usernames.add(rs.getString("vchUsername"));
+            }
+
+            rs.close();
+            statement.close();
+
+            return usernames;
+        } finally {
+            pool.release(connection);
+        }
+    }
+
+    @Override
+    public Copy copy(MailStore fromShard, MailStore toShard,
+                     Maildrop maildrop, long version) throws SQLException {
+        SqlMailStore from = sql(fromShard);
+        SqlMailStore to = sql(toShard);
+        Connection input = from.getPool().borrow();
+        Connection output = to.getPool().borrow();
+        try {
+            output.setAutoCommit(false);
+            int copyID = insertMaildrop(output, maildrop, version);
+            int lastMailID = copyMail(from, input, output, maildrop.getId(),
+                    copyID, 0);
+            output.commit();
+            return new Copy(copyID, lastMailID);
+        } finally {
+            from.getPool().release(input);
+            to.getPool().release(output);
+        }
+    }
+
+    @Override
+    public boolean finish(MailStore fromShard, MailStore toShard,
+                          Maildrop maildrop, long token, Copy copy)
+            throws SQLException {
+        SqlMailStore from = sql(fromShard);
+        SqlMailStore to = sql(toShard);
+        Connection input = from.getPool().borrow();
+        Connection output = to.getPool().borrow();
+        try {
+            // Deliveries lock the maildrop's row, so holding it until the
+            // old copy is deleted keeps messages from arriving there after
+            // the last of them is copied
+            input.setAutoCommit(false);
+            output.setAutoCommit(false);
+            if (!fence(input, maildrop.getId(), token)) {
+                return false;
+            }
+
+            // Messages delivered to the old shard during the copy
+            copyMail(from, input, output, maildrop.getId(),
+                    copy.mMaildropID, copy.mLastMailID);
+            output.commit();
+            deleteMaildrop(from, input, maildrop.getId());
+            input.commit();
+            return true;
+        } finally {
+            from.getPool().release(input);
+            to.getPool().release(output);
+        }
+    }
+
+    @Override
+    public void discard(MailStore toShard, Copy copy) throws SQLException {
+        SqlMailStore to = sql(toShard);
+        ConnectionPool pool = to.getPool();
+        Connection connection = pool.borrow();
+        try {
+            connection.setAutoCommit(false);
+            if (fence(connection, copy.mMaildropID, -1)) {
+                deleteMaildrop(to, connection, copy.mMaildropID);
+            }
+            connection.commit();
+        } finally {
+            pool.release(connection);
+        }
+    }
+
+    /**
+     * @param version the delete version of the new maildrop
+     * @return the new iMaildropID.
+     */
+    private static int insertMaildrop(Connection connection,
+                                      Maildrop maildrop, long version)
+            throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(
+                "INSERT INTO m_Maildrop (vchUsername, vchPassword,"
+                        + " iDeleteVersion) VALUES (?, ?, ?) ",
+                Statement.RETURN_GENERATED_KEYS);
+        statement.setString(1, maildrop.getUsername());
+        statement.setString(2, maildrop.getPassword());
+        statement.setLong(3, version);
+        statement.executeUpdate();
+
+        ResultSet keys = statement.getGeneratedKeys();
+        keys.next();
+        int maildropID = keys.getInt(1);
+
+        keys.close();
+        statement.close();
+
+        return maildropID;
+    }
+
+    /**
+     * Copy the messages of a maildrop in order, keeping their UIDLs. Shared
+     * bodies are stored on the output's shard once, however many of the
+     * messages refer to them.
+     *
+     * @param from        the store <code>input</code> belongs to
+     * @param afterMailID only copy messages with a greater iMailID
+     * @return the iMailID of the last message copied.
+     */
+    private static int copyMail(SqlMailStore from, Connection input,
+                                Connection output, int fromID, int toID,
+                                int afterMailID) throws SQLException {
+        PreparedStatement select = input.prepareStatement(
+                "SELECT iMailID, txMailContent, blMailContent, tiCompression,"
+                        + " iOctets, iBodyID, iHeaderLength, vchUIDL"
+                        + " FROM m_Mail WHERE iMaildropID = ? AND iMailID > ?"
+                        + " ORDER BY iMailID ");
+        // Stream the rows rather than reading the whole maildrop at once
+        select.setFetchSize(Integer.MIN_VALUE);
+        select.setInt(1, fromID);
+        select.setInt(2, afterMailID);
+        ResultSet rs = select.executeQuery();
+
+        PreparedStatement insert = output.prepareStatement(
+                "INSERT INTO m_Mail (iMaildropID, txMailContent,"
+                        + " blMailContent, tiCompression, iOctets, iBodyID,"
+                        + " iHeaderLength, vchUIDL)"
+                        + " VALUES (?, ?, ?, ?, ?, ?, ?, ?) ");
+        Map<Integer, Integer> copiedBodies = new HashMap<>();
+        int lastMailID = afterMailID;
+        int batched = 0;
+        while (rs.next()) {
+            Integer bodyID = null;
+            int fromBodyID = rs.getInt("iBodyID");
+            if (fromBodyID > 0) {
+                bodyID = copyBody(from, output, fromBodyID, copiedBodies);
+            }
+
+            insert.setInt(1, toID);
+            // Compressed messages are copied without decompressing them
+            insert.setString(2, rs.getString("txMailContent"));
+            insert.setBytes(3, rs.getBytes("blMailContent"));
+            insert.setInt(4, rs.getInt("tiCompression"));
+            insert.setObject(5, rs.getObject("iOctets"));
+            insert.setObject(6, bodyID);
+            insert.setObject(7, rs.getObject("iHeaderLength"));
+            insert.setString(8, rs.getString("vchUIDL"));
+            insert.addBatch();
+            lastMailID = rs.getInt("iMailID");
+
+            if (++batched == BATCH_SIZE) {
+                insert.executeBatch();
+                batched = 0;
+            }
+        }
+        if (batched > 0) {
+            insert.executeBatch();
+        }
+
+        insert.close();
+        rs.close();
+        select.close();
+
+        return lastMailID;
+    }
+
+    /**
+     * Add a reference to a shared body on the output's shard, copying it
+     * there the first time a message of the maildrop refers to it.
+     *
+     * @param copied the iBodyIDs of the bodies already copied, by their
+     *               iBodyID on the input's shard
+     * @return the iBodyID of the body on the output's shard.
+     */
+    private static int copyBody(SqlMailStore from, Connection output,
+                                int fromBodyID, Map<Integer, Integer> copied)
+            throws SQLException {
+        Integer bodyID = copied.get(fromBodyID);
+        if (bodyID != null) {
+            from.getBodies().reference(output, bodyID);
+            return bodyID;
+        }
+
+        // The input connection is busy streaming messages
+        ConnectionPool pool = from.getPool();
+        Connection connection = pool.borrow();
+        try {
+            bodyID = from.getBodies().copy(connection, output, fromBodyID);
+        } finally {
+            pool.release(connection);
+        }
+        copied.put(fromBodyID, bodyID);
+        return bodyID;
+    }
+
+    /**
+     * Lock the row of a maildrop until the transaction ends.
+     *
+     * @param token the token the maildrop must be locked with, or -1 to
+     *              lock the row regardless
+     * @return <code>false</code> if the maildrop does not exist or is not
+     * locked with the token.
+     */
+    private static boolean fence(Connection connection, int maildropID,
+                                 long token) throws SQLException {
+        PreparedStatement fence = connection.prepareStatement(
+                "SELECT iLockToken FROM m_Maildrop WHERE iMaildropID = ?"
+                        + " FOR UPDATE ");
+        fence.setInt(1, maildropID);
+        ResultSet rs = fence.executeQuery();
+        boolean held = rs.next()
+                && (token < 0 || rs.getLong("iLockToken") == token);
+        rs.close();
+        fence.close();
+        return held;
+    }
+
+    /**
+     * Delete a maildrop and its messages in the caller's transaction.
+     */
+    private static void deleteMaildrop(SqlMailStore store,
+                                       Connection connection, int maildropID)
+            throws SQLException {
+        // Messages first, as they reference the maildrop
+        store.getBodies().releaseAll(connection, maildropID);
+        PreparedStatement mail = connection.prepareStatement(
+                "DELETE FROM m_Mail WHERE iMaildropID = ? ");
+        mail.setInt(1, maildropID);
+        mail.executeUpdate();
+        mail.close();
+
+        PreparedStatement maildrop = connection.prepareStatement(
+                "DELETE FROM m_Maildrop WHERE iMaildropID = ? ");
+        maildrop.setInt(1, maildropID);
+        maildrop.executeUpdate();
+        maildrop.close();
+    }
+
+    private static SqlMailStore sql(MailStore shard) {
+        return (SqlMailStore) shard;
+    }
+}
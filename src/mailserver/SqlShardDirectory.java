@@ -0,0 +1,109 @@
+package mailserver;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link ShardDirectory} kept in the m_ShardDirectory table, normally on
+ * the first shard.
+ */
+public class SqlShardDirectory implements ShardDirectory {
+
+    private static final SqlStatement LOOKUP =
+            new SqlStatement("SqlShardDirectory.lookup",
+                    "SELECT iShard FROM m_ShardDirectory"
+                            + " WHERE vchUsername = ? ");
+
+    private static final SqlStatement ASSIGN =
+            new SqlStatement("SqlShardDirectory.assign",
+                    "INSERT INTO m_ShardDirectory (vchUsername, iShard)"
+                            + " VALUES (?, ?) ON DUPLICATE KEY UPDATE"
+                            + " iShard = VALUES(iShard) ");
+
+    private static final SqlStatement REMOVE =
+            new SqlStatement("SqlShardDirectory.remove",
+                    "DELETE FROM m_ShardDirectory WHERE vchUsername = ? ");
+
+    private static final SqlStatement SELECT_ASSIGNMENTS =
+            new SqlStatement("SqlShardDirectory.getAssignments",
+                    "SELECT vchUsername, iShard FROM m_ShardDirectory ");
+
+    /** The connections to the database holding the directory. */
+    private final ConnectionPool mPool;
+
+    /**
+     * @param pool the connections to the database holding the directory
+     */
+    public SqlShardDirectory(ConnectionPool pool) {
+        mPool = pool;
+    }
+
+    @Override
+    public Integer lookup(String username) throws SQLException {
+        Connection connection = mPool.borrow();
+        try {
+            PreparedStatement statement = LOOKUP.prepare(connection);
+            statement.setString(1, username);
+            ResultSet rs = LOOKUP.executeQuery(statement);
+
+            Integer shard = rs.next() ? rs.getInt("iShard") : null;
+
+            rs.close();
+
+            return shard;
+        } finally {
+            mPool.release(connection);
+        }
+    }
+
+    @Override
+    public void assign(String username, int shard) throws SQLException {
+        Connection connection = mPool.borrow();
+        try {
+            PreparedStatement statement = ASSIGN.prepare(connection);
+            statement.setString(1, username);
+            statement.setInt(2, shard);
+            ASSIGN.executeUpdate(statement);
+        } finally {
+            mPool.release(connection);
+        }
+    }
+
+    @Override
+    public void remove(String username) throws SQLException {
+        Connection connection = mPool.borrow();
+        try {
+            PreparedStatement statement = REMOVE.prepare(connection);
+            statement.setString(1, username);
+            REMOVE.executeUpdate(statement);
+        } finally {
+            mPool.release(connection);
+        }
+    }
+
+    @Override
+    public Map<String, Integer> getAssignments() throws SQLException {
+        Connection connection = mPool.borrow();
+        try {
+            PreparedStatement statement =
+                    SELECT_ASSIGNMENTS.prepare(connection);
+            ResultSet rs = SELECT_ASSIGNMENTS.executeQuery(statement);
+
+            Map<String, Integer> assignments = new LinkedHashMap<>();
+            while (rs.next()) {
+                assignments.put(rs.getString("vchUsername"),
+                        rs.getInt("iShard"));
+            }
+
+            rs.close();
+
+            return assignments;
+        } finally {
+            mPool.release(connection);
+        }
+    }
+}
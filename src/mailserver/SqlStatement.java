@@ -0,0 +1,294 @@
+package mailserver;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A SQL statement used by the stores, declared once as a constant of the
+ * class using it. It is prepared the first time it is used on each
+ * connection and kept for as long as the connection is open, so that
+ * neither the driver nor, with server-side prepared statements (see
+ * ConnectionPool), the database parses it again. A pooled connection is
+ * reused by every session, so each statement is parsed about once per
+ * connection in the pool.
+ * <p>
+ * The executions of each statement are counted and timed.
+ */
+public final class SqlStatement {
+
+    /** Every statement declared, in the order their classes were loaded. */
+    private static final List<SqlStatement> sAll =
+            new CopyOnWriteArrayList<>();
+
+    /**
+     * The time in nanoseconds each thread has spent executing statements,
+     * or waiting for them to be executed for it.
+     */
+    private static final ThreadLocal<long[]> sThreadNanos =
+            new ThreadLocal<long[]>() {
+
+                @Override
+                protected long[] initialValue() {
+                    return new long[1];
+                }
+
+            };
+
+    /** The statements prepared on each open connection. */
+    private static final Map<Connection, Map<SqlStatement, PreparedStatement>>
+            sPrepared = new ConcurrentHashMap<>();
+
+    private final String mName;
+    private final String mSql;
+    private final int mAutoGeneratedKeys;
+
+    private final AtomicLong mExecutions = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final AtomicLong mNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+    private final AtomicLong mPrepares = new AtomicLong();
+
+    /**
+     * @param name names the statement in statistics, e.g. "class.method"
+     * @param sql  the SQL of the statement
+     */
+    public SqlStatement(String name, String sql) {
+        this(name, sql, Statement.NO_GENERATED_KEYS);
+    }
+
+    /**
+     * @param name              names the statement in statistics
+     * @param sql               the SQL of the statement
+     * @param autoGeneratedKeys Statement.RETURN_GENERATED_KEYS if the keys
+     *                          of inserted rows are needed
+     */
+    public SqlStatement(String name, String sql, int autoGeneratedKeys) {
+        mName = name;
+        mSql = sql;
+        mAutoGeneratedKeys = autoGeneratedKeys;
+        sAll.add(this);
+    }
+
+    /**
+     * Get the statement prepared on a connection, preparing it if this is
+     * the first time it is used there. The statement must not be closed by
+     * the caller, but its result sets must be.
+     *
+     * @param connection a connection borrowed from a {@link ConnectionPool}
+     * @return the prepared statement, whose parameters may still be set
+     * from its previous use.
+     * @throws SQLException if the statement could not be prepared
+     */
+    public PreparedStatement prepare(Connection connection)
+            throws SQLException {
+        // Only the borrower of a connection uses its statements
+        Map<SqlStatement, PreparedStatement> prepared =
+                sPrepared.get(connection);
+        if (prepared == null) {
+            prepared = new HashMap<>();
+            sPrepared.put(connection, prepared);
+        }
+
+        PreparedStatement statement = prepared.get(this);
+        if (statement == null || statement.isClosed()) {
+            statement = connection.prepareStatement(mSql, mAutoGeneratedKeys);
+            prepared.put(this, statement);
+            mPrepares.incrementAndGet();
+        }
+        return statement;
+    }
+
+    /**
+     * Close the statements prepared on a connection, before it is closed.
+     *
+     * @param connection the connection
+     */
+    static void forget(Connection connection) {
+        Map<SqlStatement, PreparedStatement> prepared =
+                sPrepared.remove(connection);
+        if (prepared == null) {
+            return;
+        }
+        for (PreparedStatement statement : prepared.values()) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                // The connection is being closed anyway
+            }
+        }
+    }
+
+    /**
+     * Execute the statement as a query, timing it.
+     *
+     * @param statement the statement returned by {@link #prepare}
+     * @return the result set, which must be closed.
+     * @throws SQLException
+     */
+    public ResultSet executeQuery(PreparedStatement statement)
+            throws SQLException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            ResultSet rs = statement.executeQuery();
+            failed = false;
+            return rs;
+        } finally {
+            record(start, failed);
+        }
+    }
+
+    /**
+     * Execute the statement as an update, timing it.
+     *
+     * @param statement the statement returned by {@link #prepare}
+     * @return the number of rows changed.
+     * @throws SQLException
+     */
+    public int executeUpdate(PreparedStatement statement)
+            throws SQLException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            int updated = statement.executeUpdate();
+            failed = false;
+            return updated;
+        } finally {
+            record(start, failed);
+        }
+    }
+
+    /**
+     * Execute the batch added to the statement, timing it as a single
+     * execution.
+     *
+     * @param statement the statement returned by {@link #prepare}
+     * @return the number of rows changed by each command of the batch.
+     * @throws SQLException
+     */
+    public int[] executeBatch(PreparedStatement statement)
+            throws SQLException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            int[] updated = statement.executeBatch();
+            failed = false;
+            return updated;
+        } finally {
+            record(start, failed);
+            if (failed) {
+                // Never leave a failed batch to be run by the next caller
+                try {
+                    statement.clearBatch();
+                } catch (SQLException e) {
+                    // Closed with its connection
+                }
+            }
+        }
+    }
+
+    private void record(long start, boolean failed) {
+        long nanos = System.nanoTime() - start;
+        addThreadNanos(nanos);
+        mExecutions.incrementAndGet();
+        mNanos.addAndGet(nanos);
+        if (failed) {
+            mFailures.incrementAndGet();
+        }
+
+        long max = mMaxNanos.get();
+        while (nanos > max && !mMaxNanos.compareAndSet(max, nanos)) {
+            max = mMaxNanos.get();
+        }
+    }
+
+    /**
+     * @return the total time in nanoseconds the calling thread has spent
+     * executing statements, or waiting for a group commit to execute them,
+     * so that a session can account for its time in the database.
+     */
+    public static long getThreadNanos() {
+        return sThreadNanos.get()[0];
+    }
+
+    /**
+     * Account time spent waiting for the database to the calling thread.
+     *
+     * @param nanos the time in nanoseconds
+     */
+    static void addThreadNanos(long nanos) {
+        sThreadNanos.get()[0] += nanos;
+    }
+
+    /**
+     * @return every statement declared by the classes loaded so far.
+     */
+    public static List<SqlStatement> getAll() {
+        return new ArrayList<>(sAll);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getSql() {
+        return mSql;
+    }
+
+    /**
+     * @return the number of times the statement was executed.
+     */
+    public long getExecutions() {
+        return mExecutions.get();
+    }
+
+    /**
+     * @return the number of executions that threw an exception.
+     */
+    public long getFailures() {
+        return mFailures.get();
+    }
+
+    /**
+     * @return the total time in nanoseconds spent executing the statement,
+     * not including reading its results.
+     */
+    public long getNanos() {
+        return mNanos.get();
+    }
+
+    /**
+     * @return the longest time in nanoseconds an execution took.
+     */
+    public long getMaxNanos() {
+        return mMaxNanos.get();
+    }
+
+    /**
+     * @return the number of times the statement was prepared, about once
+     * per connection opened.
+     */
+    public long getPrepares() {
+        return mPrepares.get();
+    }
+
+    @Override
+    public String toString() {
+        long executions = getExecutions();
+        return String.format("%s: %d executions (%d failed), %d prepares,"
+                        + " mean %.3f ms, max %.3f ms", mName, executions,
+                getFailures(), getPrepares(),
+                executions == 0 ? 0.0 : getNanos() / 1e6 / executions,
+                getMaxNanos() / 1e6);
+    }
+}
@@ -0,0 +1,403 @@
+package mailserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * Runs a TLS session over the streams of a connection with an
+ * {@link SSLEngine}. The engine only works on buffers, so the same record
+ * handling would serve a non-blocking channel; here the transport is the
+ * socket's blocking streams, as used by {@link ClientConnection}.
+ * <p>
+ * Buffers come from a shared {@link BufferPool} and are only held while a
+ * record is being read or written. A session waiting for the client's next
+ * command holds none, which matters when most sessions are idle.
+ * <p>
+ * Not thread safe: only the session's thread may read, write or close it.
+ */
+public class TlsConnection {
+
+    /** Source for wrap() calls that only produce handshake messages. */
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /** Copies between streams and direct buffers, one per thread. */
+    private static final ThreadLocal<byte[]> sStaging =
+            new ThreadLocal<byte[]>() {
+                @Override
+                protected byte[] initialValue() {
+                    return new byte[8192];
+                }
+            };
+
+    private final SSLEngine mEngine;
+    private final InputStream mIn;
+    private final OutputStream mOut;
+    private final BufferPool mPool;
+
+    /** Holds the first bytes of a record read while no buffer is held. */
+    private final byte[] mFirst = new byte[5];
+
+    /** Encrypted bytes not yet decrypted, in write mode. Null if none. */
+    private ByteBuffer mNetIn;
+    /** Decrypted bytes not yet consumed, in read mode. Null if none. */
+    private ByteBuffer mAppIn;
+    /** Encrypted records not yet written, in write mode. Null if none. */
+    private ByteBuffer mNetOut;
+
+    private final InputStream mInputStream = new InputStream() {
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if ((mAppIn == null || !mAppIn.hasRemaining()) && !fill()) {
+                releaseIdle();
+                return -1;
+            }
+
+            int n = Math.min(len, mAppIn.remaining());
+            mAppIn.get(b, off, n);
+            releaseIdle();
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return mAppIn == null ? 0 : mAppIn.remaining();
+        }
+    };
+
+    private final OutputStream mOutputStream = new OutputStream() {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer src = ByteBuffer.wrap(b, off, len);
+            while (src.hasRemaining()) {
+                SSLEngineResult result = wrap(src);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SSLException("TLS session is closed");
+                }
+                runHandshake(result.getHandshakeStatus());
+            }
+            writeNet();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mOut.flush();
+        }
+    };
+
+    /**
+     * @param engine the engine in server mode
+     * @param in     the stream encrypted records are read from
+     * @param out    the stream encrypted records are written to
+     * @param pool   the pool to take buffers from, which must be at least as
+     *               large as the engine's packet and application buffer sizes
+     */
+    public TlsConnection(SSLEngine engine, InputStream in, OutputStream out,
+                         BufferPool pool) {
+        mEngine = engine;
+        mIn = in;
+        mOut = out;
+        mPool = pool;
+    }
+
+    /**
+     * Perform the handshake, so that failures are reported before any
+     * application data is exchanged.
+     *
+     * @throws IOException if the handshake fails or the client disconnects
+     */
+    public void handshake() throws IOException {
+        mEngine.beginHandshake();
+        mAppIn = mPool.acquire();
+
+        try {
+            HandshakeStatus status = mEngine.getHandshakeStatus();
+            while (status != HandshakeStatus.FINISHED
+                    && status != HandshakeStatus.NOT_HANDSHAKING) {
+
+                if (status == HandshakeStatus.NEED_WRAP
+                        || status == HandshakeStatus.NEED_TASK) {
+                    runHandshake(status);
+                } else if (!unwrap()) {
+                    throw new EOFException("Closed during TLS handshake");
+                }
+                status = mEngine.getHandshakeStatus();
+            }
+
+        } finally {
+            // The client may send its first command with its Finished message
+            mAppIn.flip();
+            releaseIdle();
+        }
+    }
+
+    /**
+     * @return the stream of decrypted data sent by the client.
+     */
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    /**
+     * @return the stream that encrypts data sent to the client.
+     */
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    /**
+     * @return the engine, which holds the negotiated session.
+     */
+    public SSLEngine getEngine() {
+        return mEngine;
+    }
+
+    /**
+     * Send close_notify if the connection is still open and return the
+     * buffers to the pool. Does not close the underlying socket.
+     */
+    public void close() {
+        mEngine.closeOutbound();
+        try {
+            while (!mEngine.isOutboundDone()) {
+                wrap(EMPTY);
+            }
+            writeNet();
+            mOut.flush();
+        } catch (IOException e) {
+            // The client has gone already
+        }
+
+        if (mNetOut != null) {
+            mPool.release(mNetOut);
+            mNetOut = null;
+        }
+        if (mNetIn != null) {
+            mPool.release(mNetIn);
+            mNetIn = null;
+        }
+        if (mAppIn != null) {
+            mPool.release(mAppIn);
+            mAppIn = null;
+        }
+    }
+
+    /**
+     * Decrypt at least one byte of application data into mAppIn.
+     *
+     * @return <code>false</code> at the end of the stream.
+     */
+    private boolean fill() throws IOException {
+        if (mAppIn == null) {
+            mAppIn = mPool.acquire();
+        } else {
+            mAppIn.clear();
+        }
+
+        try {
+            while (mAppIn.position() == 0) {
+                if (!unwrap()) {
+                    return false;
+                }
+            }
+            return true;
+
+        } finally {
+            mAppIn.flip();
+        }
+    }
+
+    /**
+     * Decrypt one record into mAppIn, reading from the stream as needed and
+     * answering any handshake messages it contains.
+     *
+     * @return <code>false</code> at the end of the stream or TLS session.
+     */
+    private boolean unwrap() throws IOException {
+        // Nothing may be left unsent while waiting for the client
+        writeNet();
+
+        if (mNetIn == null) {
+            // Block without holding a buffer until the client sends a record
+            int n = mIn.read(mFirst, 0, mFirst.length);
+            if (n < 0) {
+                return false;
+            }
+            mNetIn = mPool.acquire();
+            mNetIn.put(mFirst, 0, n);
+        }
+
+        while (true) {
+            mNetIn.flip();
+            SSLEngineResult result;
+            try {
+                result = mEngine.unwrap(mNetIn, mAppIn);
+            } finally {
+                mNetIn.compact();
+            }
+
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    if (!mNetIn.hasRemaining()) {
+                        throw new SSLException("TLS record too large");
+                    }
+                    writeNet();
+                    if (!readNet()) {
+                        return false;
+                    }
+                    break;
+
+                case BUFFER_OVERFLOW:
+                    throw new SSLException("Decrypted TLS record too large");
+
+                case CLOSED:
+                    // Answer the client's close_notify
+                    runHandshake(result.getHandshakeStatus());
+                    return false;
+
+                default:
+                    runHandshake(result.getHandshakeStatus());
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * Encrypt from src into one record in mNetOut. Records are collected
+     * until {@link #writeNet()} is called, so that a flight of handshake
+     * messages, or a session ticket and the greeting, are sent in one packet
+     * rather than waiting on delayed ACKs.
+     */
+    private SSLEngineResult wrap(ByteBuffer src) throws IOException {
+        if (mNetOut == null) {
+            mNetOut = mPool.acquire();
+        }
+
+        SSLEngineResult result = mEngine.wrap(src, mNetOut);
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            if (mNetOut.position() == 0) {
+                throw new SSLException("TLS record too large");
+            }
+            writeNet();
+            return wrap(src);
+        }
+        return result;
+    }
+
+    /**
+     * Write the records in mNetOut to the stream and return the buffer to
+     * the pool.
+     */
+    private void writeNet() throws IOException {
+        if (mNetOut == null) {
+            return;
+        }
+
+        ByteBuffer netOut = mNetOut;
+        mNetOut = null;
+        try {
+            netOut.flip();
+            if (netOut.hasArray()) {
+                mOut.write(netOut.array(),
+                        netOut.arrayOffset() + netOut.position(),
+                        netOut.remaining());
+            } else {
+                byte[] staging = sStaging.get();
+                while (netOut.hasRemaining()) {
+                    int n = Math.min(staging.length, netOut.remaining());
+                    netOut.get(staging, 0, n);
+                    mOut.write(staging, 0, n);
+                }
+            }
+
+        } finally {
+            mPool.release(netOut);
+        }
+    }
+
+    /**
+     * Append bytes from the stream to mNetIn.
+     *
+     * @return <code>false</code> at the end of the stream.
+     */
+    private boolean readNet() throws IOException {
+        int n;
+        if (mNetIn.hasArray()) {
+            n = mIn.read(mNetIn.array(),
+                    mNetIn.arrayOffset() + mNetIn.position(),
+                    mNetIn.remaining());
+            if (n > 0) {
+                mNetIn.position(mNetIn.position() + n);
+            }
+        } else {
+            byte[] staging = sStaging.get();
+            n = mIn.read(staging, 0,
+                    Math.min(staging.length, mNetIn.remaining()));
+            if (n > 0) {
+                mNetIn.put(staging, 0, n);
+            }
+        }
+        return n >= 0;
+    }
+
+    /**
+     * Run delegated tasks and send handshake messages until the engine needs
+     * to read from the client or the handshake is complete.
+     */
+    private void runHandshake(HandshakeStatus status) throws IOException {
+        while (true) {
+            if (status == HandshakeStatus.NEED_TASK) {
+                Runnable task;
+                while ((task = mEngine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                status = mEngine.getHandshakeStatus();
+
+            } else if (status == HandshakeStatus.NEED_WRAP) {
+                status = wrap(EMPTY).getHandshakeStatus();
+
+            } else {
+                // Records are written before the next read, or together
+                // with the next response
+                return;
+            }
+        }
+    }
+
+    /**
+     * Return the buffers that hold no data to the pool.
+     */
+    private void releaseIdle() {
+        if (mAppIn != null && !mAppIn.hasRemaining()) {
+            mPool.release(mAppIn);
+            mAppIn = null;
+        }
+        if (mNetIn != null && mNetIn.position() == 0) {
+            mPool.release(mNetIn);
+            mNetIn = null;
+        }
+    }
+}
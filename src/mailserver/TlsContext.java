@@ -0,0 +1,150 @@
+package mailserver;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * The server's TLS configuration, shared by every session that uses STLS or
+ * connects to the implicit TLS port.
+ * <p>
+ * Full handshakes are expensive, so the server session cache is sized for
+ * clients that poll every few minutes: a client that resumes a cached
+ * session skips the key exchange and certificate signature. Stateless
+ * session tickets are issued by JSSE on Java 13 and later (see the
+ * jdk.tls.server.enableSessionTicketExtension system property). JSSE
+ * generates and rotates the ticket keys itself and does not share them
+ * between processes, so with several servers behind a load balancer clients
+ * only resume on the server they last used.
+ */
+public class TlsContext {
+
+    /** The default port for implicit TLS (POP3S). */
+    public static final int DEFAULT_PORT = 995;
+
+    /** The default number of sessions kept for resumption. */
+    public static final int DEFAULT_SESSION_CACHE_SIZE = 20000;
+
+    /** The default time in seconds a session can be resumed. */
+    public static final int DEFAULT_SESSION_TIMEOUT = 3600;
+
+    /** The default number of free buffers kept for reuse. */
+    public static final int DEFAULT_POOLED_BUFFERS = 256;
+
+    /** Only protocols in this list that the JRE supports are enabled. */
+    private static final List<String> PROTOCOLS =
+            Arrays.asList("TLSv1.3", "TLSv1.2");
+
+    private final SSLContext mContext;
+    private final String[] mProtocols;
+    private final BufferPool mBufferPool;
+
+    /**
+     * @param context the context holding the server's key and certificate
+     * @param direct  whether to pool direct rather than heap buffers
+     */
+    public TlsContext(SSLContext context, boolean direct) {
+        mContext = context;
+
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(Integer.getInteger(
+                "mailserver.tlsSessionCacheSize", DEFAULT_SESSION_CACHE_SIZE));
+        sessions.setSessionTimeout(Integer.getInteger(
+                "mailserver.tlsSessionTimeout", DEFAULT_SESSION_TIMEOUT));
+
+        SSLEngine probe = context.createSSLEngine();
+        List<String> protocols = new ArrayList<>();
+        for (String protocol : probe.getSupportedProtocols()) {
+            if (PROTOCOLS.contains(protocol)) {
+                protocols.add(protocol);
+            }
+        }
+        mProtocols = protocols.toArray(new String[protocols.size()]);
+
+        // One size fits both records and their decrypted contents
+        SSLSession session = probe.getSession();
+        mBufferPool = new BufferPool(Math.max(session.getPacketBufferSize(),
+                session.getApplicationBufferSize()),
+                Integer.getInteger("mailserver.tlsPooledBuffers",
+                        DEFAULT_POOLED_BUFFERS), direct);
+    }
+
+    /**
+     * Load the server's key from the keystore named by the
+     * mailserver.keyStore system property, protected by the password in
+     * mailserver.keyStorePassword.
+     *
+     * @return the configuration, or null if no keystore is configured.
+     * @throws GeneralSecurityException if the keystore cannot be used
+     * @throws IOException              if the keystore cannot be read
+     */
+    public static TlsContext fromProperties()
+            throws GeneralSecurityException, IOException {
+        String path = System.getProperty("mailserver.keyStore");
+        if (path == null) {
+            return null;
+        }
+
+        char[] password = System.getProperty("mailserver.keyStorePassword", "")
+                .toCharArray();
+        KeyStore keyStore = KeyStore.getInstance(System.getProperty(
+                "mailserver.keyStoreType", "PKCS12"));
+        try (InputStream in = new FileInputStream(path)) {
+            keyStore.load(in, password);
+        }
+
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, password);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+
+        return new TlsContext(context, Boolean.getBoolean(
+                "mailserver.tlsDirectBuffers"));
+    }
+
+    /**
+     * Start a server-side TLS session on an accepted connection. The
+     * handshake is not performed until {@link TlsConnection#handshake()} is
+     * called or data is read or written.
+     *
+     * @param socket the connection to the client
+     * @return the TLS session.
+     * @throws IOException if the socket's streams cannot be opened
+     */
+    public TlsConnection wrap(Socket socket) throws IOException {
+        SSLEngine engine = mContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setEnabledProtocols(mProtocols);
+
+        return new TlsConnection(engine, socket.getInputStream(),
+                socket.getOutputStream(), mBufferPool);
+    }
+
+    /**
+     * @return the sessions kept for resumption.
+     */
+    public SSLSessionContext getSessionCache() {
+        return mContext.getServerSessionContext();
+    }
+
+    /**
+     * @return the buffers used for encryption and decryption.
+     */
+    public BufferPool getBufferPool() {
+        return mBufferPool;
+    }
+}
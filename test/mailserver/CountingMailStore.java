@@ -0,0 +1,257 @@
+package mailserver;
+
+import java.io.Reader;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps a {@link MailStore} and counts the operations made on it. The peak
+ * number of concurrent operations is the number of database connections a
+ * pooled store would need, and the number of findMaildrop() calls is the
+ * number of sessions that needed storage at all.
+ */
+public class CountingMailStore implements MailStore {
+
+    private final MailStore mStore;
+    private final AtomicLong mOperations = new AtomicLong();
+    private final AtomicLong mLookups = new AtomicLong();
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicInteger mPeakInFlight = new AtomicInteger();
+
+    public CountingMailStore(MailStore store) {
+        mStore = store;
+    }
+
+    /**
+     * @return the number of operations made on the store.
+     */
+    public long getOperations() {
+        return mOperations.get();
+    }
+
+    /**
+     * @return the number of maildrop lookups, one per USER command.
+     */
+    public long getLookups() {
+        return mLookups.get();
+    }
+
+    /**
+     * @return the highest number of operations that were in progress at the
+     * same time.
+     */
+    public int getPeakInFlight() {
+        return mPeakInFlight.get();
+    }
+
+    private void begin() {
+        mOperations.incrementAndGet();
+        int inFlight = mInFlight.incrementAndGet();
+        int peak = mPeakInFlight.get();
+        while (inFlight > peak && !mPeakInFlight.compareAndSet(peak, inFlight)) {
+            peak = mPeakInFlight.get();
+        }
+    }
+
+    private void end() {
+        mInFlight.decrementAndGet();
+    }
+
+    @Override
+    public Maildrop findMaildrop(String username) throws SQLException {
+        mLookups.incrementAndGet();
+        begin();
+        try {
+            return mStore.findMaildrop(username);
+        } finally {
+            end();
+        }
+    }
+
+    @Override
+    public List<Integer> getMailIDs(Maildrop maildrop) throws SQLException {
+        begin();
+        try {
+            return mStore.getMailIDs(maildrop);
+        } finally {
+            end();
+        }
+    }
+
+    @Override
+    public List<Integer> getMailIDs(Maildrop maildrop, int afterMailID)
+            throws SQLException {
+        begin();
+        try {
+            return mStore.getMailIDs(maildrop, afterMailID);
+        } finally {
+            end();
+        }
+    }
+
+    @Override
+    public long getDeleteVersion(Maildrop maildrop) throws SQLException {
+        begin();
+        try {
+            return mStore.getDeleteVersion(maildrop);
+        } finally {
+            end();
+        }
+    }
+
+    @Override
+    public Map<Integer, Integer> getOctets(Maildrop maildrop)
+            throws SQLException {
+        begin();
+        try {
+            return mStore.getOctets(maildrop);
+        } finally {
+            end();
+        }
+    }
+
+    @Override
+    public int getOctets(Maildrop maildrop, int mailID) throws SQLException {
+        begin();
+        try {
+            return mStore.getOctets(maildrop, mailID);
+        } finally {
+            end();
+        }
+    }
+
+    @Override
+    public String getContent(Maildrop maildrop, int mailID)
+            throws SQLException {
+        begin();
+        try {
+            return mStore.getContent(maildrop, mailID);
+        } finally {
+            end();
+        }
+    }
+
+    @Override
+    public Reader openContent(Maildrop maildrop, int mailID)
+            throws SQLException {
+        begin();
+        try {
+            return mStore.openContent(maildrop, mailID);
+        } finally {
+            end();
+        }
+    }
+
+    @Override
+    public Reader openHeader(Maildrop maildrop, int mailID)
+            throws SQLException {
+        begin();
+        try {
+            return mStore.openHeader(maildrop, mailID);
+        } finally {
+            end();
+        }
+    }
+
+    @Override
+    public Map<Integer, String> getUIDLs(Maildrop maildrop)
+            throws SQLException {
+        begin();
+        try {
+            return mStore.getUIDLs(maildrop);
+        } finally {
+            end();
+        }
+    }
+
+    @Override
+    public String getUIDL(Maildrop maildrop, int mailID) throws SQLException {
+        begin();
+        try {
+            return mStore.getUIDL(maildrop, mailID);
+        } finally {
+            end();
+        }
+    }
+
+    @Override
+    public long lock(Maildrop maildrop, String owner, long lease)
+            throws SQLException {
+        begin();
+        try {
+            return mStore.lock(maildrop, owner, lease);
+        } finally {
+            end();
+        }
+    }
+
+    @Override
+    public boolean renewLock(Maildrop maildrop, long token, long lease)
+            throws SQLException {
+        begin();
+        try {
+            return mStore.renewLock(maildrop, token, lease);
+        } finally {
+            end();
+        }
+    }
+
+    @Override
+    public void unlock(Maildrop maildrop, long token) throws SQLException {
+        begin();
+        try {
+            mStore.unlock(maildrop, token);
+        } finally {
+            end();
+        }
+    }
+
+    @Override
+    public List<MaildropLock> getLocks() throws SQLException {
+        begin();
+        try {
+            return mStore.getLocks();
+        } finally {
+            end();
+        }
+    }
+
+    @Override
+    public boolean forceUnlock(Maildrop maildrop) throws SQLException {
+        begin();
+        try {
+            return mStore.forceUnlock(maildrop);
+        } finally {
+            end();
+        }
+    }
+
+    @Override
+    public boolean deleteMail(Maildrop maildrop, long token,
+                              List<Integer> mailIDs) throws SQLException {
+        begin();
+        try {
+            return mStore.deleteMail(maildrop, token, mailIDs);
+        } finally {
+            end();
+        }
+    }
+
+    @Override
+    public void addMail(List<Delivery> deliveries) throws SQLException {
+        begin();
+        try {
+            mStore.addMail(deliveries);
+        } finally {
+            end();
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        mStore.close();
+    }
+}
@@ -0,0 +1,528 @@
+package mailserver;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Generates open-loop load on a POP3 server and reports the throughput and
+ * latency percentiles of each command.
+ * <p>
+ * New sessions are started at a fixed target rate, independently of how
+ * quickly earlier sessions complete, so a slow server shows up as growing
+ * latency rather than a lower request rate. Each session follows a scenario
+ * picked from a weighted mix:
+ * <ul>
+ * <li><code>poll</code>: USER, PASS, STAT, UIDL, QUIT</li>
+ * <li><code>download</code>: USER, PASS, STAT, LIST, RETR of each message,
+ * QUIT</li>
+ * <li><code>delete</code>: as download, with a DELE after each RETR</li>
+ * <li><code>top</code>: USER, PASS, LIST, TOP n 0 of each message, QUIT</li>
+ * <li><code>probe</code>: QUIT straight after the greeting, like port
+ * scanners and load balancer health checks</li>
+ * </ul>
+ * With <code>--local</code> a server backed by a {@link MemoryMailStore} is
+ * started in this process, so no MySQL database is needed. The report then
+ * also shows how many sessions needed storage, compared with one database
+ * connection per session when every session connects eagerly.
+ * <p>
+ * Usage: <code>LoadGenerator [--option=value ...]</code>, see {@link #usage}.
+ */
+public class LoadGenerator {
+
+    /** The sequences of commands a session can issue. */
+    private enum Scenario {
+        POLL, DOWNLOAD, DELETE, TOP, PROBE
+    }
+
+    /**
+     * A histogram of latencies in microseconds with a relative error of
+     * about 3%, which can be recorded to concurrently without locking.
+     */
+    static class Histogram {
+
+        /** Number of sub-buckets per power of two, as a power of two. */
+        private static final int SUB_BITS = 5;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        /** Values below this are recorded exactly. */
+        private static final int LINEAR = SUB_COUNT * 2;
+
+        private final AtomicLongArray mCounts = new AtomicLongArray(2048);
+        private final AtomicLong mTotal = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        void record(long micros) {
+            mCounts.incrementAndGet(index(Math.max(0, micros)));
+            mTotal.incrementAndGet();
+
+            long max = mMax.get();
+            while (micros > max && !mMax.compareAndSet(max, micros)) {
+                max = mMax.get();
+            }
+        }
+
+        long count() {
+            return mTotal.get();
+        }
+
+        long max() {
+            return mMax.get();
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the upper bound of the bucket containing the percentile.
+         */
+        long percentile(double percentile) {
+            long total = mTotal.get();
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < mCounts.length(); i++) {
+                seen += mCounts.get(i);
+                if (seen >= rank) {
+                    return Math.min(value(i), mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+
+        private static int index(long value) {
+            if (value < LINEAR) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return LINEAR + (shift - 1) * SUB_COUNT
+                    + (int) (value >>> shift) - SUB_COUNT;
+        }
+
+        private static long value(int index) {
+            if (index < LINEAR) {
+                return index;
+            }
+            int shift = (index - LINEAR) / SUB_COUNT + 1;
+            long mantissa = (index - LINEAR) % SUB_COUNT + SUB_COUNT;
+            return ((mantissa + 1) << shift) - 1;
+        }
+    }
+
+    /** Statistics for a single command keyword. */
+    static class CommandStats {
+        final Histogram mLatency = new Histogram();
+        final AtomicLong mErrors = new AtomicLong();
+    }
+
+    private final String mHost;
+    private final int mPort;
+    private final int mTimeout;
+    private final double mRate;
+    private final int mDuration;
+    private final int mMaxSessions;
+    private final int mMaxFetch;
+    private final List<String[]> mUsers;
+    private final Scenario[] mMix;
+
+    /** The store of the server started by --local, otherwise null. */
+    private static CountingMailStore sLocalStore;
+
+    /** Statistics keyed by command keyword, plus CONNECT and SESSION. */
+    private final ConcurrentHashMap<String, CommandStats> mStats =
+            new ConcurrentHashMap<>();
+    private final AtomicInteger mActive = new AtomicInteger();
+    private final AtomicLong mStarted = new AtomicLong();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    /**
+     * @param args command line options, see {@link #usage}
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new TreeMap<>();
+        options.put("host", "localhost");
+        options.put("port", String.valueOf(Pop3Server.DEFAULT_PORT));
+        options.put("rate", "100");
+        options.put("duration", "30");
+        options.put("max-sessions", "5000");
+        options.put("timeout", "30");
+        options.put("mix", "poll=60,download=10,delete=5,top=10,probe=15");
+        options.put("max-fetch", "10");
+        options.put("users", "alex:hello123,bob:qwerty,claire:qazwsx");
+        options.put("mailboxes", "1000");
+        options.put("archives", "0");
+        options.put("messages", "20");
+        options.put("message-octets", "4096");
+        options.put("attachments", "0");
+
+        for (String arg : args) {
+            if (arg.equals("--local")) {
+                options.put("local", "true");
+            } else if (arg.startsWith("--") && arg.contains("=")) {
+                String[] pair = arg.substring(2).split("=", 2);
+                options.put(pair[0], pair[1]);
+            } else {
+                usage();
+                return;
+            }
+        }
+
+        Pop3Server server = null;
+        if (options.containsKey("local")) {
+            server = startLocalServer(options);
+        }
+
+        List<String[]> users = new ArrayList<>();
+        for (String user : options.get("users").split(",")) {
+            users.add(user.split(":", 2));
+        }
+
+        LoadGenerator generator = new LoadGenerator(options.get("host"),
+                Integer.parseInt(options.get("port")),
+                Integer.parseInt(options.get("timeout")) * 1000,
+                Double.parseDouble(options.get("rate")),
+                Integer.parseInt(options.get("duration")),
+                Integer.parseInt(options.get("max-sessions")),
+                Integer.parseInt(options.get("max-fetch")),
+                users, parseMix(options.get("mix")));
+
+        generator.run();
+        generator.report();
+
+        if (server != null) {
+            server.stop();
+        }
+        System.exit(0);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: LoadGenerator [--option=value ...]\n"
+                + "  --host=localhost        server to connect to\n"
+                + "  --port=110              port to connect to\n"
+                + "  --rate=100              new sessions per second\n"
+                + "  --duration=30           seconds to generate load for\n"
+                + "  --max-sessions=5000     concurrent session limit\n"
+                + "  --timeout=30            socket timeout in seconds\n"
+                + "  --mix=poll=60,download=10,delete=5,top=10,probe=15\n"
+                + "  --max-fetch=10          RETR/TOP/DELE per session\n"
+                + "  --users=user:pass,...   accounts to log in as\n"
+                + "  --local                 start an in-memory server\n"
+                + "  --mailboxes=1000        maildrops of the local server\n"
+                + "  --archives=0            local maildrops of 100k messages\n"
+                + "  --messages=20           median messages per maildrop\n"
+                + "  --message-octets=4096   median local message body size\n"
+                + "  --attachments=0         fraction of local messages with "
+                + "an attachment");
+    }
+
+    /**
+     * Start a server on the configured port backed by an in-memory store
+     * filled by {@link MaildropGenerator}, and replace the configured users
+     * with its accounts.
+     */
+    private static Pop3Server startLocalServer(Map<String, String> options) {
+        int mailboxes = Integer.parseInt(options.get("mailboxes"));
+
+        Map<String, String> fixture = new TreeMap<>();
+        fixture.put("mailboxes", options.get("mailboxes"));
+        fixture.put("archives", options.get("archives"));
+        fixture.put("median-messages", options.get("messages"));
+        fixture.put("median-octets", options.get("message-octets"));
+        fixture.put("attachment-fraction", options.get("attachments"));
+
+        MemoryMailStore store = new MemoryMailStore();
+        MaildropGenerator.fromOptions(fixture).populate(store);
+        sLocalStore = new CountingMailStore(store);
+
+        StringBuilder users = new StringBuilder();
+        for (int i = 0; i < mailboxes; i++) {
+            users.append(i == 0 ? "" : ",")
+                    .append("user").append(i).append(":password").append(i);
+        }
+        options.put("users", users.toString());
+        options.put("host", "localhost");
+
+        Log.setDebug(false);
+        int port = Integer.parseInt(options.get("port"));
+        Pop3Server server = new Pop3Server(port, Pop3Server.DEFAULT_TIMEOUT,
+                Pop3Server.sharedStore(sLocalStore));
+        server.start();
+
+        System.out.printf("Local server on port %d: %d maildrops\n", port,
+                mailboxes);
+        return server;
+    }
+
+    /**
+     * Parse a mix such as "poll=70,download=30" into a table of 100 scenarios
+     * that can be indexed by a uniformly random number.
+     */
+    private static Scenario[] parseMix(String mix) {
+        List<Scenario> table = new ArrayList<>();
+        for (String entry : mix.split(",")) {
+            String[] pair = entry.split("=", 2);
+            Scenario scenario = Scenario.valueOf(pair[0].trim().toUpperCase());
+            int weight = Integer.parseInt(pair[1].trim());
+            for (int i = 0; i < weight; i++) {
+                table.add(scenario);
+            }
+        }
+        return table.toArray(new Scenario[table.size()]);
+    }
+
+    LoadGenerator(String host, int port, int timeout, double rate,
+                  int duration, int maxSessions, int maxFetch,
+                  List<String[]> users, Scenario[] mix) {
+        mHost = host;
+        mPort = port;
+        mTimeout = timeout;
+        mRate = rate;
+        mDuration = duration;
+        mMaxSessions = maxSessions;
+        mMaxFetch = maxFetch;
+        mUsers = users;
+        mMix = mix;
+    }
+
+    /**
+     * Start sessions at the target rate for the configured duration, then wait
+     * for the sessions still in progress to finish.
+     */
+    public void run() throws InterruptedException {
+        ExecutorService executor = Executors.newCachedThreadPool(
+                new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+
+                });
+
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / mRate);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(mDuration);
+
+        for (long intended = start; intended < end; intended += interval) {
+            long delay = intended - System.nanoTime();
+            if (delay > 0) {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            }
+
+            if (mActive.get() >= mMaxSessions) {
+                // Open loop: never wait for capacity, count the miss instead
+                mDropped.incrementAndGet();
+                continue;
+            }
+
+            mActive.incrementAndGet();
+            mStarted.incrementAndGet();
+            final long scheduled = intended;
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        session(scheduled);
+                        mCompleted.incrementAndGet();
+                    } catch (IOException e) {
+                        mFailed.incrementAndGet();
+                    } finally {
+                        mActive.decrementAndGet();
+                    }
+                }
+
+            });
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(mTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run one session of a randomly chosen scenario.
+     *
+     * @param scheduled the time the session should have started, used so that
+     *                  delays in starting it count towards its latency
+     */
+    private void session(long scheduled) throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Scenario scenario = mMix[random.nextInt(mMix.length)];
+        String[] user = mUsers.get(random.nextInt(mUsers.size()));
+
+        Socket socket = new Socket();
+        try {
+            long begin = System.nanoTime();
+            socket.connect(new InetSocketAddress(mHost, mPort), mTimeout);
+            socket.setSoTimeout(mTimeout);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.ISO_8859_1));
+            OutputStream writer = socket.getOutputStream();
+
+            String greeting = reader.readLine();
+            record("CONNECT", begin, greeting);
+
+            if (scenario != Scenario.PROBE
+                    && command(reader, writer, "USER " + user[0], false)
+                    .startsWith("+OK")
+                    && command(reader, writer, "PASS " + user[1], false)
+                    .startsWith("+OK")) {
+                transaction(reader, writer, scenario);
+            }
+
+            command(reader, writer, "QUIT", false);
+            record("SESSION", scheduled, "+OK");
+
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Issue the commands of a scenario in the TRANSACTION state.
+     */
+    private void transaction(BufferedReader reader, OutputStream writer,
+                             Scenario scenario) throws IOException {
+        int messages;
+
+        switch (scenario) {
+            case POLL:
+                command(reader, writer, "STAT", false);
+                command(reader, writer, "UIDL", true);
+                break;
+
+            case DOWNLOAD:
+            case DELETE:
+                messages = parseCount(command(reader, writer, "STAT", false));
+                command(reader, writer, "LIST", true);
+                for (int i = 1; i <= Math.min(messages, mMaxFetch); i++) {
+                    command(reader, writer, "RETR " + i, true);
+                    if (scenario == Scenario.DELETE) {
+                        command(reader, writer, "DELE " + i, false);
+                    }
+                }
+                break;
+
+            case TOP:
+                messages = parseCount(command(reader, writer, "LIST", true));
+                for (int i = 1; i <= Math.min(messages, mMaxFetch); i++) {
+                    command(reader, writer, "TOP " + i + " 0", true);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Send a request and read the whole response.
+     *
+     * @param multiLine whether a positive response continues until a
+     *                  termination line
+     * @return the first line of the response.
+     */
+    private String command(BufferedReader reader, OutputStream writer,
+                           String request, boolean multiLine)
+            throws IOException {
+        long begin = System.nanoTime();
+        writer.write((request + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        writer.flush();
+
+        String first = reader.readLine();
+        if (first == null) {
+            throw new IOException("Connection closed by server");
+        }
+
+        if (multiLine && first.startsWith("+OK")) {
+            String line;
+            do {
+                line = reader.readLine();
+                if (line == null) {
+                    throw new IOException("Connection closed by server");
+                }
+                // The server may echo the request after the termination octet,
+                // which a byte-stuffed line ("..") can never be confused with
+            } while (!(line.equals(".") || line.startsWith(". ")));
+        }
+
+        int space = request.indexOf(' ');
+        record(space < 0 ? request : request.substring(0, space), begin, first);
+        return first;
+    }
+
+    private void record(String command, long begin, String response) {
+        CommandStats stats = mStats.get(command);
+        if (stats == null) {
+            mStats.putIfAbsent(command, new CommandStats());
+            stats = mStats.get(command);
+        }
+        stats.mLatency.record(
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin));
+        if (response == null || !response.startsWith("+OK")) {
+            stats.mErrors.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the message count of a STAT or LIST response, e.g. "+OK 2 320".
+     */
+    private static int parseCount(String response) {
+        String[] words = response.split(" ");
+        try {
+            return words.length > 1 ? Integer.parseInt(words[1]) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Print the session counts and a table of per-command statistics.
+     */
+    public void report() {
+        System.out.printf("Sessions: %d started, %d completed, %d failed, "
+                        + "%d dropped (%.1f/s target over %ds)\n",
+                mStarted.get(), mCompleted.get(), mFailed.get(), mDropped.get(),
+                mRate, mDuration);
+        System.out.printf("%-8s %10s %8s %10s %9s %9s %9s %9s %9s\n", "command",
+                "count", "errors", "per sec", "p50 ms", "p90 ms", "p99 ms",
+                "p99.9 ms", "max ms");
+
+        for (Map.Entry<String, CommandStats> e
+                : new TreeMap<>(mStats).entrySet()) {
+            Histogram h = e.getValue().mLatency;
+            System.out.printf("%-8s %10d %8d %10.1f %9.2f %9.2f %9.2f %9.2f"
+                            + " %9.2f\n", e.getKey(), h.count(),
+                    e.getValue().mErrors.get(), (double) h.count() / mDuration,
+                    h.percentile(50) / 1000.0, h.percentile(90) / 1000.0,
+                    h.percentile(99) / 1000.0, h.percentile(99.9) / 1000.0,
+                    h.max() / 1000.0);
+        }
+
+        if (sLocalStore != null) {
+            long sessions = mStarted.get();
+            System.out.printf("Storage: needed by %d of %d sessions (%.1f/s), "
+                            + "%d operations, at most %d concurrent; "
+                            + "eager attachment opens %d connections (%.1f/s)"
+                            + "\n", sLocalStore.getLookups(), sessions,
+                    (double) sLocalStore.getLookups() / mDuration,
+                    sLocalStore.getOperations(), sLocalStore.getPeakInFlight(),
+                    sessions, (double) sessions / mDuration);
+        }
+    }
+}
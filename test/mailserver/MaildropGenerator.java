@@ -0,0 +1,417 @@
+package mailserver;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Generates synthetic maildrops that are large enough to show how the server
+ * scales with the number and size of messages.
+ * <p>
+ * The number of messages in each maildrop and the size of each message body
+ * follow log-normal distributions, so most maildrops are small and a few are
+ * very large. A number of archive maildrops can be given the maximum message
+ * count. Some messages carry a base64 attachment, and a fraction of the body
+ * lines begin with "." to exercise byte-stuffing.
+ * <p>
+ * The data is written as SQL for the m_Maildrop and m_Mail tables of mkdb.sql,
+ * or loaded directly into a {@link MemoryMailStore}.
+ * <p>
+ * Usage: <code>MaildropGenerator [--option=value ...]</code>, see
+ * {@link #usage}.
+ */
+public class MaildropGenerator {
+
+    /** Receives the generated maildrops and messages. */
+    public interface Sink {
+
+        void maildrop(int maildropID, String username, String password)
+                throws IOException;
+
+        void mail(int mailID, int maildropID, String content, String uidl)
+                throws IOException;
+    }
+
+    private static final char[] BASE64 = ("ABCDEFGHIJKLMNOPQRSTUVWXYZ"
+            + "abcdefghijklmnopqrstuvwxyz0123456789+/").toCharArray();
+    private static final String[] WORDS = {"the", "mail", "server", "of",
+            "message", "and", "to", "a", "report", "please", "meeting", "in",
+            "attached", "for", "is", "on", "regards", "with", "project", "we"};
+
+    private final Random mRandom;
+    private int mMailboxes = 1000;
+    private int mArchives = 1;
+    private int mMedianMessages = 50;
+    private double mMessagesSigma = 1.2;
+    private int mMaxMessages = 100000;
+    private int mMedianOctets = 3000;
+    private double mOctetsSigma = 1.0;
+    private double mAttachmentFraction = 0.05;
+    private int mMedianAttachmentOctets = 200000;
+    private int mMaxOctets = 8 * 1024 * 1024;
+    private double mDotFraction = 0.01;
+
+    /**
+     * @param args command line options, see {@link #usage}
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new TreeMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                usage();
+                return;
+            }
+            String[] pair = arg.substring(2).split("=", 2);
+            options.put(pair[0], pair[1]);
+        }
+
+        String out = options.remove("out");
+        if (out == null) {
+            usage();
+            return;
+        }
+
+        MaildropGenerator generator = fromOptions(options);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(out), StandardCharsets.UTF_8));
+        SqlSink sink = new SqlSink(writer);
+        generator.generate(sink);
+        sink.finish();
+        writer.close();
+    }
+
+    private static void usage() {
+        System.err.println("Usage: MaildropGenerator --out=<file.sql> "
+                + "[--option=value ...]\n"
+                + "  --seed=1                     random seed\n"
+                + "  --mailboxes=1000             number of maildrops\n"
+                + "  --archives=1                 maildrops with max-messages\n"
+                + "  --median-messages=50         per maildrop\n"
+                + "  --messages-sigma=1.2         log-normal spread\n"
+                + "  --max-messages=100000        per maildrop\n"
+                + "  --median-octets=3000         per message body\n"
+                + "  --octets-sigma=1.0           log-normal spread\n"
+                + "  --attachment-fraction=0.05   messages with attachment\n"
+                + "  --median-attachment-octets=200000\n"
+                + "  --max-octets=8388608         per message\n"
+                + "  --dot-fraction=0.01          lines beginning with '.'");
+    }
+
+    /**
+     * Create a generator from command line style options, e.g.
+     * "mailboxes" = "1000". Unknown options are rejected.
+     *
+     * @param options option names without the leading "--"
+     * @return the configured generator.
+     */
+    public static MaildropGenerator fromOptions(Map<String, String> options) {
+        Map<String, String> remaining = new TreeMap<>(options);
+        String seed = remaining.remove("seed");
+        MaildropGenerator g = new MaildropGenerator(
+                seed == null ? 1 : Long.parseLong(seed));
+
+        for (Map.Entry<String, String> e : remaining.entrySet()) {
+            String v = e.getValue();
+            switch (e.getKey()) {
+                case "mailboxes":
+                    g.mMailboxes = Integer.parseInt(v);
+                    break;
+                case "archives":
+                    g.mArchives = Integer.parseInt(v);
+                    break;
+                case "median-messages":
+                    g.mMedianMessages = Integer.parseInt(v);
+                    break;
+                case "messages-sigma":
+                    g.mMessagesSigma = Double.parseDouble(v);
+                    break;
+                case "max-messages":
+                    g.mMaxMessages = Integer.parseInt(v);
+                    break;
+                case "median-octets":
+                    g.mMedianOctets = Integer.parseInt(v);
+                    break;
+                case "octets-sigma":
+                    g.mOctetsSigma = Double.parseDouble(v);
+                    break;
+                case "attachment-fraction":
+                    g.mAttachmentFraction = Double.parseDouble(v);
+                    break;
+                case "median-attachment-octets":
+                    g.mMedianAttachmentOctets = Integer.parseInt(v);
+                    break;
+                case "max-octets":
+                    g.mMaxOctets = Integer.parseInt(v);
+                    break;
+                case "dot-fraction":
+                    g.mDotFraction = Double.parseDouble(v);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option "
+                            + e.getKey());
+            }
+        }
+
+        return g;
+    }
+
+    /**
+     * @param seed the seed for the random generator, the same seed always
+     *             produces the same dataset
+     */
+    public MaildropGenerator(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Generate every maildrop and message into the sink. Maildrop i has the
+     * username "user&lt;i&gt;" and the password "password&lt;i&gt;".
+     *
+     * @param sink receives the generated rows
+     * @throws IOException
+     */
+    public void generate(Sink sink) throws IOException {
+        int mailID = 1;
+
+        for (int i = 0; i < mMailboxes; i++) {
+            int maildropID = i + 1;
+            sink.maildrop(maildropID, "user" + i, "password" + i);
+
+            int messages = i < mArchives ? mMaxMessages
+                    : logNormal(mMedianMessages, mMessagesSigma, mMaxMessages);
+            for (int j = 0; j < messages; j++) {
+                sink.mail(mailID, maildropID, message(maildropID, mailID),
+                        String.format("%08x%08x", maildropID, mailID));
+                mailID++;
+            }
+        }
+    }
+
+    /**
+     * Generate the maildrops into an in-memory store.
+     *
+     * @param store the store to add the maildrops to
+     */
+    public void populate(final MemoryMailStore store) {
+        try {
+            generate(new Sink() {
+
+                private final Map<Integer, Integer> mIds = new TreeMap<>();
+
+                @Override
+                public void maildrop(int maildropID, String username,
+                                     String password) {
+                    mIds.put(maildropID, store.addMaildrop(username, password));
+                }
+
+                @Override
+                public void mail(int mailID, int maildropID, String content,
+                                 String uidl) {
+                    store.addMail(mIds.get(maildropID), content, uidl);
+                }
+
+            });
+        } catch (IOException e) {
+            // Not thrown by an in-memory sink
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return a log-normally distributed integer between 0 and max.
+     */
+    private int logNormal(int median, double sigma, int max) {
+        double value = median * Math.exp(sigma * mRandom.nextGaussian());
+        return (int) Math.min(max, Math.round(value));
+    }
+
+    /**
+     * Generate a message with LF line endings, as stored in txMailContent.
+     */
+    private String message(int maildropID, int mailID) {
+        int bodyOctets = logNormal(mMedianOctets, mOctetsSigma, mMaxOctets);
+        boolean attachment = mRandom.nextDouble() < mAttachmentFraction;
+        StringBuilder message = new StringBuilder(bodyOctets + 512);
+
+        message.append("Received: from mx").append(mRandom.nextInt(10))
+                .append(".example.com by mail.example.com id ").append(mailID)
+                .append(";\n          21 Sep 2006 19:00 BST\n")
+                .append("To: user").append(maildropID - 1)
+                .append("@example.com\n")
+                .append("From: Sender ").append(mRandom.nextInt(1000))
+                .append(" <sender@example.org>\n")
+                .append("Subject: Generated message ").append(mailID)
+                .append("\n")
+                .append("Date: Thu, 21 Sep 2006 18:59:43 BST\n")
+                .append("Message-ID: <").append(mailID)
+                .append(".generated@example.com>\n")
+                .append("MIME-Version: 1.0\n");
+
+        if (attachment) {
+            message.append("Content-Type: multipart/mixed; boundary=\"b\"\n\n")
+                    .append("--b\nContent-Type: text/plain\n\n");
+        } else {
+            message.append("Content-Type: text/plain\n\n");
+        }
+
+        appendText(message, bodyOctets);
+
+        if (attachment) {
+            int attachmentOctets = logNormal(mMedianAttachmentOctets,
+                    mOctetsSigma, mMaxOctets - bodyOctets);
+            message.append("--b\nContent-Type: application/octet-stream\n")
+                    .append("Content-Transfer-Encoding: base64\n\n");
+            appendBase64(message, attachmentOctets);
+            message.append("--b--\n");
+        }
+
+        return message.toString();
+    }
+
+    /**
+     * Append lines of words of varying length, some beginning with ".".
+     */
+    private void appendText(StringBuilder message, int octets) {
+        int end = message.length() + octets;
+
+        while (message.length() < end) {
+            int lineEnd = message.length() + 20 + mRandom.nextInt(58);
+            if (mRandom.nextDouble() < mDotFraction) {
+                message.append('.');
+            }
+            while (message.length() < lineEnd) {
+                message.append(WORDS[mRandom.nextInt(WORDS.length)])
+                        .append(' ');
+            }
+            message.append('\n');
+        }
+    }
+
+    /**
+     * Append random base64 text in lines of 76 characters.
+     */
+    private void appendBase64(StringBuilder message, int octets) {
+        for (int i = 0; i < octets; i++) {
+            message.append(BASE64[mRandom.nextInt(BASE64.length)]);
+            if (i % 76 == 75) {
+                message.append('\n');
+            }
+        }
+        message.append('\n');
+    }
+
+    /**
+     * Writes the rows as multi-row INSERT statements that can be loaded after
+     * mkdb.sql has created the tables.
+     */
+    public static class SqlSink implements Sink {
+
+        /** Start a new INSERT once a statement exceeds this many characters. */
+        private static final int MAX_STATEMENT = 4 * 1024 * 1024;
+
+        private final Writer mWriter;
+        private int mStatementLength;
+        private boolean mInMailInsert;
+
+        public SqlSink(Writer writer) throws IOException {
+            mWriter = writer;
+            mWriter.write("SET autocommit = 0;\nSET unique_checks = 0;\n"
+                    + "DELETE FROM `m_Mail`;\nDELETE FROM `m_Maildrop`;\n");
+        }
+
+        @Override
+        public void maildrop(int maildropID, String username, String password)
+                throws IOException {
+            endMailInsert();
+            mWriter.write("INSERT INTO `m_Maildrop` (`iMaildropID`, "
+                    + "`vchUsername`, `vchPassword`, `tiLocked`) VALUES (");
+            mWriter.write(maildropID + ", " + quote(username) + ", "
+                    + quote(password) + ", 0);\n");
+        }
+
+        @Override
+        public void mail(int mailID, int maildropID, String content,
+                         String uidl) throws IOException {
+            String row = "(" + mailID + ", " + maildropID + ", "
+                    + quote(content) + ", "
+                    + MailBody.getHeaderLength(content) + ", "
+                    + quote(uidl) + ")";
+
+            if (mInMailInsert && mStatementLength + row.length() > MAX_STATEMENT) {
+                endMailInsert();
+            }
+            if (!mInMailInsert) {
+                mWriter.write("INSERT INTO `m_Mail` (`iMailID`, `iMaildropID`, "
+                        + "`txMailContent`, `iHeaderLength`, `vchUIDL`)"
+                        + " VALUES\n");
+                mInMailInsert = true;
+                mStatementLength = 0;
+            } else {
+                mWriter.write(",\n");
+            }
+
+            mWriter.write(row);
+            mStatementLength += row.length();
+        }
+
+        /**
+         * Terminate the last statement and commit.
+         *
+         * @throws IOException
+         */
+        public void finish() throws IOException {
+            endMailInsert();
+            mWriter.write("COMMIT;\nSET unique_checks = 1;\n");
+            mWriter.flush();
+        }
+
+        private void endMailInsert() throws IOException {
+            if (mInMailInsert) {
+                mWriter.write(";\n");
+                mInMailInsert = false;
+            }
+        }
+
+        /**
+         * @return the value as a MySQL string literal.
+         */
+        private static String quote(String value) {
+            StringBuilder quoted = new StringBuilder(value.length() + 16)
+                    .append('\'');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '\'':
+                        quoted.append("\\'");
+                        break;
+                    case '\\':
+                        quoted.append("\\\\");
+                        break;
+                    case '\n':
+                        quoted.append("\\n");
+                        break;
+                    case '\r':
+                        quoted.append("\\r");
+                        break;
+                    case '\0':
+                        quoted.append("\\0");
+                        break;
+                    case '\u001a':
+                        quoted.append("\\Z");
+                        break;
+                    default:
+                        quoted.append(c);
+                        break;
+                }
+            }
+            return quoted.append('\'').toString();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package mailserver;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestBatchWriter {
+
+    private static BatchWriter<Integer> newWriter(
+            final AtomicInteger written) {
+        return new BatchWriter<>("test", 1, 10, 0,
+                new BatchWriter.Writer<Integer>() {
+
+                    @Override
+                    public void write(List<Integer> batch) {
+                        written.addAndGet(batch.size());
+                    }
+
+                });
+    }
+
+    private static boolean hasFailed(Future<Void> result) {
+        if (!result.isDone()) {
+            return false;
+        }
+        try {
+            result.get();
+            return false;
+        } catch (InterruptedException | ExecutionException e) {
+            return true;
+        }
+    }
+
+    @Test
+    public void testWritesAreCommittedAndLaterOnesFail() throws Exception {
+        AtomicInteger written = new AtomicInteger();
+        BatchWriter<Integer> writer = newWriter(written);
+
+        List<Future<Void>> results = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            results.add(writer.submit(i));
+        }
+        for (Future<Void> result : results) {
+            BatchWriter.await(result);
+        }
+        Assert.assertEquals(100, written.get());
+        Assert.assertEquals(100, writer.getWrites());
+
+        writer.close();
+        try {
+            BatchWriter.await(writer.submit(100));
+            Assert.fail("Write accepted after close()");
+        } catch (SQLException e) {
+            Assert.assertEquals("BatchWriter is closed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testSubmitDuringCloseIsCompleted() throws Exception {
+        for (int round = 0; round < 50; round++) {
+            final AtomicInteger written = new AtomicInteger();
+            final BatchWriter<Integer> writer = newWriter(written);
+            final List<List<Future<Void>>> submitted = new ArrayList<>();
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                final List<Future<Void>> results = new ArrayList<>();
+                submitted.add(results);
+                threads.add(new Thread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        // Until a write fails because the writer is closed
+                        Future<Void> result;
+                        do {
+                            if (writer.getQueued() > 100) {
+                                Thread.yield();
+                            }
+                            result = writer.submit(0);
+                            results.add(result);
+                        } while (!hasFailed(result));
+                    }
+
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+
+            Thread.sleep(5);
+            writer.close();
+            for (Thread thread : threads) {
+                thread.join(5000);
+                Assert.assertFalse(thread.isAlive());
+            }
+
+            // Each write was either committed or failed, none is left
+            int committed = 0;
+            for (List<Future<Void>> results : submitted) {
+                for (Future<Void> result : results) {
+                    try {
+                        result.get(5, TimeUnit.SECONDS);
+                        committed++;
+                    } catch (ExecutionException e) {
+                        Assert.assertTrue(
+                                e.getCause() instanceof SQLException);
+                    } catch (TimeoutException e) {
+                        Assert.fail("A write submitted during close() was"
+                                + " never completed");
+                    }
+                }
+            }
+            Assert.assertEquals(written.get(), committed);
+        }
+    }
+}
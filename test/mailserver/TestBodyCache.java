@@ -0,0 +1,68 @@
+package mailserver;
+
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestBodyCache {
+
+    private static MailBody body(int chars) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < chars; i++) {
+            text.append('x');
+        }
+        return new MailBody(MailCompression.NONE, text.toString(), null);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        // Each body weighs 200 bytes, so eight fit
+        BodyCache cache = new BodyCache(1600);
+        for (int i = 1; i <= 8; i++) {
+            cache.put(i, body(100));
+        }
+        Assert.assertNotNull(cache.get(1));
+
+        cache.put(9, body(100));
+        Assert.assertEquals(8, cache.size());
+        Assert.assertEquals(1600, cache.getWeight());
+        Assert.assertNotNull(cache.get(1));
+        Assert.assertNull(cache.get(2));
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testSkipsLargeBodies() {
+        BodyCache cache = new BodyCache(1000);
+        // Larger than an eighth of the cache
+        cache.put(1, body(63));
+        Assert.assertNull(cache.get(1));
+        Assert.assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    public void testSeparatesDatabases() {
+        BodyCache cache = new BodyCache(1600);
+        MailBody first = body(10);
+        cache.put(0, 1, first);
+        cache.put(1, 1, body(20));
+        Assert.assertSame(first, cache.get(1));
+        Assert.assertEquals(2, cache.size());
+        Assert.assertNull(cache.get(2, 1));
+    }
+
+    @Test
+    public void testSplitBodyJoinsBack() throws IOException {
+        String message = "Subject: a\nTo: b\n\nline 1\n\nline 2\n";
+        int start = MailBody.getBodyStart(message);
+        Assert.assertEquals("line 1\n\nline 2\n", message.substring(start));
+        Assert.assertEquals(-1, MailBody.getBodyStart("Subject: a\n"));
+
+        MailBody header = MailBody.encode(message.substring(0, start), false);
+        MailBody body = MailBody.encode(message.substring(start), true);
+        Assert.assertEquals(message, MailCompression.readAll(
+                MailBody.join(header.open(), body.open())));
+    }
+}
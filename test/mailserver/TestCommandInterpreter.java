@@ -1,5 +1,8 @@
 package mailserver;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.Before;
@@ -151,6 +154,131 @@ public class TestCommandInterpreter {
         Assert.assertEquals(expected, response);
     }
 
+    //////////////////////////////////////////////////////////////////////////
+    //// APOP / AUTH / CAPA
+    /////////////////////////////////////////////////////////////////////////
+
+    private static String plain(String credentials) {
+        return Base64.getEncoder().encodeToString(
+                credentials.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testApopValid() {
+        String timestamp = "<1.2@test>";
+        mCi = new CommandInterpreter(mDatabase, timestamp);
+        String request = "APOP test c4c9334bac560ecc979e58001b3e22fb";
+        Mockito.doReturn(OK).when(mDatabase).apop("test", timestamp,
+                "c4c9334bac560ecc979e58001b3e22fb");
+
+        String response = mCi.handleInput(request);
+
+        Assert.assertEquals(concat(OK, request), response);
+        // Now in the TRANSACTION state
+        Mockito.doReturn(OK).when(mDatabase).stat();
+        Assert.assertEquals(OK + CRLF, mCi.handleInput("STAT"));
+    }
+
+    @Test
+    public void testApopWithoutTimestampReturnsError() {
+        String request = "APOP test digest";
+
+        String expected = concat(CommandInterpreter.ERR_APOP_UNAVAILABLE,
+                request);
+        String response = mCi.handleInput(request);
+
+        Mockito.verify(mDatabase, Mockito.times(0)).apop(Mockito.anyString(),
+                Mockito.anyString(), Mockito.anyString());
+        Assert.assertEquals(expected, response);
+    }
+
+    @Test
+    public void testAuthPlainInitialResponse() {
+        Mockito.doReturn(OK).when(mDatabase).user("test");
+        Mockito.doReturn(OK).when(mDatabase).pass("pass word");
+
+        String response = mCi.handleInput("AUTH PLAIN "
+                + plain("\0test\0pass word"));
+
+        Mockito.verify(mDatabase, Mockito.times(1)).pass("pass word");
+        // Credentials are never echoed back
+        Assert.assertEquals(OK + CRLF, response);
+    }
+
+    @Test
+    public void testAuthPlainContinuation() {
+        Mockito.doReturn(OK).when(mDatabase).user("test");
+        Mockito.doReturn(OK).when(mDatabase).pass("password");
+
+        Assert.assertEquals(CommandInterpreter.SASL_CONTINUE + CRLF,
+                mCi.handleInput("AUTH PLAIN"));
+        String response = mCi.handleInput(plain("test\0test\0password"));
+
+        Mockito.verify(mDatabase, Mockito.times(1)).pass("password");
+        Assert.assertEquals(OK + CRLF, response);
+    }
+
+    @Test
+    public void testAuthPlainCancelled() {
+        mCi.handleInput("AUTH PLAIN");
+
+        Assert.assertEquals(CommandInterpreter.ERR_AUTH_CANCELLED + CRLF,
+                mCi.handleInput("*"));
+        Mockito.verify(mDatabase, Mockito.times(0)).user(Mockito.anyString());
+    }
+
+    @Test
+    public void testAuthPlainOtherAuthorizationIdentityReturnsError() {
+        String response = mCi.handleInput("AUTH PLAIN "
+                + plain("admin\0test\0password"));
+
+        Mockito.verify(mDatabase, Mockito.times(0)).user(Mockito.anyString());
+        Assert.assertEquals(CommandInterpreter.ERR_AUTH_INVALID + CRLF,
+                response);
+    }
+
+    @Test
+    public void testAuthUnsupportedMechanismReturnsError() {
+        Assert.assertEquals(CommandInterpreter.ERR_AUTH_MECHANISM + CRLF,
+                mCi.handleInput("AUTH CRAM-MD5"));
+    }
+
+    @Test
+    public void testCapaListsAuthenticationMechanisms() {
+        mCi = new CommandInterpreter(mDatabase, "<1.2@test>");
+
+        String response = mCi.handleInput("CAPA");
+
+        Assert.assertTrue(response.startsWith(OK));
+        Assert.assertTrue(response.contains(CRLF + "SASL PLAIN" + CRLF));
+        Assert.assertTrue(response.contains(CRLF + "APOP" + CRLF));
+        Assert.assertTrue(response.endsWith(CRLF + "." + CRLF));
+    }
+
+    @Test
+    public void testStlsUnavailableReturnsError() {
+        Assert.assertEquals(concat(CommandInterpreter.ERR_STLS_UNAVAILABLE,
+                "STLS"), mCi.handleInput("STLS"));
+        Assert.assertFalse(mCi.isStlsRequested());
+    }
+
+    @Test
+    public void testStlsResetsUserAndIsOfferedOnce() {
+        mCi.setStlsAvailable(true);
+        Assert.assertTrue(mCi.handleInput("CAPA")
+                .contains(CRLF + "STLS" + CRLF));
+        executeValidUser();
+
+        Assert.assertTrue(mCi.handleInput("STLS").startsWith(OK));
+        Assert.assertTrue(mCi.isStlsRequested());
+        mCi.setStlsAvailable(false);
+
+        // USER must be issued again over TLS
+        Assert.assertEquals(concat(CommandInterpreter.ERR_USER_CMD_NOT_ISSUED,
+                "PASS password"), mCi.handleInput("PASS password"));
+        Assert.assertFalse(mCi.handleInput("CAPA").contains("STLS"));
+    }
+
     //////////////////////////////////////////////////////////////////////////
     //// DELE
     /////////////////////////////////////////////////////////////////////////
@@ -0,0 +1,109 @@
+package mailserver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestConfig {
+
+    /** The configuration file, rewritten by each test. */
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        Log.setDebug(false);
+        mFile = File.createTempFile("mailserver", ".properties");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mFile.delete();
+        Config.load(null, Collections.<String, String>emptyMap());
+        System.clearProperty("mailserver.poolSize");
+        Log.setDebug(true);
+    }
+
+    private void write(String properties) throws IOException {
+        try (OutputStream out = new FileOutputStream(mFile)) {
+            out.write(properties.getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    @Test
+    public void testPrecedence() throws IOException {
+        write("poolSize = 5\nmailserver.backlog=7\nworkerThreads=9\n");
+        Map<String, String> environment = new HashMap<>();
+        environment.put("MAILSERVER_WORKER_THREADS", "11");
+        environment.put("MAILSERVER_BACKLOG", "13");
+        System.setProperty("mailserver.poolSize", "3");
+
+        Config.load(mFile, environment);
+        Assert.assertEquals("3", System.getProperty("mailserver.poolSize"));
+        Assert.assertEquals("13", System.getProperty("mailserver.backlog"));
+        Assert.assertEquals("11",
+                System.getProperty("mailserver.workerThreads"));
+
+        // Values from the file are replaced by the next load
+        Config.load(null, Collections.<String, String>emptyMap());
+        Assert.assertEquals("3", System.getProperty("mailserver.poolSize"));
+        Assert.assertNull(System.getProperty("mailserver.backlog"));
+    }
+
+    @Test
+    public void testRejectsMalformedValue() throws IOException {
+        write("maxConnections=lots\n");
+        try {
+            Config.load(mFile, Collections.<String, String>emptyMap());
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage().contains("maxConnections"));
+        }
+        Assert.assertNull(System.getProperty("mailserver.maxConnections"));
+    }
+
+    @Test
+    public void testReloadAppliesReloadableSettings() throws IOException {
+        write("hibernateAfter=1000\nbacklog=10\n");
+        Config.load(mFile, Collections.<String, String>emptyMap());
+
+        final List<String> changes = new ArrayList<>();
+        Config.Listener listener = new Config.Listener() {
+
+            @Override
+            public void changed(String name, String value) {
+                changes.add(name + "=" + value);
+            }
+
+        };
+        Config.addListener("mailserver.hibernateAfter", listener);
+        Config.addListener("mailserver.backlog", listener);
+
+        write("hibernateAfter=2000\nbacklog=20\n");
+        Assert.assertEquals(Arrays.asList("mailserver.hibernateAfter"),
+                Config.reloadSources());
+        Assert.assertEquals(Arrays.asList("mailserver.hibernateAfter=2000"),
+                changes);
+        // Only on restart
+        Assert.assertEquals("10", System.getProperty("mailserver.backlog"));
+
+        try {
+            Config.set("mailserver.backlog", "30");
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package mailserver;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestDeletionSet {
+
+    @Test
+    public void testDeleteAndCount() {
+        DeletionSet set = new DeletionSet(100);
+        Assert.assertTrue(set.delete(1));
+        Assert.assertTrue(set.delete(64));
+        Assert.assertTrue(set.delete(100));
+        Assert.assertFalse(set.delete(64));
+
+        Assert.assertTrue(set.isDeleted(64));
+        Assert.assertFalse(set.isDeleted(63));
+        Assert.assertEquals(3, set.getDeletedCount());
+        Assert.assertEquals(97, set.getUndeletedCount());
+    }
+
+    @Test
+    public void testClearStartsAfresh() {
+        DeletionSet set = new DeletionSet(200);
+        for (int i = 1; i <= 200; i++) {
+            set.delete(i);
+        }
+        set.clear();
+
+        Assert.assertEquals(0, set.getDeletedCount());
+        Assert.assertFalse(set.isDeleted(130));
+        Assert.assertEquals(-1, set.nextDeleted(1));
+        Assert.assertTrue(set.delete(130));
+        Assert.assertEquals(130, set.nextDeleted(1));
+    }
+
+    @Test
+    public void testNextSkipsRuns() {
+        DeletionSet set = new DeletionSet(300);
+        for (int i = 1; i <= 257; i++) {
+            set.delete(i);
+        }
+        set.delete(300);
+
+        Assert.assertEquals(258, set.nextUndeleted(1));
+        Assert.assertEquals(299, set.nextUndeleted(299));
+        Assert.assertEquals(-1, set.nextUndeleted(300));
+        Assert.assertEquals(300, set.nextDeleted(258));
+        Assert.assertEquals(-1, set.nextDeleted(301));
+    }
+
+    @Test
+    public void testNextStopsAtSize() {
+        // Bits past the last message are clear but are not messages
+        DeletionSet set = new DeletionSet(70);
+        set.delete(70);
+        Assert.assertEquals(-1, set.nextUndeleted(70));
+
+        DeletionSet empty = new DeletionSet(0);
+        Assert.assertEquals(-1, empty.nextUndeleted(1));
+        Assert.assertEquals(0, empty.getUndeletedCount());
+    }
+}
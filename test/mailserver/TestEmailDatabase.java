@@ -0,0 +1,270 @@
+package mailserver;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestEmailDatabase {
+
+    private static final String CRLF = "\r\n";
+
+    private static final String MESSAGE_1 =
+            "Subject: one\nFrom: a@example.com\n\nfirst line\n.dotted\nlast";
+    private static final String MESSAGE_2 = "Subject: two\n\nbody";
+
+    /** In-memory backing store */
+    private MemoryMailStore mStore;
+
+    /** Instance under test */
+    private EmailDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mStore = new MemoryMailStore();
+        int maildrop = mStore.addMaildrop("test", "password");
+        mStore.addMail(maildrop, MESSAGE_1, "uidl-1");
+        mStore.addMail(maildrop, MESSAGE_2, "uidl-2");
+
+        mDb = new EmailDatabase(mStore);
+    }
+
+    private void login() {
+        Assert.assertTrue(mDb.user("test").startsWith("+OK"));
+        Assert.assertTrue(mDb.pass("password").startsWith("+OK"));
+    }
+
+    @Test
+    public void testUserUnknownMailbox() {
+        Assert.assertEquals("-ERR mailbox nobody does not exist",
+                mDb.user("nobody"));
+    }
+
+    @Test
+    public void testPassLocksMaildrop() {
+        login();
+
+        Assert.assertEquals("-ERR mailbox test currently locked",
+                new EmailDatabase(mStore).user("test"));
+    }
+
+    @Test
+    public void testPassInvalid() {
+        mDb.user("test");
+        Assert.assertTrue(mDb.pass("wrong").startsWith("-ERR"));
+    }
+
+    @Test
+    public void testPassHashed() {
+        System.setProperty("mailserver.pbkdf2Iterations", "1000");
+        mStore.addMaildrop("hashed", PasswordHasher.hash("secret"));
+        Authenticator authenticator = new Authenticator(1, 1, 10, 60000);
+
+        EmailDatabase db = new EmailDatabase(mStore, authenticator);
+        db.user("hashed");
+        Assert.assertTrue(db.pass("wrong").startsWith("-ERR"));
+        Assert.assertTrue(db.pass("secret").startsWith("+OK"));
+        db.timeout();
+
+        db = new EmailDatabase(mStore, authenticator);
+        db.user("hashed");
+        Assert.assertTrue(db.pass("secret").startsWith("+OK"));
+        Assert.assertEquals(1, authenticator.getCacheHits());
+
+        db.timeout();
+        db = new EmailDatabase(mStore, authenticator);
+        db.user("hashed");
+        Assert.assertTrue(db.pass("wrong").startsWith("-ERR"));
+    }
+
+    @Test
+    public void testApop() throws Exception {
+        String timestamp = "<1.2@test>";
+        StringBuilder digest = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("MD5").digest(
+                (timestamp + "password").getBytes(StandardCharsets.UTF_8))) {
+            digest.append(String.format("%02x", b));
+        }
+
+        Assert.assertTrue(mDb.apop("test", timestamp, "0123456789abcdef")
+                .startsWith("-ERR"));
+        Assert.assertTrue(mDb.apop("test", timestamp, digest.toString())
+                .startsWith("+OK"));
+        Assert.assertTrue(mDb.stat().startsWith("+OK 2 "));
+    }
+
+    @Test
+    public void testStat() {
+        login();
+        int octets = MESSAGE_1.length() + MESSAGE_2.length();
+        Assert.assertEquals("+OK 2 " + octets, mDb.stat());
+    }
+
+    @Test
+    public void testListAll() {
+        login();
+        String expected = "+OK 2 messages ("
+                + (MESSAGE_1.length() + MESSAGE_2.length()) + " octets)" + CRLF
+                + "1 " + MESSAGE_1.length() + CRLF
+                + "2 " + MESSAGE_2.length() + CRLF
+                + ".";
+        Assert.assertEquals(expected, mDb.list(-1));
+    }
+
+    @Test
+    public void testListReadsSizesOnce() {
+        CountingMailStore store = new CountingMailStore(mStore);
+        mDb = new EmailDatabase(store);
+        login();
+
+        long operations = store.getOperations();
+        Assert.assertTrue(mDb.list(-1).startsWith("+OK 2 messages"));
+        Assert.assertEquals(1, store.getOperations() - operations);
+    }
+
+    @Test
+    public void testListSkipsDeleted() {
+        login();
+        mDb.dele(1);
+
+        Assert.assertEquals("-ERR no such message", mDb.list(1));
+        Assert.assertEquals("+OK 2 " + MESSAGE_2.length(), mDb.list(2));
+        Assert.assertEquals("+OK 1 " + MESSAGE_2.length(), mDb.stat());
+    }
+
+    @Test
+    public void testTopByteStuffsLines() {
+        login();
+        String expected = "+OK" + CRLF
+                + "Subject: one" + CRLF + "From: a@example.com" + CRLF + CRLF
+                + "first line" + CRLF
+                + "..dotted" + CRLF
+                + ".";
+        Assert.assertEquals(expected, mDb.getMessage(1, 2));
+    }
+
+    @Test
+    public void testRetrSendsLastLine() {
+        login();
+        String expected = "+OK" + CRLF
+                + "Subject: one" + CRLF + "From: a@example.com" + CRLF + CRLF
+                + "first line" + CRLF
+                + "..dotted" + CRLF
+                + "last" + CRLF
+                + ".";
+        Assert.assertEquals(expected, mDb.getMessage(1, -1));
+        Assert.assertEquals(expected, mDb.getMessage(1, 3));
+    }
+
+    @Test
+    public void testRetrCompressed() {
+        MemoryMailStore store = new MemoryMailStore(true);
+        int maildrop = store.addMaildrop("test", "password");
+        store.addMail(maildrop, MESSAGE_2, "uidl-2");
+        mDb = new EmailDatabase(store);
+        login();
+
+        Assert.assertEquals("+OK 1 " + MESSAGE_2.length(), mDb.stat());
+        Assert.assertEquals("+OK" + CRLF + "Subject: two" + CRLF + CRLF
+                + "body" + CRLF + ".", mDb.getMessage(1, -1));
+    }
+
+    @Test
+    public void testTopReadsOnlyHeader() throws Exception {
+        for (boolean compress : new boolean[] {false, true}) {
+            MemoryMailStore store = new MemoryMailStore(compress);
+            int maildrop = store.addMaildrop("test", "password");
+            store.addMail(maildrop, MESSAGE_1, "uidl-1");
+            Maildrop found = store.findMaildrop("test");
+
+            Assert.assertEquals("Subject: one\nFrom: a@example.com\n\n",
+                    MailCompression.readAll(store.openHeader(found,
+                            store.getMailIDs(found).get(0))));
+
+            mDb = new EmailDatabase(store);
+            login();
+            Assert.assertEquals("+OK" + CRLF + "Subject: one" + CRLF
+                    + "From: a@example.com" + CRLF + CRLF + ".",
+                    mDb.getMessage(1, 0));
+            mDb.quit();
+        }
+    }
+
+    @Test
+    public void testTopLimitsBodyLines() {
+        login();
+        String expected = "+OK" + CRLF
+                + "Subject: one" + CRLF + "From: a@example.com" + CRLF + CRLF
+                + "first line" + CRLF
+                + ".";
+        Assert.assertEquals(expected, mDb.getMessage(1, 1));
+    }
+
+    @Test
+    public void testUidl() {
+        login();
+        Assert.assertEquals("+OK" + CRLF + "1 uidl-1" + CRLF + "2 uidl-2" + CRLF
+                + ".", mDb.uidl(-1));
+        Assert.assertEquals("+OK 2 uidl-2", mDb.uidl(2));
+    }
+
+    @Test
+    public void testDeleTwiceReturnsError() {
+        login();
+        mDb.dele(2);
+        Assert.assertEquals("-ERR message 2 already deleted", mDb.dele(2));
+    }
+
+    @Test
+    public void testRsetUnmarksDeleted() {
+        login();
+        mDb.dele(1);
+        mDb.dele(2);
+        mDb.rset();
+        Assert.assertTrue(mDb.list(1).startsWith("+OK"));
+        Assert.assertTrue(mDb.list(2).startsWith("+OK"));
+    }
+
+    @Test
+    public void testQuitRemovesDeletedAndUnlocks() {
+        login();
+        mDb.dele(1);
+        Assert.assertTrue(mDb.quit().startsWith("+OK 1 messages removed"));
+
+        EmailDatabase next = new EmailDatabase(mStore);
+        Assert.assertTrue(next.user("test").startsWith("+OK"));
+        next.pass("password");
+        Assert.assertEquals("+OK 1 " + MESSAGE_2.length(), next.stat());
+    }
+
+    @Test
+    public void testHibernateKeepsSnapshotAndDeletions() {
+        login();
+        mDb.dele(1);
+        mDb.hibernate();
+
+        // Delivered after login, so not part of the session
+        mStore.addMail(mStore.findMaildrop("test").getId(), "late", "uidl-3");
+
+        Assert.assertEquals("+OK 1 " + MESSAGE_2.length(), mDb.stat());
+        Assert.assertTrue(mDb.list(1).startsWith("-ERR"));
+        Assert.assertTrue(mDb.list(3).startsWith("-ERR"));
+
+        mDb.hibernate();
+        Assert.assertTrue(mDb.quit().startsWith("+OK 1 messages removed"));
+    }
+
+    @Test
+    public void testTimeoutUnlocksWithoutDeleting() {
+        login();
+        mDb.dele(1);
+        mDb.timeout();
+
+        EmailDatabase next = new EmailDatabase(mStore);
+        Assert.assertTrue(next.user("test").startsWith("+OK"));
+        next.pass("password");
+        Assert.assertTrue(next.stat().startsWith("+OK 2 "));
+    }
+}
@@ -0,0 +1,122 @@
+package mailserver;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestMailDelivery {
+
+    /** In-memory backing store */
+    private MemoryMailStore mStore;
+
+    /** Instance under test */
+    private MailDelivery mDelivery;
+
+    @Before
+    public void setUp() {
+        mStore = new MemoryMailStore();
+        mStore.addMaildrop("alice", "password");
+        mStore.addMaildrop("bob", "password");
+        mDelivery = new MailDelivery(mStore, 10, 2);
+    }
+
+    @After
+    public void tearDown() {
+        mDelivery.close();
+    }
+
+    private EmailDatabase login(String username) {
+        EmailDatabase database = new EmailDatabase(mStore);
+        Assert.assertTrue(database.user(username).startsWith("+OK"));
+        Assert.assertTrue(database.pass("password").startsWith("+OK"));
+        return database;
+    }
+
+    @Test
+    public void testNormalisesLineEndings() {
+        IncomingMessage message = new IncomingMessage(
+                "Subject: hi\r\n\r\nline one\rline two");
+
+        Assert.assertEquals("Subject: hi\n\nline one\nline two\n",
+                message.getContent());
+        // Each line ends with CRLF when sent
+        Assert.assertEquals(35, message.getOctets());
+        Assert.assertEquals(13, message.getHeaderLength());
+    }
+
+    @Test
+    public void testDeliverToEachRecipient() {
+        List<IDelivery.Status> statuses = mDelivery.deliver(
+                "Subject: hi\r\n\r\nbody\r\n",
+                Arrays.asList("alice", "nobody", "bob"));
+
+        Assert.assertEquals(Arrays.asList(IDelivery.Status.DELIVERED,
+                IDelivery.Status.NO_SUCH_USER, IDelivery.Status.DELIVERED),
+                statuses);
+        Assert.assertEquals(IDelivery.Status.NO_SUCH_USER,
+                mDelivery.verify("nobody"));
+
+        EmailDatabase alice = login("alice");
+        Assert.assertEquals("+OK 1 21", alice.stat());
+        Assert.assertEquals("+OK" + "\r\n" + "Subject: hi\r\n\r\nbody\r\n.",
+                alice.getMessage(1, -1));
+        Assert.assertEquals("+OK 1 21", login("bob").stat());
+    }
+
+    @Test
+    public void testLmtpRepliesPerRecipient() throws Exception {
+        LmtpServer server = new LmtpServer(InetAddress.getLoopbackAddress(),
+                0, mDelivery);
+        server.start();
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+                server.getPort())) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.UTF_8));
+            Writer out = new OutputStreamWriter(socket.getOutputStream(),
+                    StandardCharsets.UTF_8);
+
+            Assert.assertTrue(in.readLine().startsWith("220 "));
+            // Pipelined, as an MTA would
+            out.write("LHLO mta\r\nMAIL FROM:<carol@example.com>\r\n"
+                    + "RCPT TO:<alice@example.com>\r\n"
+                    + "RCPT TO:<nobody@example.com>\r\n"
+                    + "RCPT TO:<bob@example.com>\r\nDATA\r\n");
+            out.flush();
+
+            String line;
+            while ((line = in.readLine()).startsWith("250-")) {
+                // LHLO extensions
+            }
+            Assert.assertTrue(line.startsWith("250 SIZE"));
+            Assert.assertEquals("250 2.1.0 OK", in.readLine());
+            Assert.assertEquals("250 2.1.5 OK", in.readLine());
+            Assert.assertTrue(in.readLine().startsWith("550 5.1.1"));
+            Assert.assertEquals("250 2.1.5 OK", in.readLine());
+            Assert.assertTrue(in.readLine().startsWith("354 "));
+
+            out.write("Subject: hi\r\n\r\n..dotted\r\n.\r\nQUIT\r\n");
+            out.flush();
+            Assert.assertEquals("250 2.0.0 <alice@example.com> Delivered",
+                    in.readLine());
+            Assert.assertEquals("250 2.0.0 <bob@example.com> Delivered",
+                    in.readLine());
+            Assert.assertTrue(in.readLine().startsWith("221 "));
+        } finally {
+            server.stop();
+        }
+
+        Assert.assertEquals("+OK" + "\r\n" + "Subject: hi\r\n\r\n..dotted\r\n.",
+                login("alice").getMessage(1, -1));
+    }
+}
@@ -0,0 +1,172 @@
+package mailserver;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Two servers sharing one store, as two nodes would share the MySQL
+ * database.
+ */
+public class TestMaildropLocking {
+
+    private static final int PORT_A = 21210;
+    private static final int PORT_B = 21211;
+
+    private MemoryMailStore mStore;
+    private Pop3Server mServerA;
+    private Pop3Server mServerB;
+
+    /** A client connection to one of the servers. */
+    private static class Client {
+        final Socket mSocket;
+        final BufferedReader mReader;
+        final OutputStream mWriter;
+
+        Client(int port) throws IOException {
+            mSocket = new Socket("localhost", port);
+            mReader = new BufferedReader(
+                    new InputStreamReader(mSocket.getInputStream()));
+            mWriter = mSocket.getOutputStream();
+            mReader.readLine();
+        }
+
+        String command(String request) throws IOException {
+            mWriter.write((request + "\r\n").getBytes(
+                    StandardCharsets.US_ASCII));
+            mWriter.flush();
+            return mReader.readLine();
+        }
+
+        boolean login() throws IOException {
+            return command("USER test").startsWith("+OK")
+                    && command("PASS password").startsWith("+OK");
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Log.setDebug(false);
+        mStore = new MemoryMailStore();
+        int maildrop = mStore.addMaildrop("test", "password");
+        mStore.addMail(maildrop, "Subject: one\n\nbody\n", "uidl-1");
+        mStore.addMail(maildrop, "Subject: two\n\nbody\n", "uidl-2");
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty("mailserver.lockLease");
+        mServerA.stop(0);
+        mServerB.stop(0);
+        Log.setDebug(true);
+    }
+
+    private void startServers() throws Exception {
+        mServerA = new Pop3Server(PORT_A, 10000,
+                Pop3Server.sharedStore(mStore));
+        mServerB = new Pop3Server(PORT_B, 10000,
+                Pop3Server.sharedStore(mStore));
+        mServerA.start();
+        mServerB.start();
+        waitForServer(PORT_A);
+        waitForServer(PORT_B);
+    }
+
+    private static void waitForServer(int port) throws Exception {
+        for (int attempt = 0; attempt < 50; attempt++) {
+            try (Socket probe = new Socket("localhost", port)) {
+                probe.getInputStream().read();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        Assert.fail("Server did not start");
+    }
+
+    @Test
+    public void testConcurrentLoginsOnTwoServers() throws Exception {
+        startServers();
+
+        final int clients = 16;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(clients);
+        final AtomicInteger loggedIn = new AtomicInteger();
+        final Client[] connections = new Client[clients];
+
+        for (int i = 0; i < clients; i++) {
+            connections[i] = new Client(i % 2 == 0 ? PORT_A : PORT_B);
+        }
+        for (int i = 0; i < clients; i++) {
+            final Client client = connections[i];
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        if (client.login()) {
+                            loggedIn.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        // Counted as a failed login
+                    } finally {
+                        done.countDown();
+                    }
+                }
+
+            }).start();
+        }
+
+        start.countDown();
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(1, loggedIn.get());
+        Assert.assertEquals(EmailDatabase.NODE_ID,
+                mStore.getLockOwner("test"));
+
+        for (Client client : connections) {
+            client.mSocket.close();
+        }
+    }
+
+    @Test
+    public void testExpiredLeaseFencesDeletions() throws Exception {
+        System.setProperty("mailserver.lockLease", "300");
+        startServers();
+
+        Client a = new Client(PORT_A);
+        Assert.assertTrue(a.login());
+        Assert.assertTrue(a.command("DELE 1").startsWith("+OK"));
+
+        Client b = new Client(PORT_B);
+        Assert.assertTrue(b.command("USER test").startsWith("-ERR"));
+
+        // A stalls past its lease, and B takes over the maildrop
+        Thread.sleep(500);
+        Assert.assertTrue(b.login());
+        Assert.assertTrue(b.command("DELE 2").startsWith("+OK"));
+
+        Assert.assertTrue(a.command("QUIT").startsWith("-ERR [IN-USE]"));
+        Assert.assertEquals(2, mStore.getMailIDs(
+                mStore.findMaildrop("test")).size());
+
+        Assert.assertTrue(b.command("QUIT").startsWith("+OK"));
+        Assert.assertEquals(1, mStore.getMailIDs(
+                mStore.findMaildrop("test")).size());
+        Assert.assertNull(mStore.getLockOwner("test"));
+
+        a.mSocket.close();
+        b.mSocket.close();
+    }
+}
@@ -1,133 +1,405 @@
 package mailserver;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
 
 public class TestPop3Server {
 
-    private static Socket[] sSockets;
-    private static BufferedReader[] sReaders;
-    private static BufferedWriter[] sWriters;
+    private static final int PORT = 21110;
 
-    /**
-     * @param args optional command line argument (port)
-     * @throws IOException
-     */
-    public static void main(String[] args) throws IOException {
-        int numRequests = 12;
-        String[][] requests = {
-                {"USER alex", "PASS hello123", "DELE 2", "LIST",
-                        "LIST 3", "RETR 1", "TOP 2 10", "RSET",
-                        "STAT", "UIDL", "UIDL 3", "QUIT"},
-                {"USER bob", "PASS qwerty", "DELE 3", "LIST",
-                        "LIST 1", "RETR 3", "TOP 3 0", "RSET",
-                        "STAT", "UIDL", "UIDL 2", "QUIT"},
-                {"USER claire", "PASS qazwsx", "DELE 1", "LIST",
-                        "LIST 2", "RETR 4", "TOP 1 100", "RSET",
-                        "STAT", "UIDL", "UIDL 2", "QUIT"}
-        };
-
-        int port = Pop3Server.DEFAULT_PORT;
-        int numSockets = 3;
-
-        if (args.length == 1) {
-            try {
-                port = Integer.parseInt(args[0]);
-            } catch (NumberFormatException | IndexOutOfBoundsException e) {
-                e.printStackTrace();
-                System.err.println("Usage: <port>");
-            }
+    private MemoryMailStore mStore;
+    private Pop3Server mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        Log.setDebug(false);
+        mStore = new MemoryMailStore();
+        int maildrop = mStore.addMaildrop("test", "password");
+        mStore.addMail(maildrop, "Subject: one\n\nbody\n", "uidl-1");
+
+        mServer = new Pop3Server(PORT, 10000, Pop3Server.sharedStore(mStore));
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        Log.setDebug(true);
+    }
+
+    private String command(BufferedReader reader, OutputStream writer,
+                           String request) throws IOException {
+        writer.write((request + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        writer.flush();
+        return reader.readLine();
+    }
+
+    @Test
+    public void testStopReleasesLocksOfIdleSessions() throws Exception {
+        Socket socket = new Socket("localhost", PORT);
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream()));
+        OutputStream writer = socket.getOutputStream();
+
+        Assert.assertTrue(reader.readLine().startsWith("+OK"));
+        command(reader, writer, "USER test");
+        Assert.assertTrue(command(reader, writer, "PASS password")
+                .startsWith("+OK"));
+        command(reader, writer, "DELE 1");
+        Assert.assertTrue(mStore.findMaildrop("test").isLocked());
+
+        Assert.assertTrue(mServer.stop(5000));
+
+        // The session ended without entering the UPDATE state
+        Assert.assertNull(reader.readLine());
+        Assert.assertFalse(mStore.findMaildrop("test").isLocked());
+        Assert.assertEquals(1, mStore.getMailIDs(
+                mStore.findMaildrop("test")).size());
+        Assert.assertEquals(0, mServer.getActiveSessions());
+        socket.close();
+    }
+
+    @Test
+    public void testHeaviestSessionCanBeKilled() throws Exception {
+        Socket socket = new Socket("localhost", PORT);
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream()));
+        OutputStream writer = socket.getOutputStream();
 
-        } else if (args.length > 1) {
-            System.err.println("Usage: <port>");
-            return;
+        reader.readLine();
+        command(reader, writer, "USER test");
+        command(reader, writer, "PASS password");
+        command(reader, writer, "RETR 1");
+        String line;
+        while ((line = reader.readLine()) != null && !line.startsWith(".")) {
+            // The message, ending with the request echoed after the dot
         }
+        Assert.assertTrue(mStore.findMaildrop("test").isLocked());
 
-        TestPop3Server tester = new TestPop3Server();
+        ClientConnection heaviest =
+                mServer.getHeaviestSessions("written", 1).get(0);
+        Assert.assertTrue(heaviest.getBytesWritten() > 60);
+        Assert.assertEquals(heaviest.getBytesRead(),
+                "USER test\r\nPASS password\r\nRETR 1\r\n".length());
+        Assert.assertTrue(heaviest.getPeakResponseBuffer() > 0);
 
-        tester.setup(numSockets, port);
+        Assert.assertTrue(mServer.killSession(heaviest.getId()));
+        Assert.assertNull(reader.readLine());
+        for (int attempt = 0; attempt < 50
+                && mStore.findMaildrop("test").isLocked(); attempt++) {
+            Thread.sleep(20);
+        }
+        Assert.assertFalse(mStore.findMaildrop("test").isLocked());
+        socket.close();
+    }
 
-        // Read in server greetings
-        for (BufferedReader br : sReaders) {
-            System.out.println(br.readLine());
+    /**
+     * @return the lines of an admin response, the first line included and
+     * the terminating "." excluded.
+     */
+    private String admin(BufferedReader reader, OutputStream writer,
+                         String request) throws IOException {
+        StringBuilder response = new StringBuilder(
+                command(reader, writer, request));
+        if (response.toString().startsWith("+OK")) {
+            String line;
+            while ((line = reader.readLine()) != null && !line.equals(".")) {
+                response.append('\n').append(line);
+            }
         }
+        return response.toString();
+    }
 
-        for (int i = 0; i < requests.length; i++) {
-            for (int j = 0; j < numRequests; j++) {
-                // Execute that request for the socket and print the response
-                String request = requests[i][j] + "\r\n";
-                String response = tester.issueRequest(request, sReaders[i],
-                        sWriters[i]);
+    @Test
+    public void testAdminShowsSessionsAndReleasesLocks() throws Exception {
+        AdminServer adminServer = new AdminServer(
+                InetAddress.getLoopbackAddress(), 0, mServer, mStore);
+        adminServer.start();
+        // Stopped whatever fails, as its threads would outlive the test
+        try {
+            Socket admin = new Socket(InetAddress.getLoopbackAddress(),
+                    adminServer.getPort());
+            BufferedReader adminReader = new BufferedReader(
+                    new InputStreamReader(admin.getInputStream()));
+            OutputStream adminWriter = admin.getOutputStream();
+            Assert.assertTrue(adminReader.readLine().startsWith("+OK"));
 
-                System.out.print("socket   " + i + ": " + request);
-                System.out.println("response " + i + ": " + response);
+            Socket socket = new Socket("localhost", PORT);
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream()));
+            OutputStream writer = socket.getOutputStream();
+            reader.readLine();
+            command(reader, writer, "USER test");
+            command(reader, writer, "PASS password");
+
+            String sessions = admin(adminReader, adminWriter, "SESSIONS");
+            Assert.assertTrue(sessions,
+                    sessions.contains(" TRANSACTION test - "));
+            String locks = admin(adminReader, adminWriter, "LOCKS");
+            Assert.assertTrue(locks, locks.contains("\ntest owner="
+                    + EmailDatabase.NODE_ID));
+            Assert.assertFalse(locks, locks.contains("session=-"));
+
+            // Held here, so the session ends and releases the lock itself
+            Assert.assertTrue(admin(adminReader, adminWriter, "UNLOCK test")
+                    .startsWith("+OK Closed session"));
+            Assert.assertNull(reader.readLine());
+            for (int attempt = 0; attempt < 50
+                    && mStore.findMaildrop("test").isLocked(); attempt++) {
+                Thread.sleep(20);
             }
+            Assert.assertFalse(mStore.findMaildrop("test").isLocked());
+
+            // Left by another server
+            Maildrop maildrop = mStore.findMaildrop("test");
+            long token = mStore.lock(maildrop, "elsewhere", 60000);
+            Assert.assertTrue(admin(adminReader, adminWriter, "LOCKS")
+                    .contains("owner=elsewhere token=" + token));
+            Assert.assertEquals("+OK Unlocked",
+                    admin(adminReader, adminWriter, "UNLOCK test"));
+            Assert.assertFalse(mStore.findMaildrop("test").isLocked());
+            Assert.assertFalse(mStore.deleteMail(maildrop, token,
+                    Collections.singletonList(1)));
+
+            admin.close();
+            socket.close();
+        } finally {
+            adminServer.stop();
         }
+    }
+
+    @Test
+    public void testStopClosesListener() throws Exception {
+        mServer.stop(1000);
 
-        for (Socket s : sSockets) {
-            s.close();
+        try {
+            new Socket("localhost", PORT).close();
+            Assert.fail("Connection accepted after stop()");
+        } catch (IOException e) {
+            // Expected
         }
     }
 
+    @Test
+    public void testConnectionsOverAddressLimitAreRefused() throws Exception {
+        ConnectionLimiter limiter = mServer.getConnectionLimiter();
+        limiter.setLimits(10, 1);
+
+        Socket first = new Socket("localhost", PORT);
+        BufferedReader firstReader = new BufferedReader(
+                new InputStreamReader(first.getInputStream()));
+        Assert.assertTrue(firstReader.readLine().startsWith("+OK"));
+
+        Socket second = new Socket("localhost", PORT);
+        BufferedReader secondReader = new BufferedReader(
+                new InputStreamReader(second.getInputStream()));
+        Assert.assertEquals("-ERR [SYS/TEMP] server busy",
+                secondReader.readLine());
+        Assert.assertNull(secondReader.readLine());
+
+        first.close();
+        second.close();
+    }
+
     /**
-     * Setup connections to a mailserver instance.
-     *
-     * @param numSockets number of sockets to create
-     * @param port       the port number on which the mailserver instance is running
-     * @throws IOException
+     * @return a TLS configuration with a new self-signed certificate.
      */
-    private void setup(int numSockets, int port) throws IOException {
-        sSockets = new Socket[numSockets];
-        for (int i = 0; i < numSockets; i++) {
-            sSockets[i] = new Socket(InetAddress.getLocalHost(), port);
-        }
+    private static TlsContext selfSignedTls() throws Exception {
+        File file = File.createTempFile("mailserver", ".p12");
+        file.delete();
+        file.deleteOnExit();
+        Process keytool = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin/keytool")
+                        .getPath(), "-genkeypair", "-keyalg", "EC",
+                "-alias", "test", "-dname", "CN=localhost", "-validity", "1",
+                "-storetype", "PKCS12", "-keystore", file.getPath(),
+                "-storepass", "changeit", "-keypass", "changeit")
+                .inheritIO().start();
+        Assert.assertEquals(0, keytool.waitFor());
 
-        sReaders = new BufferedReader[numSockets];
-        for (int i = 0; i < numSockets; i++) {
-            sReaders[i] = new BufferedReader(
-                    new InputStreamReader(sSockets[i].getInputStream())
-            );
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(file)) {
+            keyStore.load(in, "changeit".toCharArray());
         }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, "changeit".toCharArray());
 
-        sWriters = new BufferedWriter[numSockets];
-        for (int i = 0; i < numSockets; i++) {
-            sWriters[i] = new BufferedWriter(
-                    new OutputStreamWriter(sSockets[i].getOutputStream())
-            );
-        }
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        return new TlsContext(context, true);
     }
 
     /**
-     * Processes the request from a client and returns the reponse from the
-     * server.
-     *
-     * @param request the request from the client to send to the server
-     * @param reader  the input stream to send data to the client
-     * @param writer  the output stream to send data to the server
-     * @return the response from the server
-     * @throws IOException
+     * @return a client context that accepts any certificate.
      */
-    private String issueRequest(String request, BufferedReader reader,
-                                BufferedWriter writer)
-            throws IOException {
+    private static SSLContext trustAll() throws Exception {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[] {new X509TrustManager() {
 
-        // Send the request to the server
-        writer.write(request);
-        writer.flush();
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain,
+                                           String authType) {
+            }
 
-        // Get the server's response
-        StringBuilder response = new StringBuilder();
-        String buf;
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain,
+                                           String authType) {
+            }
 
-        while (null != (buf = reader.readLine())) {
-            response.append(buf);
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+
+        }}, null);
+        return context;
+    }
+
+    @Test
+    public void testStlsAndImplicitTls() throws Exception {
+        TlsContext tls = selfSignedTls();
+        Pop3Server server = new Pop3Server(PORT + 1, 10000,
+                Pop3Server.sharedStore(mStore));
+        server.enableTls(tls, PORT + 2);
+        server.start();
+
+        try {
+            Socket plain = new Socket("localhost", PORT + 1);
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(plain.getInputStream()));
+            OutputStream writer = plain.getOutputStream();
+            reader.readLine();
+            Assert.assertTrue(command(reader, writer, "STLS")
+                    .startsWith("+OK"));
+
+            SSLSocket upgraded = (SSLSocket) trustAll().getSocketFactory()
+                    .createSocket(plain, "localhost", PORT + 1, true);
+            upgraded.startHandshake();
+            reader = new BufferedReader(
+                    new InputStreamReader(upgraded.getInputStream()));
+            writer = upgraded.getOutputStream();
+            command(reader, writer, "USER test");
+            Assert.assertTrue(command(reader, writer, "PASS password")
+                    .startsWith("+OK"));
+            Assert.assertTrue(command(reader, writer, "STAT")
+                    .startsWith("+OK 1 "));
+            command(reader, writer, "QUIT");
+            upgraded.close();
+
+            SSLSocket implicit = (SSLSocket) trustAll().getSocketFactory()
+                    .createSocket("localhost", PORT + 2);
+            reader = new BufferedReader(
+                    new InputStreamReader(implicit.getInputStream()));
+            writer = implicit.getOutputStream();
+            Assert.assertTrue(reader.readLine().startsWith("+OK"));
+            // STLS is not offered once TLS is active
+            Assert.assertTrue(command(reader, writer, "STLS")
+                    .startsWith("-ERR"));
+            implicit.close();
+
+        } finally {
+            server.stop(1000);
         }
+    }
 
-        return response.toString();
+    @Test
+    public void testHibernatedSessionResumes() throws Exception {
+        System.setProperty("mailserver.hibernateAfter", "200");
+        Pop3Server server = new Pop3Server(PORT + 3, 10000,
+                Pop3Server.sharedStore(mStore));
+        System.clearProperty("mailserver.hibernateAfter");
+        server.start();
+
+        try {
+            Socket socket = new Socket("localhost", PORT + 3);
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream()));
+            OutputStream writer = socket.getOutputStream();
+
+            reader.readLine();
+            command(reader, writer, "USER test");
+            command(reader, writer, "PASS password");
+            Assert.assertTrue(command(reader, writer, "DELE 1")
+                    .startsWith("+OK"));
+
+            Thread.sleep(500);
+            Assert.assertEquals("+OK 0 0", command(reader, writer, "STAT"));
+            command(reader, writer, "RSET");
+
+            Thread.sleep(500);
+            Assert.assertEquals("+OK 1 19", command(reader, writer, "STAT"));
+            Assert.assertTrue(command(reader, writer, "QUIT")
+                    .startsWith("+OK"));
+            socket.close();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testAcceptThreadsShareEndpoint() throws Exception {
+        Pop3Server server = new Pop3Server(PORT + 4, 10000,
+                Pop3Server.sharedStore(mStore));
+        Endpoint endpoint = new Endpoint(InetAddress.getLoopbackAddress(),
+                PORT + 4, false);
+        endpoint.setAcceptThreads(4);
+        server.addEndpoint(endpoint);
+        server.start();
+
+        try {
+            // Bound before start() returns, whichever thread accepts
+            for (int i = 0; i < 20; i++) {
+                try (Socket socket = new Socket(
+                        InetAddress.getLoopbackAddress(), PORT + 4)) {
+                    Assert.assertTrue(new BufferedReader(new InputStreamReader(
+                            socket.getInputStream())).readLine()
+                            .startsWith("+OK"));
+                }
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testClientDisconnectReleasesLock() throws Exception {
+        Socket socket = new Socket("localhost", PORT);
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream()));
+        OutputStream writer = socket.getOutputStream();
+
+        reader.readLine();
+        command(reader, writer, "USER test");
+        command(reader, writer, "PASS password");
+        socket.close();
+
+        for (int attempt = 0; attempt < 50
+                && mStore.findMaildrop("test").isLocked(); attempt++) {
+            Thread.sleep(20);
+        }
+        Assert.assertFalse(mStore.findMaildrop("test").isLocked());
     }
 }
@@ -0,0 +1,106 @@
+package mailserver;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestReplicatedMailStore {
+
+    private MemoryMailStore mPrimary;
+    private MemoryMailStore mReplica;
+    private ReplicatedMailStore mStore;
+
+    @Before
+    public void setUp() throws Exception {
+        Log.setDebug(false);
+        mPrimary = new MemoryMailStore();
+        mReplica = new MemoryMailStore();
+        for (MemoryMailStore store : Arrays.asList(mPrimary, mReplica)) {
+            int maildrop = store.addMaildrop("test", "password");
+            store.addMail(maildrop, "Subject: one\n\nbody\n", "uidl-1");
+            store.addMail(maildrop, "Subject: two\n\nbody\n", "uidl-2");
+            store.addMail(maildrop, "Subject: three\n\nbody\n", "uidl-3");
+        }
+
+        // An earlier session deleted message 1 and message 4 was delivered,
+        // neither of which has reached the replica
+        Maildrop maildrop = mPrimary.findMaildrop("test");
+        long token = mPrimary.lock(maildrop, "earlier", 60000);
+        mPrimary.deleteMail(maildrop, token, Collections.singletonList(1));
+        mPrimary.unlock(maildrop, token);
+        mPrimary.addMail(maildrop.getId(), "Subject: four\n\nbody\n",
+                "uidl-4");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mStore.close();
+        Log.setDebug(true);
+    }
+
+    private Maildrop open() throws Exception {
+        Maildrop maildrop = mStore.findMaildrop("test");
+        Assert.assertTrue(mStore.lock(maildrop, "test", 60000) > 0);
+        Assert.assertEquals(Arrays.asList(2, 3, 4),
+                mStore.getMailIDs(maildrop));
+        return maildrop;
+    }
+
+    @Test
+    public void testLaggingReplicaNeverResurrectsDeletedMessages()
+            throws Exception {
+        mStore = new ReplicatedMailStore(mPrimary,
+                Collections.<MailStore>singletonList(mReplica), 5, 60000);
+        mStore.checkReplicas();
+        Maildrop maildrop = open();
+
+        // The replica is missing message 4, so the primary answers
+        Map<Integer, String> uidls = mStore.getUIDLs(maildrop);
+        Assert.assertEquals(new HashSet<>(Arrays.asList(2, 3, 4)),
+                uidls.keySet());
+        Assert.assertEquals(1, mStore.getFallbacks());
+
+        Assert.assertEquals("uidl-2", mStore.getUIDL(maildrop, 2));
+        Assert.assertEquals("uidl-4", mStore.getUIDL(maildrop, 4));
+        Assert.assertEquals(2, mStore.getFallbacks());
+        Assert.assertEquals(1, mStore.getReplicaReads());
+
+        // Once message 4 has replicated, the stale row of message 1 is
+        // still left out
+        mReplica.addMail(maildrop.getId(), "Subject: four\n\nbody\n",
+                "uidl-4");
+        Map<Integer, Integer> octets = mStore.getOctets(maildrop);
+        Assert.assertEquals(new HashSet<>(Arrays.asList(2, 3, 4)),
+                octets.keySet());
+        Assert.assertEquals(2, mStore.getFallbacks());
+        Assert.assertEquals(2, mStore.getReplicaReads());
+    }
+
+    @Test
+    public void testLaggingReplicaIsSkipped() throws Exception {
+        mStore = new ReplicatedMailStore(mPrimary,
+                Collections.<MailStore>singletonList(mReplica), 5, 60000) {
+
+            @Override
+            protected long getLag(MailStore replica) {
+                return 30;
+            }
+
+        };
+        mStore.checkReplicas();
+        Assert.assertEquals(0, mStore.getHealthyReplicas());
+
+        Maildrop maildrop = open();
+        Assert.assertEquals("Subject: two\n\nbody\n",
+                mStore.getContent(maildrop, 2));
+        Assert.assertEquals(0, mStore.getReplicaReads());
+        Assert.assertEquals(0, mStore.getFallbacks());
+        Assert.assertEquals(1, mStore.getPrimaryReads());
+    }
+}
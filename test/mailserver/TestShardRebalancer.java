@@ -0,0 +1,270 @@
+package mailserver;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestShardRebalancer {
+
+    /** A ShardCopier for MemoryMailStore shards, recording its steps. */
+    private class MemoryShardCopier implements ShardCopier {
+
+        @Override
+        public List<String> getUsernames(MailStore shard) {
+            return ((MemoryMailStore) shard).getUsernames();
+        }
+
+        @Override
+        public Copy copy(MailStore fromShard, MailStore toShard,
+                         Maildrop maildrop, long version)
+                throws SQLException {
+            MemoryMailStore from = (MemoryMailStore) fromShard;
+            MemoryMailStore to = (MemoryMailStore) toShard;
+            int copyID = to.addMaildrop(maildrop.getUsername(),
+                    maildrop.getPassword());
+            int lastMailID = copyMail(from, to, maildrop, copyID, 0);
+            mEvents.add("copy " + maildrop.getUsername());
+            return new Copy(copyID, lastMailID);
+        }
+
+        @Override
+        public boolean finish(MailStore fromShard, MailStore toShard,
+                              Maildrop maildrop, long token, Copy copy) {
+            MemoryMailStore from = (MemoryMailStore) fromShard;
+            MemoryMailStore to = (MemoryMailStore) toShard;
+            // Deliveries wait for the store, as they would for the row lock
+            synchronized (from) {
+                Maildrop current = from.findMaildrop(maildrop.getUsername());
+                if (current == null || !current.isLocked()) {
+                    return false;
+                }
+                copyMail(from, to, maildrop, copy.mMaildropID,
+                        copy.mLastMailID);
+                mEvents.add("delete " + maildrop.getUsername());
+                return from.deleteMaildrop(maildrop, token);
+            }
+        }
+
+        @Override
+        public void discard(MailStore toShard, Copy copy) {
+            mEvents.add("discard");
+        }
+
+        private int copyMail(MemoryMailStore from, MemoryMailStore to,
+                             Maildrop maildrop, int copyID,
+                             int afterMailID) {
+            int lastMailID = afterMailID;
+            for (Integer mailID : from.getMailIDs(maildrop, afterMailID)) {
+                to.addMail(copyID, from.getContent(maildrop, mailID),
+                        from.getUIDL(maildrop, mailID));
+                lastMailID = mailID;
+            }
+            return lastMailID;
+        }
+    }
+
+    private List<String> mEvents;
+    private Map<String, Integer> mAssignments;
+    private List<MemoryMailStore> mShards;
+    private ShardedMailStore mStore;
+
+    @Before
+    public void setUp() {
+        mEvents = new ArrayList<>();
+        mAssignments = new HashMap<>();
+        ShardDirectory directory = new ShardDirectory() {
+
+            @Override
+            public Integer lookup(String username) {
+                return mAssignments.get(username);
+            }
+
+            @Override
+            public void assign(String username, int shard) {
+                mEvents.add("assign " + username + " " + shard);
+                mAssignments.put(username, shard);
+            }
+
+            @Override
+            public void remove(String username) {
+                mEvents.add("remove " + username);
+                mAssignments.remove(username);
+            }
+
+            @Override
+            public Map<String, Integer> getAssignments() {
+                return new HashMap<>(mAssignments);
+            }
+
+        };
+
+        mShards = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            mShards.add(new MemoryMailStore());
+        }
+        mStore = new ShardedMailStore(new ArrayList<MailStore>(mShards),
+                directory, 1000, 60000);
+    }
+
+    /**
+     * Create a maildrop with two messages on the shard it does not hash
+     * to, and record it there in the directory.
+     *
+     * @return the index of the shard it was created on.
+     */
+    private int addPinned(String username) {
+        int shard = 1 - mStore.getHashedShard(username);
+        int maildropID = mShards.get(shard).addMaildrop(username, "pw");
+        mShards.get(shard).addMail(maildropID, "Subject: 1\n\none\n",
+                username + "-1");
+        mShards.get(shard).addMail(maildropID, "Subject: 2\n\ntwo\n",
+                username + "-2");
+        mAssignments.put(username, shard);
+        return shard;
+    }
+
+    private static List<String> getUIDLs(MailStore shard, String username)
+            throws SQLException {
+        Maildrop maildrop = shard.findMaildrop(username);
+        return new ArrayList<>(shard.getUIDLs(maildrop).values());
+    }
+
+    @Test
+    public void testDirectorySwitchesBeforeSourceIsDeleted()
+            throws Exception {
+        int source = addPinned("alice");
+        int target = 1 - source;
+        ShardRebalancer rebalancer = new ShardRebalancer(mStore,
+                new MemoryShardCopier());
+
+        Assert.assertTrue(rebalancer.move("alice", target));
+
+        Assert.assertEquals(Arrays.asList("copy alice", "remove alice",
+                "delete alice"), mEvents);
+        Assert.assertNull(mShards.get(source).findMaildrop("alice"));
+        Assert.assertEquals(Arrays.asList("alice-1", "alice-2"),
+                getUIDLs(mShards.get(target), "alice"));
+        Maildrop maildrop = mStore.findMaildrop("alice");
+        Assert.assertNotNull(maildrop);
+        Assert.assertFalse(maildrop.isLocked());
+        Assert.assertEquals(2, mStore.getMailIDs(maildrop).size());
+    }
+
+    @Test
+    public void testLateDeliveriesAreCarriedOver() throws Exception {
+        final int source = addPinned("bob");
+        int target = 1 - source;
+        ShardRebalancer rebalancer = new ShardRebalancer(mStore,
+                new MemoryShardCopier() {
+
+                    @Override
+                    public Copy copy(MailStore from, MailStore to,
+                                     Maildrop maildrop, long version)
+                            throws SQLException {
+                        Copy copy = super.copy(from, to, maildrop, version);
+                        // Delivered to the old shard after the copy
+                        mShards.get(source).addMail(maildrop.getId(),
+                                "Subject: 3\n\nthree\n", "bob-3");
+                        return copy;
+                    }
+
+                });
+
+        Assert.assertTrue(rebalancer.move("bob", target));
+
+        Assert.assertNull(mShards.get(source).findMaildrop("bob"));
+        Assert.assertEquals(Arrays.asList("bob-1", "bob-2", "bob-3"),
+                getUIDLs(mShards.get(target), "bob"));
+    }
+
+    @Test
+    public void testFailedCopyLeavesSourceInPlace() throws Exception {
+        int source = addPinned("carol");
+        int target = 1 - source;
+        ShardRebalancer rebalancer = new ShardRebalancer(mStore,
+                new MemoryShardCopier() {
+
+                    @Override
+                    public Copy copy(MailStore from, MailStore to,
+                                     Maildrop maildrop, long version)
+                            throws SQLException {
+                        throw new SQLException("Shard unavailable");
+                    }
+
+                });
+
+        try {
+            rebalancer.move("carol", target);
+            Assert.fail("The failed copy was not reported");
+        } catch (SQLException e) {
+            Assert.assertEquals("Shard unavailable", e.getMessage());
+        }
+
+        Assert.assertEquals(Integer.valueOf(source),
+                mAssignments.get("carol"));
+        Assert.assertTrue(mEvents.isEmpty());
+        Assert.assertNull(mShards.get(target).findMaildrop("carol"));
+        Assert.assertEquals(Arrays.asList("carol-1", "carol-2"),
+                getUIDLs(mShards.get(source), "carol"));
+
+        // Unlocked, so that sessions can use it again
+        Maildrop maildrop = mStore.findMaildrop("carol");
+        Assert.assertFalse(maildrop.isLocked());
+        long token = mStore.lock(maildrop, "test", 60000);
+        Assert.assertTrue(token > 0);
+        mStore.unlock(maildrop, token);
+    }
+
+    @Test
+    public void testMoveAllSkipsMaildropsInUse() throws Exception {
+        int busySource = addPinned("dave");
+        int idleSource = addPinned("erin");
+        ShardRebalancer rebalancer = new ShardRebalancer(mStore,
+                new MemoryShardCopier());
+
+        Maildrop busy = mStore.findMaildrop("dave");
+        long token = mStore.lock(busy, "session", 60000);
+        Assert.assertTrue(token > 0);
+
+        Assert.assertEquals(1, rebalancer.moveAll(Integer.MAX_VALUE));
+        Assert.assertEquals(Integer.valueOf(busySource),
+                mAssignments.get("dave"));
+        Assert.assertNotNull(mShards.get(busySource).findMaildrop("dave"));
+        Assert.assertEquals("session",
+                mShards.get(busySource).getLockOwner("dave"));
+        Assert.assertNull(mAssignments.get("erin"));
+        Assert.assertNull(mShards.get(idleSource).findMaildrop("erin"));
+
+        // Moved by the next run once the session has ended
+        mStore.unlock(busy, token);
+        Assert.assertEquals(1, rebalancer.moveAll(Integer.MAX_VALUE));
+        Assert.assertTrue(mAssignments.isEmpty());
+        Assert.assertEquals(Arrays.asList("dave-1", "dave-2"),
+                getUIDLs(mShards.get(1 - busySource), "dave"));
+    }
+
+    @Test
+    public void testPinRecordsMaildropsOffTheirShard() throws Exception {
+        String[] usernames = {"frank", "grace", "heidi", "ivan"};
+        for (String username : usernames) {
+            int shard = mStore.getHashedShard(username);
+            mShards.get(shard).addMaildrop(username, "pw");
+        }
+        int other = 1 - mStore.getHashedShard("judy");
+        mShards.get(other).addMaildrop("judy", "pw");
+        ShardRebalancer rebalancer = new ShardRebalancer(mStore,
+                new MemoryShardCopier());
+
+        Assert.assertEquals(1, rebalancer.pin());
+        Assert.assertEquals(1, mAssignments.size());
+        Assert.assertEquals(Integer.valueOf(other), mAssignments.get("judy"));
+        Assert.assertEquals(0, rebalancer.pin());
+    }
+}
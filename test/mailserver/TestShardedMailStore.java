@@ -0,0 +1,124 @@
+package mailserver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestShardedMailStore {
+
+    private static final int USERS = 400;
+
+    private Map<String, Integer> mAssignments;
+    private ShardDirectory mDirectory;
+
+    @Before
+    public void setUp() {
+        mAssignments = new HashMap<>();
+        mDirectory = new ShardDirectory() {
+
+            @Override
+            public Integer lookup(String username) {
+                return mAssignments.get(username);
+            }
+
+            @Override
+            public void assign(String username, int shard) {
+                mAssignments.put(username, shard);
+            }
+
+            @Override
+            public void remove(String username) {
+                mAssignments.remove(username);
+            }
+
+            @Override
+            public Map<String, Integer> getAssignments() {
+                return new HashMap<>(mAssignments);
+            }
+
+        };
+    }
+
+    private ShardedMailStore newStore(List<MemoryMailStore> shards) {
+        return new ShardedMailStore(new ArrayList<MailStore>(shards),
+                mDirectory, 1000, 60000);
+    }
+
+    private static List<MemoryMailStore> newShards(int count) {
+        List<MemoryMailStore> shards = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            shards.add(new MemoryMailStore());
+        }
+        return shards;
+    }
+
+    @Test
+    public void testMaildropsAreFoundOnTheirShard() throws Exception {
+        List<MemoryMailStore> shards = newShards(3);
+        ShardedMailStore store = newStore(shards);
+
+        int[] perShard = new int[shards.size()];
+        for (int i = 0; i < USERS; i++) {
+            String username = "user" + i;
+            int shard = store.getHashedShard(username);
+            int maildrop = shards.get(shard).addMaildrop(username, "pw");
+            shards.get(shard).addMail(maildrop, "Subject: " + i + "\n\n",
+                    "uidl-" + i);
+            perShard[shard]++;
+        }
+        for (int count : perShard) {
+            Assert.assertTrue(count > USERS / 6);
+        }
+
+        for (int i = 0; i < USERS; i++) {
+            Maildrop maildrop = store.findMaildrop("user" + i);
+            List<Integer> mailIDs = store.getMailIDs(maildrop);
+            Assert.assertEquals(1, mailIDs.size());
+            Assert.assertEquals("uidl-" + i,
+                    store.getUIDL(maildrop, mailIDs.get(0)));
+        }
+        Assert.assertNull(store.findMaildrop("nobody"));
+    }
+
+    @Test
+    public void testAddingAShardOnlyMovesMaildropsToIt() {
+        ShardedMailStore before = newStore(newShards(3));
+        ShardedMailStore after = newStore(newShards(4));
+
+        int moved = 0;
+        for (int i = 0; i < USERS; i++) {
+            String username = "user" + i;
+            int shard = after.getHashedShard(username);
+            if (shard != before.getHashedShard(username)) {
+                Assert.assertEquals(3, shard);
+                moved++;
+            }
+        }
+        Assert.assertTrue(moved > USERS / 8 && moved < USERS * 3 / 8);
+    }
+
+    @Test
+    public void testDirectoryOverridesHashing() throws Exception {
+        List<MemoryMailStore> shards = newShards(2);
+        ShardedMailStore store = newStore(shards);
+
+        int other = 1 - store.getHashedShard("pinned");
+        shards.get(other).addMaildrop("pinned", "pw");
+        Assert.assertNull(store.findMaildrop("pinned"));
+
+        mDirectory.assign("pinned", other);
+        store.invalidate("pinned");
+        Maildrop maildrop = store.findMaildrop("pinned");
+        Assert.assertNotNull(maildrop);
+
+        long token = store.lock(maildrop, "test", 60000);
+        Assert.assertTrue(token > 0);
+        Assert.assertTrue(shards.get(other).findMaildrop("pinned").isLocked());
+        store.unlock(maildrop, token);
+    }
+}
@@ -0,0 +1,84 @@
+package mailserver;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestSnapshotCachingMailStore {
+
+    private MemoryMailStore mMemory;
+    private SnapshotCachingMailStore mStore;
+    private int mMaildropID;
+
+    @Before
+    public void setUp() {
+        mMemory = new MemoryMailStore();
+        mStore = new SnapshotCachingMailStore(mMemory, 1000);
+        mMaildropID = mMemory.addMaildrop("alice", "secret");
+        for (int i = 0; i < 3; i++) {
+            mMemory.addMail(mMaildropID, "Subject: " + i + "\n\nbody",
+                    "uidl-" + i);
+        }
+    }
+
+    @Test
+    public void testOnlyNewMessagesAreRead() throws Exception {
+        Maildrop maildrop = mStore.findMaildrop("alice");
+        Assert.assertEquals(Arrays.asList(1, 2, 3),
+                mStore.getMailIDs(maildrop));
+        Assert.assertEquals(0, mStore.getHits());
+
+        mMemory.addMail(mMaildropID, "Subject: 3\n\nbody", "uidl-3");
+        Assert.assertEquals(Arrays.asList(1, 2, 3, 4),
+                mStore.getMailIDs(maildrop));
+        Assert.assertEquals(Arrays.asList(1, 2, 3, 4),
+                mStore.getMailIDs(maildrop));
+        Assert.assertEquals(2, mStore.getHits());
+        Assert.assertEquals(1, mStore.getMisses());
+    }
+
+    @Test
+    public void testDeletionsThroughCacheKeepSnapshot() throws Exception {
+        Maildrop maildrop = mStore.findMaildrop("alice");
+        long token = mStore.lock(maildrop, "test", 60000);
+        mStore.getMailIDs(maildrop);
+        Assert.assertTrue(mStore.deleteMail(maildrop, token,
+                Collections.singletonList(2)));
+        mStore.unlock(maildrop, token);
+
+        Assert.assertEquals(Arrays.asList(1, 3), mStore.getMailIDs(maildrop));
+        Assert.assertEquals(1, mStore.getHits());
+    }
+
+    @Test
+    public void testDeletionsElsewhereReloadSnapshot() throws Exception {
+        Maildrop maildrop = mStore.findMaildrop("alice");
+        mStore.getMailIDs(maildrop);
+
+        // Another server removes a message without going through the cache
+        long token = mMemory.lock(maildrop, "other", 60000);
+        mMemory.deleteMail(maildrop, token, Collections.singletonList(1));
+        mMemory.unlock(maildrop, token);
+
+        Assert.assertEquals(Arrays.asList(2, 3), mStore.getMailIDs(maildrop));
+        Assert.assertEquals(2, mStore.getMisses());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedAreEvicted() throws Exception {
+        SnapshotCachingMailStore store =
+                new SnapshotCachingMailStore(mMemory, 3);
+        int bob = mMemory.addMaildrop("bob", "secret");
+        mMemory.addMail(bob, "Subject: bob\n\nbody", "uidl-bob");
+
+        store.getMailIDs(store.findMaildrop("alice"));
+        store.getMailIDs(store.findMaildrop("bob"));
+        Assert.assertEquals(1, store.getCachedMaildrops());
+
+        store.getMailIDs(store.findMaildrop("alice"));
+        Assert.assertEquals(0, store.getHits());
+    }
+}